@@ -134,7 +134,17 @@ public interface ODLComponent extends  net.xeoh.plugins.base.Plugin{
 	 * uncertain dependencies).
 	 */
 	public static final long FLAG_DISABLE_FRAMEWORK_DATA_READ_FOR_DEPENDENCIES= 1<<3;
-	
+
+	/**
+	 * When the input data has a batch key, the framework can call the component for several batch keys at
+	 * once on different threads. Each call is given its own copy of the batch key's input rows and its own
+	 * output datastore, which are merged back in batch key order afterwards. Control launchers are also
+	 * submitted in batch key order, after each key has been merged. A component should only return this
+	 * flag if its execute method is thread-safe, it doesn't add or delete rows in its input tables and it
+	 * doesn't call showModalPanel or compileFunction on the execution api.
+	 */
+	public static final long FLAG_BATCH_KEYS_CAN_RUN_IN_PARALLEL = 1<<4;
+
 //	/**
 //	 * Get any default fixed IO structure configurations that the component defines
 //	 * @return
@@ -118,6 +118,13 @@ public interface TableFlags {
 	public static final long FLAG_LINKED_EXCEL_CREATED_TABLE = 1<<20;
 
 	public static final long FLAG_LINKED_EXCEL_INCLUDED_TABLE = 1<<21;
+
+	/**
+	 * Flag indicating an adapter should evaluate each formula column once per row and cache the result,
+	 * instead of evaluating the formula on every read. Cached values are dropped when the source
+	 * datastores fire their listeners or when the source row's last modified time changes.
+	 */
+	public static final long FLAG_MATERIALISE_FORMULAE = 1<<22;
 	
 	public static final long ALL_LINKED_EXCEL_FLAGS = FLAG_LINKED_EXCEL_READ_ONLY_DATA|FLAG_LINKED_EXCEL_CREATED_TABLE|FLAG_LINKED_EXCEL_INCLUDED_TABLE;
 
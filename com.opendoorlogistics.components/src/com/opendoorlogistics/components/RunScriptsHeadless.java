@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.components;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.opendoorlogistics.core.api.impl.ODLApiImpl;
+import com.opendoorlogistics.core.scripts.execution.HeadlessScriptRunner;
+import com.opendoorlogistics.core.scripts.execution.HeadlessScriptRunner.Job;
+import com.opendoorlogistics.core.scripts.execution.HeadlessScriptRunner.JobResult;
+
+/**
+ * Command line entry point to run scripts without the studio, e.g. for nightly builds on a server.
+ * Run with no arguments to print the usage. Plugin components are loaded from the plugins directory
+ * as they are in the studio.
+ *
+ * @author Phil
+ *
+ */
+final public class RunScriptsHeadless {
+	private static final String USAGE = "Usage: RunScriptsHeadless [-threads n] -job [-in datafile] [-out outputfile] [-profile tablename] script.xml [script2.xml ...] [-job ...]" + System.lineSeparator()
+			+ "Each job loads its input (xls, xlsx, csv or tab separated txt; an empty datastore if -in is missing), runs its scripts in turn" + System.lineSeparator()
+			+ "and saves the result (xls, xlsx or otherwise a directory of tab separated files). With -profile the time taken by each instruction," + System.lineSeparator()
+			+ "component and adapter table is saved as a table too. Jobs are independent and run concurrently" + System.lineSeparator()
+			+ "on up to n threads (default 1). The exit code is 1 if any job fails.";
+
+	public static void main(String[] args) {
+		List<Job> jobs = new ArrayList<>();
+		int nbThreads = 1;
+
+		// parse the arguments
+		File in = null;
+		File out = null;
+		String profileTable = null;
+		List<File> scripts = null;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if (arg.equalsIgnoreCase("-threads")) {
+					nbThreads = Integer.parseInt(args[++i]);
+				} else if (arg.equalsIgnoreCase("-job")) {
+					addJob(jobs, in, out, profileTable, scripts);
+					in = null;
+					out = null;
+					profileTable = null;
+					scripts = new ArrayList<>();
+				} else if (scripts == null) {
+					throw new IllegalArgumentException("Expected -job before " + arg);
+				} else if (arg.equalsIgnoreCase("-in")) {
+					in = new File(args[++i]);
+				} else if (arg.equalsIgnoreCase("-out")) {
+					out = new File(args[++i]);
+				} else if (arg.equalsIgnoreCase("-profile")) {
+					profileTable = args[++i];
+				} else {
+					scripts.add(new File(arg));
+				}
+			}
+			addJob(jobs, in, out, profileTable, scripts);
+		} catch (Exception e) {
+			System.err.println(e.getMessage() != null ? e.getMessage() : e.toString());
+			jobs.clear();
+		}
+
+		if (jobs.size() == 0) {
+			System.err.println(USAGE);
+			System.exit(1);
+		}
+
+		// no windows, even if a component tries to create one
+		System.setProperty("java.awt.headless", "true");
+		InitialiseComponents.initialise();
+
+		long start = System.currentTimeMillis();
+		boolean failed = false;
+		for (JobResult result : new HeadlessScriptRunner(new ODLApiImpl()).run(jobs, nbThreads)) {
+			System.out.println(result);
+			failed |= result.getReport().isFailed();
+		}
+		System.out.println("Ran " + jobs.size() + " job(s) in " + (System.currentTimeMillis() - start) + " ms" + (failed ? ", one or more failed." : "."));
+		System.exit(failed ? 1 : 0);
+	}
+
+	private static void addJob(List<Job> jobs, File in, File out, String profileTable, List<File> scripts) {
+		if (scripts == null) {
+			return;
+		}
+		if (scripts.size() == 0) {
+			throw new IllegalArgumentException("No scripts given for a job.");
+		}
+		Job job = new Job(in, out);
+		job.setProfileTableName(profileTable);
+		job.getScripts().addAll(scripts);
+		jobs.add(job);
+	}
+}
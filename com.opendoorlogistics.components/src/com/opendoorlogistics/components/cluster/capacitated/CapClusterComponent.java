@@ -38,6 +38,7 @@ import com.opendoorlogistics.components.cluster.capacitated.solver.Problem;
 import com.opendoorlogistics.components.cluster.capacitated.solver.Solver;
 import com.opendoorlogistics.components.cluster.capacitated.solver.Solver.HeuristicType;
 import com.opendoorlogistics.core.components.ODLWizardTemplateConfig;
+import com.opendoorlogistics.core.scripts.execution.ScriptExecutor;
 import com.opendoorlogistics.core.tables.ODLRowReadOnly;
 import com.opendoorlogistics.core.tables.beans.BeanMapping;
 import com.opendoorlogistics.core.tables.beans.BeanMapping.BeanDatastoreMapping;
@@ -195,6 +196,10 @@ final public class CapClusterComponent implements ODLComponent {
 			}
 		});
 		solver.setUseSwapMoves(config.isUseSwapMoves());
+		
+		// share the processors with any batch keys running in parallel
+		int maxThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / ScriptExecutor.getParallelBatchKeyThreads());
+		solver.setNbThreads(Math.min(config.getNbThreads(), maxThreads));
 		EvaluatedSolution sol = solver.run();
 
 		// update cluster objects with solution information
@@ -273,8 +278,7 @@ final public class CapClusterComponent implements ODLComponent {
 
 	@Override
 	public long getFlags(ODLApi api,int mode) {
-		// TODO Auto-generated method stub
-		return 0;
+		return ODLComponent.FLAG_BATCH_KEYS_CAN_RUN_IN_PARALLEL;
 	}
 
 //	@Override
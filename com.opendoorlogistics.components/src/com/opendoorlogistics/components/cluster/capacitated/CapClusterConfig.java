@@ -22,6 +22,7 @@ final public class CapClusterConfig implements Serializable {
 	private int numberClusters  =10;
 	private double clusterCapacity = 100;
 	private boolean useSwapMoves=false;
+	private int nbThreads = 1;
 	private DistancesConfiguration distancesConfig = new DistancesConfiguration(); 
 	
 	public int getMaxSecondsOptimization() {
@@ -78,6 +79,15 @@ final public class CapClusterConfig implements Serializable {
 		this.useSwapMoves = useSwaps;
 	}
 
+	public int getNbThreads() {
+		return nbThreads;
+	}
+
+	@XmlAttribute
+	public void setNbThreads(int nbThreads) {
+		this.nbThreads = nbThreads;
+	}
+
 	public DistancesConfiguration getDistancesConfig() {
 		return distancesConfig;
 	}
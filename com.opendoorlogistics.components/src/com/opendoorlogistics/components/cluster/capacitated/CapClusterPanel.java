@@ -119,7 +119,7 @@ final public class CapClusterPanel extends VerticalLayoutPanel {
 		
 
 		JPanel optPanel = new JPanel();
-		optPanel.setLayout(new GridLayout(2, 3, 10, 2));
+		optPanel.setLayout(new GridLayout(3, 3, 10, 2));
 		optPanel.setBorder(BorderFactory.createTitledBorder("Clusterer options"));
 		
 		if(!isFixedIO){
@@ -189,9 +189,20 @@ final public class CapClusterPanel extends VerticalLayoutPanel {
 				conf.setUseSwapMoves(useSwapsCheck.isSelected());
 			}
 		});
+		IntegerEntryPanel nbThreads = new IntegerEntryPanel("Number of CPU threads", conf.getNbThreads(),
+				"How many CPU threads should the clusterer use? Each thread runs its own search from a different random start.", new IntChangedListener() {
+
+					@Override
+					public void intChange(int newInt) {
+						conf.setNbThreads(newInt);
+					}
+
+				});
+		
 		optPanel.add(maxSecs);
 		optPanel.add(maxSteps);
 		optPanel.add(useSwapsCheck);
+		optPanel.add(nbThreads);
 		//maxSteps, useSwapsCheck);
 		addLine(optPanel);
 		
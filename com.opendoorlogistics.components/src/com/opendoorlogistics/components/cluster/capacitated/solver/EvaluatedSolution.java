@@ -9,6 +9,7 @@ package com.opendoorlogistics.components.cluster.capacitated.solver;
 import gnu.trove.list.array.TIntArrayList;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * An evaluated solution which can be incrementally updated.
@@ -21,6 +22,17 @@ final public class EvaluatedSolution extends HasCost implements Solution{
 	private final ClusterRecord [] clusters;
 	private boolean allCentresImmutable;
 	
+	/**
+	 * Per-customer travel costs to the nearest and second-nearest cluster centres, used to bound move deltas.
+	 * These only depend on the centres so are built lazily and only refreshed for clusters whose centre changed.
+	 */
+	private int [] nearestClusters;
+	private double [] nearestCosts;
+	private int [] secondNearestClusters;
+	private double [] secondNearestCosts;
+	private final boolean [] centreChanged;
+	private boolean anyCentreChanged;
+	
 	private class CustomerRecord{
 		private final int id;
 		private double travelSumToSameClusterCustomers;
@@ -105,6 +117,11 @@ final public class EvaluatedSolution extends HasCost implements Solution{
 		//	assert changedCentre || isCostEqualToChecker();
 		}
 		
+		private double getCapacityViolation(double newQuantity){
+			double capacity = problem.getClusterCapacity(id);
+			return newQuantity > capacity ? newQuantity - capacity : 0;
+		}
+		
 		private boolean isValidState(){
 			return (centre==null && assignedCustomers.size()==0) ||  (centre!=null && assignedCustomers.size()>0);
 		}
@@ -137,7 +154,12 @@ final public class EvaluatedSolution extends HasCost implements Solution{
 				throw new RuntimeException();
 			}
 			
-			return oldCentre != centre;
+			if(oldCentre != centre){
+				centreChanged[id] = true;
+				anyCentreChanged = true;
+				return true;
+			}
+			return false;
 		}
 		
 		private void insert(CustomerRecord customer){
@@ -263,7 +285,8 @@ final public class EvaluatedSolution extends HasCost implements Solution{
 		this.clusters = new ClusterRecord[problem.getNbClusters()];
 		for(int i =0 ; i < clusters.length ; i++){
 			clusters[i] = new ClusterRecord(i);
-		}				
+		}
+		this.centreChanged = new boolean[clusters.length];
 	}
 
 	public EvaluatedSolution(Problem problem, int[]centres){
@@ -307,6 +330,10 @@ final public class EvaluatedSolution extends HasCost implements Solution{
 	 * @param out
 	 */
 	public void evaluateSet(int customerIndx , int newClusterIndx, Cost out){
+		if(allCentresImmutable && evaluateSetWithImmutableCentres(customerIndx, newClusterIndx, out)){
+			return;
+		}
+		
 		assert saveCostChecker();
 		
 		// set cost to minus the current cost
@@ -338,6 +365,10 @@ final public class EvaluatedSolution extends HasCost implements Solution{
 	 * @param out
 	 */
 	public void evaluateSwap(int customerIndx1, int customerIndx2, Cost out){
+		if(allCentresImmutable && evaluateSwapWithImmutableCentres(customerIndx1, customerIndx2, out)){
+			return;
+		}
+		
 		assert saveCostChecker();
 		
 		// set cost to minus the current cost
@@ -371,6 +402,163 @@ final public class EvaluatedSolution extends HasCost implements Solution{
 	}
 
 
+	/**
+	 * When all centres are immutable and the customer isn't a centre, the cost change only depends
+	 * on the travel to the centres and the cluster quantities, so is calculated directly without
+	 * modifying the solution. This can round differently to the full evaluation, so isn't used otherwise.
+	 * @param customerIndx
+	 * @param newClusterIndx
+	 * @param out
+	 * @return False if the move needs a full evaluation
+	 */
+	private boolean evaluateSetWithImmutableCentres(int customerIndx , int newClusterIndx, Cost out){
+		CustomerRecord customer = customers[customerIndx];
+		ClusterRecord original = customer.cluster;
+		ClusterRecord destination = newClusterIndx==-1 ? null : clusters[newClusterIndx];
+		if(original==destination){
+			out.setZero();
+			return true;
+		}
+		
+		if(!isImmutableCentreCustomer(original, customer) || (destination!=null && (!isImmutableCentre(destination.id) || destination.centre==null))){
+			return false;
+		}
+		
+		out.setZero();
+		double quantity = customer.getQuantity();
+		if(original!=null){
+			out.setTravel(-original.getTravelCost(original.centre, customer));
+			out.setCapacityViolation(original.getCapacityViolation(original.quantity - quantity) - original.cost.getCapacityViolation());
+		}
+		if(destination!=null){
+			out.setTravel(out.getTravel() + destination.getTravelCost(destination.centre, customer));
+			out.setCapacityViolation(out.getCapacityViolation() + destination.getCapacityViolation(destination.quantity + quantity) - destination.cost.getCapacityViolation());			
+		}
+		return true;
+	}
+	
+	/**
+	 * Swap equivalent of {@link #evaluateSetWithImmutableCentres(int, int, Cost)}
+	 * @param customerIndx1
+	 * @param customerIndx2
+	 * @param out
+	 * @return
+	 */
+	private boolean evaluateSwapWithImmutableCentres(int customerIndx1, int customerIndx2, Cost out){
+		CustomerRecord customer1 = customers[customerIndx1];
+		CustomerRecord customer2 = customers[customerIndx2];
+		ClusterRecord cluster1 = customer1.cluster;
+		ClusterRecord cluster2 = customer2.cluster;
+		if(cluster1==null || cluster2==null || cluster1==cluster2 || !isImmutableCentreCustomer(cluster1, customer1) || !isImmutableCentreCustomer(cluster2, customer2)){
+			return false;
+		}
+		
+		double quantityChange = customer2.getQuantity() - customer1.getQuantity();
+		out.setTravel(cluster2.getTravelCost(cluster2.centre, customer1) - cluster1.getTravelCost(cluster1.centre, customer1)
+				+ cluster1.getTravelCost(cluster1.centre, customer2) - cluster2.getTravelCost(cluster2.centre, customer2));
+		out.setCapacityViolation(cluster1.getCapacityViolation(cluster1.quantity + quantityChange) - cluster1.cost.getCapacityViolation()
+				+ cluster2.getCapacityViolation(cluster2.quantity - quantityChange) - cluster2.cost.getCapacityViolation());
+		return true;
+	}
+	
+	/**
+	 * Is the customer either unassigned or assigned to a cluster with an immutable centre which isn't the customer?
+	 */
+	private boolean isImmutableCentreCustomer(ClusterRecord cluster, CustomerRecord customer){
+		return cluster==null || (isImmutableCentre(cluster.id) && cluster.centre!=null && cluster.centre!=customer);
+	}
+	
+	/**
+	 * Get a lower bound on the travel cost change from moving the customer to any other cluster
+	 * without changing the cluster centres, using the cached nearest and second-nearest centre costs.
+	 * If this is positive no such move can reduce travel. Also applies to the customer's part
+	 * of a swap.
+	 * @param customerIndx
+	 * @return
+	 */
+	public double getMinMoveTravelChange(int customerIndx){
+		CustomerRecord customer = customers[customerIndx];
+		ClusterRecord cluster = customer.cluster;
+		if(cluster==null || cluster.centre==null){
+			return -Double.MAX_VALUE;
+		}
+		
+		updateNearestCentres();
+		double other = nearestClusters[customerIndx]==cluster.id ? secondNearestCosts[customerIndx] : nearestCosts[customerIndx];
+		return other - cluster.getTravelCost(cluster.centre, customer);
+	}
+	
+	private void updateNearestCentres(){
+		int nc = customers.length;
+		if(nearestClusters==null){
+			nearestClusters = new int[nc];
+			nearestCosts = new double[nc];
+			secondNearestClusters = new int[nc];
+			secondNearestCosts = new double[nc];
+			for(int i =0 ; i < nc ; i++){
+				findNearestCentres(i);
+			}
+		}
+		else if(anyCentreChanged){
+			for(int i =0 ; i < nc ; i++){
+				CustomerRecord customer = customers[i];
+				for(ClusterRecord cluster : clusters){
+					if(!centreChanged[cluster.id]){
+						continue;
+					}
+					
+					// centre of the nearest or second nearest moved, so rescan all
+					if(nearestClusters[i]==cluster.id || secondNearestClusters[i]==cluster.id){
+						findNearestCentres(i);
+						break;
+					}
+					
+					if(cluster.centre!=null){
+						double cost = cluster.getTravelCost(cluster.centre, customer);
+						if(cost < nearestCosts[i]){
+							secondNearestClusters[i] = nearestClusters[i];
+							secondNearestCosts[i] = nearestCosts[i];
+							nearestClusters[i] = cluster.id;
+							nearestCosts[i] = cost;
+						}else if(cost < secondNearestCosts[i]){
+							secondNearestClusters[i] = cluster.id;
+							secondNearestCosts[i] = cost;
+						}
+					}
+				}
+			}
+		}
+		
+		Arrays.fill(centreChanged, false);
+		anyCentreChanged = false;
+	}
+	
+	private void findNearestCentres(int customerIndx){
+		CustomerRecord customer = customers[customerIndx];
+		int nearest=-1;
+		int second=-1;
+		double nearestCost = Double.MAX_VALUE;
+		double secondCost = Double.MAX_VALUE;
+		for(ClusterRecord cluster : clusters){
+			if(cluster.centre!=null){
+				double cost = cluster.getTravelCost(cluster.centre, customer);
+				if(nearest==-1 || cost < nearestCost){
+					second = nearest;
+					secondCost = nearestCost;
+					nearest = cluster.id;
+					nearestCost = cost;
+				}else if(second==-1 || cost < secondCost){
+					second = cluster.id;
+					secondCost = cost;
+				}
+			}
+		}
+		nearestClusters[customerIndx] = nearest;
+		nearestCosts[customerIndx] = nearestCost;
+		secondNearestClusters[customerIndx] = second;
+		secondNearestCosts[customerIndx] = secondCost;
+	}
+
 	@Override
 	public int getClusterIndex(int customerIndx) {
 		return customers[customerIndx].getInternalClusterIndx();
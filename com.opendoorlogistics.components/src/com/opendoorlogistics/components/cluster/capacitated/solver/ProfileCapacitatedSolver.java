@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.components.cluster.capacitated.solver;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import com.opendoorlogistics.components.cluster.capacitated.data.Cluster;
+import com.opendoorlogistics.components.cluster.capacitated.data.Location;
+import com.opendoorlogistics.components.cluster.capacitated.data.Travel;
+import com.opendoorlogistics.components.cluster.capacitated.solver.Solver.HeuristicType;
+import com.opendoorlogistics.core.api.impl.ODLApiImpl;
+
+/**
+ * Report the best cost found against running time for different numbers of solver threads,
+ * on a generated problem of clustered locations. Arguments are the number of locations,
+ * number of clusters and seconds per run. The problem holds a full travel matrix so
+ * the number of locations is limited by memory (50000 locations needs 20 GB).
+ * @author Phil
+ *
+ */
+public class ProfileCapacitatedSolver {
+	private static final double[] REPORT_SECONDS = new double[] { 1, 2, 5, 10, 20, 30, 60, 120 };
+
+	public static void main(String[] args) {
+		int nbLocations = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int nbClusters = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		final double maxSeconds = args.length > 2 ? Double.parseDouble(args[2]) : 30;
+
+		long startBuild = System.currentTimeMillis();
+		Problem problem = createProblem(new Random(123), nbLocations, nbClusters);
+		System.out.println(LocalDateTime.now() + " - built problem with " + nbLocations + " locations and " + nbClusters + " clusters in "
+				+ (System.currentTimeMillis() - startBuild) + " ms");
+
+		int maxThreads = Runtime.getRuntime().availableProcessors();
+		for (int nbThreads = 1; nbThreads <= maxThreads; nbThreads *= 2) {
+			final List<double[]> improvements = new ArrayList<>();
+			final long start = System.nanoTime();
+			Solver solver = new Solver(problem, new ContinueCallback() {
+				private EvaluatedSolution last;
+
+				@Override
+				public ContinueOption continueOptimisation(int nbSteps, HeuristicType currentHeuristic, EvaluatedSolution best) {
+					double secs = (System.nanoTime() - start) / 1000000000.0;
+					if (best != null && best != last) {
+						last = best;
+						improvements.add(new double[] { secs, best.getCost().getCapacityViolation(), best.getCost().getTravel() });
+					}
+					return secs > maxSeconds ? ContinueOption.FINISH_NOW : ContinueOption.KEEP_GOING;
+				}
+			});
+			solver.setNbThreads(nbThreads);
+			EvaluatedSolution sol = solver.run();
+
+			// report the best cost at each time
+			StringBuilder builder = new StringBuilder();
+			for (double secs : REPORT_SECONDS) {
+				if (secs > maxSeconds) {
+					break;
+				}
+				double[] best = null;
+				for (double[] improvement : improvements) {
+					if (improvement[0] <= secs) {
+						best = improvement;
+					}
+				}
+				builder.append(", " + Math.round(secs) + "s=" + (best != null ? format(best) : "none"));
+			}
+			System.out.println(LocalDateTime.now() + " - " + nbThreads + " thread(s): " + improvements.size() + " improvements" + builder.toString()
+					+ ", final=" + sol.getCost());
+		}
+	}
+
+	private static String format(double[] improvement) {
+		return (improvement[1] > 0 ? "overcap " + String.format("%.2f", improvement[1]) + " " : "") + String.format("%.1f", improvement[2]);
+	}
+
+	/**
+	 * Create locations clustered around random towns, with total quantity at 90% of the total cluster capacity
+	 */
+	private static Problem createProblem(Random random, int nbLocations, int nbClusters) {
+		int nbTowns = Math.max(1, nbClusters / 2);
+		double[][] towns = new double[nbTowns][];
+		for (int i = 0; i < nbTowns; i++) {
+			towns[i] = new double[] { random.nextDouble() * 100, random.nextDouble() * 100 };
+		}
+
+		final double[] xs = new double[nbLocations];
+		final double[] ys = new double[nbLocations];
+		final List<Location> locations = new ArrayList<>(nbLocations);
+		for (int i = 0; i < nbLocations; i++) {
+			double[] town = towns[random.nextInt(nbTowns)];
+			xs[i] = town[0] + random.nextGaussian() * 5;
+			ys[i] = town[1] + random.nextGaussian() * 5;
+			Location location = new Location();
+			location.setId(Integer.toString(i));
+			location.setQuantity(0.5 + random.nextDouble());
+			locations.add(location);
+		}
+
+		List<Cluster> clusters = Problem.createClusters(nbClusters, nbLocations / (0.9 * nbClusters));
+
+		// generate travel objects when iterated rather than holding them all
+		Iterable<Travel> travel = new Iterable<Travel>() {
+
+			@Override
+			public Iterator<Travel> iterator() {
+				return new Iterator<Travel>() {
+					private int next;
+
+					@Override
+					public boolean hasNext() {
+						return next < xs.length * xs.length;
+					}
+
+					@Override
+					public Travel next() {
+						int from = next / xs.length;
+						int to = next % xs.length;
+						next++;
+						Travel ret = new Travel();
+						ret.setFromLocation(locations.get(from).getId());
+						ret.setToLocation(locations.get(to).getId());
+						ret.setCost(Math.sqrt((xs[from] - xs[to]) * (xs[from] - xs[to]) + (ys[from] - ys[to]) * (ys[from] - ys[to])));
+						return ret;
+					}
+				};
+			}
+		};
+		return new Problem(new ODLApiImpl(), locations, clusters, travel);
+	}
+}
@@ -15,6 +15,10 @@ import java.util.Comparator;
 import java.util.List;
 import java.util.PriorityQueue;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.opendoorlogistics.components.cluster.capacitated.solver.ContinueCallback.ContinueOption;
 import com.opendoorlogistics.core.utils.IntUtils;
@@ -40,6 +44,12 @@ import com.opendoorlogistics.core.utils.IntUtils;
  * The interpretation of MB1 is actually based on its description in 'A bionomic approach to the capacitated p-median problem' Maniezzo, Mingozzi and
  * Baldacci (didn't have access to the original Mulvey and Beck paper).
  * 
+ * With more than one thread, each thread runs its own iterated local search from a different random seed and
+ * the best solution over all threads is kept. The local search then also keeps every centre fixed while moving
+ * customers out of a cluster (recentring afterwards), which lets moves be evaluated from the centre costs alone,
+ * and skips moves which can't reduce travel to the centres or go to a cluster without a centre. A single thread
+ * recentres after every move, giving the same results as earlier versions.
+ * 
  * @author Phil
  * 
  */
@@ -48,10 +58,26 @@ public class Solver {
 	private final int interchangeNNearest = 5;
 	// private boolean logToConsole = false;
 	private final ContinueCallback cont;
+	private final Object lock = new Object();
 	private EvaluatedSolution best = null;
 	private boolean useSwapMoves = false;
 	private boolean useInsertionMoves = true;
 	private int step = 0;
+	private int nbThreads = 1;
+	private boolean fixedCentreMoves;
+	private volatile boolean failed;
+	
+	/**
+	 * State for a single thread's iterated local search
+	 */
+	private static class Start{
+		private final Random random;
+		private EvaluatedSolution best;
+		
+		private Start(long seed) {
+			this.random = new Random(seed);
+		}
+	}
 
 	public void setUseInsertionMoves(boolean useInsertionMoves) {
 		this.useInsertionMoves = useInsertionMoves;
@@ -299,7 +325,8 @@ public class Solver {
 		return evaluated;
 	}
 
-	private boolean localSearchSingleStep(Random random, EvaluatedSolution solution) {
+	private boolean localSearchSingleStep(Start start, EvaluatedSolution solution) {
+		Random random = start.random;
 
 		// calculate a cluster to cluster distance matrix using the minimum distance to
 		// a point in another cluster
@@ -363,9 +390,11 @@ public class Solver {
 		Cost initial = new Cost();
 		initial.set(solution.getCost());
 
-		// loop over each cluster taking first improving moves
+		// loop over each cluster taking first improving moves. With fixed centre moves, centres are
+		// kept fixed while processing a cluster so moves can be evaluated from the centre costs alone.
 		for (int i = 0; i < p; i++) {
 			int cli = list.get(i);
+			solution.setAllCentresImmutable(fixedCentreMoves);
 
 			// shuffle its nearest clusters
 			List<Integer> nearest = nearestLists.get(cli);
@@ -397,11 +426,12 @@ public class Solver {
 				}
 			}
 
-			// refresh solution after processing each cluster to help prevent round-off
+			// refresh solution after processing each cluster to recentre and help prevent round-off
+			solution.setAllCentresImmutable(false);
 			solution.update();
 
 			// check for quitting
-			updateGlobalBest(solution);
+			updateGlobalBest(start, solution);
 			if (getContinue(HeuristicType.LOCAL_SEARCH) != ContinueOption.KEEP_GOING) {
 				break;
 			}
@@ -430,13 +460,16 @@ public class Solver {
 		solution.getCustomers(clusteri, customersi);
 		int n = customersi.size();
 		customersi.shuffle(random);
-		int fixedCentre = problem.getFixedLocation(clusteri);
+		int fixedCentre = fixedCentreMoves ? solution.getClusterCentre(clusteri) : problem.getFixedLocation(clusteri);
+		if (fixedCentreMoves && solution.getClusterCentre(clusterj) == -1) {
+			return;
+		}
 
 		// loop over each customer in cluster i
 		for (int i = 0; i < n; i++) {
-			// check we're not moving the fixed centre
+			// check we're not moving the fixed centre and, with fixed centre moves, the move could reduce travel
 			int customeri = customersi.get(i);
-			if (customeri != fixedCentre) {
+			if (customeri != fixedCentre && (!fixedCentreMoves || solution.getMinMoveTravelChange(customeri) <= 0)) {
 				solution.evaluateSet(customeri, clusterj, cost);
 				if (cost.getCapacityViolation() <= 0 && cost.getTravel() <= 0) {
 					solution.setCustomerToCluster(customeri, clusterj);
@@ -479,21 +512,23 @@ public class Solver {
 		Cost cost = new Cost();
 		Cost bestSwap = new Cost();
 
-		int fixedCentrei = problem.getFixedLocation(clusteri);
-		int fixedCentrej = problem.getFixedLocation(clusterj);
+		int fixedCentrei = fixedCentreMoves ? solution.getClusterCentre(clusteri) : problem.getFixedLocation(clusteri);
+		int fixedCentrej = fixedCentreMoves ? solution.getClusterCentre(clusterj) : problem.getFixedLocation(clusterj);
 
 		int ni = customersi.size();
 		int nj = customersj.size();
 		for (int i = 0; i < ni; i++) {
 
+			// with fixed centre moves, the travel change of a swap is at least the sum of each customer's lowest possible move change
 			int customeri = customersi.get(i);
+			double minChangei = fixedCentreMoves ? solution.getMinMoveTravelChange(customeri) : 0;
 			if (customeri != fixedCentrei) {
 				bestSwap.setMax();
 				int bestSwapCustomerIndx = -1;
 				for (int j = 0; j < nj; j++) {
 					// check still assigned to j before evaluating swap
 					int customerj = customersj.get(j);
-					if (customerj != fixedCentrej) {
+					if (customerj != fixedCentrej && (!fixedCentreMoves || minChangei + solution.getMinMoveTravelChange(customerj) <= 0)) {
 						if (solution.getClusterIndex(customerj) == clusterj) {
 
 							solution.evaluateSwap(customeri, customerj, cost);
@@ -506,7 +541,7 @@ public class Solver {
 				}
 
 				// do swap if profitable
-				if (bestSwap.getCapacityViolation() <= 0 && bestSwap.getTravel() <= 0) {
+				if (bestSwapCustomerIndx != -1 && bestSwap.getCapacityViolation() <= 0 && bestSwap.getTravel() <= 0) {
 					solution.setCustomerToCluster(customeri, clusterj);
 					solution.setCustomerToCluster(bestSwapCustomerIndx, clusteri);
 				}
@@ -516,53 +551,107 @@ public class Solver {
 	}
 
 	private ContinueOption getContinue(HeuristicType currentHeuristic) {
+		// stop all threads as soon as one fails
+		if (failed) {
+			return ContinueOption.FINISH_NOW;
+		}
 
-		// always call the callback even on step 0 as it also reports cost
-		ContinueOption ret = cont.continueOptimisation(step, currentHeuristic, best);
+		synchronized (lock) {
+			// always call the callback even on step 0 as it also reports cost
+			ContinueOption ret = cont.continueOptimisation(step, currentHeuristic, best);
 
-		// always ensure we have a solution if the user hasn't cancelled
-		if (best == null && ret == ContinueOption.FINISH_NOW) {
-			return ContinueOption.KEEP_GOING;
-		}
+			// always ensure we have a solution if the user hasn't cancelled
+			if (best == null && ret == ContinueOption.FINISH_NOW) {
+				return ContinueOption.KEEP_GOING;
+			}
 
-		return ret;
+			return ret;
+		}
 	}
 
 	public synchronized EvaluatedSolution run() {
-		Random random = new Random(123);
-
 		// reset
 		best = null;
 		step = 0;
+		failed = false;
+		fixedCentreMoves = nbThreads > 1;
+
+		if (nbThreads <= 1) {
+			run(new Start(123));
+			return best;
+		}
+
+		// run independent starts on each thread, sharing only the best solution and step count
+		ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+		ExecutorCompletionService<Void> completion = new ExecutorCompletionService<>(executor);
+		try {
+			for (int i = 0; i < nbThreads; i++) {
+				final Start start = new Start(123 + i);
+				completion.submit(new Runnable() {
+
+					@Override
+					public void run() {
+						try {
+							Solver.this.run(start);
+						} catch (RuntimeException | Error e) {
+							failed = true;
+							throw e;
+						}
+					}
+				}, null);
+			}
+
+			// take the starts as they finish so a failure is thrown straight away
+			for (int i = 0; i < nbThreads; i++) {
+				try {
+					completion.take().get();
+				} catch (InterruptedException e) {
+					failed = true;
+					throw new RuntimeException(e);
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof RuntimeException) {
+						throw (RuntimeException) e.getCause();
+					}
+					throw new RuntimeException(e.getCause());
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
 
+		return best;
+	}
+
+	private void run(Start start) {
+		Random random = start.random;
 		while (true) {
-			// get new centres from either mutation or random restart
+			// get new centres from either mutation of this start's best or random restart
 			int[] centres;
-			if (random.nextInt(3) == 0 || best == null) {
+			if (random.nextInt(3) == 0 || start.best == null) {
 				centres = generateRandomPMedians(random);
 			} else {
-				centres = mutatePMedians(random, Utils.getCentres(best));
+				centres = mutatePMedians(random, Utils.getCentres(start.best));
 			}
 
 			// create an initial assigned solution using regret
 			EvaluatedSolution assigned = regretBasedAssignment(centres, HeuristicType.INITIAL_ASSIGN);
 			if(assigned!=null){				
-				updateGlobalBest(assigned);
+				updateGlobalBest(start, assigned);
 			}
 			if (getContinue(HeuristicType.INITIAL_ASSIGN) != ContinueOption.KEEP_GOING) {
 				break;
 			}
 
 			// then loop through cycles of choose centre, do regret based assignment
-			EvaluatedSolution localBest = regretReassignLoop(assigned);
+			EvaluatedSolution localBest = regretReassignLoop(start, assigned);
 			if (getContinue(HeuristicType.REGRET_REASSIGN) != ContinueOption.KEEP_GOING) {
 				break;
 			}
 
 			// now optimise using swaps and moves until the local search stagnates
 			if (useInsertionMoves || useSwapMoves) {
-				while (localSearchSingleStep(random, localBest)) {
-					updateGlobalBest(localBest);
+				while (localSearchSingleStep(start, localBest)) {
+					updateGlobalBest(start, localBest);
 					if (getContinue(HeuristicType.LOCAL_SEARCH) != ContinueOption.KEEP_GOING) {
 						break;
 					}
@@ -570,27 +659,44 @@ public class Solver {
 			}
 
 			// check if we've beaten the best
-			updateGlobalBest(localBest);
-			step++;
+			updateGlobalBest(start, localBest);
+			synchronized (lock) {
+				step++;
+			}
 		}
-
-		return best;
 	}
 
-	private boolean updateGlobalBest(EvaluatedSolution sol) {
-		if (best == null || (Cost.isApproxEqual(sol.getCost(), best.getCost()) == false && sol.getCost().compareTo(best.getCost()) <= 0)) {
+	/**
+	 * Update both the start's own best and the global best
+	 * @param start
+	 * @param sol
+	 * @return
+	 */
+	private boolean updateGlobalBest(Start start, EvaluatedSolution sol) {
+		if (!isBetter(sol, start.best)) {
+			return false;
+		}
 
-			// deep copy
-			best = new EvaluatedSolution(sol);
-			if(Cost.isApproxEqual(best.getCost(), sol.getCost())==false){
-				throw new RuntimeException();
+		// deep copy
+		start.best = new EvaluatedSolution(sol);
+		if(Cost.isApproxEqual(start.best.getCost(), sol.getCost())==false){
+			throw new RuntimeException();
+		}
+		
+		// the copy is never modified so can be shared with the global best
+		synchronized (lock) {
+			if (isBetter(start.best, best)) {
+				best = start.best;
 			}
-			return true;
 		}
-		return false;
+		return true;
 	}
 
-	private EvaluatedSolution regretReassignLoop(EvaluatedSolution initial) {
+	private static boolean isBetter(EvaluatedSolution sol, EvaluatedSolution current) {
+		return current == null || (Cost.isApproxEqual(sol.getCost(), current.getCost()) == false && sol.getCost().compareTo(current.getCost()) <= 0);
+	}
+
+	private EvaluatedSolution regretReassignLoop(Start start, EvaluatedSolution initial) {
 
 		// continue looping until no improvement
 		EvaluatedSolution localBest = new EvaluatedSolution(initial);
@@ -614,7 +720,7 @@ public class Solver {
 			}
 
 			// update global best and check for quitting
-			updateGlobalBest(localBest);
+			updateGlobalBest(start, localBest);
 			if (getContinue(HeuristicType.REGRET_REASSIGN) != ContinueOption.KEEP_GOING) {
 				break;
 			}
@@ -628,4 +734,16 @@ public class Solver {
 		this.useSwapMoves = doSwaps;
 	}
 
+	public int getNbThreads() {
+		return nbThreads;
+	}
+
+	/**
+	 * Set the number of threads, each running its own start from a different random seed
+	 * @param nbThreads
+	 */
+	public void setNbThreads(int nbThreads) {
+		this.nbThreads = nbThreads;
+	}
+
 }
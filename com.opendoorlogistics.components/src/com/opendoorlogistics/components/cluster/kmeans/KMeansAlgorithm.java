@@ -7,27 +7,51 @@
 package com.opendoorlogistics.components.cluster.kmeans;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.stream.IntStream;
 
-import com.opendoorlogistics.api.components.ComponentExecutionApi;
+import com.opendoorlogistics.api.components.ProcessingApi;
 
+/**
+ * K-means using Hamerly's bounds to skip distance calculations. Each point keeps an upper bound on the
+ * distance to its assigned mean and a lower bound on the distance to any other mean, which are loosened
+ * by how far the means move each step. A point whose upper bound is below its lower bound or half the
+ * distance from its mean to the nearest other mean cannot change cluster, so is skipped. Bounds need
+ * the point distance to be a metric and are only trusted when they clear a small tolerance, so the
+ * assignments are the same as checking every mean. (Elkan's bounds would need a lower bound per point
+ * and mean, which is too much memory for large problems.)
+ *
+ * Points are assigned in parallel over blocks and means are updated in parallel, each mean summing
+ * its points in the original order.
+ * @author Phil
+ *
+ */
 final public class KMeansAlgorithm {
+	private static final int BLOCK_SIZE = 4096;
+
+	/**
+	 * Bounds must clear each other by this fraction of the largest distance between means,
+	 * which covers round-off in the distances
+	 */
+	private static final double BOUND_TOLERANCE = 1E-10;
+
 	public interface CreateMean <T extends KMeanPoint>{
 		Mean<T> createMean(T copyThis);
 	}
-	
-	public <T extends KMeanPoint> List<Mean<T>> execute(int k, int randomseed,CreateMean<T>createMean, List<T> points,  ComponentExecutionApi reporter){
+
+	public <T extends KMeanPoint> List<Mean<T>> execute(int k, int randomseed,CreateMean<T>createMean, final List<T> points,  ProcessingApi reporter){
 		if(k > points.size()){
 			k = points.size();
 		}
-		
-		ArrayList<Mean<T>> means = new ArrayList<>(k);
+
+		final ArrayList<Mean<T>> means = new ArrayList<>(k);
 		if(k==0){
 			return means;
 		}
-		
+
 		// random choose k centres
 		Random random = new Random(randomseed);
 		ArrayList<T> tmp = new ArrayList<>(points);
@@ -35,56 +59,136 @@ final public class KMeansAlgorithm {
 		for(int i=0 ;i < k ; i++){
 			means.add(createMean.createMean(tmp.get(i)));
 		}
-		
+
 		// reset all cluster numbers
 		for(T point : points){
 			point.clusterNumber = -1;
 		}
-		
+
+		final int n = points.size();
+		final double [] upper = new double[n];
+		final double [] lower = new double[n];
+		final double [] halfNearestMean = new double[k];
+		final double [] moved = new double[k];
+		int nbBlocks = (n + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
 		int nbChanges;
 		int stepNb=0;
 		do{
-		
-			// clear all assignments from the means
-			for(Mean<T> mean : means){
-				mean.clearAssigned();
+
+			// get half the distance from each mean to its nearest other mean
+			Arrays.fill(halfNearestMean, Double.MAX_VALUE);
+			double maxMeanDistance=0;
+			for(int i=0 ;i < k ; i++){
+				for(int j=i+1 ;j < k ; j++){
+					double dist = means.get(i).getMean().distance(means.get(j).getMean());
+					halfNearestMean[i] = Math.min(halfNearestMean[i], 0.5 * dist);
+					halfNearestMean[j] = Math.min(halfNearestMean[j], 0.5 * dist);
+					maxMeanDistance = Math.max(maxMeanDistance, dist);
+				}
 			}
-			
+			final double tolerance = BOUND_TOLERANCE * maxMeanDistance;
+
 			// assign everything
-			nbChanges=0;
-			for(T pnt : points){
-				int closest=-1;
-				double closestDist = Double.MAX_VALUE;
-				for(int i=0 ;i < k ; i++){
-					Mean<T> mean = means.get(i);
-					double dist = mean.getMean().distance(pnt);
-					if(dist < closestDist){
-						closestDist = dist;
-						closest = i;
+			final int fk = k;
+			nbChanges = IntStream.range(0, nbBlocks).parallel().map(block -> {
+				int changes=0;
+				int end = Math.min(n, (block + 1) * BLOCK_SIZE);
+				for(int p = block * BLOCK_SIZE ; p < end ; p++){
+					if(assign(points.get(p), p, means, fk, upper, lower, halfNearestMean, tolerance)){
+						changes++;
 					}
-				}	
-				
-				// count changes
-				if(pnt.clusterNumber != closest){
-					nbChanges++;
 				}
-				
-				// do assignment
-				pnt.clusterNumber = closest;
-				means.get(closest).addAssigned(pnt);
+				return changes;
+			}).sum();
+
+			// rebuild the assignments in point order
+			for(Mean<T> mean : means){
+				mean.clearAssigned();
+			}
+			for(T pnt : points){
+				means.get(pnt.clusterNumber).addAssigned(pnt);
 			}
-			
-			// update means
+
+			// update means, recording how far each moves
+			final List<Mean<T>> previous = new ArrayList<>(k);
 			for(Mean<T> mean : means){
+				previous.add(createMean.createMean(mean.getMean()));
+			}
+			IntStream.range(0, k).parallel().forEach(i -> {
+				Mean<T> mean = means.get(i);
 				if(mean.size()>0){
 					mean.updateMean();
 				}
+				moved[i] = previous.get(i).getMean().distance(mean.getMean());
+			});
+
+			// loosen the bounds by the movement
+			int furthest=-1;
+			int secondFurthest=-1;
+			for(int i=0 ;i < k ; i++){
+				if(furthest==-1 || moved[i] > moved[furthest]){
+					secondFurthest = furthest;
+					furthest = i;
+				}else if(secondFurthest==-1 || moved[i] > moved[secondFurthest]){
+					secondFurthest = i;
+				}
 			}
-			
+			final double maxMoved = moved[furthest];
+			final double maxOtherMoved = secondFurthest!=-1 ? moved[secondFurthest] : 0;
+			final int fFurthest = furthest;
+			IntStream.range(0, nbBlocks).parallel().forEach(block -> {
+				int end = Math.min(n, (block + 1) * BLOCK_SIZE);
+				for(int p = block * BLOCK_SIZE ; p < end ; p++){
+					int cluster = points.get(p).clusterNumber;
+					upper[p] += moved[cluster];
+					lower[p] -= cluster == fFurthest ? maxOtherMoved : maxMoved;
+				}
+			});
+
 			reporter.postStatusMessage("K means step " + (stepNb+1));
 			stepNb++;
 		}while(nbChanges>0 && reporter.isCancelled()==false && reporter.isFinishNow()==false);
 
 		return means;
 	}
+
+	/**
+	 * Assign the point to its closest mean, returning true if its cluster changed
+	 */
+	private static <T extends KMeanPoint> boolean assign(T pnt, int p, List<Mean<T>> means, int k, double [] upper, double [] lower, double [] halfNearestMean, double tolerance){
+		int current = pnt.clusterNumber;
+		if(current!=-1){
+			double bound = Math.max(halfNearestMean[current], lower[p]);
+			if(upper[p] + tolerance < bound){
+				return false;
+			}
+
+			// tighten the upper bound and test again
+			upper[p] = means.get(current).getMean().distance(pnt);
+			if(upper[p] + tolerance < bound){
+				return false;
+			}
+		}
+
+		// check all means
+		int closest=-1;
+		double closestDist = Double.MAX_VALUE;
+		double secondClosestDist = Double.MAX_VALUE;
+		for(int i=0 ;i < k ; i++){
+			double dist = means.get(i).getMean().distance(pnt);
+			if(dist < closestDist){
+				secondClosestDist = closestDist;
+				closestDist = dist;
+				closest = i;
+			}else if(dist < secondClosestDist){
+				secondClosestDist = dist;
+			}
+		}
+
+		upper[p] = closestDist;
+		lower[p] = secondClosestDist;
+		pnt.clusterNumber = closest;
+		return closest != current;
+	}
 }
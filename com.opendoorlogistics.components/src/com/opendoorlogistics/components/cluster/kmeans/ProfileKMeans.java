@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.components.cluster.kmeans;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.opendoorlogistics.api.components.ProcessingApi;
+import com.opendoorlogistics.components.cluster.kmeans.KMeansAlgorithm.CreateMean;
+import com.opendoorlogistics.components.cluster.kmeans.latlng.KMeanPointLngLat;
+import com.opendoorlogistics.components.cluster.kmeans.latlng.MeanLngLat;
+import com.opendoorlogistics.core.api.impl.ODLApiImpl;
+import com.opendoorlogistics.core.scripts.execution.dependencyinjection.AbstractDependencyInjector;
+
+/**
+ * Time {@link KMeansAlgorithm} against checking every mean for every point, on points clustered around
+ * towns in the UK, and check both give the same clusters. Arguments are the number of points and k.
+ * @author Phil
+ *
+ */
+public class ProfileKMeans {
+	private static final int SEED = 123;
+
+	public static void main(String[] args) {
+		int nbPoints = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int k = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+		ProcessingApi processing = new AbstractDependencyInjector(new ODLApiImpl());
+		CreateMean<KMeanPointLngLat> createMean = new CreateMean<KMeanPointLngLat>() {
+
+			@Override
+			public Mean<KMeanPointLngLat> createMean(KMeanPointLngLat copyThis) {
+				MeanLngLat mean = new MeanLngLat();
+				mean.getMean().latitude = copyThis.latitude;
+				mean.getMean().longitude = copyThis.longitude;
+				return mean;
+			}
+		};
+
+		List<KMeanPointLngLat> points = createPoints(new Random(SEED), nbPoints);
+		long start = System.currentTimeMillis();
+		List<Mean<KMeanPointLngLat>> means = new KMeansAlgorithm().execute(k, SEED, createMean, points, processing);
+		System.out.println(LocalDateTime.now() + " - bounded k-means on " + nbPoints + " points with k=" + k + " took " + (System.currentTimeMillis() - start) + " ms");
+		int[] clusters = new int[nbPoints];
+		for (int i = 0; i < nbPoints; i++) {
+			clusters[i] = points.get(i).clusterNumber;
+		}
+
+		start = System.currentTimeMillis();
+		List<Mean<KMeanPointLngLat>> checkMeans = executeAllDistances(k, SEED, createMean, points);
+		System.out.println(LocalDateTime.now() + " - checking all means took " + (System.currentTimeMillis() - start) + " ms");
+
+		for (int i = 0; i < nbPoints; i++) {
+			if (clusters[i] != points.get(i).clusterNumber) {
+				throw new RuntimeException("Point " + i + " assigned to different clusters");
+			}
+		}
+		for (int i = 0; i < k; i++) {
+			KMeanPointLngLat a = means.get(i).getMean();
+			KMeanPointLngLat b = checkMeans.get(i).getMean();
+			if (a.latitude != b.latitude || a.longitude != b.longitude) {
+				throw new RuntimeException("Mean " + i + " is different");
+			}
+		}
+		System.out.println("Clusters are identical");
+	}
+
+	/**
+	 * The k-means algorithm without bounds, as it was before they were added
+	 */
+	private static List<Mean<KMeanPointLngLat>> executeAllDistances(int k, int randomseed, CreateMean<KMeanPointLngLat> createMean, List<KMeanPointLngLat> points) {
+		ArrayList<Mean<KMeanPointLngLat>> means = new ArrayList<>(k);
+		Random random = new Random(randomseed);
+		ArrayList<KMeanPointLngLat> tmp = new ArrayList<>(points);
+		Collections.shuffle(tmp, random);
+		for (int i = 0; i < k; i++) {
+			means.add(createMean.createMean(tmp.get(i)));
+		}
+
+		for (KMeanPointLngLat point : points) {
+			point.clusterNumber = -1;
+		}
+
+		int nbChanges;
+		do {
+			for (Mean<KMeanPointLngLat> mean : means) {
+				mean.clearAssigned();
+			}
+
+			nbChanges = 0;
+			for (KMeanPointLngLat pnt : points) {
+				int closest = -1;
+				double closestDist = Double.MAX_VALUE;
+				for (int i = 0; i < k; i++) {
+					double dist = means.get(i).getMean().distance(pnt);
+					if (dist < closestDist) {
+						closestDist = dist;
+						closest = i;
+					}
+				}
+				if (pnt.clusterNumber != closest) {
+					nbChanges++;
+				}
+				pnt.clusterNumber = closest;
+				means.get(closest).addAssigned(pnt);
+			}
+
+			for (Mean<KMeanPointLngLat> mean : means) {
+				if (mean.size() > 0) {
+					mean.updateMean();
+				}
+			}
+		} while (nbChanges > 0);
+		return means;
+	}
+
+	private static List<KMeanPointLngLat> createPoints(Random random, int nbPoints) {
+		int nbTowns = 2000;
+		double[][] towns = new double[nbTowns][];
+		for (int i = 0; i < nbTowns; i++) {
+			towns[i] = new double[] { -5 + random.nextDouble() * 6, 50.5 + random.nextDouble() * 4.5 };
+		}
+
+		List<KMeanPointLngLat> ret = new ArrayList<>(nbPoints);
+		for (int i = 0; i < nbPoints; i++) {
+			double[] town = towns[random.nextInt(nbTowns)];
+			KMeanPointLngLat point = new KMeanPointLngLat(town[0] + random.nextGaussian() * 0.05, town[1] + random.nextGaussian() * 0.03);
+			point.id = i;
+			ret.add(point);
+		}
+		return ret;
+	}
+}
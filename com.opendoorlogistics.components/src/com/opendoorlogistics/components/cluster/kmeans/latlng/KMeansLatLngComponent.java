@@ -144,7 +144,7 @@ final public class KMeansLatLngComponent implements ODLComponent {
 
 	@Override
 	public long getFlags(ODLApi api,int mode) {
-		return 0;
+		return ODLComponent.FLAG_BATCH_KEYS_CAN_RUN_IN_PARALLEL;
 	}
 
 //	@Override
@@ -14,6 +14,7 @@ import com.opendoorlogistics.api.cache.ObjectCache;
 import com.opendoorlogistics.api.components.ComponentConfigurationEditorAPI;
 import com.opendoorlogistics.api.components.ComponentExecutionApi;
 import com.opendoorlogistics.api.components.ODLComponent;
+import com.opendoorlogistics.api.components.ProcessingApi;
 import com.opendoorlogistics.api.geometry.ODLGeom;
 import com.opendoorlogistics.api.scripts.ScriptTemplatesBuilder;
 import com.opendoorlogistics.api.tables.ODLDatastore;
@@ -137,7 +138,7 @@ public class PCSpatialQueryComponent implements ODLComponent{
 		return getClsDefn(api, Output.class);
 	}
 	
-	private static class CachedTree{
+	static class CachedTree{
 		FastContainedPointsQuadtree tree ;	
 		LargeList<String> list;
 		
@@ -152,7 +153,7 @@ public class PCSpatialQueryComponent implements ODLComponent{
 		}
 	}
 	
-	private static CachedTree createQuadtree(ComponentExecutionApi api, File file, int level){
+	static CachedTree createQuadtree(ProcessingApi api, File file, int level){
 		// do import and add to builder
 		api.postStatusMessage("Loading postcodes from file " + file.getName());
 		
@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.components.geocode.postcodes;
+
+import java.io.File;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.opendoorlogistics.components.geocode.postcodes.impl.PCConstants;
+import com.opendoorlogistics.core.api.impl.ODLApiImpl;
+import com.opendoorlogistics.core.geometry.operations.FastContainedPointsQuadtree;
+import com.opendoorlogistics.core.scripts.execution.dependencyinjection.AbstractDependencyInjector;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+import gnu.trove.set.hash.TLongHashSet;
+
+/**
+ * Compare querying the postcode quadtree used by {@link PCSpatialQueryComponent} with and without preparing
+ * the query polygons. The polygons are district-sized with many vertices, like postcode district boundaries.
+ * Run with the postcode geocoder file and optionally the postcode level to use real postcodes; otherwise
+ * clustered points are generated over the UK.
+ * @author Phil
+ *
+ */
+public class ProfilePostcodeSpatialQuery {
+	private static final int NB_POLYGONS = 10;
+	private static final int NB_POLYGON_VERTICES = 10000;
+	private static final int NB_GENERATED_POINTS = 1700000;
+
+	public static void main(String[] args) {
+		long start = System.currentTimeMillis();
+		FastContainedPointsQuadtree tree;
+		if (args.length > 0) {
+			File file = PCConstants.resolvePostcodeFile(new ODLApiImpl(), new File(args[0]));
+			int level = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+			tree = PCSpatialQueryComponent.createQuadtree(new AbstractDependencyInjector(new ODLApiImpl()), file, level).tree;
+		} else {
+			tree = createPoints(new Random(123));
+		}
+		System.out.println(LocalDateTime.now() + " - built quadtree in " + (System.currentTimeMillis() - start) + " ms");
+
+		// warm up on different polygons to the timed ones, as unprepared queries cache results by polygon
+		List<Geometry> warmUp = createPolygons(new Random(456), 5);
+		query(tree, warmUp, true);
+		query(tree, warmUp, false);
+
+		List<Geometry> polygons = createPolygons(new Random(789), NB_POLYGONS);
+		List<TLongHashSet> preparedResults = null;
+		for (boolean prepared : new boolean[] { true, false }) {
+			long startNano = System.nanoTime();
+			List<TLongHashSet> results = query(tree, polygons, prepared);
+			double millis = (System.nanoTime() - startNano) / 1000000.0;
+			long nbFound = 0;
+			for (TLongHashSet set : results) {
+				nbFound += set.size();
+			}
+			System.out.println(LocalDateTime.now() + " - " + (prepared ? "prepared" : "unprepared") + ": " + polygons.size() + " polygons with " + NB_POLYGON_VERTICES
+					+ " vertices in " + Math.round(millis) + " ms (" + String.format("%.1f", millis / polygons.size()) + " ms per polygon), " + nbFound + " points found");
+
+			if (prepared) {
+				preparedResults = results;
+			} else if (!results.equals(preparedResults)) {
+				throw new RuntimeException("Prepared and unprepared queries found different points");
+			}
+		}
+	}
+
+	private static List<TLongHashSet> query(FastContainedPointsQuadtree tree, List<Geometry> polygons, boolean prepared) {
+		List<TLongHashSet> ret = new ArrayList<>();
+		for (Geometry polygon : polygons) {
+			TLongHashSet ids = new TLongHashSet();
+			if (prepared) {
+				tree.query(polygon, ids);
+			} else {
+				tree.queryUnprepared(polygon, ids);
+			}
+			ret.add(ids);
+		}
+		return ret;
+	}
+
+	/**
+	 * Generate points clustered around towns
+	 */
+	private static FastContainedPointsQuadtree createPoints(Random random) {
+		FastContainedPointsQuadtree.Builder builder = new FastContainedPointsQuadtree.Builder();
+		int nbTowns = 2000;
+		double[][] towns = new double[nbTowns][];
+		for (int i = 0; i < nbTowns; i++) {
+			towns[i] = new double[] { -5 + random.nextDouble() * 6, 50.5 + random.nextDouble() * 4.5 };
+		}
+		for (int i = 0; i < NB_GENERATED_POINTS; i++) {
+			double[] town = towns[random.nextInt(nbTowns)];
+			builder.add(new Coordinate(town[0] + random.nextGaussian() * 0.05, town[1] + random.nextGaussian() * 0.03), i);
+		}
+		return builder.build(new GeometryFactory());
+	}
+
+	/**
+	 * Generate star-shaped polygons (so they never self-intersect) with wiggly boundaries
+	 */
+	private static List<Geometry> createPolygons(Random random, int nb) {
+		GeometryFactory factory = new GeometryFactory();
+		List<Geometry> ret = new ArrayList<>();
+		for (int i = 0; i < nb; i++) {
+			double cx = -4 + random.nextDouble() * 4;
+			double cy = 51 + random.nextDouble() * 3.5;
+			double radius = 0.05 + random.nextDouble() * 0.1;
+			double phase = random.nextDouble() * Math.PI;
+			Coordinate[] coords = new Coordinate[NB_POLYGON_VERTICES + 1];
+			for (int j = 0; j < NB_POLYGON_VERTICES; j++) {
+				double angle = 2 * Math.PI * j / NB_POLYGON_VERTICES;
+				double r = radius * (1 + 0.3 * Math.sin(7 * angle + phase) + 0.05 * random.nextDouble());
+				coords[j] = new Coordinate(cx + r * Math.cos(angle) * 1.6, cy + r * Math.sin(angle));
+			}
+			coords[NB_POLYGON_VERTICES] = coords[0];
+			ret.add(factory.createPolygon(coords));
+		}
+		return ret;
+	}
+}
@@ -15,7 +15,7 @@ import java.util.Map;
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
 
-import com.opendoorlogistics.api.components.ComponentExecutionApi;
+import com.opendoorlogistics.api.components.ProcessingApi;
 import com.opendoorlogistics.components.geocode.Countries;
 import com.opendoorlogistics.components.geocode.Countries.Country;
 import com.opendoorlogistics.core.utils.LargeList;
@@ -230,7 +230,7 @@ final public class PCGeocodeFile {
 		return pcMap;
 	}
 
-	public List<PCRecord> getPostcodes(int level, ComponentExecutionApi reporter) {
+	public List<PCRecord> getPostcodes(int level, ProcessingApi reporter) {
 		Map<String, byte[]> pcMap = getPCMap(level);
 		LargeList<PCRecord> ret = new LargeList<>(pcMap.size());
 		int nbParsed = 0;
@@ -1,16 +1,19 @@
 package com.opendoorlogistics.components.heatmap;
 
+import gnu.trove.list.array.TDoubleArrayList;
 import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.hash.TIntObjectHashMap;
 import gnu.trove.procedure.TIntObjectProcedure;
 import gnu.trove.set.hash.TIntHashSet;
 
+import java.awt.Rectangle;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.stream.IntStream;
 
-import com.opendoorlogistics.api.components.ComponentExecutionApi;
+import com.opendoorlogistics.api.components.ProcessingApi;
 import com.opendoorlogistics.core.utils.LargeList;
 import com.opendoorlogistics.core.utils.Numbers;
 import com.opendoorlogistics.core.utils.UpdateTimer;
@@ -22,12 +25,27 @@ import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.Point;
 import com.vividsolutions.jts.geom.Polygon;
 import com.vividsolutions.jts.index.quadtree.Quadtree;
+import com.vividsolutions.jts.operation.union.CascadedPolygonUnion;
 import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
 
+/**
+ * Builds heatmap contours from points. Large grids are split into square tiles of cells. Points are
+ * binned into every tile their kernel reaches, and the density is calculated for each tile in parallel.
+ * Each cell still adds its points in input order, so the density is the same as for a single grid.
+ * Contours are then traced in each tile in parallel. Contours which reach an edge shared with
+ * another tile are stitched together by unioning them per level.
+ * @author Phil
+ *
+ */
 public class HeatmapGenerator {
 	static final double GAUSSIAN_CUTOFF = 4;
 	private static final boolean LOG_TO_CONSOLE= false;
 	
+	/**
+	 * Tile width and height in cells. Grids no bigger than this are traced as a single tile.
+	 */
+	static final int TILE_CELLS = 512;
+	
 	private enum EdgeType{
 		TOP,
 		BOTTOM,
@@ -65,6 +83,17 @@ public class HeatmapGenerator {
 			return area.getMinY() + halfCellLength + iy * cellLength;
 		}
 		
+		/**
+		 * Get the x coordinate of the grid line at the left of the cell
+		 */
+		double getGridX(int ix){
+			return area.getMinX() + ix * cellLength;
+		}
+		
+		double getGridY(int iy){
+			return area.getMinY() + iy * cellLength;
+		}
+		
 		int getCellX(double x){
 			return getCell(x, area.getMinX());
 		}
@@ -292,6 +321,25 @@ public class HeatmapGenerator {
 		int getLevel(int x, int y);
 	}
 	
+	private static interface ContourCallback{
+		void contour(int level, Geometry polygon);
+	}
+	
+	/**
+	 * A rectangle of cells, with the points whose kernel reaches it (in input order)
+	 * and the contours traced in it
+	 */
+	private static class Tile{
+		final Rectangle cells;
+		final TIntArrayList points = new TIntArrayList();
+		final TIntArrayList contourLevels = new TIntArrayList();
+		final List<Geometry> contours = new ArrayList<Geometry>();
+		
+		Tile(Rectangle cells) {
+			this.cells = cells;
+		}
+	}
+	
 //	private static class TraceResult{
 //		Geometry polygon;
 //		boolean isHole;
@@ -302,12 +350,19 @@ public class HeatmapGenerator {
 		final java.awt.Point otherCell = new java.awt.Point();
 		final CellCoordSystem coordsSys;
 		final LevelAccessor levelAccessor;
-		final ComponentExecutionApi api;
-				
-		Tracer(ComponentExecutionApi api,CellCoordSystem coords, LevelAccessor levelAccessor) {
+		final ProcessingApi api;
+		final Rectangle tile;
+		final boolean reportProgress;
+		
+		/**
+		 * Create a tracer for the tile's cells. The level accessor should return -1 outside the tile.
+		 */
+		Tracer(ProcessingApi api,CellCoordSystem coords, LevelAccessor levelAccessor, Rectangle tile, boolean reportProgress) {
 			this.api = api;
 			this.coordsSys = coords;
 			this.levelAccessor = levelAccessor;
+			this.tile = tile;
+			this.reportProgress = reportProgress;
 		}
 
 		void logLevelsToConsole(){
@@ -328,9 +383,13 @@ public class HeatmapGenerator {
 		
 		}
 		
-		synchronized void traceAllV2(GeometryFactory factory, List<SingleContourGroup> result){
+		synchronized void traceAllV2(GeometryFactory factory, ContourCallback result){
 			TraceGraph graph = new TraceGraph();
 			UpdateTimer timer = new UpdateTimer(100);
+			
+			// keep contours on edges shared with other tiles straight so they meet the other tile's contours
+			graph.setFixedLines(tile.x > 0 ? tile.x : Integer.MIN_VALUE, tile.x + tile.width < coordsSys.xDim ? tile.x + tile.width : Integer.MIN_VALUE,
+					tile.y > 0 ? tile.y : Integer.MIN_VALUE, tile.y + tile.height < coordsSys.yDim ? tile.y + tile.height : Integer.MIN_VALUE);
 						
 			if(LOG_TO_CONSOLE){
 				logLevelsToConsole();
@@ -341,8 +400,8 @@ public class HeatmapGenerator {
 			TIntArrayList completedTraceIds = new TIntArrayList();
 			java.awt.Point cell = new java.awt.Point();
 			java.awt.Point otherCell = new java.awt.Point();
-			for(cell.x =0 ; cell.x<coordsSys.xDim ; cell.x++){
-				for(cell.y = 0 ; cell.y < coordsSys.yDim ; cell.y++){
+			for(cell.x =tile.x ; cell.x<tile.x + tile.width ; cell.x++){
+				for(cell.y = tile.y ; cell.y < tile.y + tile.height ; cell.y++){
 					
 					int level = levelAccessor.getLevel(cell);
 					if(level==-1){
@@ -390,8 +449,8 @@ public class HeatmapGenerator {
 						}
 					}
 					
-					if(timer.isUpdate()){
-						double pc = 100.0*cell.x / coordsSys.xDim;
+					if(reportProgress && timer.isUpdate()){
+						double pc = 100.0*(cell.x - tile.x) / tile.width;
 						DecimalFormat df = new DecimalFormat("#.00"); 
 						api.postStatusMessage("Traced " + df.format(pc) +"% and found " + completedTraceIds.size() + " contour rings.");
 					}
@@ -403,14 +462,18 @@ public class HeatmapGenerator {
 			}
 
 			// Calculate diagonals (i.e. what points to remove)
-			api.postStatusMessage("Calculating diagonals");
+			if(reportProgress){
+				api.postStatusMessage("Calculating diagonals");
+			}
 			graph.calculateDiagonals();
 			if(api.isCancelled()){
 				return;
 			}
 			
 			// Build the polygons and find out if they're holes or not
-			api.postStatusMessage("Building polygons and testing for holes");
+			if(reportProgress){
+				api.postStatusMessage("Building polygons and testing for holes");
+			}
 			TIntObjectHashMap<List<Geometry>> polygonsByLevel = new TIntObjectHashMap<List<Geometry>>();
 			TIntObjectHashMap<List<Geometry>> holesByLevel = new TIntObjectHashMap<List<Geometry>>();
 			int nbBuilt = 0;
@@ -424,9 +487,9 @@ public class HeatmapGenerator {
 				Coordinate cellCentre = new Coordinate(coordsSys.getCellXCentre(startCell.x), coordsSys.getCellYCentre(startCell.y), 0);
 				boolean isHole = !rawPolygon.contains(factory.createPoint(cellCentre));
 				
-				// Now create with diagonals
+				// Now create with diagonals, keeping the raw polygon if removing points leaves too few for a ring
 				pnts = graph.getPoints(ringId, true);
-				Geometry polygon= createPolygonFromTracedPoints(pnts, false, factory);
+				Geometry polygon= isValidRing(pnts) ? createPolygonFromTracedPoints(pnts, false, factory) : rawPolygon;
 				
 				// And save it
 				TIntObjectHashMap<List<Geometry>> map = isHole ? holesByLevel:polygonsByLevel;	
@@ -439,7 +502,7 @@ public class HeatmapGenerator {
 				list.add(polygon);
 				
 				nbBuilt++;
-				if(timer.isUpdate()){
+				if(reportProgress && timer.isUpdate()){
 					api.postStatusMessage("Building polygons and testing for holes - built " + nbBuilt);	
 				}
 			}
@@ -448,7 +511,9 @@ public class HeatmapGenerator {
 				return;
 			}
 			
-			api.postStatusMessage("Removing holes from polygons");	
+			if(reportProgress){
+				api.postStatusMessage("Removing holes from polygons");	
+			}
 			polygonsByLevel.forEachEntry(new TIntObjectProcedure<List<Geometry>>() {
 
 				@Override
@@ -475,17 +540,7 @@ public class HeatmapGenerator {
 						
 						// we now have the final geometry
 						if(p!=null && p.isEmpty()==false){
-							
-							// Simplify by a tiny tolerance that just removes unneeded points
-							Geometry simplified = TopologyPreservingSimplifier.simplify(p, coordsSys.cellLength * 0.0000000001);
-							if(LOG_TO_CONSOLE){
-								System.out.println("Simplified, reduced " + p.getNumPoints() + " down to " + simplified.getNumPoints());
-							}
-							
-							SingleContourGroup singleContourGroup = new SingleContourGroup(result.size());
-							singleContourGroup.geometry = simplified;
-							singleContourGroup.level = level;
-							result.add(singleContourGroup);
+							result.contour(level, p);
 						}
 						
 					}
@@ -663,6 +718,17 @@ public class HeatmapGenerator {
 //	
 //		}
 
+		/**
+		 * A linear ring needs at least 3 distinct points
+		 */
+		private boolean isValidRing(List<java.awt.Point> orderedPoints){
+			int n = orderedPoints.size();
+			if(n>0 && orderedPoints.get(0).equals(orderedPoints.get(n-1))){
+				n--;
+			}
+			return n>=3;
+		}
+
 		private Geometry createPolygonFromTracedPoints(List<java.awt.Point> orderedPoints, boolean createDiagonals,GeometryFactory factory) {
 			int n = orderedPoints.size();
 			double sepLimit = 1.0000001 * Math.sqrt(2);
@@ -781,8 +847,8 @@ public class HeatmapGenerator {
 			for(int i =0 ; i < n ; i++){
 				java.awt.Point p = orderedPoints.get(i);
 				Coordinate coord = new Coordinate(0,0,0);
-				coord.x = coordsSys.area.getMinX() + p.x * coordsSys.cellLength;
-				coord.y = coordsSys.area.getMinY() + p.y * coordsSys.cellLength;
+				coord.x = coordsSys.getGridX(p.x);
+				coord.y = coordsSys.getGridY(p.y);
 				coordArray[i] = coord;
 			}
 			
@@ -926,86 +992,144 @@ public class HeatmapGenerator {
 	}
 	
 	
-	public static HeatMapResult build(Iterable<InputPoint> points,double radius, Envelope area, double cellLength, int nbContourLevels,  ComponentExecutionApi api){
+	public static HeatMapResult build(Iterable<InputPoint> points,double radius, Envelope area, double cellLength, int nbContourLevels,  ProcessingApi api){
+		return build(points, radius, area, cellLength, nbContourLevels, TILE_CELLS, api);
+	}
+
+	static HeatMapResult build(Iterable<InputPoint> points,double radius, Envelope area, double cellLength, int nbContourLevels, int tileCells, ProcessingApi api){
 		GeometryFactory factory = new GeometryFactory();
 		Gaussian g = new Gaussian(radius);
-		
-		
+
+
 		CellCoordSystem cellCoords = new CellCoordSystem(area, cellLength);
-		
+
 		// Allocate the array
 		double [][] data = new double[cellCoords.xDim][];
 		for(int x =0 ; x < cellCoords.xDim ; x++){
 			data[x] = new double[cellCoords.yDim];
 		}
-		
+
+		// Split the grid into tiles
+		int tilesX = (cellCoords.xDim - 1) / tileCells + 1;
+		int tilesY = (cellCoords.yDim - 1) / tileCells + 1;
+		Tile [] tiles = new Tile[tilesX * tilesY];
+		for(int tx =0 ; tx < tilesX ; tx++){
+			for(int ty =0 ; ty < tilesY ; ty++){
+				int x0 = tx * tileCells;
+				int y0 = ty * tileCells;
+				tiles[tx * tilesY + ty] = new Tile(new Rectangle(x0, y0, Math.min(tileCells, cellCoords.xDim - x0), Math.min(tileCells, cellCoords.yDim - y0)));
+			}
+		}
+
 		// Calculate the number of cells either side of the cell containing the point to search in
 		int searchN = (int)Math.ceil(g.cutoff / cellLength) + 1;
-		
-		// Work out limits for any point which can't contribute to the grid 
+
+		// Work out limits for any point which can't contribute to the grid
 		int lowX = -searchN - 1;
 		int highX = cellCoords.xDim + searchN;
 		int lowY = -searchN - 1;
 		int highY = cellCoords.yDim + searchN;
-		
-		// Loop over all points and add contribution to the cells
-		api.postStatusMessage("Calculating density value at each cell");
+
+		// Loop over all points, binning them into each tile their kernel reaches
+		api.postStatusMessage("Binning points into " + tiles.length + " tiles");
 		UpdateTimer timer = new UpdateTimer(250);
 		long nbParsed=0;
+		TDoubleArrayList xs = new TDoubleArrayList();
+		TDoubleArrayList ys = new TDoubleArrayList();
+		TDoubleArrayList weights = new TDoubleArrayList();
 		for(InputPoint point : points){
 			int cx = cellCoords.getCellX(point.point.getX());
 			int cy = cellCoords.getCellY(point.point.getY());
-			
+
 			if(cx < lowX || cx > highX || cy < lowY || cy > highY){
 				continue;
 			}
-			
+
 			int xmin = Math.max( cx - searchN,0);
 			int xmax = Math.min(cx + searchN, cellCoords.xDim-1);
 			int ymin = Math.max(cy - searchN,0);
 			int ymax = Math.min(cy + searchN, cellCoords.yDim-1);
-			for(int ix = xmin ; ix<=xmax ; ix++){
-				for(int iy = ymin ; iy <= ymax ; iy++){
-					double x = cellCoords.getCellXCentre(ix);
-					double y = cellCoords.getCellYCentre(iy);
-					double dx = x - point.point.getX();
-					double dy = y - point.point.getY();
-					double dist = Math.sqrt(dx*dx + dy*dy);
-					double value = g.value(dist) * point.weight;
-					data[ix][iy] += value;
+			if(xmin <= xmax && ymin <= ymax){
+				int index = xs.size();
+				xs.add(point.point.getX());
+				ys.add(point.point.getY());
+				weights.add(point.weight);
+				for(int tx = xmin / tileCells ; tx <= xmax / tileCells ; tx++){
+					for(int ty = ymin / tileCells ; ty <= ymax / tileCells ; ty++){
+						tiles[tx * tilesY + ty].points.add(index);
+					}
 				}
 			}
 
 			if(api.isCancelled()){
 				return null;
 			}
-			
+
 			nbParsed++;
 			if(timer.isUpdate()){
-				api.postStatusMessage("Calculating density value at each cell - processed " + nbParsed + " input points.");				
+				api.postStatusMessage("Binning points into " + tiles.length + " tiles - processed " + nbParsed + " input points.");
 			}
 		}
-		
-		// Get maximum and minimum values
-		double minZ = Double.MAX_VALUE;
-		double maxZ = -Double.MAX_VALUE;
-		for(double [] row : data){
-			for(double z : row){
-				minZ = Math.min(z, minZ);
-				maxZ = Math.max(z, maxZ);
+
+		// Add the contribution of each point to the cells in each tile
+		api.postStatusMessage("Calculating density value at each cell");
+		IntStream.range(0, tiles.length).parallel().forEach(t -> {
+			Tile tile = tiles[t];
+			int n = tile.points.size();
+			for(int i =0 ; i < n && !api.isCancelled() ; i++){
+				int index = tile.points.get(i);
+				double px = xs.get(index);
+				double py = ys.get(index);
+				double weight = weights.get(index);
+				int cx = cellCoords.getCellX(px);
+				int cy = cellCoords.getCellY(py);
+				int xmin = Math.max( cx - searchN,tile.cells.x);
+				int xmax = Math.min(cx + searchN, tile.cells.x + tile.cells.width-1);
+				int ymin = Math.max(cy - searchN,tile.cells.y);
+				int ymax = Math.min(cy + searchN, tile.cells.y + tile.cells.height-1);
+				for(int ix = xmin ; ix<=xmax ; ix++){
+					for(int iy = ymin ; iy <= ymax ; iy++){
+						double x = cellCoords.getCellXCentre(ix);
+						double y = cellCoords.getCellYCentre(iy);
+						double dx = x - px;
+						double dy = y - py;
+						double dist = Math.sqrt(dx*dx + dy*dy);
+						double value = g.value(dist) * weight;
+						data[ix][iy] += value;
+					}
+				}
 			}
+		});
+		if(api.isCancelled()){
+			return null;
 		}
-		
+
+		// Get maximum and minimum values
+		double minZ = IntStream.range(0, cellCoords.xDim).parallel().mapToDouble(x -> {
+			double ret = Double.MAX_VALUE;
+			for(double z : data[x]){
+				ret = Math.min(z, ret);
+			}
+			return ret;
+		}).min().getAsDouble();
+		double maxZ = IntStream.range(0, cellCoords.xDim).parallel().mapToDouble(x -> {
+			double ret = -Double.MAX_VALUE;
+			for(double z : data[x]){
+				ret = Math.max(z, ret);
+			}
+			return ret;
+		}).max().getAsDouble();
+
 		// Allocate each cell to a contour level
 		int [][]levels  = new int[cellCoords.xDim][];
 		for(int x =0 ; x < cellCoords.xDim ; x++){
 			levels[x] = new int[cellCoords.yDim];
-		} 
-		
+		}
+
 		// Define levels
 		HeatMapResult result = new HeatMapResult();
 		if(maxZ > minZ){
-			
+
 			// Calculate ranges
 			double range = maxZ - minZ;
 			double levelWidth = range / nbContourLevels;
@@ -1015,10 +1139,10 @@ public class HeatmapGenerator {
 				result.levelLowerLimits[i] = minZ + i*levelWidth;
 				result.levelUpperLimits[i] = minZ + (i+1)*levelWidth;
 			}
-			
+
 			// And then assign each cell to a level
 			double oneOverLevelWidth = 1.0/levelWidth;
-			for(int ix =0 ; ix < cellCoords.xDim; ix++){
+			IntStream.range(0, cellCoords.xDim).parallel().forEach(ix -> {
 				for(int iy = 0 ; iy < cellCoords.yDim ; iy++){
 					double z = data[ix][iy];
 					if(z>0){
@@ -1026,24 +1150,92 @@ public class HeatmapGenerator {
 						if(level>(nbContourLevels-1)){
 							level = nbContourLevels-1;
 						}
-						levels[ix][iy] = level;						
+						levels[ix][iy] = level;
 					}else{
 						levels[ix][iy] = -1;
 					}
 				}
-			}
+			});
 		}else{
 			return result;
 		}
-		
-		
+
+
 		api.postStatusMessage("Tracing contours");
 		if(api.isCancelled()){
 			return null;
 		}
 
-		Tracer tracer = new Tracer(api,cellCoords, new LevelAccessor() {
-			
+		if(tiles.length==1){
+			Tracer tracer = new Tracer(api,cellCoords, createLevelAccessor(cellCoords, levels, tiles[0].cells),tiles[0].cells, true);
+			tracer.traceAllV2(factory, (level, polygon) -> addContour(result.groups, level, simplify(polygon, cellLength)));
+			return result;
+		}
+
+		// Trace each tile
+		IntStream.range(0, tiles.length).parallel().forEach(t -> {
+			Tile tile = tiles[t];
+			if(!api.isCancelled()){
+				Tracer tracer = new Tracer(api,cellCoords, createLevelAccessor(cellCoords, levels, tile.cells),tile.cells, false);
+				tracer.traceAllV2(factory, (level, polygon) -> {
+					tile.contourLevels.add(level);
+					tile.contours.add(polygon);
+				});
+			}
+		});
+		if(api.isCancelled()){
+			return null;
+		}
+
+		// Sort contours by level, separating the ones which touch another tile
+		api.postStatusMessage("Joining contours between tiles");
+		List<List<Geometry>> insideTiles = new ArrayList<List<Geometry>>();
+		List<List<Geometry>> touchingTiles = new ArrayList<List<Geometry>>();
+		for(int i =0 ; i < nbContourLevels ; i++){
+			insideTiles.add(new ArrayList<Geometry>());
+			touchingTiles.add(new ArrayList<Geometry>());
+		}
+		for(Tile tile : tiles){
+			for(int i =0 ; i < tile.contours.size() ; i++){
+				Geometry polygon = tile.contours.get(i);
+				List<List<Geometry>> lists = isTouchingOtherTile(cellCoords, tile.cells, polygon.getEnvelopeInternal()) ? touchingTiles : insideTiles;
+				lists.get(tile.contourLevels.get(i)).add(polygon);
+			}
+		}
+
+		// Union the contours which touch another tile and simplify all
+		List<List<Geometry>> finalContours = new ArrayList<List<Geometry>>();
+		for(int i =0 ; i < nbContourLevels ; i++){
+			finalContours.add(new ArrayList<Geometry>());
+		}
+		IntStream.range(0, nbContourLevels).parallel().forEach(level -> {
+			List<Geometry> list = finalContours.get(level);
+			for(Geometry polygon : insideTiles.get(level)){
+				list.add(simplify(polygon, cellLength));
+			}
+
+			if(touchingTiles.get(level).size()>0 && !api.isCancelled()){
+				Geometry union = CascadedPolygonUnion.union(touchingTiles.get(level));
+				for(int i =0 ; i < union.getNumGeometries() ; i++){
+					Geometry polygon = union.getGeometryN(i);
+					if(!polygon.isEmpty()){
+						list.add(simplify(polygon, cellLength));
+					}
+				}
+			}
+		});
+
+		for(int level =0 ; level < nbContourLevels ; level++){
+			for(Geometry polygon : finalContours.get(level)){
+				addContour(result.groups, level, polygon);
+			}
+		}
+		return result;
+	}
+
+	private static LevelAccessor createLevelAccessor(CellCoordSystem cellCoords, int [][]levels, Rectangle tile){
+		return new LevelAccessor() {
+
 			@Override
 			public int getLevel(java.awt.Point p) {
 				return getLevel(p.x, p.y);
@@ -1051,20 +1243,39 @@ public class HeatmapGenerator {
 
 			@Override
 			public int getLevel(int x, int y) {
-				if(cellCoords.isInsideGrid(x,y)){
+				if(tile.contains(x, y)){
 					return levels[x][y];
 				}
 				return -1;
 			}
-		});
-		
-		
-		//tracer.traceAll(factory, result.groups);
-		tracer.traceAllV2(factory, result.groups);
+		};
+	}
 
-		return result;
-	}	
-	
+	/**
+	 * Test if the envelope reaches an edge of the tile which is shared with another tile
+	 */
+	private static boolean isTouchingOtherTile(CellCoordSystem cellCoords, Rectangle tile, Envelope envelope){
+		return (tile.x > 0 && envelope.getMinX() <= cellCoords.getGridX(tile.x))
+				|| (tile.x + tile.width < cellCoords.xDim && envelope.getMaxX() >= cellCoords.getGridX(tile.x + tile.width))
+				|| (tile.y > 0 && envelope.getMinY() <= cellCoords.getGridY(tile.y))
+				|| (tile.y + tile.height < cellCoords.yDim && envelope.getMaxY() >= cellCoords.getGridY(tile.y + tile.height));
+	}
+
+	private static Geometry simplify(Geometry p, double cellLength){
+		// Simplify by a tiny tolerance that just removes unneeded points
+		Geometry simplified = TopologyPreservingSimplifier.simplify(p, cellLength * 0.0000000001);
+		if(LOG_TO_CONSOLE){
+			System.out.println("Simplified, reduced " + p.getNumPoints() + " down to " + simplified.getNumPoints());
+		}
+		return simplified;
+	}
+
+	private static void addContour(List<SingleContourGroup> result, int level, Geometry geometry){
+		SingleContourGroup singleContourGroup = new SingleContourGroup(result.size());
+		singleContourGroup.geometry = geometry;
+		singleContourGroup.level = level;
+		result.add(singleContourGroup);
+	}
 
 	private static long getXYAsLong(int x, int y){
 		return (((long)x) << 32) | (y & 0xffffffffL);
@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.components.heatmap;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.opendoorlogistics.api.components.ProcessingApi;
+import com.opendoorlogistics.components.heatmap.HeatmapGenerator.HeatMapResult;
+import com.opendoorlogistics.components.heatmap.HeatmapGenerator.InputPoint;
+import com.opendoorlogistics.components.heatmap.HeatmapGenerator.SingleContourGroup;
+import com.opendoorlogistics.core.api.impl.ODLApiImpl;
+import com.opendoorlogistics.core.scripts.execution.dependencyinjection.AbstractDependencyInjector;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/**
+ * Compare building a heatmap as a single grid against building it in tiles, on points
+ * clustered around towns. Arguments are the number of points and the grid resolution
+ * (cells along the longest side), set up as in {@link HeatmapComponent}.
+ * @author Phil
+ *
+ */
+public class ProfileHeatmap {
+	private static final int NB_CONTOUR_LEVELS = 10;
+
+	public static void main(String[] args) {
+		int nbPoints = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+		int resolution = args.length > 1 ? Integer.parseInt(args[1]) : 4000;
+		double radius = 0.02;
+
+		Random random = new Random(123);
+		GeometryFactory factory = new GeometryFactory();
+		int nbTowns = 2000;
+		double[][] towns = new double[nbTowns][];
+		for (int i = 0; i < nbTowns; i++) {
+			towns[i] = new double[] { -5 + random.nextDouble() * 6, 50.5 + random.nextDouble() * 4.5 };
+		}
+		List<InputPoint> points = new ArrayList<>(nbPoints);
+		Envelope envelope = new Envelope();
+		for (int i = 0; i < nbPoints; i++) {
+			double[] town = towns[random.nextInt(nbTowns)];
+			Coordinate coordinate = new Coordinate(town[0] + random.nextGaussian() * 0.05, town[1] + random.nextGaussian() * 0.03);
+			envelope.expandToInclude(coordinate);
+			points.add(new InputPoint(factory.createPoint(coordinate), 1));
+		}
+		envelope.expandBy(radius * 2 * HeatmapGenerator.GAUSSIAN_CUTOFF);
+		double cellLength = Math.max(envelope.getHeight(), envelope.getWidth()) / resolution;
+
+		ProcessingApi processing = new AbstractDependencyInjector(new ODLApiImpl());
+		double[] singleAreas = null;
+		for (boolean tiled : new boolean[] { false, true }) {
+			long start = System.currentTimeMillis();
+			HeatMapResult result = HeatmapGenerator.build(points, radius, envelope, cellLength, NB_CONTOUR_LEVELS, tiled ? HeatmapGenerator.TILE_CELLS : Integer.MAX_VALUE,
+					processing);
+			long millis = System.currentTimeMillis() - start;
+
+			double[] areas = new double[NB_CONTOUR_LEVELS];
+			for (SingleContourGroup group : result.groups) {
+				areas[group.level] += group.geometry.getArea();
+			}
+			System.out.println(LocalDateTime.now() + " - " + (tiled ? "tiled" : "single grid") + ": " + nbPoints + " points on " + resolution + " cell grid took " + millis
+					+ " ms, " + result.groups.size() + " contours");
+
+			if (tiled) {
+				double maxDiff = 0;
+				for (int i = 0; i < NB_CONTOUR_LEVELS; i++) {
+					if (singleAreas[i] > 0) {
+						maxDiff = Math.max(maxDiff, Math.abs(areas[i] - singleAreas[i]) / singleAreas[i]);
+					}
+				}
+				System.out.println("Maximum difference in a level's total area " + String.format("%.6f", 100 * maxDiff) + "%");
+			} else {
+				singleAreas = areas;
+			}
+		}
+	}
+}
@@ -73,6 +73,11 @@ class TraceGraph {
 	}
 
 	private HashMap<Point, Node> nodes = new HashMap<Point, TraceGraph.Node>();
+	
+	private int fixedMinX = Integer.MIN_VALUE;
+	private int fixedMaxX = Integer.MIN_VALUE;
+	private int fixedMinY = Integer.MIN_VALUE;
+	private int fixedMaxY = Integer.MIN_VALUE;
 
 	private TIntObjectHashMap<TraceRingHeader> traceHeaders = new TIntObjectHashMap<TraceRingHeader>();
 	
@@ -163,8 +168,27 @@ class TraceGraph {
 		return ret;
 	}
 
+	/**
+	 * Set grid lines whose nodes are never removed to create diagonals, or Integer.MIN_VALUE for none.
+	 * Used on tile edges so contours traced in neighbouring tiles still meet along the edge.
+	 */
+	void setFixedLines(int minX, int maxX, int minY, int maxY){
+		fixedMinX = minX;
+		fixedMaxX = maxX;
+		fixedMinY = minY;
+		fixedMaxY = maxY;
+	}
+	
+	private boolean isOnFixedLine(Point pnt){
+		return (fixedMinX != Integer.MIN_VALUE && pnt.x == fixedMinX) || (fixedMaxX != Integer.MIN_VALUE && pnt.x == fixedMaxX)
+				|| (fixedMinY != Integer.MIN_VALUE && pnt.y == fixedMinY) || (fixedMaxY != Integer.MIN_VALUE && pnt.y == fixedMaxY);
+	}
+	
 	void calculateDiagonals() {
 		for (Node node :nodes.values()) {
+			if(isOnFixedLine(node.pnt)){
+				continue;
+			}
 
 			class IsOk {
 				boolean ok = true;
@@ -285,7 +285,8 @@ final public class ReporterComponent implements Reporter {
 
 	@Override
 	public long getFlags(ODLApi api,int mode) {
-		return ODLComponent.FLAG_ALLOW_USER_INTERACTION_WHEN_RUNNING;
+		// each batch key's report is filled and exported to its own files, so keys can run in parallel
+		return ODLComponent.FLAG_ALLOW_USER_INTERACTION_WHEN_RUNNING | ODLComponent.FLAG_BATCH_KEYS_CAN_RUN_IN_PARALLEL;
 	}
 
 //	public static void main(String[] args) {
@@ -21,6 +21,8 @@ final public class FilteredReportDatasource implements JRRewindableDataSource {
 	private final int []lookupFieldIndex;
 	private final ODLTableReadOnly table;
 	private final Object [] matchKeys;
+	private final int [] rows;
+	private int rowsIndex=-1;
 	private int row=-1;
 
 	/**
@@ -29,22 +31,40 @@ final public class FilteredReportDatasource implements JRRewindableDataSource {
 	 * @param config
 	 */
 	public FilteredReportDatasource(ODLTableReadOnly table, String[]matchFields, Object [] matchKeys, ContinueProcessingCB continueCb) {
+		this(table, getMatchFieldIndices(table, matchFields), matchKeys, null, continueCb);
+	}
+
+	/**
+	 * Constructor which only tests the input rows, which must be in ascending order (or all rows if null)
+	 * @param table
+	 * @param lookupFieldIndex
+	 * @param matchKeys
+	 * @param rows
+	 * @param continueCb
+	 */
+	FilteredReportDatasource(ODLTableReadOnly table, int[]lookupFieldIndex, Object [] matchKeys, int [] rows, ContinueProcessingCB continueCb) {
 		this.continueCb = continueCb;
 		this.table = table;
 		this.columnLookup = new ColumnIndexLookup(table);	
 		this.matchKeys = matchKeys;
+		this.lookupFieldIndex = lookupFieldIndex;
+		this.rows = rows;
 		
-		if(matchKeys.length!=matchFields.length){
+		if(matchKeys.length!=lookupFieldIndex.length){
 			throw new RuntimeException("Filtered report datasource has different number of match fields to match keys.");
 		}
-		
-		lookupFieldIndex = new int[matchFields.length];
-		for(int i=0; i <lookupFieldIndex.length; i++){
-			lookupFieldIndex[i] = columnLookup.getColumnIndx(matchFields[i]);
-			if(lookupFieldIndex[i]==-1){
+	}
+	
+	static int [] getMatchFieldIndices(ODLTableReadOnly table, String[]matchFields){
+		ColumnIndexLookup columnLookup = new ColumnIndexLookup(table);	
+		int [] ret = new int[matchFields.length];
+		for(int i=0; i <ret.length; i++){
+			ret[i] = columnLookup.getColumnIndx(matchFields[i]);
+			if(ret[i]==-1){
 				throw new RuntimeException("Filtered report datasource has match field that could not be found in input table: " + matchFields[i]);				
 			}
 		}
+		return ret;
 	}
 
 	@Override
@@ -53,6 +73,19 @@ final public class FilteredReportDatasource implements JRRewindableDataSource {
 			return false;
 		}
 		
+		if(rows!=null){
+			// go to the next candidate row which matches
+			rowsIndex++;
+			while(rowsIndex < rows.length){
+				row = rows[rowsIndex];
+				if(isRowMatch()){
+					return true;
+				}
+				rowsIndex++;
+			}
+			return false;
+		}
+		
 		// go to next row
 		row++;
 		
@@ -93,6 +126,7 @@ final public class FilteredReportDatasource implements JRRewindableDataSource {
 	@Override
 	public void moveFirst() throws JRException {
 		row=-1;
+		rowsIndex=-1;
 		if(!next()){
 			throw new RuntimeException("Rewinding an empty subreport.");
 		}
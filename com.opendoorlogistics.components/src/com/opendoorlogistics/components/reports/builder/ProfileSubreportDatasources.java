@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.components.reports.builder;
+
+import java.time.LocalDateTime;
+import java.util.Random;
+
+import net.sf.jasperreports.engine.JRException;
+import net.sf.jasperreports.engine.JRRewindableDataSource;
+import net.sf.jasperreports.engine.design.JRDesignField;
+
+import com.opendoorlogistics.api.tables.ODLColumnType;
+import com.opendoorlogistics.api.tables.ODLDatastoreAlterable;
+import com.opendoorlogistics.api.tables.ODLTableAlterable;
+import com.opendoorlogistics.core.api.impl.ODLApiImpl;
+
+/**
+ * Time getting the subreport rows for every vehicle in a vehicles and stops report, scanning the
+ * stops table for each vehicle against using {@link SubreportDatasourceProviderImpl}'s index, and
+ * check both give the same rows. Vehicle ids are looked up as numbers in a string column, so matches
+ * go through the number to string comparison. Arguments are the number of vehicles and stops.
+ * @author Phil
+ *
+ */
+public class ProfileSubreportDatasources {
+	public static void main(String[] args) throws JRException {
+		int nbVehicles = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int nbStops = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+		ODLDatastoreAlterable<? extends ODLTableAlterable> ds = new ODLApiImpl().tables().createAlterableDs();
+		ODLTableAlterable stops = ds.createTable("Stops", -1);
+		stops.addColumn(-1, "vehicle-id", ODLColumnType.STRING, 0);
+		stops.addColumn(-1, "stop-id", ODLColumnType.STRING, 0);
+		Random random = new Random(123);
+		for (int i = 0; i < nbStops; i++) {
+			int row = stops.createEmptyRow(-1);
+			stops.setValueAt(Integer.toString(random.nextInt(nbVehicles)), row, 0);
+			stops.setValueAt("S" + i, row, 1);
+		}
+
+		JRDesignField field = new JRDesignField();
+		field.setName("stop-id");
+		field.setValueClass(String.class);
+
+		for (boolean indexed : new boolean[] { false, true }) {
+			long start = System.currentTimeMillis();
+			SubreportDatasourceProviderImpl provider = new SubreportDatasourceProviderImpl(ds, null);
+			long nbRows = 0;
+			long checksum = 0;
+			for (long vehicle = 0; vehicle < nbVehicles; vehicle++) {
+				JRRewindableDataSource source = indexed ? provider.getSubreportDatasource("Stops", "vehicle-id", vehicle)
+						: new FilteredReportDatasource(stops, new String[] { "vehicle-id" }, new Object[] { vehicle }, null);
+				while (source.next()) {
+					nbRows++;
+					checksum = 31 * checksum + source.getFieldValue(field).hashCode();
+				}
+			}
+			System.out.println(LocalDateTime.now() + " - " + (indexed ? "indexed" : "scanning") + " subreports for " + nbVehicles + " vehicles and " + nbStops + " stops took "
+					+ (System.currentTimeMillis() - start) + " ms, " + nbRows + " rows, checksum " + checksum);
+		}
+	}
+}
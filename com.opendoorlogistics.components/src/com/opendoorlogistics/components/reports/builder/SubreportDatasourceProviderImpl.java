@@ -6,6 +6,9 @@
  ******************************************************************************/
 package com.opendoorlogistics.components.reports.builder;
 
+import java.util.Arrays;
+import java.util.HashMap;
+
 import com.opendoorlogistics.api.components.ContinueProcessingCB;
 import com.opendoorlogistics.api.tables.ODLDatastore;
 import com.opendoorlogistics.api.tables.ODLTableReadOnly;
@@ -14,9 +17,16 @@ import com.opendoorlogistics.core.tables.utils.TableUtils;
 
 import net.sf.jasperreports.engine.JRRewindableDataSource;
 
+/**
+ * Provides the datasources for subreports during a fill. The rows of each subreport table are indexed
+ * by its match fields the first time it's used, so later subreports don't scan the table.
+ * @author Phil
+ *
+ */
 final public class SubreportDatasourceProviderImpl implements SubreportDatasourceProvider{
 	private final ODLDatastore<? extends ODLTableReadOnly> ds;
 	private final ContinueProcessingCB continueCb;	
+	private final HashMap<String, SubreportRowIndex> indices = new HashMap<>();
 
 	public SubreportDatasourceProviderImpl(ODLDatastore<? extends ODLTableReadOnly> ds,ContinueProcessingCB continueCb) {
 		this.ds = ds;
@@ -41,7 +51,22 @@ final public class SubreportDatasourceProviderImpl implements SubreportDatasourc
 			throw new RuntimeException("Cannot find table referenced in subreport: " + table);
 		}
 		
-		return new FilteredReportDatasource(tableObj, matchfields, keyValues,continueCb);
+		int [] lookupFieldIndex = FilteredReportDatasource.getMatchFieldIndices(tableObj, matchfields);
+		if(lookupFieldIndex.length==0){
+			return new FilteredReportDatasource(tableObj, lookupFieldIndex, keyValues, null, continueCb);
+		}
+		
+		return new FilteredReportDatasource(tableObj, lookupFieldIndex, keyValues, getIndex(tableObj, lookupFieldIndex).getCandidateRows(keyValues), continueCb);
+	}
+
+	private synchronized SubreportRowIndex getIndex(ODLTableReadOnly table, int [] lookupFieldIndex){
+		String key = table.getImmutableId() + Arrays.toString(lookupFieldIndex);
+		SubreportRowIndex ret = indices.get(key);
+		if(ret==null){
+			ret = new SubreportRowIndex(table, lookupFieldIndex, continueCb);
+			indices.put(key, ret);
+		}
+		return ret;
 	}
 
 }
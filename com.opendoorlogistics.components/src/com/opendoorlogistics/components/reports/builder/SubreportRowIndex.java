@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.components.reports.builder;
+
+import gnu.trove.list.array.TIntArrayList;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import com.opendoorlogistics.api.components.ContinueProcessingCB;
+import com.opendoorlogistics.api.tables.ODLTableReadOnly;
+import com.opendoorlogistics.core.utils.strings.Strings;
+
+/**
+ * Index of a subreport table's rows by the values in its match fields, built once per fill so each
+ * master record's rows are found without scanning the whole table. Values are bucketed by a hash key
+ * which is the same for any two values ColumnValueProcessor.isEqual treats as equal, so a bucket can
+ * hold rows which don't match and the datasource still tests each row.
+ * @author Phil
+ *
+ */
+final class SubreportRowIndex {
+	private static final Object NULL_KEY = new Object();
+	private final HashMap<List<Object>, TIntArrayList> rowsByKey = new HashMap<>();
+	private final TIntArrayList unhashedRows = new TIntArrayList();
+
+	SubreportRowIndex(ODLTableReadOnly table, int[] keyColumns, ContinueProcessingCB continueCb) {
+		int nr = table.getRowCount();
+		for (int row = 0; row < nr; row++) {
+			Object[] values = new Object[keyColumns.length];
+			for (int i = 0; i < keyColumns.length; i++) {
+				values[i] = table.getValueAt(row, keyColumns[i]);
+			}
+
+			List<Object> key = getHashKey(values);
+			if (key == null) {
+				unhashedRows.add(row);
+			} else {
+				TIntArrayList rows = rowsByKey.get(key);
+				if (rows == null) {
+					rows = new TIntArrayList(1);
+					rowsByKey.put(key, rows);
+				}
+				rows.add(row);
+			}
+
+			if (continueCb != null && continueCb.isCancelled()) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Get the rows which could match the values in ascending order, or null if the values can't be
+	 * hashed and every row should be tested
+	 * @param values
+	 * @return
+	 */
+	int[] getCandidateRows(Object[] values) {
+		List<Object> key = getHashKey(values);
+		if (key == null) {
+			return null;
+		}
+
+		TIntArrayList rows = rowsByKey.get(key);
+		if (rows == null) {
+			return unhashedRows.toArray();
+		}
+		if (unhashedRows.size() == 0) {
+			return rows.toArray();
+		}
+
+		// merge with the unhashed rows, keeping row order
+		int[] ret = new int[rows.size() + unhashedRows.size()];
+		int i = 0;
+		int j = 0;
+		for (int k = 0; k < ret.length; k++) {
+			if (j >= unhashedRows.size() || (i < rows.size() && rows.get(i) < unhashedRows.get(j))) {
+				ret[k] = rows.get(i++);
+			} else {
+				ret[k] = unhashedRows.get(j++);
+			}
+		}
+		return ret;
+	}
+
+	private static List<Object> getHashKey(Object[] values) {
+		ArrayList<Object> ret = new ArrayList<>(values.length);
+		for (Object value : values) {
+			Object key = getHashKey(value);
+			if (key == null) {
+				return null;
+			}
+			ret.add(key);
+		}
+		return ret;
+	}
+
+	/**
+	 * Get the hash key for a single value, or null if it can't be hashed. Finite numbers and strings
+	 * which parse to them use their double value (isEqual compares numbers as doubles and numbers
+	 * against other types by their strings), everything else its standardised string. Number types
+	 * whose string doesn't parse back to their double value aren't hashed.
+	 * @param value
+	 * @return
+	 */
+	static Object getHashKey(Object value) {
+		if (value == null) {
+			return NULL_KEY;
+		}
+
+		if (Number.class.isInstance(value)) {
+			Class<?> cls = value.getClass();
+			if (cls != Long.class && cls != Integer.class && cls != Short.class && cls != Byte.class && cls != Double.class) {
+				return null;
+			}
+			double d = ((Number) value).doubleValue();
+			if (!Double.isNaN(d) && !Double.isInfinite(d)) {
+				return d;
+			}
+			return Strings.std(value.toString());
+		}
+
+		String s = Strings.std(value.toString());
+		if (s.length() > 0) {
+			// only try parsing things which could be finite numbers, as parse exceptions are slow
+			char c = s.charAt(0);
+			if (Character.isDigit(c) || c == '-' || c == '+' || c == '.') {
+				try {
+					double d = Double.parseDouble(s);
+					if (!Double.isNaN(d) && !Double.isInfinite(d)) {
+						return d;
+					}
+				} catch (NumberFormatException e) {
+				}
+			}
+		}
+		return s;
+	}
+}
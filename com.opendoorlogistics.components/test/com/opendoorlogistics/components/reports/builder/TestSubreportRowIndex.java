@@ -0,0 +1,72 @@
+package com.opendoorlogistics.components.reports.builder;
+
+import java.math.BigDecimal;
+
+import org.junit.Test;
+
+import com.opendoorlogistics.api.tables.ODLColumnType;
+import com.opendoorlogistics.api.tables.ODLDatastoreAlterable;
+import com.opendoorlogistics.api.tables.ODLTableAlterable;
+import com.opendoorlogistics.core.api.impl.ODLApiImpl;
+import com.opendoorlogistics.core.tables.ColumnValueProcessor;
+
+import static org.junit.Assert.*;
+
+public class TestSubreportRowIndex {
+
+	/**
+	 * Pairs of values of different types or formats which ColumnValueProcessor.isEqual treats as equal
+	 */
+	private static final Object[][] EQUAL_PAIRS = new Object[][] { { 1L, 1.0 }, { 1, 1L }, { 1L, "1" }, { 2L, " 2 " }, { 1.5, "1.5" }, { -0.0, "-0.0" },
+			{ "ABC", "abc" }, { " abc ", "abc" }, { "a  b", "a b" }, { "Vehicle 1", "vehicle 1" } };
+
+	private static final Object[][] UNEQUAL_PAIRS = new Object[][] { { 1L, 2L }, { 1.5, "2.5" }, { "abc", "abd" }, { "abc", null } };
+
+	@Test
+	public void testEqualValuesShareKey() {
+		for (Object[] pair : EQUAL_PAIRS) {
+			assertTrue(pair[0] + " equals " + pair[1], ColumnValueProcessor.isEqual(pair[0], pair[1]));
+			Object key = SubreportRowIndex.getHashKey(pair[0]);
+			assertNotNull(key);
+			assertEquals(pair[0] + " and " + pair[1], key, SubreportRowIndex.getHashKey(pair[1]));
+		}
+	}
+
+	@Test
+	public void testUnequalValuesHaveDifferentKeys() {
+		for (Object[] pair : UNEQUAL_PAIRS) {
+			assertFalse(pair[0] + " equals " + pair[1], ColumnValueProcessor.isEqual(pair[0], pair[1]));
+			assertNotEquals(pair[0] + " and " + pair[1], SubreportRowIndex.getHashKey(pair[0]), SubreportRowIndex.getHashKey(pair[1]));
+		}
+	}
+
+	@Test
+	public void testNumericStringsShareKey() {
+		// "1" and "1.0" aren't equal as strings but sharing a bucket is allowed, as rows are still tested
+		assertEquals(SubreportRowIndex.getHashKey("1"), SubreportRowIndex.getHashKey("1.0"));
+		assertEquals(SubreportRowIndex.getHashKey(1L), SubreportRowIndex.getHashKey("1.0"));
+	}
+
+	@Test
+	public void testUnhashableValues() {
+		assertNull(SubreportRowIndex.getHashKey(1.1f));
+		assertNull(SubreportRowIndex.getHashKey(new BigDecimal("1.1")));
+		assertNotNull(SubreportRowIndex.getHashKey(null));
+	}
+
+	@Test
+	public void testCandidateRows() {
+		ODLDatastoreAlterable<? extends ODLTableAlterable> ds = new ODLApiImpl().tables().createAlterableDs();
+		ODLTableAlterable table = ds.createTable("Stops", -1);
+		table.addColumn(-1, "vehicle-id", ODLColumnType.STRING, 0);
+		for (String id : new String[] { "1", "2", " 1", "V1" }) {
+			table.setValueAt(id, table.createEmptyRow(-1), 0);
+		}
+
+		SubreportRowIndex index = new SubreportRowIndex(table, new int[] { 0 }, null);
+		assertArrayEquals(new int[] { 0, 2 }, index.getCandidateRows(new Object[] { 1L }));
+		assertArrayEquals(new int[] { 3 }, index.getCandidateRows(new Object[] { "v1" }));
+		assertArrayEquals(new int[0], index.getCandidateRows(new Object[] { 3L }));
+		assertNull(index.getCandidateRows(new Object[] { 1.0f }));
+	}
+}
@@ -32,6 +32,8 @@ final public class AppConstants {
 
 	public static final String MAPSFORGE_DIRECTORY = DATA_DIRECTORY + "mapsforge" + File.separator;
 
+	public static final String MATRIX_CACHE_DIRECTORY = DATA_DIRECTORY + "matrixcache" + File.separator;
+
 	public static final String OSM_COPYRIGHT = " OpenStreetMap contributors";
 	
 	public static final String EXTERNAL_MATRIX_TEXTFILE_EXTENSION = ".matrix.txt";
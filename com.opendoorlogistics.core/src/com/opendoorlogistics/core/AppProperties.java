@@ -50,6 +50,14 @@ public class AppProperties  {
 	
 	public static final String SPATIAL_RENDERER_SIMPLIFY_DISTANCE_TOLERANCE_LINESTRING = SPATIAL_RENDERER_SIMPLIFY_DISTANCE_TOLERANCE+ ".linestring";
 
+	public static final String DISTANCES_MATRIX_CACHE_KEY = "distances.matrixcache";
+
+	public static final String DISTANCES_MATRIX_CACHE_ENABLED = DISTANCES_MATRIX_CACHE_KEY + ".enabled";
+
+	public static final String DISTANCES_MATRIX_CACHE_MAX_MB = DISTANCES_MATRIX_CACHE_KEY + ".max_mb";
+
+	public static final String ADAPTERS_FORMULA_CACHE_MAX_CELLS = "adapters.formulacache.max_cells";
+
 	public synchronized static Double getDouble(String key){
 		if(applicationProperties!=null){
 			Object val = getValue(key);
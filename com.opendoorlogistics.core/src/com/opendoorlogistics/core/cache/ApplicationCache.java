@@ -14,6 +14,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.opendoorlogistics.api.cache.ObjectCachePool;
 import com.opendoorlogistics.api.ui.Disposable;
@@ -28,11 +29,13 @@ import com.opendoorlogistics.core.utils.Pair;
  */
 public class ApplicationCache implements Disposable, ObjectCachePool{
 	private static final ApplicationCache singleton = new ApplicationCache();
-	private final HashMap<String, RecentlyUsedCache> caches = new HashMap<>();
+	private final ConcurrentHashMap<String, RecentlyUsedCache> caches = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, CacheStatistics> externalCaches = new ConcurrentHashMap<>();
 	
 	public static final String DISTANCE_MATRIX_CACHE = "distance-matrix-cache";
 	public static final String ROUTE_GEOMETRY_CACHE = "route-geometry-cache";
 	public static final String GEOMETRY_MERGER_CACHE = "geometry-merge-cache";
+	public static final String GEOMETRY_UNION_TREE_CACHE = "geometry-union-tree-cache";
 	public static final String GEOMETRY_BORDER_CACHE = "geometry-border-cache";
 	public static final String A_TO_B_DISTANCE_METRES_CACHE = "a-to-b-distance-metres-cache";
 	public static final String A_TO_B_TIME_SECONDS_CACHE = "a-to-b-time-seconds-cache";
@@ -52,6 +55,7 @@ public class ApplicationCache implements Disposable, ObjectCachePool{
 	public static final String GRID_TRANSFORMS_CACHE = "grid-transforms-cache";
 	public static final String FAST_CONTAINED_POINTS_QUADTREE= "fast-contained-points-quadtree";
 	public static final String FUNCTION_IMPORTED_DATASTORES= "function-imported-datastores";
+	public static final String ADAPTER_FORMULA_CACHE= "adapter-formula-cache";
 	
 	public void clearCache(){
 		for(RecentlyUsedCache cache : caches.values()){
@@ -68,6 +72,7 @@ public class ApplicationCache implements Disposable, ObjectCachePool{
 		create(DISTANCE_MATRIX_CACHE, 128 * MB);
 		create(ROUTE_GEOMETRY_CACHE, 64 *MB);
 		create(GEOMETRY_MERGER_CACHE, 32* MB);
+		create(GEOMETRY_UNION_TREE_CACHE, 128* MB);
 		create(GEOMETRY_BORDER_CACHE, 32* MB);
 		create(A_TO_B_DISTANCE_METRES_CACHE, 12*MB);
 		create(A_TO_B_TIME_SECONDS_CACHE, 12*MB);
@@ -100,21 +105,61 @@ public class ApplicationCache implements Disposable, ObjectCachePool{
 	
 	@Override
 	public RecentlyUsedCache create(String cacheId, long maxSizeInBytes){
-		if(get(cacheId)!=null){
+		RecentlyUsedCache ret = new RecentlyUsedCache(cacheId,maxSizeInBytes);
+		if(externalCaches.containsKey(cacheId) || caches.putIfAbsent(cacheId,ret )!=null){
 			throw new RuntimeException("Cache already exists with id: " + cacheId);
 		}
-		
-		RecentlyUsedCache ret = new RecentlyUsedCache(cacheId,maxSizeInBytes);
-		caches.put(cacheId,ret );
 		return ret;
 	}
 	
+	/**
+	 * Include the statistics of a cache which manages its own storage in the totals and usage report
+	 * @param cacheId
+	 * @param statistics
+	 */
+	public void registerStatistics(String cacheId, CacheStatistics statistics){
+		if(caches.containsKey(cacheId) || externalCaches.putIfAbsent(cacheId, statistics)!=null){
+			throw new RuntimeException("Cache already exists with id: " + cacheId);
+		}
+	}
+	
+	private Map<String, CacheStatistics> getAllStatistics(){
+		Map<String, CacheStatistics> ret = new HashMap<>(caches);
+		ret.putAll(externalCaches);
+		return ret;
+	}
+	
+	/**
+	 * Total number of hits over all caches since the application started
+	 * @return
+	 */
+	public long getTotalHitCount(){
+		long ret=0;
+		for(CacheStatistics cache : getAllStatistics().values()){
+			ret += cache.getHitCount();
+		}
+		return ret;
+	}
+
+	/**
+	 * Total number of misses over all caches since the application started
+	 * @return
+	 */
+	public long getTotalMissCount(){
+		long ret=0;
+		for(CacheStatistics cache : getAllStatistics().values()){
+			ret += cache.getMissCount();
+		}
+		return ret;
+	}
+
 	public String getUsageReport(){
 		StringBuilder builder = new StringBuilder();
 		long total=0;
 		
+		Map<String, CacheStatistics> all = getAllStatistics();
 		ArrayList<Pair<Long, String>> list = new ArrayList<Pair<Long,String>>();
-		for(Map.Entry<String,RecentlyUsedCache> entry : caches.entrySet()){
+		for(Map.Entry<String,CacheStatistics> entry : all.entrySet()){
 			long bytes = entry.getValue().getEstimatedTotalBytes();
 			list.add(new Pair<Long, String>(bytes, entry.getKey()));
 			total += bytes;
@@ -144,7 +189,12 @@ public class ApplicationCache implements Disposable, ObjectCachePool{
 		
 		builder.append("Estimated total usage is " + toMB.toMB(total) + " MB" + System.lineSeparator());
 		for(Pair<Long, String> pair : list){
-			builder.append(pair.getSecond() + " estimated " + toMB.toMB(pair.getFirst()) + " MB" + System.lineSeparator());
+			CacheStatistics cache = all.get(pair.getSecond());
+			long hits = cache.getHitCount();
+			long misses = cache.getMissCount();
+			String hitRate = hits + misses > 0 ? new DecimalFormat("0.0").format(100.0 * hits / (hits + misses)) + "%" : "n/a";
+			builder.append(pair.getSecond() + " estimated " + toMB.toMB(pair.getFirst()) + " MB in " + cache.getEntryCount() + " entries, " + hits + " hits, " + misses
+					+ " misses (hit rate " + hitRate + "), " + cache.getEvictionCount() + " evictions" + System.lineSeparator());
 		}
 		return builder.toString();
 	}
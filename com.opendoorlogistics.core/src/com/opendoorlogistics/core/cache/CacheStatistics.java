@@ -0,0 +1,28 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.core.cache;
+
+/**
+ * Usage statistics of a cache, as shown in the {@link ApplicationCache} usage report.
+ * @author Phil
+ *
+ */
+public interface CacheStatistics {
+	long getEstimatedTotalBytes();
+
+	long getEntryCount();
+
+	long getHitCount();
+
+	long getMissCount();
+
+	/**
+	 * Number of entries removed (or never stored) to keep the cache within its limits
+	 * @return
+	 */
+	long getEvictionCount();
+}
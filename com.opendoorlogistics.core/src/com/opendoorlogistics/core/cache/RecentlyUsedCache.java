@@ -7,142 +7,194 @@
 package com.opendoorlogistics.core.cache;
 
 import java.lang.ref.SoftReference;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 import com.opendoorlogistics.api.cache.ObjectCache;
 import com.opendoorlogistics.core.utils.Pair;
 
 /**
  * Cache which stores only the recently used objects. Objects are stored as soft references
- * and can hence still get dropped from the cache early if the memory is really needed.
+ * and can hence still get dropped from the cache early if the memory is really needed.<br>
+ * Lookups go straight to a concurrent (internally segmented) hash map and take no lock, they
+ * just mark the entry as recently used. Puts and evictions share a single lock and use the CLOCK
+ * (second chance) approximation of least-recently-used: entries are queued in insertion order and
+ * an entry used since it was last examined is moved to the back of the queue instead of being evicted.
+ * Eviction is therefore amortised O(1) per entry, rather than sorting the whole cache when it overflows.
  * @author Phil
  *
  */
-final public class RecentlyUsedCache implements ObjectCache{
-	private long timeIndex=0;
-	private long totalBytes;
+final public class RecentlyUsedCache implements ObjectCache, CacheStatistics{
+	private static final Object NULL_KEY = new Object();
+	private final ConcurrentHashMap<Object, CacheEntry> cached = new ConcurrentHashMap<>();
+	private final ArrayDeque<CacheEntry> clockQueue = new ArrayDeque<>();
+	private final Object evictionLock = new Object();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
 	private final long bytesLimit;
 	private final long entriesLimit;
-	private WeakHashMap<Object, CacheEntry> cached = new WeakHashMap<>();
 	private final String name;
-	private boolean logToConsole=false;
+	private volatile long totalBytes;
+	private volatile long nbEntries;
+	private int nbRemovedInQueue;
+	private volatile boolean logToConsole=false;
 
 	public RecentlyUsedCache(String name,long bytesLimit){
 		this(name, bytesLimit, Long.MAX_VALUE);
 	}
-	
+
 	public RecentlyUsedCache(String name,long bytesLimit, long entriesLimit){
 		this.name = name;
 		this.bytesLimit = bytesLimit;
 		this.entriesLimit = entriesLimit;
 	}
 
-	private static class CacheEntry implements Comparable<CacheEntry>{
+	private static class CacheEntry {
 		static final int CONTAINER_OVERHEAD_BYTES = 8 + 16 + 4 + 8 + 8; // rough guess....
 		final Object key;
 		final SoftReference<Object> data;
 		final long nbBytes;
-		long lastUsed;
-		
+		volatile boolean used;
+		boolean removed;
+
 		CacheEntry(Object key,Object obj, long nbBytes) {
 			this.key = key;
 			this.data = new SoftReference<Object>(obj);
 			this.nbBytes = nbBytes + CONTAINER_OVERHEAD_BYTES;
 		}
-		
-		@Override
-		public int compareTo(CacheEntry o) {
-			// oldest first
-			return Long.compare(o.lastUsed, lastUsed);
-		}
 	}
-	
+
+	/**
+	 * The concurrent map doesn't support null keys
+	 * @param key
+	 * @return
+	 */
+	private static Object mask(Object key){
+		return key!=null ? key : NULL_KEY;
+	}
+
+	private static Object unmask(Object key){
+		return key!=NULL_KEY ? key : null;
+	}
+
 	private String getDisplayId(){
 		return "" + name + "-" + System.identityHashCode(this);
 	}
-	
-	private void clearIfNeeded(){
-		if(timeIndex == Long.MAX_VALUE){
-			// reset long value...
-			timeIndex = 0;
-			cached.clear();
-		}else{
-			if(totalBytes > bytesLimit || cached.size() > entriesLimit ){
-				// sort by last used time, latest first
-				ArrayList<CacheEntry> sorted = new ArrayList<>();
-				for(CacheEntry o : cached.values()){
-					if(o.data.get()!=null){
-						sorted.add(o);
-					}
-				}
-				Collections.sort(sorted);
-				
-				// Keep on adding until we reach half the bytes limit. This always keeps at least one object.
-				// Note if we decide to change this in the future to not cache any objects if the total size of every object is greater than the limit,
-				// we should update the component which does spatial queries against postcodes because for the UK postcode set,
-				// its quadtree will no longer be cached and performance will be very bad...
-				totalBytes = 0;
-				cached.clear();
-				int i =0;
-				while(i<sorted.size() && totalBytes < bytesLimit /2 && cached.size() < entriesLimit ){
-					cached.put(sorted.get(i).key, sorted.get(i));
-					totalBytes += sorted.get(i).nbBytes;
-					i++;
-				}
-				
-				if(logToConsole){
-					System.out.println(getDisplayId() + " - cleared, total bytes now " + totalBytes+ " ("  + (totalBytes/(1024*1024)) + " MB) in "+ cached.size() + " entries.");
-				}
-				
-		//		System.out.println("CLEARED");
+
+	/**
+	 * Update the totals for an entry no longer in the map. Must be called under the eviction lock.
+	 * @param entry
+	 */
+	private void markRemoved(CacheEntry entry){
+		if(!entry.removed){
+			entry.removed = true;
+			totalBytes -= entry.nbBytes;
+			nbEntries--;
+			nbRemovedInQueue++;
+		}
+	}
+
+	/**
+	 * Evict least recently used entries until we're within the limits. Must be called under the eviction lock.
+	 * This always keeps at least one object (the one just added).
+	 * Note if we decide to change this in the future to not cache any objects if the total size of every object is greater than the limit,
+	 * we should update the component which does spatial queries against postcodes because for the UK postcode set,
+	 * its quadtree will no longer be cached and performance will be very bad...
+	 * @param keep
+	 */
+	private void evictIfNeeded(CacheEntry keep){
+		int nbEvicted=0;
+		while((totalBytes > bytesLimit || nbEntries > entriesLimit) && nbEntries > 1){
+			CacheEntry entry = clockQueue.pollFirst();
+			if(entry==null){
+				break;
+			}
+
+			if(entry.removed){
+				nbRemovedInQueue--;
+			}
+			else if(entry==keep || entry.used){
+				// give it a second chance
+				entry.used = false;
+				clockQueue.addLast(entry);
+			}
+			else{
+				cached.remove(entry.key, entry);
+				markRemoved(entry);
+				nbRemovedInQueue--;
+				evictions.increment();
+				nbEvicted++;
 			}
 		}
+
+		// stop entries removed outside of eviction from accumulating in the queue
+		if(nbRemovedInQueue > 16 && nbRemovedInQueue > clockQueue.size()/2){
+			clockQueue.removeIf(e -> e.removed);
+			nbRemovedInQueue = 0;
+		}
+
+		if(logToConsole && nbEvicted>0){
+			System.out.println(getDisplayId() + " - evicted " + nbEvicted + " entries, total bytes now " + totalBytes+ " ("  + (totalBytes/(1024*1024)) + " MB) in "+ nbEntries + " entries.");
+		}
 	}
-	
+
 	@Override
-	public synchronized void put(Object objectKey, Object value, long nbBytes){
-		// remove the old object just in case it's already here so bytes count is correct
-		remove(objectKey);
-		
-		timeIndex++;
-		CacheEntry obj = new CacheEntry(objectKey, value, nbBytes);
-		obj.lastUsed = timeIndex;
-		cached.put(objectKey, obj);
-		
-		if(logToConsole){
-			long mb = totalBytes / (1024*1024);
-			long newMB  = (totalBytes+obj.nbBytes) / (1024*1024);
-			if(mb!=newMB){
-				System.out.println(getDisplayId() + " - now " + (totalBytes+nbBytes) + " bytes (" + newMB + " MB) in " + cached.size() + " entries.");				
+	public void put(Object objectKey, Object value, long nbBytes){
+		CacheEntry obj = new CacheEntry(mask(objectKey), value, nbBytes);
+		CacheEntry old = cached.put(obj.key, obj);
+
+		synchronized (evictionLock) {
+			// remove the old object's bytes so the count is correct
+			if(old!=null){
+				markRemoved(old);
 			}
+
+			if(logToConsole){
+				long mb = totalBytes / (1024*1024);
+				long newMB  = (totalBytes+obj.nbBytes) / (1024*1024);
+				if(mb!=newMB){
+					System.out.println(getDisplayId() + " - now " + (totalBytes+obj.nbBytes) + " bytes (" + newMB + " MB) in " + (nbEntries+1) + " entries.");
+				}
+			}
+
+			totalBytes += obj.nbBytes;
+			nbEntries++;
+			clockQueue.addLast(obj);
+			evictIfNeeded(obj);
 		}
-		
-		totalBytes += obj.nbBytes;
-		clearIfNeeded();
 	}
-	
+
 	@Override
-	public synchronized Object get(Object key){
-		CacheEntry c = cached.get(key);
+	public Object get(Object key){
+		CacheEntry c = cached.get(mask(key));
 		if(c!=null){
-			c.lastUsed = timeIndex;
 			Object obj = c.data.get();
 			if(obj!=null){
+				// only write when needed, to avoid contended cache lines on popular entries
+				if(!c.used){
+					c.used = true;
+				}
+				hits.increment();
 				return obj;
 			}else{
 				// collected already....
-				cached.remove(key);
-				totalBytes -= c.nbBytes;
+				if(cached.remove(c.key, c)){
+					synchronized (evictionLock) {
+						markRemoved(c);
+					}
+				}
 			}
 		}
+		misses.increment();
 		return null;
 
 	}
-	
+
 	public static void main(String []args){
 		RecentlyUsedCache lus = new RecentlyUsedCache("test",10*(8 + CacheEntry.CONTAINER_OVERHEAD_BYTES));
 		int n = 1000;
@@ -152,59 +204,62 @@ final public class RecentlyUsedCache implements ObjectCache{
 			lus.get(2);
 			System.out.println("i=" + i + " - " + lus.toString());
 		}
+		System.out.println("hits=" + lus.getHitCount() + " misses=" + lus.getMissCount() + " evictions=" + lus.getEvictionCount());
 	}
 
 	@Override
-	public synchronized void clear(){
-		timeIndex=0;
-		totalBytes=0;
-		cached.clear();
+	public void clear(){
+		synchronized (evictionLock) {
+			for(CacheEntry entry : clockQueue){
+				cached.remove(entry.key, entry);
+				markRemoved(entry);
+			}
+			clockQueue.clear();
+			nbRemovedInQueue = 0;
+		}
 	}
-	
+
 	@Override
-	public synchronized String toString(){
+	public String toString(){
 		StringBuilder builder = new StringBuilder();
 		builder.append("[");
 		int count=0;
-		for(Map.Entry<Object, CacheEntry> entry:cached.entrySet()){
-			Object val = entry.getValue().data.get();
-			if(val!=null){
-				if(count>0){
-					builder.append(", ");
-				}
-				builder.append("{" + entry.getKey() + "=" + val + "}");
-				count++;
+		for(Pair<Object, Object> pair : getSnapshot()){
+			if(count>0){
+				builder.append(", ");
 			}
+			builder.append("{" + pair.getFirst() + "=" + pair.getSecond() + "}");
+			count++;
 		}
 		builder.append("]");
 		return builder.toString();
 	}
-	
+
 	/**
-	 * Get snapshot of the keys and values stored in the cache. 
+	 * Get snapshot of the keys and values stored in the cache.
 	 * This could change directly after calling this method if anything
 	 * is garbage collected. Calling this method does not update the last
 	 * used state on the entries.
 	 * @return
 	 */
-	public synchronized List<Pair<Object, Object>> getSnapshot(){
+	public List<Pair<Object, Object>> getSnapshot(){
 		ArrayList<Pair<Object, Object>> ret = new ArrayList<>(cached.size());
 		for(Map.Entry<Object, CacheEntry> entry:cached.entrySet()){
 			Object val= entry.getValue().data.get();
 			if(val!=null){
-				ret.add(new Pair<Object, Object>(entry.getKey(), val));
+				ret.add(new Pair<Object, Object>(unmask(entry.getKey()), val));
 			}
 		}
 		return ret;
 	}
-	
+
 	@Override
-	public synchronized void remove(Object key){
-		CacheEntry container = cached.get(key);
+	public void remove(Object key){
+		CacheEntry container = cached.remove(mask(key));
 		if(container!=null){
-			cached.remove(key);
-			totalBytes -= container.nbBytes;
-
+			synchronized (evictionLock) {
+				markRemoved(container);
+			}
 		}
 	}
 
@@ -212,11 +267,38 @@ final public class RecentlyUsedCache implements ObjectCache{
 	public void setLogToConsole(boolean logToConsole) {
 		this.logToConsole = logToConsole;
 	}
-	
+
 	public long getEstimatedTotalBytes(){
 		return totalBytes;
 	}
 
+	public long getEntryCount(){
+		return nbEntries;
+	}
+
+	/**
+	 * Number of calls to get which returned an object
+	 * @return
+	 */
+	public long getHitCount(){
+		return hits.sum();
+	}
+
+	/**
+	 * Number of calls to get which returned null, including
+	 * where the object had already been garbage collected
+	 * @return
+	 */
+	public long getMissCount(){
+		return misses.sum();
+	}
+
+	/**
+	 * Number of entries removed to keep the cache within its limits
+	 * @return
+	 */
+	public long getEvictionCount(){
+		return evictions.sum();
+	}
 
-	
 }
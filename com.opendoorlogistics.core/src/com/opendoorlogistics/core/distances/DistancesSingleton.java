@@ -39,6 +39,7 @@ import com.opendoorlogistics.core.geometry.GreateCircle;
 import com.opendoorlogistics.core.gis.map.data.LatLongImpl;
 import com.opendoorlogistics.core.scripts.wizard.TagUtils;
 import com.opendoorlogistics.core.tables.ColumnValueProcessor;
+import com.opendoorlogistics.core.utils.Pair;
 import com.opendoorlogistics.core.utils.io.RelativeFiles;
 import com.opendoorlogistics.core.utils.iterators.IteratorUtils;
 import com.opendoorlogistics.core.utils.strings.StandardisedStringTreeMap;
@@ -56,6 +57,7 @@ public final class DistancesSingleton implements Closeable{
 	//private final RecentlyUsedCache recentMatrixCache = new RecentlyUsedCache(128 * 1024 * 1024);
 	//private final RecentlyUsedCache recentGeomCache = new RecentlyUsedCache(64 * 1024 * 1024);
 	private CHMatrixGenWithGeomFuncs lastCHGraph;
+	private final RoadNetworkMatrixStore matrixStore = new RoadNetworkMatrixStore(new File(AppConstants.MATRIX_CACHE_DIRECTORY));
 	
 	private DistancesSingleton() {
 	}
@@ -140,7 +142,25 @@ public final class DistancesSingleton implements Closeable{
 		}
 		
 		// calculate the matrix 
-		CHProcessingApi chprocApi=new CHProcessingApi() {
+		CHProcessingApi chprocApi=createCHProcessingApi(processingApi);
+		RoadNetworkMatrixStore.RawMatrix result = calculateGraphhopperRaw(graph, ghPoints, chprocApi);
+		if(result==null || (processingApi!=null && processingApi.isCancelled())){
+			return null;
+		}
+
+		// convert result to the output data structure
+		ODLCostMatrixImpl output = ODLCostMatrixImpl.createEmptyMatrix(list);
+		for (int ifrom = 0; ifrom < n; ifrom++) {
+			for (int ito = 0; ito < n; ito++) {
+				setRoadNetworkOutputValues(ifrom, ito, result.getMetres(ifrom, ito), result.getMillis(ifrom, ito), request, output);
+			}
+		}
+		
+		return output;
+	}
+
+	private static CHProcessingApi createCHProcessingApi(final ProcessingApi processingApi){
+		return new CHProcessingApi() {
 			
 			@Override
 			public void postStatusMessage(String s) {
@@ -154,31 +174,217 @@ public final class DistancesSingleton implements Closeable{
 				return processingApi!=null?processingApi.isCancelled():false;
 			}
 		};
-		
-		MatrixResult result = graph.calculateMatrix(ghPoints,chprocApi);
-		if(processingApi!=null && processingApi.isCancelled()){
+	}
+
+	private void setRoadNetworkOutputValues(int ifrom, int ito, double distanceMetres, double timeMillis, DistancesConfiguration request, ODLCostMatrixImpl output){
+		double timeSeconds = timeMillis * 0.001;
+		timeSeconds *= request.getGraphhopperConfig().getTimeMultiplier();
+		if(!Double.isInfinite(distanceMetres) && !Double.isInfinite(timeMillis)){
+			setOutputValues(ifrom, ito, distanceMetres, timeSeconds, request.getOutputConfig(), output);					
+		}else{
+			for(int k=0; k<3 ;k++){
+				output.set(UNCONNECTED_TRAVEL_COST, ifrom, ito, k);						
+			}
+		}
+	}
+
+	/**
+	 * Build the matrix from a cached matrix for the same configuration sharing most of the points
+	 * (e.g. when a few stops have been added to a job), calculating only the rows and columns
+	 * for the points not in the cached matrix.
+	 * @param request
+	 * @param points
+	 * @param cache
+	 * @param processingApi
+	 * @return The matrix or null if no suitable cached matrix was found or the user cancelled
+	 */
+	private synchronized ODLCostMatrix extendCachedGraphhopper(DistancesConfiguration request, StandardisedStringTreeMap<LatLong> points, RecentlyUsedCache cache, ProcessingApi processingApi) {
+		// find the cached matrix with most points in common, where a point must have the same id and position
+		MatrixCacheKey bestKey = null;
+		ODLCostMatrix best = null;
+		int bestCommon = 0;
+		for(Pair<Object, Object> pair : cache.getSnapshot()){
+			if(!(pair.getFirst() instanceof MatrixCacheKey) || !(pair.getSecond() instanceof ODLCostMatrix)){
+				continue;
+			}
+			MatrixCacheKey cachedKey = (MatrixCacheKey)pair.getFirst();
+			ODLCostMatrix cachedMatrix = (ODLCostMatrix)pair.getSecond();
+			if(!request.equals(cachedKey.distanceConfig) || !cachedMatrix.isStillValid()){
+				continue;
+			}
+			
+			int common=0;
+			for(Map.Entry<String, LatLong> entry : points.entrySet()){
+				LatLong cachedPoint = cachedKey.points.get(entry.getKey());
+				if(cachedPoint!=null && cachedPoint.equals(entry.getValue())){
+					common++;
+				}
+			}
+			
+			if(common > bestCommon){
+				bestCommon = common;
+				bestKey = cachedKey;
+				best = cachedMatrix;
+			}
+		}
+
+		// Calculating the rows and columns for k missing points costs roughly 2kn, against n^2 for the whole matrix
+		int n = points.size();
+		int nbMissing = n - bestCommon;
+		if(best==null || 2 * nbMissing >= n){
 			return null;
 		}
 
-		// convert result to the output data structure
+		// get the index of each point in the cached matrix
+		List<Map.Entry<String, LatLong>> list = IteratorUtils.toList(points.entrySet());
+		int [] cachedIndices = new int[n];
+		TIntArrayList missing = new TIntArrayList(nbMissing);
+		GHPoint []ghPoints = new GHPoint[n];
+		for(int i =0 ; i<n;i++){
+			Map.Entry<String, LatLong> entry = list.get(i);
+			ghPoints[i] = new GHPoint(entry.getValue().getLatitude(), entry.getValue().getLongitude());
+			LatLong cachedPoint = bestKey.points.get(entry.getKey());
+			cachedIndices[i] = cachedPoint!=null && cachedPoint.equals(entry.getValue()) ? best.getIndex(entry.getKey()) : -1;
+			if(cachedIndices[i]==-1){
+				missing.add(i);
+			}
+		}
+		
+		// copy the known cells over
 		ODLCostMatrixImpl output = ODLCostMatrixImpl.createEmptyMatrix(list);
+		int nbCosts = output.getNbCosts();
 		for (int ifrom = 0; ifrom < n; ifrom++) {
+			int cfrom = cachedIndices[ifrom];
+			if(cfrom==-1){
+				continue;
+			}
 			for (int ito = 0; ito < n; ito++) {
-				double timeSeconds = result.getTimeMilliseconds(ifrom, ito) * 0.001;
-				timeSeconds *= request.getGraphhopperConfig().getTimeMultiplier();
-				if(!result.isInfinite(ifrom, ito)){
-					setOutputValues(ifrom, ito, result.getDistanceMetres(ifrom, ito), timeSeconds, request.getOutputConfig(), output);					
-				}else{
-					for(int k=0; k<3 ;k++){
-						output.set(UNCONNECTED_TRAVEL_COST, ifrom, ito, k);						
+				int cto = cachedIndices[ito];
+				if(cto!=-1){
+					for(int k=0;k<nbCosts;k++){
+						output.set(best.get(cfrom, cto, k), ifrom, ito, k);
 					}
 				}
 			}
 		}
 		
+		if(missing.size()>0){
+			CHMatrixGeneration graph=initGraphhopperGraph(request, processingApi);
+			if(processingApi!=null){
+				processingApi.postStatusMessage("Extending cached " + best.getNbFroms() + "x" + best.getNbFroms()+ " matrix, calculating travel costs for " + missing.size() + " new points.");
+			}
+			
+			CHProcessingApi chprocApi=createCHProcessingApi(processingApi);
+			int [] missingIndices = missing.toArray();
+			RoadNetworkMatrixStore.RawMatrix raw = new RoadNetworkMatrixStore.RawMatrix(n);
+			if(!calculateMissingRowsAndColumns(graph, ghPoints, missingIndices, raw, chprocApi)){
+				return null;
+			}
+			
+			for(int index : missingIndices){
+				for(int j=0;j<n;j++){
+					setRoadNetworkOutputValues(index, j, raw.getMetres(index, j), raw.getMillis(index, j), request, output);
+					setRoadNetworkOutputValues(j, index, raw.getMetres(j, index), raw.getMillis(j, index), request, output);
+				}
+			}
+			
+			// the store merges the new rows and columns with its copy of the cached matrix, if it has one
+			matrixStore.saveMerged(getGraphKey(graph), ghPoints, raw);
+		}
+		
 		return output;
 	}
 
+	/**
+	 * Get the raw road network distances and times, using the disk store where possible
+	 * so only the rows and columns for points not already stored are calculated.
+	 * @param graph
+	 * @param ghPoints
+	 * @param chprocApi
+	 * @return The matrix or null if cancelled
+	 */
+	private RoadNetworkMatrixStore.RawMatrix calculateGraphhopperRaw(CHMatrixGeneration graph, GHPoint[] ghPoints, CHProcessingApi chprocApi) {
+		String graphKey = getGraphKey(graph);
+		int n = ghPoints.length;
+
+		RoadNetworkMatrixStore.LookupResult stored = matrixStore.lookup(graphKey, ghPoints);
+		RoadNetworkMatrixStore.RawMatrix ret;
+		if(stored!=null){
+			ret = stored.matrix;
+			int nbMissing = stored.missingPoints.length;
+			if(nbMissing==0){
+				return ret;
+			}
+
+			chprocApi.postStatusMessage("Reusing stored matrix, calculating travel costs for " + nbMissing + " new points.");
+			if(!calculateMissingRowsAndColumns(graph, ghPoints, stored.missingPoints, ret, chprocApi)){
+				return null;
+			}
+		}else{
+			MatrixResult result = graph.calculateMatrix(ghPoints,chprocApi);
+			if(chprocApi.isCancelled()){
+				return null;
+			}
+			ret = new RoadNetworkMatrixStore.RawMatrix(n);
+			for (int ifrom = 0; ifrom < n; ifrom++) {
+				for (int ito = 0; ito < n; ito++) {
+					setRaw(result, ifrom, ito, ret, ifrom, ito);
+				}
+			}
+		}
+
+		matrixStore.save(graphKey, ghPoints, ret);
+		return ret;
+	}
+
+	/**
+	 * Calculate the rows then the columns of the missing points, setting them in the raw matrix
+	 * @param graph
+	 * @param ghPoints
+	 * @param missingIndices
+	 * @param target
+	 * @param chprocApi
+	 * @return False if cancelled
+	 */
+	private static boolean calculateMissingRowsAndColumns(CHMatrixGeneration graph, GHPoint[] ghPoints, int[] missingIndices, RoadNetworkMatrixStore.RawMatrix target, CHProcessingApi chprocApi){
+		int n = ghPoints.length;
+		int nbMissing = missingIndices.length;
+		GHPoint [] missing = new GHPoint[nbMissing];
+		for(int i =0 ; i<nbMissing;i++){
+			missing[i] = ghPoints[missingIndices[i]];
+		}
+
+		MatrixResult rows = graph.calculateMatrix(missing, ghPoints, chprocApi);
+		if(chprocApi.isCancelled()){
+			return false;
+		}
+		MatrixResult cols = graph.calculateMatrix(ghPoints, missing, chprocApi);
+		if(chprocApi.isCancelled()){
+			return false;
+		}
+		for(int i =0 ; i<nbMissing;i++){
+			int index = missingIndices[i];
+			for(int j=0;j<n;j++){
+				setRaw(rows, i, j, target, index, j);
+				setRaw(cols, j, i, target, j, index);
+			}
+		}
+		return true;
+	}
+
+	private static String getGraphKey(CHMatrixGeneration graph){
+		String graphDir = graph.getGraphhopper().getGraphHopperLocation();
+		return RoadNetworkMatrixStore.createGraphKey(graphDir, graph.getFlagEncoder().toString(), CHMatrixGenWithGeomFuncs.getNodesFileLastModified(graphDir));
+	}
+
+	private static void setRaw(MatrixResult from, int ifrom, int ito, RoadNetworkMatrixStore.RawMatrix to, int toFrom, int toTo){
+		if(from.isInfinite(ifrom, ito)){
+			to.set(toFrom, toTo, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY);
+		}else{
+			to.set(toFrom, toTo, from.getDistanceMetres(ifrom, ito), from.getTimeMilliseconds(ifrom, ito));
+		}
+	}
+
 	/**
 	 * @param request
 	 * @param processingApi
@@ -595,7 +801,10 @@ public final class DistancesSingleton implements Closeable{
 			break;
 
 		case ROAD_NETWORK:
-			ret = calculateGraphhopper(request, points, processingApi);
+			ret = extendCachedGraphhopper(request, points, cache, processingApi);
+			if(ret==null){
+				ret = calculateGraphhopper(request, points, processingApi);
+			}
 			break;
 			
 		case EXTERNAL_MATRIX:
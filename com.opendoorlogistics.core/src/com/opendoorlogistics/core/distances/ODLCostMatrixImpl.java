@@ -23,10 +23,23 @@ import com.opendoorlogistics.core.utils.Numbers;
 import com.opendoorlogistics.core.utils.iterators.IteratorUtils;
 import com.opendoorlogistics.core.utils.strings.StandardisedStringTreeMap;
 
+/**
+ * Cost matrix held in float arrays, with the costs for each from-to pair stored together
+ * so a lookup of cost, distance and time touches one cache line. Floats halve the memory
+ * of doubles. Each array holds a block of whole rows, which avoids the per-row object overhead
+ * of a jagged array without limiting the matrix to the size of a single array. The matrix is
+ * still limited to 46340 locations as its table row count (from-to pairs) is an int.
+ *
+ */
 public class ODLCostMatrixImpl extends ODLTableDefinitionImpl implements ODLTable,ODLCostMatrix {
 	final private List<String> ids;
 	protected final static String [] STANDARD_COST_FIELDNAMES =  new String[] { PredefinedTags.TRAVEL_COST, PredefinedTags.DISTANCE, PredefinedTags.TIME };
-	final private double[][][] matrix;
+	/**
+	 * Maximum floats in each block, so a block is at most 256 MB
+	 */
+	private final static int MAX_BLOCK_SIZE = 1 << 26;
+	final private float[][] blocks;
+	final private int rowsPerBlock;
 	final private int n;
 	final private int nSquared;
 	final private int nbCosts;
@@ -41,7 +54,7 @@ public class ODLCostMatrixImpl extends ODLTableDefinitionImpl implements ODLTabl
 
 	@Override
 	public long getSizeInBytes() {
-		return nbCosts * n * n * 8;
+		return 4L * nbCosts * n * n;
 	}
 	
 	public ODLCostMatrixImpl(Iterable<String> ids,String[]costFieldNames) {
@@ -59,12 +72,15 @@ public class ODLCostMatrixImpl extends ODLTableDefinitionImpl implements ODLTabl
 		this.ids = IteratorUtils.toList(ids);
 		this.n = this.ids.size();
 		this.nSquared = n * n;
-		matrix = new double[costFieldNames.length][][];
-		for (int i = 0; i < costFieldNames.length; i++) {
-			matrix[i] = new double[n][];
-			for (int j = 0; j < n; j++) {
-				matrix[i][j] = new double[n];
-			}
+		if ((long) n * n != nSquared) {
+			throw new RuntimeException("Too many locations for a cost matrix: " + n);
+		}
+		int rowSize = Math.max(n * nbCosts, 1);
+		rowsPerBlock = Math.max(1, MAX_BLOCK_SIZE / rowSize);
+		int nbBlocks = (n + rowsPerBlock - 1) / rowsPerBlock;
+		blocks = new float[nbBlocks][];
+		for (int i = 0; i < nbBlocks; i++) {
+			blocks[i] = new float[Math.min(rowsPerBlock, n - i * rowsPerBlock) * rowSize];
 		}
 
 		// setup id lookup
@@ -91,7 +107,7 @@ public class ODLCostMatrixImpl extends ODLTableDefinitionImpl implements ODLTabl
 		} else if (columnIndex == 1) {
 			return ids.get(to);
 		} else if (columnIndex > 1) {
-			return (double) matrix[columnIndex - 2][from][to];
+			return get(from, to, columnIndex - 2);
 		}
 		return null;
 	}
@@ -130,7 +146,7 @@ public class ODLCostMatrixImpl extends ODLTableDefinitionImpl implements ODLTabl
 			} else {
 				f = 0;
 			}
-			matrix[columnIndex - 2][from][to] = f;
+			set(f, from, to, columnIndex - 2);
 		} else {
 			throw new UnsupportedOperationException();
 		}
@@ -140,9 +156,13 @@ public class ODLCostMatrixImpl extends ODLTableDefinitionImpl implements ODLTabl
 		return ids.get(i);
 	}
 
+	private int index(int fromIndex, int toIndex, int dim) {
+		return ((fromIndex % rowsPerBlock) * n + toIndex) * nbCosts + dim;
+	}
+
 	@Override
 	public double get(int fromIndex, int toIndex, int dim) {
-		return matrix[dim][fromIndex][toIndex];
+		return blocks[fromIndex / rowsPerBlock][index(fromIndex, toIndex, dim)];
 	}
 
 	//
@@ -151,7 +171,7 @@ public class ODLCostMatrixImpl extends ODLTableDefinitionImpl implements ODLTabl
 	// }
 
 	public void set(double val, int fromIndex, int toIndex, int dim) {
-		matrix[dim][fromIndex][toIndex] = val;
+		blocks[fromIndex / rowsPerBlock][index(fromIndex, toIndex, dim)] = (float) val;
 	}
 
 	@Override
@@ -194,7 +214,7 @@ public class ODLCostMatrixImpl extends ODLTableDefinitionImpl implements ODLTabl
 
 	@Override
 	public int getNbCosts() {
-		return matrix.length;
+		return nbCosts;
 	}
 
 	@Override
@@ -230,8 +250,10 @@ public class ODLCostMatrixImpl extends ODLTableDefinitionImpl implements ODLTabl
 
 	@Override
 	public boolean getIsConnected(int from, int to) {
-		for(int i=0 ; i < matrix.length ; i++){
-			if(matrix[i][from][to]==Double.POSITIVE_INFINITY || matrix[i][from][to]==Double.NaN || matrix[i][from][to]==Double.MAX_VALUE ){
+		float[] matrix = blocks[from / rowsPerBlock];
+		int start = index(from, to, 0);
+		for(int i=start ; i < start + nbCosts ; i++){
+			if(matrix[i]==Float.POSITIVE_INFINITY || Float.isNaN(matrix[i]) || matrix[i]==Float.MAX_VALUE ){
 				return false;
 			}
 		}
@@ -0,0 +1,533 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.core.distances;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.graphhopper.util.shapes.GHPoint;
+import com.opendoorlogistics.core.AppProperties;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TLongIntHashMap;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+/**
+ * Disk store of road network distance and time matrices, so identical matrices aren't recalculated
+ * after a restart or between batch runs. Matrices are grouped by graph (i.e. graph directory, vehicle type and
+ * the graph's file time) and identified by their point set, with points rounded to 6 decimal places.<br>
+ * Each row is LZ4 compressed separately and read from its file offset, so only the rows
+ * needed are decompressed. A lookup uses the stored matrix sharing most points with the request,
+ * so when a few points are added or removed only the rows and columns of the new points need calculating.<br>
+ * Matrices are written on a background thread. The store can be turned off with the property
+ * {@link AppProperties#DISTANCES_MATRIX_CACHE_ENABLED} and its total size is limited to
+ * {@link AppProperties#DISTANCES_MATRIX_CACHE_MAX_MB} megabytes, deleting the least recently used matrices first.
+ * @author Phil
+ *
+ */
+final class RoadNetworkMatrixStore {
+	private static final Logger logger = Logger.getLogger(RoadNetworkMatrixStore.class.getName());
+	private static final int MAGIC = 0x4f444c4d;
+	private static final int VERSION = 1;
+	private static final String EXTENSION = ".odlmatrix";
+	private static final double ROUNDING = 1000000;
+	private static final int MAX_FILES_PER_GRAPH = 16;
+	private static final double DEFAULT_MAX_MB = 2048;
+	private final File directory;
+	private final HashMap<File, Header> headers = new HashMap<>();
+	private final LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
+	private final LZ4FastDecompressor decompressor = LZ4Factory.fastestInstance().fastDecompressor();
+
+	/**
+	 * Single background writer. Writes queued while it is busy beyond a couple are dropped,
+	 * as each pending write holds a whole matrix in memory.
+	 */
+	private final ThreadPoolExecutor writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(2), r -> {
+		Thread t = new Thread(r, "road-network-matrix-store-writer");
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.setDaemon(true);
+		return t;
+	}, new ThreadPoolExecutor.DiscardPolicy());
+
+	/**
+	 * Distances in metres and times in milliseconds, stored as floats. Unconnected cells are
+	 * infinite and cells which haven't been set are NaN.
+	 */
+	static class RawMatrix {
+		private final int n;
+		private final float[] metres;
+		private final float[] millis;
+
+		RawMatrix(int n) {
+			this.n = n;
+			metres = new float[n * n];
+			millis = new float[n * n];
+			Arrays.fill(metres, Float.NaN);
+			Arrays.fill(millis, Float.NaN);
+		}
+
+		int size() {
+			return n;
+		}
+
+		double getMetres(int from, int to) {
+			return metres[from * n + to];
+		}
+
+		double getMillis(int from, int to) {
+			return millis[from * n + to];
+		}
+
+		void set(int from, int to, double metres, double millis) {
+			this.metres[from * n + to] = (float) metres;
+			this.millis[from * n + to] = (float) millis;
+		}
+
+		/**
+		 * Copy the other matrix's cells into the cells which aren't set in this one
+		 * @param other
+		 * @return False if a cell is set in neither
+		 */
+		boolean fillUnset(RawMatrix other) {
+			for (int i = 0; i < metres.length; i++) {
+				if (Float.isNaN(metres[i])) {
+					if (Float.isNaN(other.metres[i])) {
+						return false;
+					}
+					metres[i] = other.metres[i];
+					millis[i] = other.millis[i];
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * The cells found in the store for a point set, together with the indices of the
+	 * points which weren't found (whose rows and columns are unset)
+	 */
+	static class LookupResult {
+		final RawMatrix matrix;
+		final int[] missingPoints;
+
+		LookupResult(RawMatrix matrix, int[] missingPoints) {
+			this.matrix = matrix;
+			this.missingPoints = missingPoints;
+		}
+	}
+
+	/**
+	 * Header of a stored matrix file, which is kept in memory
+	 */
+	private static class Header {
+		final String graphKey;
+		final long[] points;
+		final long[] rowOffsets;
+		final long fileLength;
+		final TLongIntHashMap indexByPoint = new TLongIntHashMap(10, 0.5f, Long.MIN_VALUE, -1);
+		long lastModified;
+
+		Header(String graphKey, long[] points, long[] rowOffsets, long fileLength, long lastModified) {
+			this.graphKey = graphKey;
+			this.points = points;
+			this.rowOffsets = rowOffsets;
+			this.fileLength = fileLength;
+			this.lastModified = lastModified;
+			for (int i = 0; i < points.length; i++) {
+				indexByPoint.putIfAbsent(points[i], i);
+			}
+		}
+
+		int countMatches(long[] requested) {
+			int ret = 0;
+			for (long p : requested) {
+				if (indexByPoint.get(p) != -1) {
+					ret++;
+				}
+			}
+			return ret;
+		}
+	}
+
+	RoadNetworkMatrixStore(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Key identifying the graph, which changes if the graph is rebuilt
+	 * @param graphDirectory
+	 * @param vehicleType
+	 * @param graphLastModified
+	 * @return
+	 */
+	static String createGraphKey(String graphDirectory, String vehicleType, long graphLastModified) {
+		return new File(graphDirectory).getAbsolutePath() + "|" + vehicleType + "|" + graphLastModified;
+	}
+
+	/**
+	 * Find the stored matrix sharing most points with the input, if it shares enough points
+	 * for it to be quicker to calculate the remainder than the whole matrix.
+	 * @param graphKey
+	 * @param points
+	 * @return The result or null if no suitable matrix was found
+	 */
+	synchronized LookupResult lookup(String graphKey, GHPoint[] points) {
+		if (!isEnabled()) {
+			return null;
+		}
+
+		int n = points.length;
+		long[] rounded = round(points);
+
+		// find the best match
+		File bestFile = null;
+		Header best = null;
+		int bestMatches = 0;
+		for (File file : listFiles(graphKey)) {
+			Header header = getHeader(file);
+			if (header != null && header.graphKey.equals(graphKey)) {
+				int matches = header.countMatches(rounded);
+				if (matches > bestMatches) {
+					bestMatches = matches;
+					best = header;
+					bestFile = file;
+				}
+			}
+		}
+
+		// Calculating the rows and columns for k missing points costs roughly 2kn, against n^2 for the whole matrix
+		int nbMissing = n - bestMatches;
+		if (best == null || 2 * nbMissing >= n) {
+			return null;
+		}
+
+		// get the stored index of each point
+		int[] storedIndices = new int[n];
+		TIntArrayList missing = new TIntArrayList(nbMissing);
+		for (int i = 0; i < n; i++) {
+			storedIndices[i] = best.indexByPoint.get(rounded[i]);
+			if (storedIndices[i] == -1) {
+				missing.add(i);
+			}
+		}
+
+		RawMatrix ret = new RawMatrix(n);
+		int nStored = best.points.length;
+		try (RandomAccessFile raf = new RandomAccessFile(bestFile, "r"); FileChannel channel = raf.getChannel()) {
+			byte[] uncompressed = new byte[nStored * 8];
+			ByteBuffer row = ByteBuffer.wrap(uncompressed);
+			ByteBuffer compressed = ByteBuffer.allocate(compressor.maxCompressedLength(uncompressed.length));
+			for (int i = 0; i < n; i++) {
+				int si = storedIndices[i];
+				if (si == -1) {
+					continue;
+				}
+
+				// a single compressed row always fits in an int, but offsets within the file may not
+				long offset = best.rowOffsets[si];
+				int length = (int) (best.rowOffsets[si + 1] - offset);
+				((Buffer) compressed).clear();
+				((Buffer) compressed).limit(length);
+				while (compressed.hasRemaining()) {
+					if (channel.read(compressed, offset + compressed.position()) < 0) {
+						throw new IOException("Unexpected end of file");
+					}
+				}
+				decompressor.decompress(compressed.array(), 0, uncompressed, 0, uncompressed.length);
+
+				// row holds all the stored distances then all the stored times
+				for (int j = 0; j < n; j++) {
+					int sj = storedIndices[j];
+					if (sj != -1) {
+						ret.set(i, j, row.getFloat(sj * 4), row.getFloat((nStored + sj) * 4));
+					}
+				}
+			}
+		} catch (Exception e) {
+			logger.log(Level.WARNING, "Failed to read stored matrix " + bestFile.getAbsolutePath(), e);
+			headers.remove(bestFile);
+			return null;
+		}
+
+		// update the time so the least recently used files are the first deleted
+		if (bestFile.setLastModified(System.currentTimeMillis())) {
+			best.lastModified = bestFile.lastModified();
+		}
+		return new LookupResult(ret, missing.toArray());
+	}
+
+	/**
+	 * Queue the matrix to be saved in the background, replacing any stored matrices whose points it contains.
+	 * The matrix must not be modified afterwards.
+	 * @param graphKey
+	 * @param points
+	 * @param matrix
+	 */
+	void save(String graphKey, GHPoint[] points, RawMatrix matrix) {
+		if (isEnabled()) {
+			writer.execute(() -> write(graphKey, points, matrix));
+		}
+	}
+
+	/**
+	 * Queue a matrix whose cells are only set in some points' rows and columns (e.g. points added to a
+	 * matrix held in memory) to be merged with the stored matrix sharing the other points and saved.
+	 * Nothing is saved if the store doesn't have all the other cells.
+	 * @param graphKey
+	 * @param points
+	 * @param partial
+	 */
+	void saveMerged(String graphKey, GHPoint[] points, RawMatrix partial) {
+		if (isEnabled()) {
+			writer.execute(() -> {
+				LookupResult stored = lookup(graphKey, points);
+				if (stored != null && stored.missingPoints.length > 0 && stored.matrix.fillUnset(partial)) {
+					write(graphKey, points, stored.matrix);
+				}
+			});
+		}
+	}
+
+	private void write(String graphKey, GHPoint[] points, RawMatrix matrix) {
+		int n = points.length;
+		long[] rounded = round(points);
+		File graphDir = getGraphDirectory(graphKey);
+		File file = new File(graphDir, Long.toHexString(hash(graphKey, rounded)) + EXTENSION);
+		File tmp = new File(graphDir, file.getName() + ".tmp");
+		long maxBytes = getMaxBytes();
+		try {
+			if (!graphDir.exists() && !graphDir.mkdirs()) {
+				return;
+			}
+
+			// compress each row separately; a row holds all its distances then all its times
+			ArrayList<byte[]> rows = new ArrayList<>(n);
+			ByteBuffer row = ByteBuffer.allocate(n * 8);
+			long totalBytes = 0;
+			for (int i = 0; i < n; i++) {
+				for (int j = 0; j < n; j++) {
+					row.putFloat(j * 4, (float) matrix.getMetres(i, j));
+					row.putFloat((n + j) * 4, (float) matrix.getMillis(i, j));
+				}
+				byte[] bytes = compressor.compress(row.array());
+				totalBytes += bytes.length;
+				if (totalBytes > maxBytes) {
+					logger.info("Not storing " + n + "x" + n + " matrix as it is larger than the matrix store size limit");
+					return;
+				}
+				rows.add(bytes);
+			}
+
+			// write the header before the row offsets so we know where the rows start
+			ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+			DataOutputStream header = new DataOutputStream(headerBytes);
+			header.writeInt(MAGIC);
+			header.writeInt(VERSION);
+			header.writeUTF(graphKey);
+			header.writeInt(n);
+			for (long p : rounded) {
+				header.writeLong(p);
+			}
+			header.flush();
+
+			long[] rowOffsets = new long[n + 1];
+			rowOffsets[0] = headerBytes.size() + 8L * (n + 1);
+			for (int i = 0; i < n; i++) {
+				rowOffsets[i + 1] = rowOffsets[i] + rows.get(i).length;
+			}
+
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+				headerBytes.writeTo(out);
+				for (long offset : rowOffsets) {
+					out.writeLong(offset);
+				}
+				for (byte[] bytes : rows) {
+					out.write(bytes);
+				}
+			}
+			synchronized (this) {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				headers.put(file, new Header(graphKey, rounded, rowOffsets, file.length(), file.lastModified()));
+				deleteRedundant(graphKey, file);
+				deleteOverLimit(file, maxBytes);
+			}
+		} catch (Exception e) {
+			logger.log(Level.WARNING, "Failed to save matrix to " + file.getAbsolutePath(), e);
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Delete matrices whose points are all in the input file, then the least recently used
+	 * if we have too many for the graph.
+	 * @param graphKey
+	 * @param newFile
+	 */
+	private void deleteRedundant(String graphKey, File newFile) {
+		Header newHeader = headers.get(newFile);
+		ArrayList<File> files = new ArrayList<>();
+		for (File file : listFiles(graphKey)) {
+			if (file.equals(newFile)) {
+				continue;
+			}
+			Header header = getHeader(file);
+			if (header != null && header.graphKey.equals(graphKey) && newHeader.countMatches(header.points) == header.points.length) {
+				delete(file);
+			} else {
+				files.add(file);
+			}
+		}
+
+		if (files.size() >= MAX_FILES_PER_GRAPH) {
+			files.sort(Comparator.comparingLong(File::lastModified));
+			for (int i = 0; i <= files.size() - MAX_FILES_PER_GRAPH; i++) {
+				delete(files.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Delete the least recently used matrices, for any graph, until the store is within its size limit
+	 * @param newFile
+	 * @param maxBytes
+	 */
+	private void deleteOverLimit(File newFile, long maxBytes) {
+		ArrayList<File> files = new ArrayList<>();
+		long totalBytes = 0;
+		File[] graphDirs = directory.listFiles(File::isDirectory);
+		for (File graphDir : graphDirs != null ? graphDirs : new File[0]) {
+			File[] graphFiles = graphDir.listFiles((dir, name) -> name.endsWith(EXTENSION));
+			for (File file : graphFiles != null ? graphFiles : new File[0]) {
+				totalBytes += file.length();
+				if (!file.equals(newFile)) {
+					files.add(file);
+				}
+			}
+		}
+
+		files.sort(Comparator.comparingLong(File::lastModified));
+		for (int i = 0; i < files.size() && totalBytes > maxBytes; i++) {
+			totalBytes -= files.get(i).length();
+			delete(files.get(i));
+		}
+	}
+
+	private static boolean isEnabled() {
+		return AppProperties.getBool(AppProperties.DISTANCES_MATRIX_CACHE_ENABLED) != Boolean.FALSE;
+	}
+
+	private static long getMaxBytes() {
+		return (long) (AppProperties.getDouble(AppProperties.DISTANCES_MATRIX_CACHE_MAX_MB, DEFAULT_MAX_MB) * 1024 * 1024);
+	}
+
+	private void delete(File file) {
+		headers.remove(file);
+		file.delete();
+	}
+
+	private File[] listFiles(String graphKey) {
+		File[] ret = getGraphDirectory(graphKey).listFiles((dir, name) -> name.endsWith(EXTENSION));
+		return ret != null ? ret : new File[0];
+	}
+
+	private File getGraphDirectory(String graphKey) {
+		return new File(directory, Long.toHexString(hash(graphKey, new long[0])));
+	}
+
+	/**
+	 * Get the file's header, reading it if we don't have it already or the file has changed
+	 * @param file
+	 * @return
+	 */
+	private Header getHeader(File file) {
+		Header header = headers.get(file);
+		if (header != null && header.fileLength == file.length() && header.lastModified == file.lastModified()) {
+			return header;
+		}
+
+		headers.remove(file);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return null;
+			}
+			String graphKey = in.readUTF();
+			int n = in.readInt();
+			long[] points = new long[n];
+			for (int i = 0; i < n; i++) {
+				points[i] = in.readLong();
+			}
+			long[] rowOffsets = new long[n + 1];
+			for (int i = 0; i <= n; i++) {
+				rowOffsets[i] = in.readLong();
+			}
+			header = new Header(graphKey, points, rowOffsets, file.length(), file.lastModified());
+			headers.put(file, header);
+			return header;
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to read stored matrix header " + file.getAbsolutePath(), e);
+			return null;
+		}
+	}
+
+	/**
+	 * Round each point to 6 decimal places (about 10 cm), packing the latitude and longitude into a long
+	 * @param points
+	 * @return
+	 */
+	private static long[] round(GHPoint[] points) {
+		long[] ret = new long[points.length];
+		for (int i = 0; i < points.length; i++) {
+			long lat = Math.round(points[i].getLat() * ROUNDING);
+			long lng = Math.round(points[i].getLon() * ROUNDING);
+			ret[i] = (lat << 32) | (lng & 0xFFFFFFFFL);
+		}
+		return ret;
+	}
+
+	/**
+	 * 64 bit FNV-1a hash, used for file and directory names
+	 * @param s
+	 * @param values
+	 * @return
+	 */
+	private static long hash(String s, long[] values) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			h = (h ^ s.charAt(i)) * 0x100000001b3L;
+		}
+		for (long v : values) {
+			for (int shift = 0; shift < 64; shift += 8) {
+				h = (h ^ ((v >>> shift) & 0xFF)) * 0x100000001b3L;
+			}
+		}
+		return h;
+	}
+}
@@ -6,10 +6,15 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.function.BiConsumer;
 
+import com.vividsolutions.jts.algorithm.locate.IndexedPointInAreaLocator;
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Location;
+import com.vividsolutions.jts.geom.Polygonal;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
 
 /*
  * Specialised quadtree designed for fast lookups of points with an id contained within a polygon
@@ -17,6 +22,12 @@ import com.vividsolutions.jts.geom.GeometryFactory;
 public class FastContainedPointsQuadtree {
 	private final static int MAX_POINTS_PER_NODE = 10;
 	
+	/**
+	 * Query geometries with at least this many vertices are prepared (i.e. have their segments indexed)
+	 * before querying, as the quadtree makes many intersection and containment tests against the same geometry.
+	 */
+	public final static int MIN_PREPARED_GEOMETRY_POINTS = 100;
+	
 	private final CacheKey cacheKey;
 	private final Node root;
 	
@@ -58,7 +69,6 @@ public class FastContainedPointsQuadtree {
 		final Envelope envelope;
 		final Coordinate centre;
 		final GeometryFactory factory;
-		final Geometry polygonEnvelope;
 		Node [] children;
 		PointsMap points;
 		
@@ -66,7 +76,6 @@ public class FastContainedPointsQuadtree {
 			this.factory = factory;
 			this.envelope = e;
 			this.centre = e.centre();
-			this.polygonEnvelope = factory.toGeometry(envelope);
 		}
 		
 		@Override
@@ -85,9 +94,6 @@ public class FastContainedPointsQuadtree {
 			
 			// factory is held elsewhere..
 			
-			// polygon envelope
-			ret += 4*3*8 + 8;
-			
 			// child array pointer
 			ret+= 8;
 			
@@ -242,28 +248,31 @@ public class FastContainedPointsQuadtree {
 			return ret;
 		}
 		
-		NodeQueryResult getRelationToGeometry(Geometry g, QueryStats stats){
+		NodeQueryResult getRelationToGeometry(QueryGeometry g, QueryStats stats){
 			if(g==null){
 				// everything is outside of null geometry
 				return NodeQueryResult.OUTSIDE;				
 			}
 			
-			// check for empty node (should probably never happen)
-			if(polygonEnvelope==null){
+			stats.nbQuadIntersectionTests++;
+			
+			// check for no intersection, testing the envelopes first as it's much cheaper
+			Envelope queryEnvelope = g.getEnvelope();
+			if(!queryEnvelope.intersects(envelope)){
+				stats.nbOutsideQuads++;
 				return NodeQueryResult.OUTSIDE;
 			}
 			
-			stats.nbQuadIntersectionTests++;
-			
-			// check for no intersection
-			boolean intersects = g.intersects(polygonEnvelope);
+			// the node's rectangle is only created when needed, as it's only used during queries
+			Geometry rectangle = factory.toGeometry(envelope);
+			boolean intersects = g.intersects(rectangle);
 			if(!intersects){
 				stats.nbOutsideQuads++;
 				return NodeQueryResult.OUTSIDE;
 			}
 			
-			// check for completely contained
-			boolean contains = g.contains(polygonEnvelope);
+			// check for completely contained, which is impossible unless the query envelope covers the node
+			boolean contains = queryEnvelope.covers(envelope) && g.contains(rectangle);
 			if(contains){
 				stats.nbContainedQuads++;
 				return NodeQueryResult.INSIDE;
@@ -288,7 +297,7 @@ public class FastContainedPointsQuadtree {
 		
 
 
-		void query(Geometry g, TLongHashSet ids, QueryStats stats){
+		void query(QueryGeometry g, TLongHashSet ids, QueryStats stats){
 			// Check for the case where we only have one non-null child and descend straight away.
 			// This can happen for highly-concentrated points where we may have to descend many levels until finding them
 			if(nbNonNullChildren()==1){
@@ -300,6 +309,13 @@ public class FastContainedPointsQuadtree {
 				}
 			}
 			
+			// For a leaf, testing its few points is cheaper than relating its rectangle to the geometry
+			// if the query geometry has an indexed point test.
+			if(children==null && g!=null && g.hasFastPointTest()){
+				testPoints(g, ids, stats);
+				return;
+			}
+			
 			NodeQueryResult relation = getRelationToGeometry(g,stats);
 			switch(relation){
 			case INSIDE:
@@ -325,23 +341,26 @@ public class FastContainedPointsQuadtree {
 					}
 				}else{
 					// test each individually...
-					if(points!=null){
-						points.forEach(new BiConsumer<Coordinate, TLongHashSet>() {
-
-							@Override
-							public void accept(Coordinate c, TLongHashSet s) {
-								stats.nbPointIntersectionTests++;
-								if(GeomContains.containsPoint(g, c)){
-									ids.addAll(s);									
-								}
-							}
-						});
-							
-					}
+					testPoints(g, ids, stats);
 				}
 				break;
 			}
 		}
+		
+		void testPoints(QueryGeometry g, TLongHashSet ids, QueryStats stats){
+			if(points!=null){
+				points.forEach(new BiConsumer<Coordinate, TLongHashSet>() {
+
+					@Override
+					public void accept(Coordinate c, TLongHashSet s) {
+						stats.nbPointIntersectionTests++;
+						if(g.containsPoint(c)){
+							ids.addAll(s);									
+						}
+					}
+				});
+			}
+		}
 	}
 	
 	private enum NodeQueryResult{
@@ -350,7 +369,144 @@ public class FastContainedPointsQuadtree {
 		INTERSECTING,
 	}
 	
+	/**
+	 * The geometry being queried, either as-is or prepared
+	 */
+	private interface QueryGeometry{
+		Envelope getEnvelope();
+		
+		boolean intersects(Geometry g);
+		
+		boolean contains(Geometry g);
+		
+		boolean containsPoint(Coordinate c);
+		
+		/**
+		 * @return True if testing a point is cheap (i.e. doesn't depend on the number of vertices)
+		 */
+		boolean hasFastPointTest();
+	}
+	
+	private static class PlainQueryGeometry implements QueryGeometry{
+		final Geometry geometry;
+
+		PlainQueryGeometry(Geometry geometry) {
+			this.geometry = geometry;
+		}
+
+		@Override
+		public Envelope getEnvelope() {
+			return geometry.getEnvelopeInternal();
+		}
+
+		@Override
+		public boolean intersects(Geometry g) {
+			return geometry.intersects(g);
+		}
+
+		@Override
+		public boolean contains(Geometry g) {
+			return geometry.contains(g);
+		}
+
+		@Override
+		public boolean containsPoint(Coordinate c) {
+			return GeomContains.containsPoint(geometry, c);
+		}
+
+		@Override
+		public boolean hasFastPointTest() {
+			return false;
+		}
+	}
+	
+	/**
+	 * Prepared geometry, whose segments are indexed so relating node rectangles to it is quick.
+	 * Points are located in polygons using an interval-indexed point-in-area locator.
+	 */
+	private static class PreparedQueryGeometry implements QueryGeometry{
+		final PreparedGeometry prepared;
+		final Envelope envelope;
+		final IndexedPointInAreaLocator locator;
+
+		PreparedQueryGeometry(PreparedGeometry prepared) {
+			this.prepared = prepared;
+			Geometry geometry = prepared.getGeometry();
+			this.envelope = geometry.getEnvelopeInternal();
+			this.locator = geometry instanceof Polygonal ? new IndexedPointInAreaLocator(geometry) : null;
+		}
+
+		@Override
+		public Envelope getEnvelope() {
+			return envelope;
+		}
+
+		@Override
+		public boolean intersects(Geometry g) {
+			return prepared.intersects(g);
+		}
+
+		@Override
+		public boolean contains(Geometry g) {
+			return prepared.contains(g);
+		}
+
+		@Override
+		public boolean containsPoint(Coordinate c) {
+			if(!envelope.contains(c)){
+				return false;
+			}
+			
+			if(locator!=null){
+				// contains excludes the boundary
+				return locator.locate(c) == Location.INTERIOR;
+			}
+			return prepared.contains(prepared.getGeometry().getFactory().createPoint(c));
+		}
+
+		@Override
+		public boolean hasFastPointTest() {
+			return locator!=null;
+		}
+	}
+	
+	/**
+	 * Get the ids of all points contained in the geometry. The quadtree isn't modified by queries
+	 * so several threads can query it at once. Geometries with many vertices are prepared first.
+	 * @param g
+	 * @param ids
+	 * @return
+	 */
 	public QueryStats query(Geometry g, TLongHashSet ids){
+		if(g!=null && g.getNumPoints() >= MIN_PREPARED_GEOMETRY_POINTS){
+			return query(PreparedGeometryFactory.prepare(g), ids);
+		}
+		return queryUnprepared(g, ids);
+	}
+	
+	/**
+	 * Get the ids of all points contained in the geometry, testing against the geometry itself 
+	 * regardless of its number of vertices. 
+	 * @param g
+	 * @param ids
+	 * @return
+	 */
+	public QueryStats queryUnprepared(Geometry g, TLongHashSet ids){
+		return query(g!=null ? new PlainQueryGeometry(g) : null, ids);
+	}
+	
+	/**
+	 * Get the ids of all points contained in the prepared geometry. A prepared geometry shouldn't
+	 * be used by more than one thread at once.
+	 * @param g
+	 * @param ids
+	 * @return
+	 */
+	public QueryStats query(PreparedGeometry g, TLongHashSet ids){
+		return query(g!=null ? new PreparedQueryGeometry(g) : null, ids);
+	}
+	
+	private QueryStats query(QueryGeometry g, TLongHashSet ids){
 		QueryStats stats = new QueryStats();
 		if(root!=null){
 			root.query(g, ids, stats);			
@@ -59,9 +59,33 @@ public class GeomContains {
 		
 	}
 	
+	/**
+	 * Results for one geometry. The record can be shared by threads testing the same geometry.
+	 */
 	private static class CachedResultRecord{
 		Geometry projected;
-		TObjectByteHashMap<Coordinate> results = new TObjectByteHashMap<Coordinate>();
+		private final TObjectByteHashMap<Coordinate> results = new TObjectByteHashMap<Coordinate>();
+		
+		/**
+		 * @param c
+		 * @return 1 if contained, 0 if not contained or -1 if there's no result
+		 */
+		synchronized byte get(Coordinate c){
+			return results.containsKey(c) ? results.get(c) : -1;
+		}
+		
+		/**
+		 * Store the result
+		 * @return The number of results held
+		 */
+		synchronized int put(Coordinate c, boolean isContained){
+			// If the results object is getting silly big, assume most of the results are old and clear them
+			if(results.size() > MAX_CACHE_POINT_SIZE_PER_RESULTS_OBJ){
+				results.clear();
+			}
+			results.put(c, isContained ? (byte)1 : (byte)0);
+			return results.size();
+		}
 	}
 	
 	/**
@@ -82,8 +106,9 @@ public class GeomContains {
 		}
 		
 		// Check if we already have the result
-		if(result.results.containsKey(c)){
-			return result.results.get(c)==1;
+		byte known = result.get(c);
+		if(known!=-1){
+			return known==1;
 		}
 		
 		// calculate it
@@ -126,8 +151,9 @@ public class GeomContains {
 
 		// Check if we already have the result
 		Coordinate coordinate = new Coordinate(longitude, latitude, 0);
-		if(result.results.containsKey(coordinate)){
-			return result.results.get(coordinate)==1;
+		byte known = result.get(coordinate);
+		if(known!=-1){
+			return known==1;
 		}
 
 		// Calculate the contains, projecting as needed
@@ -145,13 +171,8 @@ public class GeomContains {
 	}
 
 	private static void cacheResult(CacheKey key, Coordinate coordinate, boolean isContained, boolean hasTransform, boolean wasCached, CachedResultRecord cachedResultRecord, RecentlyUsedCache cache) {
-		// If the results object is getting silly big, assume most of the results are old and clear them
-		if(cachedResultRecord.results.size() > MAX_CACHE_POINT_SIZE_PER_RESULTS_OBJ){
-			cachedResultRecord.results.clear();
-		}
-		
 		// Add result to the results object
-		cachedResultRecord.results.put(coordinate, isContained ? (byte)1 : (byte)0);
+		int nbResults = cachedResultRecord.put(coordinate, isContained);
 		
 		// Remove existing results object from cache (if it was cached) as its size has changed
 		if(wasCached){
@@ -166,7 +187,7 @@ public class GeomContains {
 			nbBytes *=2;
 		}
 		long llSize = 3*8;
-		long mapSize = cachedResultRecord.results.size() * (llSize + 8) + 64;
+		long mapSize = nbResults * (llSize + 8) + 64;
 		nbBytes += mapSize;
 		
 		// Cache it
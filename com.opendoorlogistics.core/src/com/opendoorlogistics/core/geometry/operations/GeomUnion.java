@@ -8,12 +8,8 @@
  ******************************************************************************/
 package com.opendoorlogistics.core.geometry.operations;
 
-import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashSet;
 
-import org.geotools.geometry.jts.JTS;
-
 import com.opendoorlogistics.api.geometry.ODLGeom;
 import com.opendoorlogistics.core.cache.ApplicationCache;
 import com.opendoorlogistics.core.cache.RecentlyUsedCache;
@@ -21,32 +17,18 @@ import com.opendoorlogistics.core.geometry.ODLGeomImpl;
 import com.opendoorlogistics.core.geometry.ODLLoadedGeometry;
 import com.opendoorlogistics.core.geometry.Spatial;
 import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.geom.GeometryCollection;
-import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.PrecisionModel;
 import com.vividsolutions.jts.precision.GeometryPrecisionReducer;
 
 /**
- * Perform union on multiple geomtries, caching the result. Union is performed in the input grid system.
+ * Perform union on multiple geomtries, caching the result. Union is performed in the input grid system,
+ * using a {@link GeomUnionTree} so unions of similar sets of geometries share their work.
  * 
  * @author Phil
  *
  */
 public class GeomUnion {
 
-	private Geometry combineIntoOneGeometry(Collection<com.vividsolutions.jts.geom.Geometry> geometryCollection) {
-		if (geometryCollection.size() == 1) {
-			return geometryCollection.iterator().next();
-		}
-
-		GeometryFactory factory = new GeometryFactory();
-
-		// note the following geometry collection may be invalid (say with overlapping polygons)
-		GeometryCollection gc = (GeometryCollection) factory.buildGeometry(geometryCollection);
-
-		return gc.union();
-	}
-
 	private Object createCacheKey(Iterable<ODLGeom> inputGeoms, String ESPGCode) {
 		class CacheKey {
 			HashSet<ODLGeom> set = new HashSet<>();
@@ -132,41 +114,27 @@ public class GeomUnion {
 	private ODLGeom calculateUnion(Iterable<ODLGeom> inputGeoms, String ESPGCode) {
 		try {
 			Spatial.initSpatial();
-			GridTransforms transforms = new GridTransforms(ESPGCode);
+			GridTransforms transforms = GridTransforms.getAndCache(ESPGCode);
 
 			PrecisionModel pm = new PrecisionModel(PrecisionModel.FLOATING_SINGLE);
 			GeometryPrecisionReducer reducer = new GeometryPrecisionReducer(pm);
 
-			// process shapes into grid with reduced precision
-			ArrayList<Geometry> gridGeoms = new ArrayList<>();
-			for (ODLGeom geom : inputGeoms) {
-				if (geom != null) {
-					ODLGeomImpl gimpl = (ODLGeomImpl) geom;
-					if (gimpl.getJTSGeometry() != null) {
-						com.vividsolutions.jts.geom.Geometry g = gimpl.getJTSGeometry();
-
-						// convert to grid
-						g = JTS.transform(g, transforms.getWGS84ToGrid().getMathTransform());
-
-						// reduce precision as it stops holes appearing with our UK postcode data
-						g = reducer.reduce(g);
-
-						gridGeoms.add(g);
-
-					}
+			// union in the grid using the tree, so only the nodes containing changed members are recalculated
+			GeomUnionTree tree = new GeomUnionTree(ESPGCode, new GeomUnionTree.GridConverter() {
 
+				@Override
+				public Geometry toGrid(ODLGeomImpl geom) {
+					// convert to grid, reducing precision as it stops holes appearing with our UK postcode data
+					return reducer.reduce(transforms.wgs84ToGrid(geom.getJTSGeometry()));
 				}
-			}
-
-			if (gridGeoms.size() == 0) {
+			}, ApplicationCache.singleton().get(ApplicationCache.GEOMETRY_UNION_TREE_CACHE));
+			Geometry combinedGrid = tree.union(inputGeoms);
+			if (combinedGrid == null) {
 				return null;
 			}
 
-			// combine
-			Geometry combinedGrid = combineIntoOneGeometry(gridGeoms);
-
 			// transform back
-			Geometry combinedWGS84 = JTS.transform(combinedGrid, transforms.getGridToWGS84().getMathTransform());
+			Geometry combinedWGS84 = transforms.gridToWGS84(combinedGrid);
 
 			return new ODLLoadedGeometry(combinedWGS84);
 		} catch (Exception e) {
@@ -0,0 +1,269 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License 3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ ******************************************************************************/
+package com.opendoorlogistics.core.geometry.operations;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import com.opendoorlogistics.api.geometry.ODLGeom;
+import com.opendoorlogistics.core.cache.RecentlyUsedCache;
+import com.opendoorlogistics.core.geometry.ODLGeomImpl;
+import com.opendoorlogistics.core.geometry.Spatial;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/**
+ * Union a set of member geometries as a tree of cascaded unions, caching each node's union by the members
+ * below it. Members are sorted along a space filling curve and each level of the tree is split into groups
+ * after any node whose hash hits a boundary value, so group boundaries depend on the nodes themselves rather
+ * than their positions. Adding or removing a member (e.g. moving a postcode sector between territories) only
+ * changes the groups on its path to the root, so only that path is re-unioned and all other nodes come from
+ * the cache.
+ *
+ * @author Phil
+ *
+ */
+public final class GeomUnionTree {
+	/**
+	 * Average number of nodes in each group
+	 */
+	private static final int FANOUT = 8;
+
+	/**
+	 * Converts a member geometry into the grid the union is done in
+	 */
+	public interface GridConverter {
+		Geometry toGrid(ODLGeomImpl geom);
+	}
+
+	private final Object context;
+	private final GridConverter converter;
+	private final RecentlyUsedCache cache;
+
+	/**
+	 * @param context
+	 *            Identifies the grid (e.g. its EPSG code); nodes are only shared between trees with equal contexts
+	 * @param converter
+	 * @param cache
+	 */
+	public GeomUnionTree(Object context, GridConverter converter, RecentlyUsedCache cache) {
+		this.context = context;
+		this.converter = converter;
+		this.cache = cache;
+	}
+
+	private static class Node {
+		final NodeKey key;
+		final List<Node> children;
+
+		Node(NodeKey key, List<Node> children) {
+			this.key = key;
+			this.children = children;
+		}
+	}
+
+	private static class NodeKey {
+		final Object context;
+		final List<ODLGeom> members;
+		final int hash;
+
+		NodeKey(Object context, List<ODLGeom> members, int hash) {
+			this.context = context;
+			this.members = members;
+			this.hash = hash;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null || getClass() != obj.getClass())
+				return false;
+			NodeKey other = (NodeKey) obj;
+			if (hash != other.hash)
+				return false;
+			if (context == null ? other.context != null : !context.equals(other.context))
+				return false;
+			return members.equals(other.members);
+		}
+	}
+
+	/**
+	 * Get the union in the grid, or null if there are no member geometries
+	 *
+	 * @param inputGeoms
+	 * @return
+	 */
+	public Geometry union(Iterable<ODLGeom> inputGeoms) {
+		// get the distinct members which have geometry, sorted along the curve
+		LinkedHashSet<ODLGeom> set = new LinkedHashSet<>();
+		for (ODLGeom geom : inputGeoms) {
+			if (geom != null && ((ODLGeomImpl) geom).getJTSGeometry() != null) {
+				set.add(geom);
+			}
+		}
+		if (set.size() == 0) {
+			return null;
+		}
+
+		class SortItem implements Comparable<SortItem> {
+			final ODLGeom geom;
+			final long curve;
+			final int hash;
+
+			SortItem(ODLGeom geom) {
+				this.geom = geom;
+				this.curve = getCurvePosition(((ODLGeomImpl) geom).getWGSBounds());
+				this.hash = geom.hashCode();
+			}
+
+			@Override
+			public int compareTo(SortItem o) {
+				int diff = Long.compare(curve, o.curve);
+				if (diff == 0) {
+					diff = Integer.compare(hash, o.hash);
+				}
+				return diff;
+			}
+		}
+		ArrayList<SortItem> items = new ArrayList<>(set.size());
+		for (ODLGeom geom : set) {
+			items.add(new SortItem(geom));
+		}
+		Collections.sort(items);
+
+		// create the leaves
+		List<Node> level = new ArrayList<>(items.size());
+		for (SortItem item : items) {
+			level.add(new Node(new NodeKey(context, Collections.singletonList(item.geom), mix(item.hash)), null));
+		}
+
+		// group each level until we reach the root
+		int depth = 0;
+		while (level.size() > 1) {
+			List<Node> parents = new ArrayList<>();
+			List<Node> group = new ArrayList<>();
+			int n = level.size();
+			for (int i = 0; i < n; i++) {
+				Node node = level.get(i);
+				group.add(node);
+				if (i == n - 1 || (mix(node.key.hash + depth) % FANOUT) == 0) {
+					parents.add(createParent(group));
+					group = new ArrayList<>();
+				}
+			}
+
+			if (parents.size() == n && depth >= 32) {
+				// nodes keep hitting boundaries (very unlikely), so join them all
+				parents = new ArrayList<>();
+				parents.add(createParent(level));
+			}
+
+			level = parents;
+			depth++;
+		}
+
+		return getGeometry(level.get(0));
+	}
+
+	private Node createParent(List<Node> children) {
+		if (children.size() == 1) {
+			// carry the node up unchanged
+			return children.get(0);
+		}
+
+		int total = 0;
+		for (Node child : children) {
+			total += child.key.members.size();
+		}
+
+		ArrayList<ODLGeom> members = new ArrayList<>(total);
+		int hash = 1;
+		for (Node child : children) {
+			members.addAll(child.key.members);
+			hash = 31 * hash + child.key.hash;
+		}
+		return new Node(new NodeKey(context, members, mix(hash)), children);
+	}
+
+	private Geometry getGeometry(Node node) {
+		Geometry ret = (Geometry) cache.get(node.key);
+		if (ret != null) {
+			return ret;
+		}
+
+		if (node.children == null) {
+			ret = converter.toGrid((ODLGeomImpl) node.key.members.get(0));
+		} else {
+			ArrayList<Geometry> childGeoms = new ArrayList<>(node.children.size());
+			for (Node child : node.children) {
+				childGeoms.add(getGeometry(child));
+			}
+
+			// note the following geometry collection may be invalid (say with overlapping polygons)
+			GeometryCollection gc = (GeometryCollection) new GeometryFactory().buildGeometry(childGeoms);
+			ret = gc.union();
+		}
+
+		cache.put(node.key, ret, Spatial.getEstimatedSizeInBytes(ret) + 8 * node.key.members.size() + 50);
+		return ret;
+	}
+
+	/**
+	 * Get the position of the centre of the bounds along a Morton (Z-order) curve over the whole world, so
+	 * nearby members are unioned together and a member's position doesn't depend on the others
+	 *
+	 * @param wgsBounds
+	 * @return
+	 */
+	private static long getCurvePosition(Envelope wgsBounds) {
+		if (wgsBounds == null || wgsBounds.isNull()) {
+			return Long.MAX_VALUE;
+		}
+
+		final int bits = 31;
+		long x = toCurveCell((wgsBounds.getMinX() + wgsBounds.getMaxX()) * 0.5, -180, 180, bits);
+		long y = toCurveCell((wgsBounds.getMinY() + wgsBounds.getMaxY()) * 0.5, -90, 90, bits);
+		long ret = 0;
+		for (int i = bits - 1; i >= 0; i--) {
+			ret = (ret << 2) | (((x >> i) & 1) << 1) | ((y >> i) & 1);
+		}
+		return ret;
+	}
+
+	private static long toCurveCell(double value, double min, double max, int bits) {
+		long nbCells = 1L << bits;
+		long ret = (long) ((value - min) / (max - min) * nbCells);
+		return Math.max(0, Math.min(nbCells - 1, ret));
+	}
+
+	/**
+	 * Spread the bits of the hash so the boundary test isn't biased by poor member hashcodes
+	 *
+	 * @param h
+	 * @return
+	 */
+	private static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h & Integer.MAX_VALUE;
+	}
+}
@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License 3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ ******************************************************************************/
+package com.opendoorlogistics.core.geometry.operations;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.opendoorlogistics.api.geometry.ODLGeom;
+import com.opendoorlogistics.core.cache.RecentlyUsedCache;
+import com.opendoorlogistics.core.geometry.ODLGeomImpl;
+import com.opendoorlogistics.core.geometry.ODLLoadedGeometry;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/**
+ * Simulate interactive territory editing, where sectors are moved one at a time between neighbouring territories
+ * and both territories are re-unioned after each move. Times unioning all of a territory's sectors from scratch
+ * (as {@link GeomUnion} used to) against {@link GeomUnionTree}, and checks the areas agree. Sectors are irregular
+ * quadrilaterals sharing their edges, in a grid over the UK, and territories are the Voronoi cells of random seeds.
+ * Arguments are the number of sectors along each side, the number of territories and the number of moves. Unions
+ * are done in lat-long rather than a projected grid.
+ * @author Phil
+ *
+ */
+public class ProfileGeomUnionTree {
+	public static void main(String[] args) {
+		int side = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		int nbTerritories = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		int nbMoves = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+		// create a jittered lattice and a sector for each cell
+		Random random = new Random(123);
+		GeometryFactory factory = new GeometryFactory();
+		double cellLng = 6.0 / side;
+		double cellLat = 4.5 / side;
+		Coordinate[][] lattice = new Coordinate[side + 1][side + 1];
+		for (int i = 0; i <= side; i++) {
+			for (int j = 0; j <= side; j++) {
+				double jitter = i > 0 && i < side && j > 0 && j < side ? 0.3 : 0;
+				lattice[i][j] = new Coordinate(-5 + (i + jitter * (random.nextDouble() - 0.5)) * cellLng, 50.5 + (j + jitter * (random.nextDouble() - 0.5)) * cellLat);
+			}
+		}
+		ODLGeom[][] sectors = new ODLGeom[side][side];
+		for (int i = 0; i < side; i++) {
+			for (int j = 0; j < side; j++) {
+				sectors[i][j] = new ODLLoadedGeometry(factory.createPolygon(new Coordinate[] { lattice[i][j], lattice[i + 1][j], lattice[i + 1][j + 1], lattice[i][j + 1], lattice[i][j] }));
+			}
+		}
+
+		// assign each sector to the territory with the nearest seed
+		int[][] seeds = new int[nbTerritories][];
+		for (int t = 0; t < nbTerritories; t++) {
+			seeds[t] = new int[] { random.nextInt(side), random.nextInt(side) };
+		}
+		int[][] territory = new int[side][side];
+		for (int i = 0; i < side; i++) {
+			for (int j = 0; j < side; j++) {
+				int best = 0;
+				for (int t = 1; t < nbTerritories; t++) {
+					if (distSqd(seeds[t], i, j) < distSqd(seeds[best], i, j)) {
+						best = t;
+					}
+				}
+				territory[i][j] = best;
+			}
+		}
+
+		GeomUnionTree tree = new GeomUnionTree("profile", new GeomUnionTree.GridConverter() {
+
+			@Override
+			public Geometry toGrid(ODLGeomImpl geom) {
+				return geom.getJTSGeometry();
+			}
+		}, new RecentlyUsedCache("profile-union-tree", 1024 * 1024 * 1024));
+
+		// union every territory first, which fills the tree
+		long start = System.currentTimeMillis();
+		for (int t = 0; t < nbTerritories; t++) {
+			tree.union(getMembers(sectors, territory, t));
+		}
+		System.out.println(LocalDateTime.now() + " - initial union of " + nbTerritories + " territories with " + (side * side) + " sectors took "
+				+ (System.currentTimeMillis() - start) + " ms");
+
+		long scratchMillis = 0;
+		long treeMillis = 0;
+		double maxAreaDiff = 0;
+		int move = 0;
+		while (move < nbMoves) {
+			// move a random sector to a neighbouring territory
+			int i = random.nextInt(side);
+			int j = random.nextInt(side);
+			int ni = Math.max(0, Math.min(side - 1, i + random.nextInt(3) - 1));
+			int nj = Math.max(0, Math.min(side - 1, j + random.nextInt(3) - 1));
+			int from = territory[i][j];
+			int to = territory[ni][nj];
+			if (from == to) {
+				continue;
+			}
+			territory[i][j] = to;
+			move++;
+
+			for (int t : new int[] { from, to }) {
+				List<ODLGeom> members = getMembers(sectors, territory, t);
+				if (members.size() == 0) {
+					continue;
+				}
+
+				long startScratch = System.nanoTime();
+				Geometry scratch = unionFromScratch(factory, members);
+				scratchMillis += (System.nanoTime() - startScratch) / 1000000;
+
+				long startTree = System.nanoTime();
+				Geometry incremental = tree.union(members);
+				treeMillis += (System.nanoTime() - startTree) / 1000000;
+
+				maxAreaDiff = Math.max(maxAreaDiff, Math.abs(scratch.getArea() - incremental.getArea()) / scratch.getArea());
+			}
+		}
+
+		System.out.println(LocalDateTime.now() + " - " + nbMoves + " moves: unioning from scratch took " + scratchMillis + " ms, union tree took " + treeMillis
+				+ " ms, maximum area difference " + String.format("%.8f", 100 * maxAreaDiff) + "%");
+	}
+
+	private static int distSqd(int[] seed, int i, int j) {
+		return (seed[0] - i) * (seed[0] - i) + (seed[1] - j) * (seed[1] - j);
+	}
+
+	private static List<ODLGeom> getMembers(ODLGeom[][] sectors, int[][] territory, int t) {
+		ArrayList<ODLGeom> ret = new ArrayList<>();
+		for (int i = 0; i < sectors.length; i++) {
+			for (int j = 0; j < sectors[i].length; j++) {
+				if (territory[i][j] == t) {
+					ret.add(sectors[i][j]);
+				}
+			}
+		}
+		return ret;
+	}
+
+	private static Geometry unionFromScratch(GeometryFactory factory, List<ODLGeom> members) {
+		ArrayList<Geometry> geoms = new ArrayList<>();
+		for (ODLGeom member : members) {
+			geoms.add(((ODLGeomImpl) member).getJTSGeometry());
+		}
+		return ((GeometryCollection) factory.buildGeometry(geoms)).union();
+	}
+}
@@ -24,9 +24,17 @@ import com.opendoorlogistics.core.utils.Colours;
 import com.opendoorlogistics.core.utils.images.ImageUtils;
 
 public class CachedGeomImageRenderer implements ObjectRenderer{
-	private final RecentImageCache geomCache = new RecentImageCache(RecentImageCache.ZipType.LZ4, 64*1024*1024);
+	private final RecentImageCache geomCache;
 	private final DatastoreRenderer renderer = new DatastoreRenderer();
 	
+	public CachedGeomImageRenderer(){
+		this(RecentImageCache.DEFAULT_SIZE_IN_BYTES);
+	}
+	
+	public CachedGeomImageRenderer(int cacheSizeInBytes){
+		geomCache = new RecentImageCache(RecentImageCache.ZipType.LZ4, cacheSizeInBytes);
+	}
+	
 	@Override
 	public boolean renderObject(Graphics2D g, LatLongToScreen converter, DrawableObject obj, boolean isSelected, long renderFlags){
 		if(!DatastoreRenderer.isVisibleAtZoom(obj, converter.getZoomForObjectFiltering())){
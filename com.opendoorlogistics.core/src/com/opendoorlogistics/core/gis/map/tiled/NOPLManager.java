@@ -11,6 +11,7 @@ package com.opendoorlogistics.core.gis.map.tiled;
 import java.awt.Color;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.opendoorlogistics.api.geometry.LatLongToScreen;
 import com.opendoorlogistics.core.cache.RecentlyUsedCache;
@@ -39,6 +40,7 @@ public class NOPLManager {
 	
 	private class LayerCache{
 		final RecentlyUsedCache tileCache = new RecentlyUsedCache("nopl-layer-tile-cache",64 * 1024 * 1024);
+		final ConcurrentHashMap<TilePosition, Object> creatingTiles = new ConcurrentHashMap<>();
 		final DrawableObjectLayer layer;
 		
 		LayerCache(DrawableObjectLayer layer) {
@@ -216,8 +218,19 @@ public class NOPLManager {
 		
 		NOVLPolyLayerTile ret =(NOVLPolyLayerTile)layerCache.tileCache.get(position);
 		if(ret==null){
-			ret = new NOVLPolyLayerTile(converter, renderer, layerCache.layer);
-			layerCache.tileCache.put(position, ret, ret.getSizeInBytes());
+			// several rendering threads can want the same tile; lock on the position so it's only created once
+			Object lock = layerCache.creatingTiles.computeIfAbsent(position, k->new Object());
+			try {
+				synchronized (lock) {
+					ret =(NOVLPolyLayerTile)layerCache.tileCache.get(position);
+					if(ret==null){
+						ret = new NOVLPolyLayerTile(converter, renderer, layerCache.layer);
+						layerCache.tileCache.put(position, ret, ret.getSizeInBytes());
+					}
+				}
+			} finally {
+				layerCache.creatingTiles.remove(position, lock);
+			}
 		}
 		
 		return ret;
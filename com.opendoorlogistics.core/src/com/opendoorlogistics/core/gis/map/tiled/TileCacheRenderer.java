@@ -19,7 +19,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -33,6 +32,7 @@ import com.opendoorlogistics.core.cache.RecentlyUsedCache;
 import com.opendoorlogistics.core.gis.map.CachedGeomImageRenderer;
 import com.opendoorlogistics.core.gis.map.DatastoreRenderer;
 import com.opendoorlogistics.core.gis.map.ObjectRenderer;
+import com.opendoorlogistics.core.gis.map.RecentImageCache;
 import com.opendoorlogistics.core.gis.map.RenderProperties;
 import com.opendoorlogistics.core.gis.map.data.DrawableObject;
 import com.opendoorlogistics.core.gis.map.tiled.DrawableObjectLayer.LayerType;
@@ -47,8 +47,10 @@ final public class TileCacheRenderer implements Disposable {
 	//private static final int MAX_GEOM_POINTS_FILL_FOR_EDT_RENDER = 5000;
 	private final DatastoreRenderer EDTrenderer = new DatastoreRenderer();
 	// private final DatastoreRenderer workerThreadRenderer = new DatastoreRenderer(true, RecentImageCache.ZipType.LZ4);
-	private final ObjectRenderer workerThreadRenderer = new CachedGeomImageRenderer();
-	private final ExecutorService service;
+	private final ThreadLocal<ObjectRenderer> workerThreadRenderer;
+	private final int nThreads;
+	private final ThreadPoolExecutor service;
+	private final RenderStatistics statistics = new RenderStatistics();
 	private final RecentlyUsedCache updatedCompletedTileMap = new RecentlyUsedCache("updated-completed-tile-map",64 * 1024 * 1024);
 	private final RecentlyUsedCache outdatedCompleteTileMap = new RecentlyUsedCache("outdated-complete-tile-map",16 * 1024 * 1024);
 	private final ConcurrentHashMap<Object, CachedTile> processingTileMap = new ConcurrentHashMap<>();
@@ -68,13 +70,27 @@ final public class TileCacheRenderer implements Disposable {
 	 */
 	private LinkedList<CachedTile> lastUsedTiles = new LinkedList<>();
 
+	/**
+	 * Create the renderer with one rendering thread per core, less one for the event dispatch thread
+	 */
 	public TileCacheRenderer() {
-		// Create with a single rendering thread so we don't have to worry about synchronisation issues
+		this(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+	}
+
+	/**
+	 * Create the renderer with the input number of tile rendering threads. Each thread has its own
+	 * object renderer, with the geometry image cache split between them.
+	 * @param nThreads
+	 */
+	public TileCacheRenderer(int nThreads) {
+		this.nThreads = Math.max(1, nThreads);
+		final int cacheBytesPerThread = Math.max(RecentImageCache.DEFAULT_SIZE_IN_BYTES / this.nThreads, 16 * 1024 * 1024);
+		workerThreadRenderer = ThreadLocal.withInitial(() -> new CachedGeomImageRenderer(cacheBytesPerThread));
+
 		// We use a LIFO queue so last requested is executed first. If the user zooms around a lot
 		// their most recent viewpoint should therefore generally be prioritised (unless they've
-		// zoomed back and forth quickly...)
-		int nThreads = 1;
-		service = new ThreadPoolExecutor(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS, new BlockingLifoQueue<Runnable>(), new ThreadFactory() {
+		// zoomed back and forth quickly...). Tiles no longer in view are cancelled.
+		service = new ThreadPoolExecutor(this.nThreads, this.nThreads, 0L, TimeUnit.MILLISECONDS, new BlockingLifoQueue<Runnable>(), new ThreadFactory() {
 			ThreadFactory factory = Executors.defaultThreadFactory();
 			
 			@Override
@@ -148,7 +164,7 @@ final public class TileCacheRenderer implements Disposable {
 	private class CachedTile implements Runnable {
 		final TilePosition position;
 		final RenderInformation renderInfo;
-		CompressedImage finalImage;
+		volatile CompressedImage finalImage;
 		volatile boolean invalid = false;
 
 		@Override
@@ -188,8 +204,16 @@ final public class TileCacheRenderer implements Disposable {
 		}
 
 		@Override
-		public synchronized void run() {
+		public void run() {
+			// skip if cancelled whilst queued
+			if (invalid || isDisposed) {
+				removeFromProcessing();
+				statistics.tileFinished(false, 0);
+				return;
+			}
 
+			long startNanos = System.nanoTime();
+			boolean rendered = false;
 			BufferedImage workImg = new BufferedImage(TilePosition.TILE_SIZE, TilePosition.TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
 		//	ImageUtils.fillImage(workImg, new Color(200, 200, 255));
 			Graphics2D g = workImg.createGraphics();
@@ -201,7 +225,11 @@ final public class TileCacheRenderer implements Disposable {
 				LatLongToScreen converter = position.createConverter(renderInfo.originalConverter);
 
 				// render objects
+				ObjectRenderer renderer = workerThreadRenderer.get();
 				for(DrawableObjectLayer layer:renderInfo.layers){
+					if (invalid || isDisposed) {
+						return;
+					}
 					
 					if(layer.getType() == LayerType.NOVLPL){
 						// draw the layer tile
@@ -222,7 +250,7 @@ final public class TileCacheRenderer implements Disposable {
 							}
 							
 							try {
-								workerThreadRenderer.renderObject(g, converter, obj, renderInfo.selectedObjectIds.contains(obj.getGlobalRowId()),0);
+								renderer.renderObject(g, converter, obj, renderInfo.selectedObjectIds.contains(obj.getGlobalRowId()),0);
 							} catch (Throwable e) {
 							}
 						}						
@@ -237,15 +265,24 @@ final public class TileCacheRenderer implements Disposable {
 					outdatedCompleteTileMap.put(this, this, this.finalImage.getSizeBytes());
 				}
 				
+				rendered = true;
 				fireTileReadyListeners(this);
 
 			} finally {
 				g.dispose();
-				processingTileMap.remove(this);
+				removeFromProcessing();
+				statistics.tileFinished(rendered, System.nanoTime() - startNanos);
 			}
 
 		}
 
+		/**
+		 * Remove from the processing map, unless replaced by a newer tile for the same position
+		 */
+		private void removeFromProcessing() {
+			processingTileMap.computeIfPresent(this, (k, v) -> v == this ? null : v);
+		}
+
 		void setInvalid() {
 			invalid = true;
 		}
@@ -267,7 +304,7 @@ final public class TileCacheRenderer implements Disposable {
 		}
 
 		boolean isWithin(int ix, int iy) {
-			return ix >= minTileIndex.x && ix <= maxTileIndex.x && iy >= minTileIndex.y && iy <= maxTileIndex.x;
+			return ix >= minTileIndex.x && ix <= maxTileIndex.x && iy >= minTileIndex.y && iy <= maxTileIndex.y;
 		}
 	}
 
@@ -290,8 +327,11 @@ final public class TileCacheRenderer implements Disposable {
 			// save information required for rendering in an object
 			RenderInformation renderInformation = new RenderInformation(drawableLayers, converter, selectedObjectIds);
 
-			// loop over all visible tile positions
+			// cancel tiles for a different zoom or well outside the view, as the view has moved
 			Object zoomKey = converter.getZoomHashmapKey();
+			cancelTilesOutsideView(zoomKey, tileRange);
+
+			// loop over all visible tile positions
 			for (int ix = tileRange.minTileIndex.x; ix <= tileRange.maxTileIndex.x; ix++) {
 				for (int iy = tileRange.minTileIndex.y; iy <= tileRange.maxTileIndex.y; iy++) {
 
@@ -330,7 +370,8 @@ final public class TileCacheRenderer implements Disposable {
 						if (working == null) {
 							// we need to create it
 							processingTileMap.put(tile, tile);
-							service.submit(tile);
+							statistics.tileSubmitted();
+							service.execute(tile);
 							newLastUsedTiles.add(tile);
 						} else {
 							newLastUsedTiles.add(working);
@@ -364,6 +405,114 @@ final public class TileCacheRenderer implements Disposable {
 	}
 	
 
+	/**
+	 * Cancel processing tiles which aren't for the current zoom or are more than a tile outside the view.
+	 * Tiles just outside the view are kept as the user is probably panning.
+	 * @param zoomKey
+	 * @param tileRange
+	 */
+	private void cancelTilesOutsideView(Object zoomKey, MinMaxTileIndices tileRange) {
+		Iterator<Map.Entry<Object, CachedTile>> it = processingTileMap.entrySet().iterator();
+		while (it.hasNext()) {
+			CachedTile tile = it.next().getValue();
+			TilePosition p = tile.position;
+			boolean nearView = p.ix >= tileRange.minTileIndex.x - 1 && p.ix <= tileRange.maxTileIndex.x + 1 && p.iy >= tileRange.minTileIndex.y - 1 && p.iy <= tileRange.maxTileIndex.y + 1;
+			if (!nearView || !p.zoomKey.equals(zoomKey)) {
+				it.remove();
+				cancelTile(tile);
+			}
+		}
+	}
+
+	/**
+	 * Flag the tile as invalid so it stops rendering, and remove it from the queue if it hasn't started
+	 * @param tile
+	 */
+	private void cancelTile(CachedTile tile) {
+		tile.setInvalid();
+		if (service.remove(tile)) {
+			statistics.tileFinished(false, 0);
+		}
+	}
+
+	/**
+	 * Tile rendering throughput. A burst starts when a tile is submitted with none pending
+	 * and ends when no tiles are pending; tiles per second is measured over the last burst.
+	 */
+	private static class RenderStatistics {
+		private long renderedTiles;
+		private long cancelledTiles;
+		private long renderNanos;
+		private int pendingTiles;
+		private long burstStartNanos;
+		private long burstTiles;
+		private double lastBurstTilesPerSecond;
+
+		synchronized void tileSubmitted() {
+			if (pendingTiles == 0) {
+				burstStartNanos = System.nanoTime();
+				burstTiles = 0;
+			}
+			pendingTiles++;
+		}
+
+		synchronized void tileFinished(boolean rendered, long nanos) {
+			if (rendered) {
+				renderedTiles++;
+				burstTiles++;
+				renderNanos += nanos;
+			} else {
+				cancelledTiles++;
+			}
+
+			pendingTiles = Math.max(0, pendingTiles - 1);
+			if (pendingTiles == 0 && burstTiles > 0) {
+				lastBurstTilesPerSecond = burstTiles / Math.max((System.nanoTime() - burstStartNanos) * 1E-9, 1E-9);
+			}
+		}
+
+		@Override
+		public synchronized String toString() {
+			return "Rendered " + renderedTiles + " tiles, cancelled " + cancelledTiles + ", mean render time "
+					+ (renderedTiles > 0 ? (renderNanos / renderedTiles) / 1000000 : 0) + " ms, " + Math.round(lastBurstTilesPerSecond) + " tiles/sec in last burst";
+		}
+	}
+
+	public int getNbThreads() {
+		return nThreads;
+	}
+
+	public long getRenderedTileCount() {
+		synchronized (statistics) {
+			return statistics.renderedTiles;
+		}
+	}
+
+	public long getCancelledTileCount() {
+		synchronized (statistics) {
+			return statistics.cancelledTiles;
+		}
+	}
+
+	/**
+	 * Tiles rendered per second, measured from the first tile submitted to the
+	 * last tile finished in the most recent burst of rendering
+	 * @return
+	 */
+	public double getTilesPerSecond() {
+		synchronized (statistics) {
+			return statistics.lastBurstTilesPerSecond;
+		}
+	}
+
+	/**
+	 * Summary of the rendering statistics, for logging
+	 * @return
+	 */
+	public String getStatisticsReport() {
+		return statistics.toString();
+	}
+
 	private static Point toTileIndexPoint(Point pixelPoint) {
 		return new Point(pixelPoint.x / TilePosition.TILE_SIZE, pixelPoint.y / TilePosition.TILE_SIZE);
 	}
@@ -432,7 +581,7 @@ final public class TileCacheRenderer implements Disposable {
 
 	private void clearProcessingTiles() {
 		for (CachedTile tile : processingTileMap.values()) {
-			tile.setInvalid();
+			cancelTile(tile);
 		}
 
 		processingTileMap.clear();
@@ -523,8 +672,8 @@ final public class TileCacheRenderer implements Disposable {
 			while(it.hasNext()){
 				CachedTile tile = it.next().getValue();
 				if(tileTester.isInvalid(tile, changeArea)){
-					tile.invalid = true;
 					it.remove();
+					cancelTile(tile);
 				}
 			}
 
@@ -92,6 +92,7 @@ final public class AdapterConfig extends ScriptBaseElementImpl implements HasStr
 			ret.getTables().add(table.deepCopy());
 		}
 		ret.adapterType = adapterType;
+		ret.flags = flags;
 		return ret;
 	}
 
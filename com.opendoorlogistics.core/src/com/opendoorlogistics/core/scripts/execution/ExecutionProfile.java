@@ -0,0 +1,245 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.core.scripts.execution;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.opendoorlogistics.api.tables.ODLColumnType;
+import com.opendoorlogistics.api.tables.ODLDatastoreAlterable;
+import com.opendoorlogistics.api.tables.ODLTableAlterable;
+import com.opendoorlogistics.core.cache.ApplicationCache;
+import com.opendoorlogistics.core.tables.utils.TableUtils;
+
+/**
+ * Records where the time goes when executing a script. An entry is recorded for each executed instruction,
+ * each component call (once per batch key) and each built adapter table. Entries nest, so an instruction's
+ * entry includes the time spent building its input adapter and calling its component.<br>
+ * Each entry holds the wall time and rows processed plus the following measured over the entry's duration:
+ * <ul>
+ * <li>Formula evaluations by adapters (one per row for filters, sorts and group-bys and one per cell read from a formula column).</li>
+ * <li>Hits and misses on the {@link ApplicationCache} caches, including the adapter formula caches.</li>
+ * <li>Bytes allocated by the executing thread (-1 if the JVM can't measure this).</li>
+ * </ul>
+ * The formula and cache counts are global, so they include work done by anything else running at the same time.
+ * Allocated bytes exclude work done on other threads, e.g. parallel formula evaluation.
+ *
+ * @author Phil
+ *
+ */
+final public class ExecutionProfile {
+	private static final LongAdder FORMULA_EVALUATIONS = new LongAdder();
+	private final ArrayList<Entry> entries = new ArrayList<>();
+	private final LongAdder componentRows = new LongAdder();
+
+	public enum EntryType {
+		INSTRUCTION, COMPONENT, ADAPTER_TABLE
+	}
+
+	/**
+	 * Count formula evaluations for all profiles
+	 * @param n
+	 */
+	public static void countFormulaEvaluations(long n) {
+		FORMULA_EVALUATIONS.add(n);
+	}
+
+	public static long getFormulaEvaluationCount() {
+		return FORMULA_EVALUATIONS.sum();
+	}
+
+	private static long getAllocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+			if (sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled()) {
+				return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+
+	public static class Entry {
+		private final EntryType type;
+		private final String name;
+		private final long nanos;
+		private final long rows;
+		private final long formulaEvaluations;
+		private final long cacheHits;
+		private final long cacheMisses;
+		private final long allocatedBytes;
+
+		private Entry(EntryType type, String name, long nanos, long rows, long formulaEvaluations, long cacheHits, long cacheMisses, long allocatedBytes) {
+			this.type = type;
+			this.name = name;
+			this.nanos = nanos;
+			this.rows = rows;
+			this.formulaEvaluations = formulaEvaluations;
+			this.cacheHits = cacheHits;
+			this.cacheMisses = cacheMisses;
+			this.allocatedBytes = allocatedBytes;
+		}
+
+		public EntryType getType() {
+			return type;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getMillis() {
+			return nanos / 1000000;
+		}
+
+		public long getRows() {
+			return rows;
+		}
+
+		public long getFormulaEvaluations() {
+			return formulaEvaluations;
+		}
+
+		public long getCacheHits() {
+			return cacheHits;
+		}
+
+		public long getCacheMisses() {
+			return cacheMisses;
+		}
+
+		public long getAllocatedBytes() {
+			return allocatedBytes;
+		}
+
+		@Override
+		public String toString() {
+			return type.name().toLowerCase() + " " + name + " - " + getMillis() + " ms, " + rows + " rows, " + formulaEvaluations + " formula evaluations, " + cacheHits
+					+ " cache hits, " + cacheMisses + " cache misses, " + (allocatedBytes != -1 ? (allocatedBytes / 1024) + " KB allocated" : "allocation unknown");
+		}
+	}
+
+	/**
+	 * A started measurement. Stop it on the same thread it was started on.
+	 */
+	public class Section {
+		private final EntryType type;
+		private final String name;
+		private final long startNanos = System.nanoTime();
+		private final long startFormulaEvaluations = getFormulaEvaluationCount();
+		private final long startCacheHits = ApplicationCache.singleton().getTotalHitCount();
+		private final long startCacheMisses = ApplicationCache.singleton().getTotalMissCount();
+		private final long startAllocatedBytes = getAllocatedBytes();
+		private final long startComponentRows = componentRows.sum();
+
+		private Section(EntryType type, String name) {
+			this.type = type;
+			this.name = name;
+		}
+
+		/**
+		 * Stop, taking the rows processed as the rows processed by the components called since starting
+		 */
+		public void stop() {
+			stop(componentRows.sum() - startComponentRows);
+		}
+
+		/**
+		 * Stop and record the entry
+		 * @param rows
+		 */
+		public void stop(long rows) {
+			long allocated = getAllocatedBytes();
+			Entry entry = new Entry(type, name, System.nanoTime() - startNanos, rows, getFormulaEvaluationCount() - startFormulaEvaluations,
+					ApplicationCache.singleton().getTotalHitCount() - startCacheHits, ApplicationCache.singleton().getTotalMissCount() - startCacheMisses,
+					allocated != -1 && startAllocatedBytes != -1 ? allocated - startAllocatedBytes : -1);
+			if (type == EntryType.COMPONENT) {
+				componentRows.add(rows);
+			}
+			synchronized (entries) {
+				entries.add(entry);
+			}
+		}
+	}
+
+	public Section start(EntryType type, String name) {
+		return new Section(type, name);
+	}
+
+	/**
+	 * @return Copy of the entries in the order they finished
+	 */
+	public List<Entry> getEntries() {
+		synchronized (entries) {
+			return new ArrayList<>(entries);
+		}
+	}
+
+	void addAll(ExecutionProfile other) {
+		if (other == this) {
+			return;
+		}
+		List<Entry> otherEntries = other.getEntries();
+		synchronized (entries) {
+			entries.addAll(otherEntries);
+		}
+	}
+
+	/**
+	 * Write the entries to a new table in the datastore
+	 *
+	 * @param ds
+	 * @param tableName
+	 *            Name of the table, which is numbered if the name is already taken
+	 * @return
+	 */
+	public ODLTableAlterable exportToTable(ODLDatastoreAlterable<? extends ODLTableAlterable> ds, String tableName) {
+		if (TableUtils.findTable(ds, tableName, true) != null) {
+			tableName = TableUtils.getUniqueNumberedTableName(tableName, ds);
+		}
+		ODLTableAlterable table = ds.createTable(tableName, -1);
+		if (table == null) {
+			throw new RuntimeException("Failed to create table " + tableName);
+		}
+
+		TableUtils.addColumn(table, "Type", ODLColumnType.STRING, 0, null);
+		TableUtils.addColumn(table, "Name", ODLColumnType.STRING, 0, null);
+		TableUtils.addColumn(table, "Milliseconds", ODLColumnType.LONG, 0, null);
+		TableUtils.addColumn(table, "Rows", ODLColumnType.LONG, 0, null);
+		TableUtils.addColumn(table, "FormulaEvaluations", ODLColumnType.LONG, 0, null);
+		TableUtils.addColumn(table, "CacheHits", ODLColumnType.LONG, 0, null);
+		TableUtils.addColumn(table, "CacheMisses", ODLColumnType.LONG, 0, null);
+		TableUtils.addColumn(table, "AllocatedBytes", ODLColumnType.LONG, 0, "-1 if unknown");
+
+		for (Entry entry : getEntries()) {
+			int row = table.createEmptyRow(-1);
+			int col = 0;
+			table.setValueAt(entry.type.name(), row, col++);
+			table.setValueAt(entry.name, row, col++);
+			table.setValueAt(entry.getMillis(), row, col++);
+			table.setValueAt(entry.rows, row, col++);
+			table.setValueAt(entry.formulaEvaluations, row, col++);
+			table.setValueAt(entry.cacheHits, row, col++);
+			table.setValueAt(entry.cacheMisses, row, col++);
+			table.setValueAt(entry.allocatedBytes, row, col++);
+		}
+		return table;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		for (Entry entry : getEntries()) {
+			builder.append(entry.toString());
+			builder.append(System.lineSeparator());
+		}
+		return builder.toString();
+	}
+}
@@ -15,9 +15,14 @@ import com.opendoorlogistics.api.ExecutionReport;
 import com.opendoorlogistics.core.utils.strings.StandardisedStringSet;
 import com.opendoorlogistics.core.utils.strings.Strings;
 
+/**
+ * Execution report. Logging and failure methods are synchronised as components running batch keys
+ * in parallel share the same report.
+ */
 public class ExecutionReportImpl implements ExecutionReport{
-	private boolean failed = false;
+	private volatile boolean failed = false;
 	private ArrayList<LogEntry> logs = new ArrayList<>();
+	private final ExecutionProfile profile = new ExecutionProfile();
 	
 	private class LogEntry{
 		final Throwable throwable;
@@ -32,12 +37,12 @@ public class ExecutionReportImpl implements ExecutionReport{
 	
 	
 	@Override
-	public void log(String s) {
+	public synchronized void log(String s) {
 		logs.add(new LogEntry(null, s));
 	}
 
 	@Override
-	public void setFailed(String reason) {
+	public synchronized void setFailed(String reason) {
 		failed = true;
 		if (reason != null) {
 			log(reason);
@@ -55,13 +60,13 @@ public class ExecutionReportImpl implements ExecutionReport{
 	}
 
 	@Override
-	public void setFailed(Throwable reason) {
+	public synchronized void setFailed(Throwable reason) {
 		logs.add(new LogEntry(reason, null));
 		setFailed((String)null);
 	}
 
 	@Override
-	public void add(ExecutionReport report, boolean copyFailedStatus) {
+	public synchronized void add(ExecutionReport report, boolean copyFailedStatus) {
 		if(ExecutionReportImpl.class.isInstance(report)==false){
 			throw new RuntimeException();
 		}
@@ -73,6 +78,8 @@ public class ExecutionReportImpl implements ExecutionReport{
 		for(LogEntry s : ((ExecutionReportImpl)report).logs){
 			logs.add(s);
 		}
+		
+		profile.addAll(((ExecutionReportImpl)report).profile);
 	}
 
 	@Override
@@ -109,7 +116,7 @@ public class ExecutionReportImpl implements ExecutionReport{
 		return builder.toString();
 	}
 
-	public List<String> getLines(boolean includeExceptionTraces) {
+	public synchronized List<String> getLines(boolean includeExceptionTraces) {
 		// filter list of logs
 		ArrayList<LogEntry> filtered = new ArrayList<>(logs);
 		HashSet<Throwable> throwables = new HashSet<>();
@@ -168,24 +175,33 @@ public class ExecutionReportImpl implements ExecutionReport{
 	}
 
 	@Override
-	public void setFailed() {
+	public synchronized void setFailed() {
 		failed = true;
 	}
 
 	@Override
-	public ExecutionReport deepCopy() {
+	public synchronized ExecutionReport deepCopy() {
 		ExecutionReportImpl ret = new ExecutionReportImpl();
 		ret.failed = failed;
 		
-		// logs are immutable
+		// logs and profile entries are immutable
 		ret.logs.addAll(logs);
+		ret.profile.addAll(profile);
 		return ret;
 	}
 
 	@Override
-	public int size() {
+	public synchronized int size() {
 		return logs.size();
 	}
 
+	/**
+	 * Get the timings etc of the instructions, components and adapter tables executed so far
+	 * @return
+	 */
+	public ExecutionProfile getProfile(){
+		return profile;
+	}
+
 
 }
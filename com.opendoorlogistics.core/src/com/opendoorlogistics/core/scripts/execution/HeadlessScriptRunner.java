@@ -0,0 +1,314 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.core.scripts.execution;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.swing.JPanel;
+
+import org.apache.commons.io.FilenameUtils;
+
+import com.opendoorlogistics.api.ExecutionReport;
+import com.opendoorlogistics.api.ODLApi;
+import com.opendoorlogistics.api.components.ComponentExecutionApi.ModalDialogResult;
+import com.opendoorlogistics.api.io.ImportFileType;
+import com.opendoorlogistics.api.tables.ODLDatastoreAlterable;
+import com.opendoorlogistics.api.tables.ODLTableAlterable;
+import com.opendoorlogistics.api.tables.ODLTableReadOnly;
+import com.opendoorlogistics.core.scripts.elements.Script;
+import com.opendoorlogistics.core.scripts.execution.dependencyinjection.AbstractDependencyInjector;
+import com.opendoorlogistics.core.scripts.io.ScriptIO;
+import com.opendoorlogistics.core.tables.io.PoiIO;
+import com.opendoorlogistics.core.tables.io.TableIOUtils;
+import com.opendoorlogistics.core.tables.memory.ODLDatastoreImpl;
+import com.opendoorlogistics.core.utils.strings.Strings;
+
+/**
+ * Runs scripts without the studio user interface, for example from a server. Each {@link Job} loads its input datastore
+ * from an Excel or text file, runs its scripts in turn against it and then saves the datastore. Independent jobs can be
+ * run concurrently.<br>
+ * Scripts run as if the user accepted the default value of any parameters they prompt for. Components which need
+ * user interaction (e.g. opening a map) will not work.
+ *
+ * @author Phil
+ *
+ */
+final public class HeadlessScriptRunner {
+	private final ODLApi api;
+
+	public HeadlessScriptRunner(ODLApi api) {
+		this.api = api;
+	}
+
+	public static class Job {
+		private final File input;
+		private final File output;
+		private final List<File> scripts = new ArrayList<>();
+		private String profileTableName;
+
+		/**
+		 * @param input
+		 *            Excel (xls, xlsx), csv or tab separated (txt) file; or null to start from an empty datastore
+		 * @param output
+		 *            Excel file (xls, xlsx) or a directory to write one tab separated file per table into; or null
+		 *            to not save
+		 */
+		public Job(File input, File output) {
+			this.input = input;
+			this.output = output;
+		}
+
+		public File getInput() {
+			return input;
+		}
+
+		public File getOutput() {
+			return output;
+		}
+
+		public List<File> getScripts() {
+			return scripts;
+		}
+
+		public String getProfileTableName() {
+			return profileTableName;
+		}
+
+		/**
+		 * @param profileTableName
+		 *            Name of a table to write the execution profile to before saving, or null for none
+		 */
+		public void setProfileTableName(String profileTableName) {
+			this.profileTableName = profileTableName;
+		}
+
+		@Override
+		public String toString() {
+			return (input != null ? input.getName() : "<empty datastore>") + " -> " + (output != null ? output.getName() : "<not saved>");
+		}
+	}
+
+	public static class JobResult {
+		private final Job job;
+		private final ExecutionReportImpl report = new ExecutionReportImpl();
+		private final List<String> timings = new ArrayList<>();
+
+		private JobResult(Job job) {
+			this.job = job;
+		}
+
+		public Job getJob() {
+			return job;
+		}
+
+		public ExecutionReport getReport() {
+			return report;
+		}
+
+		/**
+		 * Lines describing the time taken to load, run each script and save. See {@link #getProfile()} for the time
+		 * taken by each instruction, component and adapter table.
+		 * @return
+		 */
+		public List<String> getTimings() {
+			return Collections.unmodifiableList(timings);
+		}
+
+		/**
+		 * The profile of all the job's scripts
+		 * @return
+		 */
+		public ExecutionProfile getProfile() {
+			return report.getProfile();
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			builder.append("Job " + job + System.lineSeparator());
+			for (String line : timings) {
+				builder.append("\t" + line + System.lineSeparator());
+			}
+			for (ExecutionProfile.Entry entry : getProfile().getEntries()) {
+				builder.append("\t" + entry + System.lineSeparator());
+			}
+			builder.append(report.getReportString(false, true));
+			return builder.toString();
+		}
+	}
+
+	/**
+	 * Execution callbacks for when there is no user interface. Modal parameter prompts are accepted so
+	 * default values are used.
+	 */
+	private static class HeadlessDependencyInjector extends AbstractDependencyInjector {
+
+		HeadlessDependencyInjector(ODLApi api) {
+			super(api);
+		}
+
+		@Override
+		public ModalDialogResult showModalPanel(JPanel panel, String title, ModalDialogResult... buttons) {
+			return ModalDialogResult.OK;
+		}
+
+		@Override
+		public ModalDialogResult showModalPanel(JPanel panel, String title, Dimension minSize, ModalDialogResult... buttons) {
+			return ModalDialogResult.OK;
+		}
+	}
+
+	/**
+	 * Run the job on the calling thread. No exceptions are thrown; failures are recorded in the result's report.
+	 *
+	 * @param job
+	 * @return
+	 */
+	public JobResult run(Job job) {
+		JobResult ret = new JobResult(job);
+		HeadlessDependencyInjector injector = new HeadlessDependencyInjector(api);
+		try {
+			// load
+			long start = System.nanoTime();
+			ODLDatastoreAlterable<ODLTableAlterable> ds = load(job.input, injector, ret.report);
+			if (ret.report.isFailed()) {
+				return ret;
+			}
+			ret.timings.add("Loaded " + (job.input != null ? job.input.getName() : "empty datastore") + " in " + millisSince(start) + " ms");
+
+			// run each script in turn on the same datastore
+			for (File file : job.scripts) {
+				start = System.nanoTime();
+				Script script = ScriptIO.instance().fromFile(file);
+				Script filtered = OptionsSubpath.getSubpathScript(script, null, ret.report);
+				if (filtered == null) {
+					ret.report.setFailed("Could not read script " + file.getName() + ".");
+					return ret;
+				}
+				filtered.setUuid(script.getUuid());
+
+				// the script's profile is merged into the job's along with its report
+				ExecutionReport result = new ScriptExecutor(api, false, injector).execute(filtered, ds);
+				ret.timings.add("Ran " + file.getName() + " in " + millisSince(start) + " ms");
+				ret.report.add(result);
+				if (ret.report.isFailed()) {
+					ret.report.log("Failed running script " + file.getName() + ".");
+					return ret;
+				}
+			}
+
+			if (job.profileTableName != null) {
+				ret.getProfile().exportToTable(ds, job.profileTableName);
+			}
+
+			// save
+			if (job.output != null) {
+				start = System.nanoTime();
+				save(ds, job.output, injector, ret.report);
+				ret.timings.add("Saved " + job.output.getName() + " in " + millisSince(start) + " ms");
+			}
+		} catch (Throwable e) {
+			ret.report.setFailed(e);
+		}
+		return ret;
+	}
+
+	/**
+	 * Run the jobs on a fixed pool of threads. Each job has its own datastore so jobs don't share any data.
+	 *
+	 * @param jobs
+	 * @param nbThreads
+	 * @return Results in the same order as the jobs
+	 */
+	public List<JobResult> run(List<Job> jobs, int nbThreads) {
+		List<JobResult> ret = new ArrayList<>(jobs.size());
+		if (nbThreads <= 1 || jobs.size() <= 1) {
+			for (Job job : jobs) {
+				ret.add(run(job));
+			}
+			return ret;
+		}
+
+		ExecutorService service = Executors.newFixedThreadPool(Math.min(nbThreads, jobs.size()));
+		try {
+			List<Future<JobResult>> futures = new ArrayList<>(jobs.size());
+			for (Job job : jobs) {
+				futures.add(service.submit(() -> run(job)));
+			}
+			for (Future<JobResult> future : futures) {
+				ret.add(future.get());
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			throw new RuntimeException(e);
+		} finally {
+			service.shutdown();
+		}
+		return ret;
+	}
+
+	private static long millisSince(long startNanos) {
+		return (System.nanoTime() - startNanos) / 1000000;
+	}
+
+	private static ODLDatastoreAlterable<ODLTableAlterable> load(File file, HeadlessDependencyInjector injector, ExecutionReport report) {
+		if (file == null) {
+			return ODLDatastoreImpl.alterableFactory.create();
+		}
+
+		if (!file.exists()) {
+			report.setFailed("Input file does not exist: " + file.getAbsolutePath());
+			return null;
+		}
+
+		String ext = FilenameUtils.getExtension(file.getName());
+		ImportFileType type;
+		if (Strings.equalsStd(ext, "xls") || Strings.equalsStd(ext, "xlsx")) {
+			type = ImportFileType.EXCEL;
+		} else if (Strings.equalsStd(ext, "csv")) {
+			type = ImportFileType.CSV;
+		} else if (Strings.equalsStd(ext, "txt")) {
+			type = ImportFileType.TAB;
+		} else {
+			report.setFailed("Unsupported input file type: " + file.getName() + ". Use xls, xlsx, csv or txt.");
+			return null;
+		}
+
+		ODLDatastoreAlterable<ODLTableAlterable> ret = TableIOUtils.importFile(file, type, injector, report);
+		if (ret == null && !report.isFailed()) {
+			report.setFailed("Failed to load input file: " + file.getAbsolutePath());
+		}
+		return ret;
+	}
+
+	private static void save(ODLDatastoreAlterable<ODLTableAlterable> ds, File file, HeadlessDependencyInjector injector, ExecutionReport report) {
+		String ext = FilenameUtils.getExtension(file.getName());
+		if (Strings.equalsStd(ext, "xls") || Strings.equalsStd(ext, "xlsx")) {
+			if (!PoiIO.exportDatastore(ds, file, Strings.equalsStd(ext, "xlsx"), injector, report)) {
+				report.setFailed("Failed to save output file: " + file.getAbsolutePath());
+			}
+			return;
+		}
+
+		// otherwise save each table as a tab separated file in the directory
+		if (!file.exists() && !file.mkdirs()) {
+			report.setFailed("Could not create output directory: " + file.getAbsolutePath());
+			return;
+		}
+		for (int i = 0; i < ds.getTableCount(); i++) {
+			ODLTableReadOnly table = ds.getTableAt(i);
+			TableIOUtils.writeToTabFile(table, new File(file, table.getName() + ".txt"));
+		}
+	}
+}
@@ -7,4 +7,5 @@ import com.opendoorlogistics.core.scripts.execution.adapters.DatastoreFetcher;
 public interface ScriptExecutionBlackboard extends ExecutionReport, DatastoreFetcher{
 	boolean isCompileOnly();
 	AdapterConfig getAdapterConfig(String id);
+	ExecutionProfile getProfile();
 }
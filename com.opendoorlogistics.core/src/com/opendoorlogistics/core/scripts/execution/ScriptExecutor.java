@@ -6,14 +6,22 @@
  ******************************************************************************/
 package com.opendoorlogistics.core.scripts.execution;
 
+import gnu.trove.impl.Constants;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
 import java.awt.Dimension;
 import java.io.Serializable;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.swing.JPanel;
 
@@ -61,6 +69,7 @@ import com.opendoorlogistics.core.scripts.elements.InstructionConfig;
 import com.opendoorlogistics.core.scripts.elements.Option;
 import com.opendoorlogistics.core.scripts.elements.OutputConfig;
 import com.opendoorlogistics.core.scripts.elements.Script;
+import com.opendoorlogistics.core.scripts.execution.ExecutionProfile.EntryType;
 import com.opendoorlogistics.core.scripts.execution.ScriptExecutionBlackboardImpl.SavedDatastore;
 import com.opendoorlogistics.core.scripts.execution.adapters.AdapterBuilder;
 import com.opendoorlogistics.core.scripts.execution.adapters.AdapterBuilderUtils;
@@ -87,6 +96,7 @@ import com.opendoorlogistics.core.utils.strings.StandardisedStringSet;
 import com.opendoorlogistics.core.utils.strings.Strings;
 
 final public class ScriptExecutor {
+	private static final ThreadLocal<Integer> parallelBatchKeyThreads = new ThreadLocal<>();
 	private final ODLDatastoreAlterableFactory<ODLTableAlterable> datastoreFactory;
 	private final DependencyInjector internalExecutionApi;
 	private final ODLComponentProvider components;
@@ -341,6 +351,7 @@ final public class ScriptExecutor {
 			}
 
 			InstructionConfig instruction = script.getInstructions().get(i);
+			ExecutionProfile.Section section = result.getProfile().start(EntryType.INSTRUCTION, getInstructionProfileName(instruction));
 			try {
 				// check if we're doing an update query... this has special
 				// logic
@@ -359,6 +370,7 @@ final public class ScriptExecutor {
 				result.setFailed(e);
 				result.setFailed("Exception occurred executing instruction.");
 			}
+			section.stop();
 
 			if (result.isFailed() && script.getInstructions().size() > 1) {
 				result.log("Failed on instruction line " + (i + 1) + ".");
@@ -596,69 +608,174 @@ final public class ScriptExecutor {
 	}
 
 	/**
-	 * Execute the same instructions potentially many times if batch keys are
-	 * set.
-	 * 
-	 * @param option
-	 * @param instruction
-	 * @param result
+	 * Batch key values found in an input datastore. Each table's rows are partitioned by key in a single pass,
+	 * so the rows for a key can be found without rescanning the table. Rows are held by id so a filter for
+	 * a later key is still correct if an earlier key's component deleted rows.
 	 */
-	private void executeBatchedInstruction(Script root, InstructionConfig instruction, final ScriptExecutionBlackboardImpl result) {
-
-		// helper class to store information on the batch keys
-		class BatchKeyInformation {
-			final List<String> values;
-			final int[] batchKeys;
-
-			BatchKeyInformation(ODLDatastore<? extends ODLTableReadOnly> ds) {
-				int nt = ds.getTableCount();
-				batchKeys = new int[nt];
-				Arrays.fill(batchKeys, -1);
-
-				TreeSet<String> valueset = new TreeSet<>();
-
-				for (int tbl = 0; tbl < nt; tbl++) {
-					ODLTableReadOnly table = ds.getTableAt(tbl);
-					int nc = table.getColumnCount();
-					for (int col = 0; col < nc; col++) {
-						if ((table.getColumnFlags(col) & TableFlags.FLAG_IS_BATCH_KEY) != 0) {
-							if (batchKeys[tbl] != -1) {
-								result.setFailed("Table \"" + table.getName() + "\" has more than one batch key column.");
-								values = null;
-								return;
-							}
+	private class BatchKeyInformation {
+		private List<String> values;
+		private final int[] batchKeys;
+
+		// per table: row ids at the time of the scan, row indices grouped by key with each key's
+		// slice starting at keyStarts[key], and rows included for every key (null key or no key column)
+		private long[][] rowIds;
+		private int[][] keyStarts;
+		private int[][] keyRows;
+		private int[][] sharedRows;
+
+		BatchKeyInformation(ODLDatastore<? extends ODLTableReadOnly> ds, ExecutionReport result) {
+			int nt = ds.getTableCount();
+			batchKeys = new int[nt];
+			Arrays.fill(batchKeys, -1);
+
+			TreeSet<String> valueset = new TreeSet<>();
+			String[][] rowKeys = new String[nt][];
+
+			for (int tbl = 0; tbl < nt; tbl++) {
+				ODLTableReadOnly table = ds.getTableAt(tbl);
+				int nc = table.getColumnCount();
+				for (int col = 0; col < nc; col++) {
+					if ((table.getColumnFlags(col) & TableFlags.FLAG_IS_BATCH_KEY) != 0) {
+						if (batchKeys[tbl] != -1) {
+							result.setFailed("Table \"" + table.getName() + "\" has more than one batch key column.");
+							values = null;
+							return;
+						}
 
-							ODLColumnType type = table.getColumnType(col);
-							if (ColumnValueProcessor.isBatchKeyCompatible(type) == false) {
-								result.setFailed(
-										"Table \"" + table.getName() + "\" has batch key column \"" + table.getColumnName(col) + "\" of type " + type.name() + " which is not batch key compatible.");
-								values = null;
-								return;
-							}
+						ODLColumnType type = table.getColumnType(col);
+						if (ColumnValueProcessor.isBatchKeyCompatible(type) == false) {
+							result.setFailed(
+									"Table \"" + table.getName() + "\" has batch key column \"" + table.getColumnName(col) + "\" of type " + type.name() + " which is not batch key compatible.");
+							values = null;
+							return;
+						}
 
-							batchKeys[tbl] = col;
-
-							if (!compileOnly) {
-								int nr = table.getRowCount();
-								for (int row = 0; row < nr; row++) {
-									Object val = table.getValueAt(row, col);
-									if (val != null) {
-										String s = (String) ColumnValueProcessor.convertToMe(ODLColumnType.STRING, val, type);
-										s = Strings.std(s);
-										valueset.add(s);
-									}
+						batchKeys[tbl] = col;
+
+						if (!compileOnly) {
+							int nr = table.getRowCount();
+							rowKeys[tbl] = new String[nr];
+							for (int row = 0; row < nr; row++) {
+								Object val = table.getValueAt(row, col);
+								if (val != null) {
+									String s = (String) ColumnValueProcessor.convertToMe(ODLColumnType.STRING, val, type);
+									s = Strings.std(s);
+									rowKeys[tbl][row] = s;
+									valueset.add(s);
 								}
-
 							}
+
 						}
 					}
 				}
+			}
+
+			values = new ArrayList<>(valueset);
+			if (values.size() > 0) {
+				partitionRows(ds, rowKeys);
+			}
+		}
+
+		private void partitionRows(ODLDatastore<? extends ODLTableReadOnly> ds, String[][] rowKeys) {
+			TObjectIntHashMap<String> keyIndices = new TObjectIntHashMap<>(Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, -1);
+			for (int i = 0; i < values.size(); i++) {
+				keyIndices.put(values.get(i), i);
+			}
+
+			int nt = ds.getTableCount();
+			rowIds = new long[nt][];
+			keyStarts = new int[nt][];
+			keyRows = new int[nt][];
+			sharedRows = new int[nt][];
+			for (int tbl = 0; tbl < nt; tbl++) {
+				ODLTableReadOnly table = ds.getTableAt(tbl);
+				int nr = table.getRowCount();
+				rowIds[tbl] = new long[nr];
+				for (int row = 0; row < nr; row++) {
+					rowIds[tbl][row] = table.getRowId(row);
+				}
+
+				// tables without a key column have all rows in every key
+				String[] keys = rowKeys[tbl];
+				if (keys == null) {
+					sharedRows[tbl] = new int[nr];
+					for (int row = 0; row < nr; row++) {
+						sharedRows[tbl][row] = row;
+					}
+					continue;
+				}
+
+				// count the rows in each key and turn into start positions
+				int[] starts = new int[values.size() + 1];
+				int nbShared = 0;
+				for (int row = 0; row < nr; row++) {
+					if (keys[row] != null) {
+						starts[keyIndices.get(keys[row]) + 1]++;
+					} else {
+						nbShared++;
+					}
+				}
+				for (int i = 0; i < values.size(); i++) {
+					starts[i + 1] += starts[i];
+				}
 
-				values = new ArrayList<>(valueset);
+				// fill each key's slice, keeping the original row order
+				int[] rows = new int[nr - nbShared];
+				int[] shared = new int[nbShared];
+				int[] next = Arrays.copyOf(starts, values.size());
+				nbShared = 0;
+				for (int row = 0; row < nr; row++) {
+					if (keys[row] != null) {
+						rows[next[keyIndices.get(keys[row])]++] = row;
+					} else {
+						shared[nbShared++] = row;
+					}
+				}
+				keyStarts[tbl] = starts;
+				keyRows[tbl] = rows;
+				sharedRows[tbl] = shared;
+			}
+		}
+
+		/**
+		 * Create a filtering adapter showing the key's rows and the rows shared by all keys, in their original order
+		 * 
+		 * @param ds
+		 * @param keyIndex
+		 * @return
+		 */
+		RowFilterDecorator<ODLTable> createFilter(ODLDatastore<? extends ODLTable> ds, int keyIndex) {
+			RowFilterDecorator<ODLTable> ret = new RowFilterDecorator<ODLTable>(ds);
+			for (int tbl = 0; tbl < ds.getTableCount(); tbl++) {
+				int tableId = ds.getTableAt(tbl).getImmutableId();
+				int[] shared = sharedRows[tbl];
+				int[] rows = keyRows[tbl];
+				int i = 0;
+				int j = keyStarts[tbl] != null ? keyStarts[tbl][keyIndex] : 0;
+				int end = keyStarts[tbl] != null ? keyStarts[tbl][keyIndex + 1] : 0;
+				while (i < shared.length || j < end) {
+					int row;
+					if (j >= end || (i < shared.length && shared[i] < rows[j])) {
+						row = shared[i++];
+					} else {
+						row = rows[j++];
+					}
+					ret.addRowToFilter(tableId, rowIds[tbl][row]);
+				}
 			}
+			return ret;
 		}
+	}
 
-		// check if we're doing an update query... this has special logic
+	/**
+	 * Execute the same instructions potentially many times if batch keys are
+	 * set.
+	 * 
+	 * @param option
+	 * @param instruction
+	 * @param result
+	 */
+	private void executeBatchedInstruction(Script root, InstructionConfig instruction, final ScriptExecutionBlackboardImpl result) {
 
 		// get the input/output datastore or adapter (can be null)
 		ODLDatastore<? extends ODLTable> availableIODS = null;
@@ -673,52 +790,31 @@ final public class ScriptExecutor {
 		// inspect the input data store for batch keys, getting values
 		BatchKeyInformation batchKeys = null;
 		if (availableIODS != null) {
-			batchKeys = new BatchKeyInformation(availableIODS);
+			batchKeys = new BatchKeyInformation(availableIODS, result);
 			if (result.isFailed()) {
 				return;
 			}
 		}
 
 		if (batchKeys != null && batchKeys.values.size() > 0) {
+			int nbThreads = getBatchKeyThreads(instruction, batchKeys.values.size(), result);
+			if (result.isFailed()) {
+				return;
+			}
 
-			// loop over each batch
-			for (final String batchKey : batchKeys.values) {
-				// create a filtering adapter...
-				RowFilterDecorator<ODLTable> filterDecorator = new RowFilterDecorator<ODLTable>(availableIODS);
-				for (int tableIndex = 0; tableIndex < availableIODS.getTableCount(); tableIndex++) {
-					int keyCol = batchKeys.batchKeys[tableIndex];
-					ODLTableReadOnly table = availableIODS.getTableAt(tableIndex);
-
-					// loop over each row of the source table
-					int nr = table.getRowCount();
-					for (int row = 0; row < nr; row++) {
-
-						// accept row if no key field
-						boolean accept = keyCol == -1;
-
-						// accept row if its keyfield value is null
-						if (!accept) {
-							accept = table.getValueAt(row, keyCol) == null;
-						}
-
-						// accept if strings the same
-						if (!accept) {
-							accept = Strings.equalsStd(batchKey, table.getValueAt(row, keyCol).toString());
-						}
+			if (nbThreads > 1) {
+				executeBatchKeysInParallel(root, instruction, availableIODS, batchKeys, nbThreads, result);
+			} else {
+				// loop over each batch
+				for (int i = 0; i < batchKeys.values.size(); i++) {
+					// execute with filtered data
+					executeSingleInstruction(root, instruction, batchKeys.createFilter(availableIODS, i), batchKeys.values.get(i), result);
 
-						if (accept) {
-							filterDecorator.addRowToFilter(table.getImmutableId(), table.getRowId(row));
-						}
+					checkForUserCancellation(result);
+					if (result.isFailed()) {
+						break;
 					}
 				}
-
-				// execute with filtered data
-				executeSingleInstruction(root, instruction, filterDecorator, batchKey, result);
-
-				checkForUserCancellation(result);
-				if (result.isFailed()) {
-					break;
-				}
 			}
 		} else {
 			executeSingleInstruction(root, instruction, availableIODS, null, result);
@@ -732,6 +828,168 @@ final public class ScriptExecutor {
 
 	}
 
+	/**
+	 * Get the number of threads to run the instruction's batch keys on. This is 1 unless the component
+	 * says it can run batch keys in parallel.
+	 * 
+	 * @param instruction
+	 * @param nbKeys
+	 * @param result
+	 * @return
+	 */
+	private int getBatchKeyThreads(InstructionConfig instruction, int nbKeys, ScriptExecutionBlackboardImpl result) {
+		ODLComponent component = getComponent(instruction, result);
+		if (component == null || compileOnly) {
+			return 1;
+		}
+
+		long flags = component.getFlags(api, instruction.getExecutionMode());
+		if ((flags & ODLComponent.FLAG_BATCH_KEYS_CAN_RUN_IN_PARALLEL) != ODLComponent.FLAG_BATCH_KEYS_CAN_RUN_IN_PARALLEL) {
+			return 1;
+		}
+		return Math.min(nbKeys, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Get the number of batch keys running in parallel with the calling component, so a component which starts
+	 * its own threads can share the processors between them.
+	 * 
+	 * @return 1 unless called from a component running a batch key in parallel with other keys
+	 */
+	public static int getParallelBatchKeyThreads() {
+		Integer ret = parallelBatchKeyThreads.get();
+		return ret != null ? ret : 1;
+	}
+
+	/**
+	 * Run the batch keys on a bounded pool of threads. Each key's input rows are copied on this thread, which
+	 * also records the data dependencies, so the component only ever reads its own copy. The component writes to
+	 * a private output datastore. Once a key has finished, any edits to its copy of the input and its output rows
+	 * are merged back on this thread, in key order. Only a few keys per thread are in flight at once, which
+	 * limits the memory used by the copies.
+	 * 
+	 * @param root
+	 * @param instruction
+	 * @param availableIODS
+	 * @param batchKeys
+	 * @param nbThreads
+	 * @param result
+	 */
+	private void executeBatchKeysInParallel(Script root, InstructionConfig instruction, ODLDatastore<? extends ODLTable> availableIODS, BatchKeyInformation batchKeys,
+			int nbThreads, ScriptExecutionBlackboardImpl result) {
+		class KeyRun {
+			String batchKey;
+			RowFilterDecorator<ODLTable> filter;
+			ODLDatastoreAlterable<ODLTableAlterable> input;
+			ODLDatastoreAlterable<ODLTableAlterable> unedited;
+			ODLDatastoreAlterable<ODLTableAlterable> output;
+			List<Runnable> heldLaunchers = new ArrayList<>();
+			Future<?> future;
+		}
+
+		ODLDatastoreAlterable<? extends ODLTableAlterable> outputDb = result.getDsByInstruction(instruction).getDs();
+		ExecutorService service = Executors.newFixedThreadPool(nbThreads);
+		ArrayDeque<KeyRun> running = new ArrayDeque<>();
+		try {
+			int nextKey = 0;
+			int nbKeys = batchKeys.values.size();
+			while (true) {
+				// start keys while there's room
+				while (nextKey < nbKeys && running.size() < 2 * nbThreads && !result.isFailed()) {
+					KeyRun run = new KeyRun();
+					run.batchKey = batchKeys.values.get(nextKey);
+					run.filter = batchKeys.createFilter(availableIODS, nextKey);
+					run.input = DatastoreCopier.copyAll(run.filter);
+					run.unedited = DatastoreCopier.copyAll(run.input);
+					run.output = datastoreFactory.create();
+					DatastoreCopier.copyStructure(outputDb, run.output);
+					run.future = service.submit(() -> {
+						parallelBatchKeyThreads.set(nbThreads);
+						try {
+							executeSingleInstruction(root, instruction, run.input, run.batchKey, run.output, run.heldLaunchers, result);
+						} finally {
+							parallelBatchKeyThreads.remove();
+						}
+					});
+					running.add(run);
+					nextKey++;
+				}
+
+				if (running.size() == 0) {
+					break;
+				}
+
+				// wait for the oldest key, merging it back unless something has failed
+				KeyRun run = running.poll();
+				try {
+					run.future.get();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				} catch (ExecutionException e) {
+					result.setFailed(e.getCause());
+				}
+
+				if (!result.isFailed()) {
+					mergeBatchKeyRun(run.batchKey, run.filter, run.input, run.unedited, run.output, outputDb, result);
+				}
+				if (!result.isFailed()) {
+					for (Runnable launcher : run.heldLaunchers) {
+						launcher.run();
+					}
+				}
+				checkForUserCancellation(result);
+			}
+		} finally {
+			service.shutdown();
+		}
+
+		if (!result.isFailed()) {
+			// register the external datasource dependencies for any UI components that were created or updated
+			DataDependencies depends = extractDependencies(result);
+			internalExecutionApi.addInstructionDependencies(instruction.getUuid(), depends);
+		}
+	}
+
+	/**
+	 * Copy any edits a component made to its copy of a batch key's input rows back into the real input, then
+	 * append its output rows to the real output datastore
+	 * 
+	 * @param batchKey
+	 * @param filter
+	 * @param input
+	 * @param unedited
+	 * @param output
+	 * @param outputDb
+	 * @param result
+	 */
+	private static void mergeBatchKeyRun(String batchKey, RowFilterDecorator<ODLTable> filter, ODLDatastore<? extends ODLTableReadOnly> input,
+			ODLDatastore<? extends ODLTableReadOnly> unedited, ODLDatastore<? extends ODLTableReadOnly> output, ODLDatastoreAlterable<? extends ODLTableAlterable> outputDb,
+			ExecutionReport result) {
+		for (int tbl = 0; tbl < input.getTableCount(); tbl++) {
+			ODLTableReadOnly edited = input.getTableAt(tbl);
+			ODLTableReadOnly before = unedited.getTableAt(tbl);
+			ODLTable target = filter.getTableAt(tbl);
+			int nr = before.getRowCount();
+			int nc = before.getColumnCount();
+			if (edited.getRowCount() != nr || target.getRowCount() != nr) {
+				result.setFailed("Rows were added to or deleted from table \"" + target.getName() + "\" when running batch key " + batchKey
+						+ ". This isn't supported when batch keys run in parallel.");
+				return;
+			}
+
+			for (int row = 0; row < nr; row++) {
+				for (int col = 0; col < nc; col++) {
+					Object value = edited.getValueAt(row, col);
+					if (!ColumnValueProcessor.isEqualSameType(before.getColumnType(col), value, before.getValueAt(row, col))) {
+						target.setValueAt(value, row, col);
+					}
+				}
+			}
+		}
+
+		DatastoreCopier.mergeAll(output, outputDb);
+	}
+
 	/**
 	 * Execute a single instruction once for a single batch key
 	 * 
@@ -743,11 +1001,35 @@ final public class ScriptExecutor {
 	 */
 	private void executeSingleInstruction(Script root, final InstructionConfig instruction, final ODLDatastore<? extends ODLTable> availableIODS, final String batchKey,
 			final ScriptExecutionBlackboardImpl result) {
+		if (executeSingleInstruction(root, instruction, availableIODS, batchKey, result.getDsByInstruction(instruction).getDs(), null, result)) {
+			// register or update the external datasource dependencies for any
+			// UI components that were created or updated
+			DataDependencies depends = extractDependencies(result);
+			internalExecutionApi.addInstructionDependencies(instruction.getUuid(), depends);
+		}
+	}
+
+	/**
+	 * Execute a single instruction once for a single batch key, writing to the output datastore.
+	 * This can be called from several threads at once when running batch keys in parallel, in which
+	 * case control launchers are added to heldLaunchers for the calling thread to submit later.
+	 * 
+	 * @param root
+	 * @param instruction
+	 * @param availableIODS
+	 * @param batchKey
+	 * @param outputDb
+	 * @param heldLaunchers
+	 * @param result
+	 * @return True if the component was called and didn't throw
+	 */
+	private boolean executeSingleInstruction(Script root, final InstructionConfig instruction, final ODLDatastore<? extends ODLTable> availableIODS, final String batchKey,
+			final ODLDatastoreAlterable<? extends ODLTableAlterable> outputDb, final List<Runnable> heldLaunchers, final ScriptExecutionBlackboardImpl result) {
 
 		// get the component
 		final ODLComponent component = getComponent(instruction, result);
 		if (result.isFailed()) {
-			return;
+			return false;
 		}
 
 		// get the component's expected datastore
@@ -771,13 +1053,13 @@ final public class ScriptExecutor {
 		if(!Strings.isEmpty(instruction.getReportTopLabelFormula())){
 			Func func = executeFunctionCompilationFromComponent(root,instruction.getReportTopLabelFormula(), null, availableIODS, result);
 			if(result.isFailed()){
-				return;
+				return false;
 			}
 			
 			Object val=func.execute(-1);
 			if(val== Functions.EXECUTION_ERROR){
 				result.setFailed("Error executing report title formula: " + instruction.getReportTopLabelFormula());
-				return;
+				return false;
 			}
 			reportTopLabel = val!=null? val.toString():null;
 		}else{
@@ -840,6 +1122,15 @@ final public class ScriptExecutor {
 
 			@Override
 			public void submitControlLauncher(ControlLauncherCallback cb) {
+				if (heldLaunchers != null) {
+					// running in parallel, so submit in batch key order once this key has been merged
+					heldLaunchers.add(() -> launch(cb));
+				} else {
+					launch(cb);
+				}
+			}
+
+			private void launch(ControlLauncherCallback cb) {
 				// Take a copy of the parameters and parameters value tables
 				// from the internal ds.
 				// This ensures we pass an immutable snapshot to the GUI code.
@@ -901,25 +1192,42 @@ final public class ScriptExecutor {
 			}
 
 			if (result.isFailed()) {
-				return;
+				return false;
 			}
 
 			try {
 				externalApi.postStatusMessage("Calling component: " + component.getName());
-				ODLDatastoreAlterable<? extends ODLTableAlterable> outputDb = result.getDsByInstruction(instruction).getDs();
+				ExecutionProfile.Section section = result.getProfile().start(EntryType.COMPONENT,
+						component.getName() + (Strings.isEmpty(batchKey) ? "" : " (key=" + batchKey + ")"));
 				component.execute(externalApi, instruction.getExecutionMode(), config, ioDS, outputDb);
+				section.stop(getTotalRowCount(ioDS));
 			} catch (Throwable e) {
 				result.setFailed(e);
 				result.setFailed("Component " + component.getId() + " threw an exception.");
-				return;
+				return false;
 			}
 
-			// register or update the external datasource dependencies for any
-			// UI components that were created or updated
-			DataDependencies depends = extractDependencies(result);
-			internalExecutionApi.addInstructionDependencies(instruction.getUuid(), depends);
+			return true;
+		}
+		return false;
+	}
+
+	private static long getTotalRowCount(ODLDatastore<? extends ODLTable> ds) {
+		long ret = 0;
+		if (ds != null) {
+			for (int i = 0; i < ds.getTableCount(); i++) {
+				ret += ds.getTableAt(i).getRowCount();
+			}
+		}
+		return ret;
+	}
 
+	private static String getInstructionProfileName(InstructionConfig instruction) {
+		String name = instruction.getComponentDisplayName();
+		if (Strings.isEmpty(name)) {
+			name = instruction.getComponent();
 		}
+		return name + " (" + instruction.getUuid() + ")";
 	}
 
 	private ODLComponent getComponent(ComponentConfig instruction, ScriptExecutionBlackboardImpl result) {
@@ -11,6 +11,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.opendoorlogistics.api.ExecutionReport;
 import com.opendoorlogistics.api.components.ProcessingApi;
@@ -39,12 +40,16 @@ import com.opendoorlogistics.core.scripts.elements.AdapterColumnConfig;
 import com.opendoorlogistics.core.scripts.elements.AdapterColumnConfig.SortField;
 import com.opendoorlogistics.core.scripts.elements.AdapterConfig;
 import com.opendoorlogistics.core.scripts.elements.UserFormula;
+import com.opendoorlogistics.core.scripts.execution.ExecutionProfile;
+import com.opendoorlogistics.core.scripts.execution.ExecutionProfile.EntryType;
 import com.opendoorlogistics.core.scripts.execution.ScriptExecutionBlackboard;
 import com.opendoorlogistics.core.scripts.execution.adapters.TableFormulaBuilder.DependencyInjector;
 import com.opendoorlogistics.core.scripts.execution.adapters.vls.VLSBuilder;
 import com.opendoorlogistics.core.scripts.execution.adapters.vls.VLSBuilder.VLSDependencyInjector;
 import com.opendoorlogistics.core.scripts.formulae.FmLocalElement;
+import com.opendoorlogistics.core.scripts.formulae.GroupSourceRows;
 import com.opendoorlogistics.core.scripts.formulae.TableParameters;
+import com.opendoorlogistics.core.scripts.formulae.TableParameters.TableFetcher;
 import com.opendoorlogistics.core.tables.ColumnValueProcessor;
 import com.opendoorlogistics.core.tables.ODLRowReadOnly;
 import com.opendoorlogistics.core.tables.decorators.datastores.AdaptedDecorator;
@@ -60,12 +65,9 @@ import com.opendoorlogistics.core.utils.strings.StandardisedStringSet;
 import com.opendoorlogistics.core.utils.strings.StandardisedStringTreeMap;
 import com.opendoorlogistics.core.utils.strings.Strings;
 
-import gnu.trove.impl.Constants;
 import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.list.array.TLongArrayList;
 import gnu.trove.map.hash.TLongIntHashMap;
-import gnu.trove.map.hash.TLongObjectHashMap;
-import gnu.trove.map.hash.TObjectIntHashMap;
 import gnu.trove.set.hash.TIntHashSet;
 
 final public class AdapterBuilder {
@@ -236,6 +238,9 @@ final public class AdapterBuilder {
 
 		// create the adapter (initally empty)
 		AdaptedDecorator<ODLTable> nonVLSAdapter = new AdaptedDecorator<ODLTable>(mapping, datasources);
+		if ((inputConfig.getFlags() & TableFlags.FLAG_MATERIALISE_FORMULAE) == TableFlags.FLAG_MATERIALISE_FORMULAE) {
+			nonVLSAdapter.setMaterialiseFormulae(true);
+		}
 		ODLDatastore<? extends ODLTable> ret = nonVLSAdapter;
 		
 		// Add the tables to the adapter
@@ -291,6 +296,7 @@ final public class AdapterBuilder {
 	}
 
 	private void buildTable(ArrayList<List<AdaptedTableConfig>> unionSourceAdapters, int destTableIndx) {
+		ExecutionProfile.Section section = env.getProfile().start(EntryType.ADAPTER_TABLE, id + ", " + destination.getTableAt(destTableIndx).getName());
 		List<AdaptedTableConfig> union = unionSourceAdapters.get(destTableIndx);
 		if (union == null) {
 			buildNonUnionTable(destTableIndx);
@@ -305,6 +311,11 @@ final public class AdapterBuilder {
 		
 		if(report.isFailed()){
 			report.setFailed("Could not build data adapter table \"" + tableConfig.getName() + "\".");
+		}else{
+			// rows in the built table, read from wherever the mapping now points
+			int destTableId = destination.getTableAt(destTableIndx).getImmutableId();
+			ODLTableReadOnly built = datasources.get(mapping.getSourceDatasourceIndx(destTableId)).getTableByImmutableId(mapping.getSourceTableId(destTableId));
+			section.stop(built != null ? built.getRowCount() : 0);
 		}
 	}
 
@@ -545,21 +556,21 @@ final public class AdapterBuilder {
 				}
 			}
 
-			// execute each formula
+			// execute each formula, possibly in parallel, recording the type of failure for any failed row
 			int n = idsToSort.size();
-			ArrayList<SortRow> list = new ArrayList<>(n);
-			for (int i = 0; i < n; i++) {
+			SortRow[] rows = new SortRow[n];
+			ODLColumnType[] failedConversions = new ODLColumnType[n];
+			TableFetcher fetcher = TableParameters.createTableFetcher(datasources);
+			int failedRow = ParallelRowEvaluator.run(n, formulae, (i, threadFormulae) -> {
 				SortRow row = new SortRow();
-				list.add(row);
+				rows[i] = row;
 				row.id = idsToSort.get(i);
-				row.values = new Object[formulae.length];
-				FunctionParameters parameters = new TableParameters(datasources, sourceTableRef.dsIndex, sourceTable.getImmutableId(), row.id,-1,null);
+				row.values = new Object[threadFormulae.length];
+				FunctionParameters parameters = new TableParameters(fetcher, sourceTableRef.dsIndex, sourceTable.getImmutableId(), row.id,-1,null);
 				for (int j = 0; j < row.values.length; j++) {
-					 row.values[j] = formulae[j].execute(parameters);
+					row.values[j] = threadFormulae[j].execute(parameters);
 					if (row.values[j] == Functions.EXECUTION_ERROR) {
-						report.setFailed("Failed to execute sort formula or read sort field number " + (i + 1));
-						report.setFailed("If you were doing a group-by, from the source table you can only sort on the group-by source field (and not a formula).");
-						return null;
+						return false;
 					}
 
 					// convert to the type so we do comparisons as string, number etc as needed
@@ -567,13 +578,26 @@ final public class AdapterBuilder {
 						ODLColumnType type = adaptedTableConfig.getColumnType(sortColumns[j]);
 						row.values[j] = ColumnValueProcessor.convertToMe(type,row.values[j]);
 						if (row.values[j] == null) {
-							report.setFailed("Failed to convert result of sort formula or read sort field to correct type: " + Strings.convertEnumToDisplayFriendly(type));
-							return null;
+							failedConversions[i] = type;
+							return false;
 						}
 
 					}
 				}
+				return true;
+			});
+
+			if (failedRow != -1) {
+				if (failedConversions[failedRow] == null) {
+					report.setFailed("Failed to execute sort formula or read sort field number " + (failedRow + 1));
+					report.setFailed("If you were doing a group-by, from the source table you can only sort on the group-by source field (and not a formula).");
+				} else {
+					report.setFailed("Failed to convert result of sort formula or read sort field to correct type: "
+							+ Strings.convertEnumToDisplayFriendly(failedConversions[failedRow]));
+				}
+				return null;
 			}
+			ArrayList<SortRow> list = new ArrayList<>(Arrays.asList(rows));
 
 			// now sort based on the formula results
 			Collections.sort(list);
@@ -869,15 +893,27 @@ final public class AdapterBuilder {
 				
 				// get all the row ids in the table which pass the filter
 				if(!didIndexedSearch){
-					for (int row = 0; row < nbRows; row++) {
-						FunctionParameters parameters = new TableParameters(datasources, tableRef.dsIndex, srcTable.getImmutableId(), srcTable.getRowId(row),row,null);
-						Object exec = formula.execute(parameters);
+					// evaluate the filter for each row, possibly in parallel
+					boolean[] passed = new boolean[nbRows];
+					int dsIndex = tableRef.dsIndex;
+					TableFetcher fetcher = TableParameters.createTableFetcher(datasources);
+					int failedRow = ParallelRowEvaluator.run(nbRows, new Function[] { formula }, (row, threadFormulae) -> {
+						FunctionParameters parameters = new TableParameters(fetcher, dsIndex, srcTable.getImmutableId(), srcTable.getRowId(row),row,null);
+						Object exec = threadFormulae[0].execute(parameters);
 						if (exec == Functions.EXECUTION_ERROR) {
-							report.setFailed("Failed to execute filter formula on row number " + (row+1)+"/" + nbRows + " of table " + srcTable.getName() +": " + filterFormula);
-							return null;
+							return false;
 						}
-	
-						if(FunctionUtils.isTrue(exec)){
+						passed[row] = FunctionUtils.isTrue(exec);
+						return true;
+					});
+
+					if (failedRow != -1) {
+						report.setFailed("Failed to execute filter formula on row number " + (failedRow+1)+"/" + nbRows + " of table " + srcTable.getName() +": " + filterFormula);
+						return null;
+					}
+
+					for (int row = 0; row < nbRows; row++) {
+						if(passed[row]){
 							rowIds.add(srcTable.getRowId(row));														
 						}
 					}
@@ -1014,81 +1050,61 @@ final public class AdapterBuilder {
 		datasources.add(groupedDs);
 		final ODLTableAlterable groupedTable = groupedDs.getTableAt(0);
 
-		class GroupByKey{
-			final String [] strs;
-			
-			GroupByKey(Object[] key){
-				strs = new String[key.length];
-				for(int i =0 ; i < strs.length ; i++){
-					strs[i] =Strings.std((String) ColumnValueProcessor.convertToMe(ODLColumnType.STRING, key[i]));
-				}
-			}
-
-			@Override
-			public int hashCode() {
-				final int prime = 31;
-				int result = 1;
-				result = prime * result + Arrays.hashCode(strs);
-				return result;
-			}
-
-			@Override
-			public boolean equals(Object obj) {
-				if (this == obj)
-					return true;
-				if (obj == null)
-					return false;
-				if (getClass() != obj.getClass())
-					return false;
-				GroupByKey other = (GroupByKey) obj;
-				if (!Arrays.equals(strs, other.strs))
-					return false;
-				return true;
-			}
-			
-		}
-		
-		// Fill in group table for the columns defining the groups, creating the groups as we do this.
-		// We build all groups with complexity O( nrows x ngroups).
+		// Get the grouped by key values by executing the formulae, possibly in parallel.
+		// Values are held in a single array with the keys for row i starting at i x nbGroupByFields.
 		int nbSourceRows = srcTable.getRowCount();
-		final TLongObjectHashMap<TLongArrayList> groupRowIdToSourceRowIds = new TLongObjectHashMap<>();
-		final TObjectIntHashMap<GroupByKey> keyToRow = new TObjectIntHashMap<GroupByKey>(Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, -1);
-		for (int srcRow = 0; srcRow < nbSourceRows; srcRow++) {
-
-			// get grouped by key by executing the formulae
-			Object[] key = new Object[nbDestCols];
-			for (int gbf : groupByFields) {
-				FunctionParameters parameters = new TableParameters(datasources, srcTableRef.dsIndex, srcTable.getImmutableId(), srcTable.getRowId(srcRow),srcRow,null);
-				key[gbf] = nonSortFormulae[gbf].execute(parameters);
-				if (key[gbf] == Functions.EXECUTION_ERROR) {
-					report.setFailed("Error executing formula or reading field in group-by adapter: " + nonSortFormulae[gbf]);
-					return;
+		final int nbGroupByFields = groupByFields.size();
+		final Object[] keyValues = new Object[nbSourceRows * nbGroupByFields];
+		final int[] failedKeyFormula = new int[nbSourceRows];
+		TableFetcher keyFetcher = TableParameters.createTableFetcher(datasources);
+		int failedKeyRow = ParallelRowEvaluator.run(nbSourceRows, nonSortFormulae, (srcRow, threadFormulae) -> {
+			FunctionParameters parameters = new TableParameters(keyFetcher, srcTableRef.dsIndex, srcTable.getImmutableId(), srcTable.getRowId(srcRow),srcRow,null);
+			for (int i = 0; i < nbGroupByFields; i++) {
+				int gbf = groupByFields.get(i);
+				Object value = threadFormulae[gbf].execute(parameters);
+				if (value == Functions.EXECUTION_ERROR) {
+					failedKeyFormula[srcRow] = gbf;
+					return false;
 				}
+				keyValues[srcRow * nbGroupByFields + i] = value;
 			}
+			return true;
+		});
+		if (failedKeyRow != -1) {
+			report.setFailed("Error executing formula or reading field in group-by adapter: " + nonSortFormulae[failedKeyFormula[failedKeyRow]]);
+			return;
+		}
 
-			// find matching row in grouped table
-			GroupByKey gbyKey = new GroupByKey(key);
-			int groupIndx = keyToRow.get(gbyKey);
+		// Assign each source row to a group, creating the groups in the order they're first seen.
+		// Keys are compared as standardised strings but hashed by typed value, see GroupByKeyEncoder.
+		GroupByKeyEncoder encoder = new GroupByKeyEncoder(nbGroupByFields);
+		final int[] groupOfSourceRow = new int[nbSourceRows];
+		final long[] sourceRowIds = new long[nbSourceRows];
+		for (int srcRow = 0; srcRow < nbSourceRows; srcRow++) {
+			int offset = srcRow * nbGroupByFields;
+			int groupIndx = encoder.encode(keyValues, offset);
 
 			// create new group if needed
-			if (groupIndx == -1) {
-				groupIndx = groupedTable.createEmptyRow(-1);
-				for (int gbf : groupByFields) {
-					groupedTable.setValueAt(key[gbf], groupIndx, gbf);
+			if (groupIndx == groupedTable.getRowCount()) {
+				groupedTable.createEmptyRow(-1);
+				for (int i = 0; i < nbGroupByFields; i++) {
+					groupedTable.setValueAt(keyValues[offset + i], groupIndx, groupByFields.get(i));
 				}
-				groupRowIdToSourceRowIds.put(groupedTable.getRowId(groupIndx), new TLongArrayList());
-				keyToRow.put(gbyKey, groupIndx);
 			}
 
-			// copy row reference
-			long groupRowId = groupedTable.getRowId(groupIndx);
-			long srcRowId = srcTable.getRowId(srcRow);
-			groupRowIdToSourceRowIds.get(groupRowId).add(srcRowId);
+			groupOfSourceRow[srcRow] = groupIndx;
+			sourceRowIds[srcRow] = srcTable.getRowId(srcRow);
+		}
+
+		long[] groupRowIds = new long[groupedTable.getRowCount()];
+		for (int groupRow = 0; groupRow < groupRowIds.length; groupRow++) {
+			groupRowIds[groupRow] = groupedTable.getRowId(groupRow);
 		}
+		GroupSourceRows groupSourceRows = new GroupSourceRows(groupRowIds, sourceRowIds, groupOfSourceRow);
 
 		// create function library with the aggregate functions
 		final FunctionDefinitionLibrary library = buildFunctionLibrary(defaultDsIndex, destinationTable);
-		FunctionsBuilder.buildGroupAggregates(library, groupRowIdToSourceRowIds, srcTableRef.dsIndex, srcTable.getImmutableId());
+		FunctionsBuilder.buildGroupAggregates(library, groupSourceRows, srcTableRef.dsIndex, srcTable.getImmutableId());
 
 		// Also create a special user variable provider which acts differently if we're
 		// in the source or grouped table. The aggregate functions (e.g. lookupsum() ) will sum
@@ -1122,9 +1138,12 @@ final public class AdapterBuilder {
 							}
 						}
 						
-						if(!errorReporter.reportedAccessingNonGroupByField){
-							errorReporter.reportedAccessingNonGroupByField = true;
-							report.log("Attempted to access field from the ungrouped table: " + getName() + ". Only non-formula group-by fields can be accessed.");
+						// formulae may be executed on several threads
+						synchronized (errorReporter) {
+							if(!errorReporter.reportedAccessingNonGroupByField){
+								errorReporter.reportedAccessingNonGroupByField = true;
+								report.log("Attempted to access field from the ungrouped table: " + getName() + ". Only non-formula group-by fields can be accessed.");
+							}
 						}
 						return Functions.EXECUTION_ERROR;
 					}
@@ -1156,34 +1175,57 @@ final public class AdapterBuilder {
 			nonSortFormulae[col] = bngf.build(nonSortCols.getColumn(col));
 		}
 
-		// Fill in non-group column values
+		// Calculate non-group column values, possibly in parallel. The formulae only read the group-by columns
+		// (or the source table via aggregates) so the values can be calculated before any are saved.
 		int nbGroups = groupedTable.getRowCount();
-		UpdateTimer timer = new UpdateTimer(100);
-		for (int groupRow = 0; groupRow < nbGroups; groupRow++) {
-			
-			if(continueCb!=null && timer.isUpdate()){
-				continueCb.postStatusMessage("Building row " +(groupRow+1) + "/" + nbGroups+ " of group-by query table " + groupedTable.getName());
+		int nbNonGroupCols = nonGroupByFields.size();
+		final Object[][] nonGroupValues = new Object[nbGroups][];
+		final int[] failedCol = new int[nbGroups];
+		Arrays.fill(failedCol, -1);
+		final UpdateTimer timer = new UpdateTimer(100);
+		final AtomicInteger nbGroupsDone = new AtomicInteger();
+		int failedGroupRow = ParallelRowEvaluator.run(nbGroups, nonSortFormulae, (groupRow, threadFormulae) -> {
+			if(continueCb!=null){
+				synchronized (timer) {
+					if(timer.isUpdate()){
+						continueCb.postStatusMessage("Building row " +(nbGroupsDone.get()+1) + "/" + nbGroups+ " of group-by query table " + groupedTable.getName());
+					}
+				}
 			}
-			
-			for (int col : nonGroupByFields) {
+
+			Object[] values = new Object[nbNonGroupCols];
+			for (int i = 0; i < nbNonGroupCols; i++) {
+				int col = nonGroupByFields.get(i);
 
 				// execute formula against the grouped table; aggregate formulae redirect to source table
-				Object val = executeNonSortNonGroupByFormulaInGroupedTable(nonSortFormulae, groupedDsIndex, groupedTable, groupRow, col);
-				if (val == Functions.EXECUTION_ERROR) {
-					AdapterColumnConfig colObj = nonSortCols.getColumn(col);
-					report.setFailed("Error executing formula or reading field in grouping, destination field " + colObj.getName()
-						+ (!Strings.isEmpty(colObj.getFormula()) ? " with formula " + colObj.getFormula() + ".":"."));
-					return;
+				values[i] = executeNonSortNonGroupByFormulaInGroupedTable(threadFormulae, groupedDsIndex, groupedTable, groupRow, col);
+				if (values[i] == Functions.EXECUTION_ERROR) {
+					failedCol[groupRow] = col;
+					return false;
 				}
+			}
+			nonGroupValues[groupRow] = values;
+			nbGroupsDone.incrementAndGet();
 
-				// save the value to the grouped table
-				groupedTable.setValueAt(val, groupRow, col);
+			return continueCb == null || !continueCb.isCancelled();
+		});
 
-			}
-			
-			if(continueCb!=null && continueCb.isCancelled()){
+		if (failedGroupRow != -1) {
+			int col = failedCol[failedGroupRow];
+			if (col != -1) {
+				AdapterColumnConfig colObj = nonSortCols.getColumn(col);
+				report.setFailed("Error executing formula or reading field in grouping, destination field " + colObj.getName()
+					+ (!Strings.isEmpty(colObj.getFormula()) ? " with formula " + colObj.getFormula() + ".":"."));
+			} else {
 				report.setFailed("User cancelled the process.");
-				return;
+			}
+			return;
+		}
+
+		// save the values to the grouped table
+		for (int groupRow = 0; groupRow < nbGroups; groupRow++) {
+			for (int i = 0; i < nbNonGroupCols; i++) {
+				groupedTable.setValueAt(nonGroupValues[groupRow][i], groupRow, nonGroupByFields.get(i));
 			}
 		}
 
@@ -1,12 +1,17 @@
 package com.opendoorlogistics.core.scripts.execution.adapters;
 
 import gnu.trove.list.array.TLongArrayList;
-import gnu.trove.procedure.TLongProcedure;
+import gnu.trove.map.hash.TLongLongHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.procedure.TLongObjectProcedure;
 import gnu.trove.set.hash.TLongHashSet;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
+import java.util.stream.IntStream;
 
 import com.opendoorlogistics.api.ExecutionReport;
 import com.opendoorlogistics.api.geometry.ODLGeom;
@@ -29,8 +34,10 @@ import com.opendoorlogistics.core.scripts.formulae.FmLocalElement;
 import com.opendoorlogistics.core.scripts.formulae.FmRowDependent;
 import com.opendoorlogistics.core.scripts.formulae.TableParameters;
 import com.opendoorlogistics.core.tables.ColumnValueProcessor;
+import com.opendoorlogistics.core.tables.decorators.tables.FlatDs2TableObject;
 import com.opendoorlogistics.core.utils.strings.Strings;
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
 
 public class FilterFormulaOptimiser {
@@ -48,55 +55,184 @@ public class FilterFormulaOptimiser {
 	}
 	
 	private static interface LookupOptMethod{
-		long[] lookup(int outerRowIndex);
+		/**
+		 * Read whatever the lookup needs from the outer row. Called on the calling thread as it executes formulae.
+		 * @param outerRowIndex
+		 * @return Null if no inner rows can match the outer row
+		 */
+		Object prepare(int outerRowIndex);
+		
+		/**
+		 * Find the matching inner row ids. Called concurrently for different outer rows.
+		 * @param prepared
+		 * @return
+		 */
+		long[] lookup(Object prepared);
 	}
 	
-	private LookupOptMethod initOptMethod(FunctionRecord record,final ODLTableReadOnly outerTable,final ODLTableReadOnly innerTable,final ODLTable joinTable,final List<? extends ODLDatastore<? extends ODLTableReadOnly>> datasources,final int datastoreIndx, final ExecutionReport report){
+	/**
+	 * Outer tables with at least this many rows to look up have their lookups run in parallel
+	 */
+	private static final int MIN_PARALLEL_LOOKUPS = 8;
+	
+	/**
+	 * Identifies the latitude and longitude columns of an inner table, for {@link InnerPointsIndex}.
+	 * Tables in different datastores can share ids and names, so the key also holds the object storing 
+	 * the table (compared by identity and weakly referenced so the cache doesn't keep it alive).
+	 */
+	private static class InnerPointsKey{
+		final WeakReference<Object> owner;
+		final int ownerHash;
+		final int tableId;
+		final String tableName;
+		final String latitudeColumn;
+		final String longitudeColumn;
 		
-		final RowAdder adder = new RowAdder(outerTable, innerTable, joinTable, datasources, datastoreIndx, report);
+		InnerPointsKey(ODLTableReadOnly table, int latitudeCol, int longitudeCol){
+			// decorated datastores create a new table object on each call, so use the datastore
+			Object ownerObj = table instanceof FlatDs2TableObject ? ((FlatDs2TableObject)table).getFlatDatastore() : table;
+			this.owner = new WeakReference<Object>(ownerObj);
+			this.ownerHash = System.identityHashCode(ownerObj);
+			this.tableId = table.getImmutableId();
+			this.tableName = table.getName();
+			this.latitudeColumn = table.getColumnName(latitudeCol);
+			this.longitudeColumn = table.getColumnName(longitudeCol);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(ownerHash, tableId, tableName, latitudeColumn, longitudeColumn);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null || getClass() != obj.getClass())
+				return false;
+			InnerPointsKey other = (InnerPointsKey) obj;
+			Object ownerObj = owner.get();
+			if(ownerObj==null || ownerObj != other.owner.get()){
+				return false;
+			}
+			return tableId == other.tableId && Objects.equals(tableName, other.tableName) && Objects.equals(latitudeColumn, other.latitudeColumn)
+					&& Objects.equals(longitudeColumn, other.longitudeColumn);
+		}
+	}
+	
+	/**
+	 * The points of an inner table's rows and the quadtree built from them, kept between executions. 
+	 * A row's latitude and longitude are only re-read when its last modified time changes and the quadtree 
+	 * is only rebuilt if a point was added, moved or removed. Like the adapter formula cache, latitude and 
+	 * longitude columns calculated from other tables only see changes which also modify the inner table's row.
+	 */
+	private static class InnerPointsIndex{
+		final TLongObjectHashMap<Coordinate> points = new TLongObjectHashMap<>();
+		final TLongLongHashMap lastModified = new TLongLongHashMap();
+		FastContainedPointsQuadtree quadtree;
 		
-		if(record.get(OptMethod.UNPROJECTED_GEOMCONTAINS_WITH_OUTER_GEOM_INNER_LAT_LONG)){
-			
-			// read all lat longs by executing the functions
-			int nri = innerTable.getRowCount();
-			final FmGeomContains gc = (FmGeomContains)record.f;
-			FastContainedPointsQuadtree.Builder builder = new FastContainedPointsQuadtree.Builder();
-			for(int i =0 ; i < nri ; i++){
-				long id = innerTable.getRowId(i);
-				adder.add(-1, id);
-				Object lat = adder.executeReturnResult(gc.latitude());
-				Object lng = adder.executeReturnResult(gc.longitude());
-				if(processExecError(lat, report) || processExecError(lng, report)){
-					return null;
+		/**
+		 * Update from the inner table
+		 * @return False if a value couldn't be read as a number
+		 */
+		boolean update(ODLTableReadOnly table, int latitudeCol, int longitudeCol){
+			int n = table.getRowCount();
+			TLongHashSet ids = new TLongHashSet(n);
+			for(int i =0 ; i < n ; i++){
+				long id = table.getRowId(i);
+				ids.add(id);
+				long modified = table.getRowLastModifiedTimeMillsecs(id);
+				if(modified!=0 && lastModified.containsKey(id) && lastModified.get(id)==modified){
+					continue;
 				}
 				
+				Coordinate coordinate=null;
+				Object lat = table.getValueById(id, latitudeCol);
+				Object lng = table.getValueById(id, longitudeCol);
 				if(lat!=null && lng!=null){
 					Double dLat =(Double) ColumnValueProcessor.convertToMe(ODLColumnType.DOUBLE, lat);
 					Double dLng = (Double)ColumnValueProcessor.convertToMe(ODLColumnType.DOUBLE, lng);
 					if(dLat == null || dLng==null){
-						logExecError(report);
-						return null;
+						return false;
+					}
+					coordinate = new Coordinate(dLng, dLat);
+				}
+				
+				if(!Objects.equals(coordinate, points.get(id))){
+					quadtree = null;
+					if(coordinate!=null){
+						points.put(id, coordinate);						
+					}else{
+						points.remove(id);
+					}
+				}
+				lastModified.put(id, modified);
+			}
+			
+			// remove deleted rows
+			if(lastModified.size() > ids.size()){
+				for(long id : lastModified.keys()){
+					if(!ids.contains(id)){
+						lastModified.remove(id);
+						if(points.remove(id)!=null){
+							quadtree = null;
+						}
 					}
-					
-					builder.add(new Coordinate(dLng, dLat), id);
 				}
-				adder.removeLast();
 			}
 			
-			// try to get quadtree from the cache and build if not present
-			Object cacheKey = builder.buildCacheKey();
-			RecentlyUsedCache cache = ApplicationCache.singleton().get(ApplicationCache.FAST_CONTAINED_POINTS_QUADTREE);
-			FastContainedPointsQuadtree quadtree = (FastContainedPointsQuadtree)cache.get(cacheKey);
 			if(quadtree==null){
+				FastContainedPointsQuadtree.Builder builder = new FastContainedPointsQuadtree.Builder();
+				points.forEachEntry(new TLongObjectProcedure<Coordinate>() {
+
+					@Override
+					public boolean execute(long id, Coordinate coordinate) {
+						builder.add(coordinate, id);
+						return true;
+					}
+				});
 				quadtree = builder.build(new GeometryFactory());
-				cache.put(cacheKey, quadtree, quadtree.getEstimatedSizeInBytes());
+			}
+			return true;
+		}
+		
+		long getEstimatedSizeInBytes(){
+			return quadtree.getEstimatedSizeInBytes() + points.size() * (8 + 4*8 + 8) + lastModified.size() * 16;
+		}
+	}
+	
+	private LookupOptMethod initOptMethod(FunctionRecord record,final ODLTableReadOnly outerTable,final ODLTableReadOnly innerTable,final ODLTable joinTable,final List<? extends ODLDatastore<? extends ODLTableReadOnly>> datasources,final int datastoreIndx, final ExecutionReport report){
+		
+		final RowAdder adder = new RowAdder(outerTable, innerTable, joinTable, datasources, datastoreIndx, report);
+		
+		if(record.get(OptMethod.UNPROJECTED_GEOMCONTAINS_WITH_OUTER_GEOM_INNER_LAT_LONG)){
+			
+			// the lat longs are inner table columns (the inner columns follow the outer in the join table)
+			final FmGeomContains gc = (FmGeomContains)record.f;
+			int latCol = ((FmLocalElement)gc.latitude()).getColumnIndex() - adder.nco;
+			int lngCol = ((FmLocalElement)gc.longitude()).getColumnIndex() - adder.nco;
+			
+			// get the points index from the cache and update it for any modified rows
+			InnerPointsKey cacheKey = new InnerPointsKey(innerTable, latCol, lngCol);
+			RecentlyUsedCache cache = ApplicationCache.singleton().get(ApplicationCache.FAST_CONTAINED_POINTS_QUADTREE);
+			InnerPointsIndex index = (InnerPointsIndex)cache.get(cacheKey);
+			if(index==null){
+				index = new InnerPointsIndex();
+			}
+			final FastContainedPointsQuadtree quadtree;
+			synchronized (index) {
+				if(!index.update(innerTable, latCol, lngCol)){
+					logExecError(report);
+					return null;
+				}
+				quadtree = index.quadtree;
+				cache.put(cacheKey, index, index.getEstimatedSizeInBytes());
 			}
 			
-			final FastContainedPointsQuadtree finalQuadtree = quadtree;
 			return new LookupOptMethod() {
 				
 				@Override
-				public long[] lookup(int outerRowIndex) {
+				public Object prepare(int outerRowIndex) {
 					adder.add(outerTable.getRowId(outerRowIndex), -1);
 					Object ogem = adder.executeReturnResult(gc.geometry());	
 					if(processExecError(ogem, report)){
@@ -118,12 +254,17 @@ public class FilterFormulaOptimiser {
 							return null;
 						}
 						
-						TLongHashSet set = new TLongHashSet();
-						finalQuadtree.query(((ODLGeomImpl)odlGeom).getJTSGeometry(), set);
-						return set.toArray();
+						return ((ODLGeomImpl)odlGeom).getJTSGeometry();
 					}
 					return null;
 				}
+				
+				@Override
+				public long[] lookup(Object prepared) {
+					TLongHashSet set = new TLongHashSet();
+					quadtree.query((Geometry)prepared, set);
+					return set.toArray();
+				}
 			};
 		}
 		
@@ -382,7 +523,9 @@ public class FilterFormulaOptimiser {
 			}
 		}
 		
-		// then loop over outer table
+		// then loop over outer table, finding the outer rows which aren't filtered
+		TLongArrayList outerIds = new TLongArrayList(nro);
+		ArrayList<Object> prepared = new ArrayList<>(innerLookupOptMethod!=null ? nro : 0);
 		for(int outerRow=0; outerRow < nro && !report.isFailed(); outerRow++){
 
 			// Check if we can filter this outer row...
@@ -406,23 +549,49 @@ public class FilterFormulaOptimiser {
 				continue;
 			}
 			
-			if(!report.isFailed()){
-				if(innerLookupOptMethod!=null){
-					long[] innerIds = innerLookupOptMethod.lookup( outerRow);
-					if(innerIds!=null){
-						for(long irid : innerIds){
-							if(report.isFailed() || adder.addIfOK(orid,irid, true)==ERROR){
-								return;
-							}	
-						}
-					}					
-				}else{
-					for(int innerRow=0; innerRow < nri && !report.isFailed(); innerRow++){
-						if(adder.addIfOK(orid, innerTable.getRowId(innerRow), true)==ERROR){
-							return;
-						}
+			if(innerLookupOptMethod!=null){
+				Object p = innerLookupOptMethod.prepare(outerRow);
+				if(p!=null){
+					outerIds.add(orid);
+					prepared.add(p);
+				}
+			}else{
+				outerIds.add(orid);
+			}
+		}
+		if(report.isFailed()){
+			return;
+		}
+		
+		// run the lookups, which don't touch the join table, in parallel
+		final int nbOuter = outerIds.size();
+		long[][] lookedUp = null;
+		if(innerLookupOptMethod!=null){
+			final LookupOptMethod lookup = innerLookupOptMethod;
+			final long[][] results = new long[nbOuter][];
+			IntStream range = IntStream.range(0, nbOuter);
+			if(nbOuter >= MIN_PARALLEL_LOOKUPS){
+				range = range.parallel();
+			}
+			range.forEach(i -> results[i] = lookup.lookup(prepared.get(i)));
+			lookedUp = results;
+		}
+		
+		// then add the joined rows in outer row order
+		for(int i =0 ; i < nbOuter && !report.isFailed(); i++){
+			long orid = outerIds.get(i);
+			if(lookedUp!=null){
+				for(long irid : lookedUp[i]){
+					if(report.isFailed() || adder.addIfOK(orid,irid, true)==ERROR){
+						return;
 					}	
 				}
+			}else{
+				for(int innerRow=0; innerRow < nri && !report.isFailed(); innerRow++){
+					if(adder.addIfOK(orid, innerTable.getRowId(innerRow), true)==ERROR){
+						return;
+					}
+				}	
 			}
 		}
 
@@ -6,9 +6,6 @@
  ******************************************************************************/
 package com.opendoorlogistics.core.scripts.execution.adapters;
 
-import gnu.trove.list.array.TLongArrayList;
-import gnu.trove.map.hash.TLongObjectHashMap;
-
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.UUID;
@@ -50,6 +47,7 @@ import com.opendoorlogistics.core.scripts.formulae.FmParameter;
 import com.opendoorlogistics.core.scripts.formulae.FmRow;
 import com.opendoorlogistics.core.scripts.formulae.FmRowId;
 import com.opendoorlogistics.core.scripts.formulae.FmThis;
+import com.opendoorlogistics.core.scripts.formulae.GroupSourceRows;
 import com.opendoorlogistics.core.scripts.parameters.ParametersImpl;
 import com.opendoorlogistics.core.tables.beans.BeanMapping.BeanDatastoreMapping;
 import com.opendoorlogistics.core.tables.utils.ParametersTable;
@@ -115,7 +113,7 @@ final public class FunctionsBuilder {
 
 	}
 
-	public static void buildGroupAggregates(FunctionDefinitionLibrary library, final TLongObjectHashMap<TLongArrayList> groupRowIdToSourceRowIds,
+	public static void buildGroupAggregates(FunctionDefinitionLibrary library, final GroupSourceRows groupSourceRows,
 			final int srcDsIndex, final int srcTableId) {
 
 		// build standard group-bys
@@ -137,12 +135,12 @@ final public class FunctionsBuilder {
 			dfn.setDescription(type.getDescription());
 			library.add(dfn);
 
-			if (groupRowIdToSourceRowIds != null) {
+			if (groupSourceRows != null) {
 				dfn.setFactory(new FunctionFactory() {
 
 					@Override
 					public Function createFunction(Function... children) {
-						FmAggregate ret = new FmAggregate(groupRowIdToSourceRowIds, srcDsIndex, srcTableId, type, children);
+						FmAggregate ret = new FmAggregate(groupSourceRows, srcDsIndex, srcTableId, type, children);
 						return ret;
 					}
 				});
@@ -155,12 +153,12 @@ final public class FunctionsBuilder {
 		dfn.addArg("geometry_field");
 		dfn.addArg("weight_field");
 		dfn.addArg("EPSG_code");
-		if (groupRowIdToSourceRowIds != null) {
+		if (groupSourceRows != null) {
 			dfn.setFactory(new FunctionFactory() {
 
 				@Override
 				public Function createFunction(Function... children) {
-					return new FmGroupWeightedCentroid(groupRowIdToSourceRowIds, srcDsIndex, srcTableId, children[0], children[1], children[2]);
+					return new FmGroupWeightedCentroid(groupSourceRows, srcDsIndex, srcTableId, children[0], children[1], children[2]);
 				}
 			});
 		}
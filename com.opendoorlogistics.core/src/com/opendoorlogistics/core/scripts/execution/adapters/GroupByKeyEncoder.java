@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.core.scripts.execution.adapters;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import com.opendoorlogistics.api.tables.ODLColumnType;
+import com.opendoorlogistics.core.tables.ColumnValueProcessor;
+import com.opendoorlogistics.core.utils.strings.Strings;
+
+/**
+ * Assigns a group index to each multi-column group-by key. Keys match when their values are equal once converted
+ * to standardised strings, but each column keeps a dictionary from the typed value (long, double bits or raw string)
+ * to an integer id, so the string conversion only happens once per distinct value. The column ids are then combined
+ * pairwise using primitive hash maps, so encoding a key doesn't allocate.<br>
+ * Groups are numbered 0, 1, 2... in the order they are first seen. Not thread-safe.
+ *
+ * @author Phil
+ *
+ */
+final class GroupByKeyEncoder {
+	private static final int NO_ENTRY = -1;
+	private final ColumnDictionary[] columns;
+	private final TLongIntHashMap[] combinations;
+	private int nbGroups;
+
+	GroupByKeyEncoder(int nbColumns) {
+		columns = new ColumnDictionary[nbColumns];
+		for (int i = 0; i < nbColumns; i++) {
+			columns[i] = new ColumnDictionary();
+		}
+		combinations = new TLongIntHashMap[Math.max(nbColumns - 1, 0)];
+		for (int i = 0; i < combinations.length; i++) {
+			combinations[i] = newMap();
+		}
+	}
+
+	private static TLongIntHashMap newMap() {
+		return new TLongIntHashMap(Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, Long.MIN_VALUE, NO_ENTRY);
+	}
+
+	/**
+	 * Dictionary of the standardised string values in a single column
+	 */
+	private static class ColumnDictionary {
+		final TObjectIntHashMap<String> byStdString = new TObjectIntHashMap<>(Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, NO_ENTRY);
+		final TObjectIntHashMap<String> byRawString = new TObjectIntHashMap<>(Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, NO_ENTRY);
+		final TLongIntHashMap byLong = newMap();
+		final TLongIntHashMap byDoubleBits = newMap();
+
+		int encode(Object value) {
+			int ret;
+			if (value == null) {
+				ret = encodeStd(Strings.std(null));
+			} else if (value instanceof String) {
+				ret = byRawString.get(value);
+				if (ret == NO_ENTRY) {
+					ret = encodeStd(Strings.std((String) value));
+					byRawString.put((String) value, ret);
+				}
+			} else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+				long l = ((Number) value).longValue();
+				ret = byLong.get(l);
+				if (ret == NO_ENTRY) {
+					ret = encodeObject(value);
+					byLong.put(l, ret);
+				}
+			} else if (value instanceof Double || value instanceof Float) {
+				long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+				ret = byDoubleBits.get(bits);
+				if (ret == NO_ENTRY) {
+					ret = encodeObject(value);
+					byDoubleBits.put(bits, ret);
+				}
+			} else {
+				ret = encodeObject(value);
+			}
+			return ret;
+		}
+
+		private int encodeObject(Object value) {
+			return encodeStd(Strings.std((String) ColumnValueProcessor.convertToMe(ODLColumnType.STRING, value)));
+		}
+
+		private int encodeStd(String std) {
+			int ret = byStdString.get(std);
+			if (ret == NO_ENTRY) {
+				ret = byStdString.size();
+				byStdString.put(std, ret);
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * Get the group index of the key, which is a new index equal to {@link #getNbGroups()} - 1 if the key hasn't been seen before.
+	 *
+	 * @param values
+	 *            Key values, with column i read from values[offset + i]
+	 * @param offset
+	 * @return
+	 */
+	int encode(Object[] values, int offset) {
+		if (columns.length == 0) {
+			nbGroups = 1;
+			return 0;
+		}
+
+		int ret = columns[0].encode(values[offset]);
+		for (int i = 1; i < columns.length; i++) {
+			int id = columns[i].encode(values[offset + i]);
+			long pair = ((long) ret << 32) | (id & 0xFFFFFFFFL);
+			TLongIntHashMap map = combinations[i - 1];
+			int combined = map.get(pair);
+			if (combined == NO_ENTRY) {
+				combined = map.size();
+				map.put(pair, combined);
+			}
+			ret = combined;
+		}
+
+		if (ret == nbGroups) {
+			nbGroups++;
+		}
+		return ret;
+	}
+
+	int getNbGroups() {
+		return nbGroups;
+	}
+}
@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.core.scripts.execution.adapters;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.opendoorlogistics.core.formulae.Function;
+import com.opendoorlogistics.core.scripts.execution.ExecutionProfile;
+import com.opendoorlogistics.core.scripts.formulae.EvaluationBatch;
+
+/**
+ * Evaluates row-independent formulae over all rows of a table. Large tables are split into contiguous
+ * partitions which run on the fork-join common pool; small tables (or single core machines) are evaluated
+ * on the calling thread. The row task should store its results by row index so the output doesn't depend
+ * on the order the partitions run in, and mustn't modify any tables as all rows are one {@link EvaluationBatch}.<br>
+ * Each partition gets its own deep copy of the formulae. Functions which don't support deep copying are shared
+ * between partitions instead, which is safe as formulae don't hold state between calls to execute.
+ *
+ * @author Phil
+ *
+ */
+final class ParallelRowEvaluator {
+	static final int MIN_ROWS_PER_PARTITION = 2048;
+
+	interface RowTask {
+		/**
+		 * Evaluate the row
+		 *
+		 * @param row
+		 * @param formulae
+		 *            The formulae to use on this thread
+		 * @return False if the row failed, in which case later rows needn't be evaluated
+		 */
+		boolean evaluate(int row, Function[] formulae);
+	}
+
+	private ParallelRowEvaluator() {
+	}
+
+	static boolean isParallel(int nbRows) {
+		return nbRows >= 2 * MIN_ROWS_PER_PARTITION && ForkJoinPool.getCommonPoolParallelism() > 1;
+	}
+
+	/**
+	 * Evaluate all rows
+	 *
+	 * @param nbRows
+	 * @param formulae
+	 * @param task
+	 * @return The lowest failed row, or -1 if all rows succeeded
+	 */
+	static int run(int nbRows, Function[] formulae, RowTask task) {
+		int ret = evaluate(nbRows, formulae, task);
+		ExecutionProfile.countFormulaEvaluations(ret != -1 ? ret + 1 : nbRows);
+		return ret;
+	}
+
+	private static int evaluate(int nbRows, Function[] formulae, RowTask task) {
+		EvaluationBatch batch = new EvaluationBatch();
+		if (!isParallel(nbRows)) {
+			return batch.run(() -> {
+				for (int row = 0; row < nbRows; row++) {
+					if (!task.evaluate(row, formulae)) {
+						return row;
+					}
+				}
+				return -1;
+			});
+		}
+
+		// aim for a few partitions per thread so uneven rows balance out
+		int nbPartitions = Math.min(nbRows / MIN_ROWS_PER_PARTITION, 4 * ForkJoinPool.getCommonPoolParallelism());
+		AtomicInteger firstFailed = new AtomicInteger(Integer.MAX_VALUE);
+		List<Callable<Void>> partitions = new ArrayList<>(nbPartitions);
+		for (int i = 0; i < nbPartitions; i++) {
+			int start = (int) ((long) nbRows * i / nbPartitions);
+			int end = (int) ((long) nbRows * (i + 1) / nbPartitions);
+			partitions.add(() -> batch.run(() -> {
+				Function[] copies = copy(formulae);
+				for (int row = start; row < end && row < firstFailed.get(); row++) {
+					if (!task.evaluate(row, copies)) {
+						firstFailed.accumulateAndGet(row, Math::min);
+						break;
+					}
+				}
+				return null;
+			}));
+		}
+
+		for (Future<Void> future : ForkJoinPool.commonPool().invokeAll(partitions)) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw new RuntimeException(e.getCause());
+			}
+		}
+
+		int ret = firstFailed.get();
+		return ret != Integer.MAX_VALUE ? ret : -1;
+	}
+
+	private static Function[] copy(Function[] formulae) {
+		Function[] ret = new Function[formulae.length];
+		for (int i = 0; i < formulae.length; i++) {
+			ret[i] = formulae[i];
+			if (formulae[i] != null) {
+				try {
+					ret[i] = formulae[i].deepCopy();
+				} catch (UnsupportedOperationException e) {
+					// share the original instead
+				}
+			}
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,51 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.core.scripts.formulae;
+
+import java.util.function.Supplier;
+
+/**
+ * A batch of formula evaluations (e.g. an adapter's filter formula over every row) during which no tables
+ * are modified. Functions which index another table, like the lookupnearest formulae, only need to check
+ * their index is still valid once per batch instead of on every call. The batch is held per thread, so each
+ * thread evaluating part of the batch runs its part through {@link #run(Supplier)}.
+ *
+ * @author Phil
+ *
+ */
+public final class EvaluationBatch {
+	private static final ThreadLocal<EvaluationBatch> current = new ThreadLocal<>();
+
+	/**
+	 * Run the evaluations on this thread as part of the batch
+	 *
+	 * @param evaluations
+	 * @return
+	 */
+	public <T> T run(Supplier<T> evaluations) {
+		EvaluationBatch previous = current.get();
+		current.set(this);
+		try {
+			return evaluations.get();
+		} finally {
+			if (previous != null) {
+				current.set(previous);
+			} else {
+				current.remove();
+			}
+		}
+	}
+
+	/**
+	 * Get the batch this thread is evaluating, or null if none
+	 *
+	 * @return
+	 */
+	public static EvaluationBatch current() {
+		return current.get();
+	}
+}
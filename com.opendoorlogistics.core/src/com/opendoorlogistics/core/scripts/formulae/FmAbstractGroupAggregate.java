@@ -8,22 +8,19 @@
  ******************************************************************************/
 package com.opendoorlogistics.core.scripts.formulae;
 
-import gnu.trove.list.array.TLongArrayList;
-import gnu.trove.map.hash.TLongObjectHashMap;
-
 import com.opendoorlogistics.api.tables.ODLTableReadOnly;
 import com.opendoorlogistics.core.formulae.Function;
 import com.opendoorlogistics.core.formulae.FunctionImpl;
 import com.opendoorlogistics.core.formulae.FunctionParameters;
 
 public abstract class FmAbstractGroupAggregate extends FmRowDependent{
-	protected final TLongObjectHashMap<TLongArrayList> groupRowIdToSourceRowIds;
+	protected final GroupSourceRows groupSourceRows;
 	protected final int srcDsIndex;
 	protected final int srcTableId;
 
-	public FmAbstractGroupAggregate(TLongObjectHashMap<TLongArrayList> groupRowIdToSourceRowIds, int srcDsIndex, int srcTableId, Function... children) {
+	public FmAbstractGroupAggregate(GroupSourceRows groupSourceRows, int srcDsIndex, int srcTableId, Function... children) {
 		super(children);
-		this.groupRowIdToSourceRowIds = groupRowIdToSourceRowIds;
+		this.groupSourceRows = groupSourceRows;
 		this.srcDsIndex = srcDsIndex;
 		this.srcTableId = srcTableId;
 	}
@@ -67,13 +64,20 @@ public abstract class FmAbstractGroupAggregate extends FmRowDependent{
 
 	/**
 	 * @param parameters
-	 * @return
+	 * @return Index of the group in the grouped table, or -1 if unknown
 	 */
-	protected TLongArrayList getSourceRows(FunctionParameters parameters) {
-		// get id of the grouped row and use this to get the list of ungrouped (source) rows
+	protected int getGroupIndex(FunctionParameters parameters) {
+		// get id of the grouped row and use this to find the ungrouped (source) rows
 		long groupRowId =((TableParameters) parameters).getRowId();
-		TLongArrayList srcRowIds = groupRowIdToSourceRowIds.get(groupRowId);
-		return srcRowIds;
+		return groupSourceRows.getGroupIndex(groupRowId);
+	}
+
+	/**
+	 * @param groupIndex
+	 * @return Number of source rows in the group (0 if the group is unknown)
+	 */
+	protected int getSourceRowCount(int groupIndex) {
+		return groupIndex != -1 ? groupSourceRows.getSourceRowCount(groupIndex) : 0;
 	}
 
 }
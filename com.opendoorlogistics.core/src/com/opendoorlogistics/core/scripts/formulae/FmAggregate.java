@@ -6,9 +6,6 @@
  ******************************************************************************/
 package com.opendoorlogistics.core.scripts.formulae;
 
-import gnu.trove.list.array.TLongArrayList;
-import gnu.trove.map.hash.TLongObjectHashMap;
-
 import java.util.ArrayList;
 
 import com.opendoorlogistics.api.geometry.ODLGeom;
@@ -26,8 +23,8 @@ final public class FmAggregate extends FmAbstractGroupAggregate {
 	private final AggregateType type;
 
 	
-	public FmAggregate(TLongObjectHashMap<TLongArrayList> groupRowIdToSourceRowIds, int srcDsIndex, int srcTableId, AggregateType type, Function... children) {
-		super(groupRowIdToSourceRowIds,srcDsIndex,srcTableId,children);
+	public FmAggregate(GroupSourceRows groupSourceRows, int srcDsIndex, int srcTableId, AggregateType type, Function... children) {
+		super(groupSourceRows,srcDsIndex,srcTableId,children);
 		this.type = type;
 	}
 
@@ -85,10 +82,11 @@ final public class FmAggregate extends FmAbstractGroupAggregate {
 			return Functions.EXECUTION_ERROR;
 		}
 
-		TLongArrayList srcRowIds = getSourceRows(parameters);
+		int groupIndex = getGroupIndex(parameters);
+		int nbSrcRows = getSourceRowCount(groupIndex);
 
 		// process the case where no source rows available
-		if (srcRowIds == null || srcRowIds.size()==0) {
+		if (nbSrcRows==0) {
 			switch (type) {
 			case GROUPCOUNT:
 				return 0;
@@ -108,7 +106,7 @@ final public class FmAggregate extends FmAbstractGroupAggregate {
 		}
 
 		if (type == AggregateType.GROUPCOUNT) {
-			return (long) srcRowIds.size();
+			return (long) nbSrcRows;
 		}
 
 		// get source table
@@ -138,7 +136,7 @@ final public class FmAggregate extends FmAbstractGroupAggregate {
 			break;
 		
 		case GROUPGEOMUNION:
-			geoms = new ArrayList<>(srcRowIds.size());
+			geoms = new ArrayList<>(nbSrcRows);
 			
 			// if we're doing a groupby union we have a second parameter which is the ESPG code
 			Object child2Result = child(1).execute(parameters);
@@ -157,9 +155,8 @@ final public class FmAggregate extends FmAbstractGroupAggregate {
 
 
 		// parse all source rows
-		int nbSrcRows = srcRowIds.size();
 		for (int i = 0; i < nbSrcRows; i++) {
-			long srcRowId = srcRowIds.get(i);
+			long srcRowId = groupSourceRows.getSourceRowId(groupIndex, i);
 			if (srcTable.containsRowId(srcRowId)==false) {
 				return Functions.EXECUTION_ERROR;
 			}
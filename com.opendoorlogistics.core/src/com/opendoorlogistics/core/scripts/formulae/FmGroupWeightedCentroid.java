@@ -10,9 +10,6 @@ package com.opendoorlogistics.core.scripts.formulae;
 
 import java.util.ArrayList;
 
-import gnu.trove.list.array.TLongArrayList;
-import gnu.trove.map.hash.TLongObjectHashMap;
-
 import com.opendoorlogistics.api.geometry.ODLGeom;
 import com.opendoorlogistics.api.tables.ODLColumnType;
 import com.opendoorlogistics.api.tables.ODLTableReadOnly;
@@ -25,8 +22,8 @@ import com.opendoorlogistics.core.utils.Pair;
 
 public class FmGroupWeightedCentroid extends FmAbstractGroupAggregate {
 
-	public FmGroupWeightedCentroid(TLongObjectHashMap<TLongArrayList> groupRowIdToSourceRowIds, int srcDsIndex, int srcTableId, Function geometryField, Function weightField, Function espgCode) {
-		super(groupRowIdToSourceRowIds, srcDsIndex, srcTableId, geometryField,weightField,espgCode);
+	public FmGroupWeightedCentroid(GroupSourceRows groupSourceRows, int srcDsIndex, int srcTableId, Function geometryField, Function weightField, Function espgCode) {
+		super(groupSourceRows, srcDsIndex, srcTableId, geometryField,weightField,espgCode);
 	}
 
 	@Override
@@ -36,8 +33,9 @@ public class FmGroupWeightedCentroid extends FmAbstractGroupAggregate {
 			return Functions.EXECUTION_ERROR;
 		}
 
-		TLongArrayList srcRowIds = getSourceRows(parameters);
-		if (srcRowIds == null || srcRowIds.size()==0) {
+		int groupIndex = getGroupIndex(parameters);
+		int nbSrcRows = getSourceRowCount(groupIndex);
+		if (nbSrcRows==0) {
 			return null;
 		}
 		
@@ -48,10 +46,9 @@ public class FmGroupWeightedCentroid extends FmAbstractGroupAggregate {
 		}
 		
 		// execute the child formulae against all rows in this source table, getting geoms and weights
-		int nbSrcRows = srcRowIds.size();
 		ArrayList<Pair<ODLGeom, Double>> geoms = new ArrayList<>(nbSrcRows);		
 		for (int i = 0; i < nbSrcRows; i++) {
-			long srcRowId = srcRowIds.get(i);
+			long srcRowId = groupSourceRows.getSourceRowId(groupIndex, i);
 			if (srcTable.containsRowId(srcRowId)==false) {
 				return Functions.EXECUTION_ERROR;
 			}
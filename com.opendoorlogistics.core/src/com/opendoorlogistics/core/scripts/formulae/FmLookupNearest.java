@@ -6,11 +6,13 @@
  ******************************************************************************/
 package com.opendoorlogistics.core.scripts.formulae;
 
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
+
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 
-import org.apache.commons.collections.BinaryHeap;
 import org.geotools.geometry.jts.JTS;
 import org.opengis.referencing.operation.MathTransform;
 
@@ -42,6 +44,7 @@ import com.opendoorlogistics.core.tables.ColumnValueProcessor;
 import com.opendoorlogistics.core.utils.Numbers;
 import com.opendoorlogistics.core.utils.Pair;
 import com.opendoorlogistics.core.utils.strings.Strings;
+import com.opendoorlogistics.graphhopper.GreateCircleVincetty;
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
@@ -60,6 +63,7 @@ final public class FmLookupNearest extends FunctionImpl {
 	//private final Pair<Class<?>, String> cacheKey;
 	private final LCType type;
 	private ProcessedLookupReferences refs;
+	private volatile RowIndex rowIndex;
 
 	private FmLookupNearest(LCType type, String espg_srid, MathTransform transform, Function... children) {
 		super(children);
@@ -92,19 +96,6 @@ final public class FmLookupNearest extends FunctionImpl {
 			double halfHeight = 0.5 * env.getHeight();
 			envelopeRadius = Math.sqrt(halfWidth * halfWidth + halfHeight * halfHeight);
 		}
-
-		/**
-		 * Calculate the minimum separation using the bounding circle
-		 * 
-		 * @param cpg
-		 * @return
-		 */
-		double minimumSeparation(BoundingCircle cpg) {
-			double ret = envelopeCentre.distance(cpg.envelopeCentre);
-			ret -= envelopeRadius;
-			ret -= cpg.envelopeRadius;
-			return ret;
-		}
 	}
 
 	/**
@@ -274,6 +265,9 @@ final public class FmLookupNearest extends FunctionImpl {
 
 	private CachedProcessedGeom getLatLongFromExecution(FunctionParameters parameters, boolean transformed) {
 		LatLong ll = getLatLongFromExecution(parameters);
+		if (ll == null) {
+			return null;
+		}
 		return new CachedProcessedGeom(ll, transformed ? transform : null);
 	}
 
@@ -316,69 +310,133 @@ final public class FmLookupNearest extends FunctionImpl {
 	// return geom;
 	// }
 
-	private Object executeLL(FunctionParameters parameters, ODLTableReadOnly table) {
-		LatLong ll = getLatLongFromExecution(parameters);
-		if (ll == null) {
-			return Functions.EXECUTION_ERROR;
+	/**
+	 * Index over the other table's rows, built once and reused whilst the table's key column values are unchanged.
+	 * The index is immutable (apart from the batch it was last checked in) so lookups for different calling rows
+	 * can run in parallel.
+	 */
+	private static class RowIndex {
+		volatile EvaluationBatch checkedInBatch;
+		final ODLTableReadOnly table;
+		final Object[] keyValues;
+		final boolean criticalError;
+		final int[] rows;
+		final LatLong[] latLongs;
+		final CachedProcessedGeom[] geoms;
+		final LookupNearestTree tree;
+
+		RowIndex(ODLTableReadOnly table, Object[] keyValues, boolean criticalError, int[] rows, LatLong[] latLongs, CachedProcessedGeom[] geoms,
+				LookupNearestTree tree) {
+			this.table = table;
+			this.keyValues = keyValues;
+			this.criticalError = criticalError;
+			this.rows = rows;
+			this.latLongs = latLongs;
+			this.geoms = geoms;
+			this.tree = tree;
 		}
 
-		int nr = table.getRowCount();
-		int closestRow = -1;
-		double closest = Double.MAX_VALUE;
-		for (int row = 0; row < nr; row++) {
-			Pair<LatLong, Boolean> other = getLatLongFromRow(table, row);
-			if (other.getSecond() == false) {
-				// critical error
-				return Functions.EXECUTION_ERROR;
-			} else if (other.getFirst() != null) {
-				double dist = GreateCircle.greatCircleApprox(ll, other.getFirst());
-				if (dist < closest) {
-					closest = dist;
-					closestRow = row;
+		/**
+		 * Tables don't have a version number, so check the key values we indexed are unchanged.
+		 * This is a plain scan with no transforms or geometry operations.
+		 * 
+		 * @param other
+		 * @param columns
+		 * @return
+		 */
+		boolean isValidFor(ODLTableReadOnly other, int[] columns) {
+			if (other != table || other.getRowCount() * columns.length != keyValues.length) {
+				return false;
+			}
+
+			int nr = other.getRowCount();
+			int i = 0;
+			for (int row = 0; row < nr; row++) {
+				for (int col : columns) {
+					Object value = other.getValueAt(row, col);
+					Object indexed = keyValues[i++];
+					if (value != indexed && (value == null || !value.equals(indexed))) {
+						return false;
+					}
 				}
 			}
+			return true;
 		}
+	}
 
-		if (closestRow != -1) {
-			return getReturnObject(table, closestRow);
+	private int[] getKeyColumns() {
+		if (type == LCType.LL || type == LCType.GL) {
+			return new int[] { refs.columnIndices[0], refs.columnIndices[1] };
 		}
-
-		return null;
+		return new int[] { refs.columnIndices[0] };
 	}
 
-	@Override
-	public Object execute(FunctionParameters parameters) {
-		TableParameters tp = (TableParameters) parameters;
-		ODLTableReadOnly table = (ODLTableReadOnly) tp.getTableById(refs.datastoreIndx, refs.tableId);
+	/**
+	 * Get the index, checking the table's key values are unchanged once per evaluation batch
+	 * (or on every call outside a batch) and rebuilding it if they have changed
+	 * 
+	 * @param table
+	 * @return
+	 */
+	private RowIndex getRowIndex(ODLTableReadOnly table) {
+		EvaluationBatch batch = EvaluationBatch.current();
+		RowIndex ret = rowIndex;
+		if (ret != null && batch != null && ret.checkedInBatch == batch && ret.table == table) {
+			return ret;
+		}
 
-		if (type == LCType.LL) {
-			return executeLL(parameters, table);
+		int[] columns = getKeyColumns();
+		if (ret == null || !ret.isValidFor(table, columns)) {
+			synchronized (this) {
+				ret = rowIndex;
+				if (ret == null || !ret.isValidFor(table, columns)) {
+					ret = buildRowIndex(table, columns);
+					rowIndex = ret;
+				}
+			}
 		}
+		ret.checkedInBatch = batch;
+		return ret;
+	}
 
-		CachedProcessedGeom searchObject = getSearchGeom(parameters);
-		if (searchObject == null || searchObject.geometry == null) {
-			return Functions.EXECUTION_ERROR;
+	private RowIndex buildRowIndex(ODLTableReadOnly table, int[] columns) {
+		int nr = table.getRowCount();
+		Object[] keyValues = new Object[nr * columns.length];
+		for (int row = 0; row < nr; row++) {
+			for (int j = 0; j < columns.length; j++) {
+				keyValues[row * columns.length + j] = table.getValueAt(row, columns[j]);
+			}
 		}
 
-		class RowElement implements Comparable<RowElement>{
-			int row;
-			CachedProcessedGeom geom;
-			double minDistance;
-			
-			@Override
-			public int compareTo(RowElement o) {
-				int ret= Double.compare(minDistance, o.minDistance);
-				if(ret==0){
-					ret= Integer.compare(row, o.row);
+		if (type == LCType.LL) {
+			// index as points on the unit sphere
+			ArrayList<LatLong> lls = new ArrayList<>();
+			TIntArrayList rows = new TIntArrayList();
+			TDoubleArrayList centres = new TDoubleArrayList();
+			for (int row = 0; row < nr; row++) {
+				Pair<LatLong, Boolean> other = getLatLongFromRow(table, row);
+				if (other.getSecond() == false) {
+					// critical error
+					return new RowIndex(table, keyValues, true, null, null, null, null);
+				} else if (other.getFirst() != null) {
+					LatLong ll = other.getFirst();
+					if (isFinite(ll)) {
+						// non-finite positions have NaN distances so can never be the nearest
+						lls.add(ll);
+						rows.add(row);
+						centres.add(toUnitSphere(ll));
+					}
 				}
-				return ret;
 			}
+			return new RowIndex(table, keyValues, false, rows.toArray(), lls.toArray(new LatLong[lls.size()]), null,
+					new LookupNearestTree(3, centres.toArray(), null));
 		}
-		
-		// Get all geometries, transformed into the coord system and with bounding circles.
-		// Place them in a binary heap, sorted by their minimum possible distance according to bounding circle
-		int nr = table.getRowCount();
-		BinaryHeap sortedHeap = new BinaryHeap();
+
+		// index the bounding circles of the geometries transformed into the coord system
+		ArrayList<CachedProcessedGeom> geoms = new ArrayList<>();
+		TIntArrayList rows = new TIntArrayList();
+		TDoubleArrayList centres = new TDoubleArrayList();
+		TDoubleArrayList radii = new TDoubleArrayList();
 		for (int row = 0; row < nr; row++) {
 			CachedProcessedGeom otherGeom = null;
 			switch (type) {
@@ -386,31 +444,35 @@ final public class FmLookupNearest extends FunctionImpl {
 				Pair<LatLong, Boolean> result = getLatLongFromRow(table, row);
 				if (result.getSecond() == false) {
 					// critical error
-					return Functions.EXECUTION_ERROR;
+					return new RowIndex(table, keyValues, true, null, null, null, null);
 				} else if (result.getFirst() != null) {
 
 					LatLong ll = result.getFirst();
 
 					// put into our comparison object and convert
 					otherGeom = new CachedProcessedGeom(ll, transform);
+					if (otherGeom.geometry == null) {
+						// critical error
+						return new RowIndex(table, keyValues, true, null, null, null, null);
+					}
 				}
 				break;
 
 			case GG:
 			case LG: {
-				Object val = table.getValueAt(row, refs.columnIndices[0]);
+				Object val = keyValues[row];
 				if (val != null) {
 
 					ODLGeomImpl odlGeom = (ODLGeomImpl) ColumnValueProcessor.convertToMe(ODLColumnType.GEOM,val);
 					if (odlGeom == null) {
 						// critical error
-						return Functions.EXECUTION_ERROR;
+						return new RowIndex(table, keyValues, true, null, null, null, null);
 					}
 
 					otherGeom = toCoordSystem(odlGeom);
 					if (otherGeom == null || otherGeom.geometry == null) {
 						// critical error
-						return Functions.EXECUTION_ERROR;
+						return new RowIndex(table, keyValues, true, null, null, null, null);
 					}
 				}
 			}
@@ -419,36 +481,84 @@ final public class FmLookupNearest extends FunctionImpl {
 			}
 
 			if (otherGeom != null) {
-				RowElement rowElement = new RowElement();
-				rowElement.row = row;
-				rowElement.minDistance =  searchObject.boundingCircle.minimumSeparation(otherGeom.boundingCircle);
-				rowElement.geom = otherGeom;
-				sortedHeap.add(rowElement);
+				geoms.add(otherGeom);
+				rows.add(row);
+				centres.add(otherGeom.boundingCircle.envelopeCentre.x);
+				centres.add(otherGeom.boundingCircle.envelopeCentre.y);
+				radii.add(otherGeom.boundingCircle.envelopeRadius);
 			}
 		}
 
+		return new RowIndex(table, keyValues, false, rows.toArray(), null, geoms.toArray(new CachedProcessedGeom[geoms.size()]),
+				new LookupNearestTree(2, centres.toArray(), radii.toArray()));
+	}
 
-		// loop over the table
-		RowElement closest=null;
-		double closestDistance = Double.MAX_VALUE;
-		while(sortedHeap.size()>0){
-			RowElement row = (RowElement)sortedHeap.pop();
-			if(row.minDistance > closestDistance){
-				// We can stop searching now as the minimum possible distance is greater than our closest
-				break;
-			}
-			
-			// Explicitly get the distance
-			double distance = searchObject.geometry.distance(row.geom.geometry);
-			if(distance < closestDistance){
-				closestDistance = distance;
-				closest = row;
-			}
+	private static boolean isFinite(LatLong ll) {
+		return !Double.isNaN(ll.getLatitude()) && !Double.isInfinite(ll.getLatitude()) && !Double.isNaN(ll.getLongitude())
+				&& !Double.isInfinite(ll.getLongitude());
+	}
+
+	private static double[] toUnitSphere(LatLong ll) {
+		double lat = Math.toRadians(ll.getLatitude());
+		double lng = Math.toRadians(ll.getLongitude());
+		double cosLat = Math.cos(lat);
+		return new double[] { cosLat * Math.cos(lng), cosLat * Math.sin(lng), Math.sin(lat) };
+	}
+
+	private Object executeLL(FunctionParameters parameters, ODLTableReadOnly table) {
+		final LatLong ll = getLatLongFromExecution(parameters);
+		if (ll == null) {
+			return Functions.EXECUTION_ERROR;
+		}
+
+		final RowIndex index = getRowIndex(table);
+		if (index.criticalError) {
+			return Functions.EXECUTION_ERROR;
+		}
+
+		if (!isFinite(ll)) {
+			// all distances are NaN so nothing is nearest
+			return null;
+		}
+
+		// The straight-line distance through the sphere never exceeds the great circle distance, allowing a little for rounding
+		int closest = index.tree.nearestByPoint(toUnitSphere(ll), GreateCircleVincetty.EARTH_RADIUS_METRES * (1 - 1E-9), 1E-6,
+				element -> GreateCircle.greatCircleApprox(ll, index.latLongs[element]));
+
+		if (closest != -1) {
+			return getReturnObject(table, index.rows[closest]);
+		}
+
+		return null;
+	}
+
+	@Override
+	public Object execute(FunctionParameters parameters) {
+		TableParameters tp = (TableParameters) parameters;
+		ODLTableReadOnly table = (ODLTableReadOnly) tp.getTableById(refs.datastoreIndx, refs.tableId);
+
+		if (type == LCType.LL) {
+			return executeLL(parameters, table);
+		}
+
+		final CachedProcessedGeom searchObject = getSearchGeom(parameters);
+		if (searchObject == null || searchObject.geometry == null) {
+			return Functions.EXECUTION_ERROR;
+		}
+
+		final RowIndex index = getRowIndex(table);
+		if (index.criticalError) {
+			return Functions.EXECUTION_ERROR;
 		}
 
+		// Search the geometries in order of their minimum possible distance according to bounding circle,
+		// stopping when the minimum possible distance is greater than our closest
+		BoundingCircle circle = searchObject.boundingCircle;
+		int closest = index.tree.nearestByBoundingCircle(new double[] { circle.envelopeCentre.x, circle.envelopeCentre.y }, circle.envelopeRadius,
+				element -> searchObject.geometry.distance(index.geoms[element].geometry));
 
-		if(closest!=null){
-			return getReturnObject(table, closest.row);	
+		if (closest != -1) {
+			return getReturnObject(table, index.rows[closest]);
 		}
 
 		return null;
@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.core.scripts.formulae;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.map.hash.TLongIntHashMap;
+
+/**
+ * The source (ungrouped) row ids belonging to each row of a group-by table. All ids are held in a single
+ * array ordered by group, so each group's rows are a contiguous slice in their original order. This avoids
+ * holding a separate list object per group. Immutable once built and safe to read from several threads.
+ *
+ * @author Phil
+ *
+ */
+final public class GroupSourceRows {
+	private final TLongIntHashMap groupByRowId;
+	private final int[] starts;
+	private final long[] sourceRowIds;
+
+	/**
+	 * @param groupRowIds
+	 *            Row id of each group in the grouped table
+	 * @param sourceRowIds
+	 *            Source row ids, in their original order
+	 * @param groupOfSourceRow
+	 *            Index of the group each source row belongs to
+	 */
+	public GroupSourceRows(long[] groupRowIds, long[] sourceRowIds, int[] groupOfSourceRow) {
+		int nbGroups = groupRowIds.length;
+		groupByRowId = new TLongIntHashMap(Math.max(nbGroups, Constants.DEFAULT_CAPACITY), Constants.DEFAULT_LOAD_FACTOR, -1, -1);
+		for (int i = 0; i < nbGroups; i++) {
+			groupByRowId.put(groupRowIds[i], i);
+		}
+
+		// count the rows in each group and turn into start positions
+		starts = new int[nbGroups + 1];
+		for (int group : groupOfSourceRow) {
+			starts[group + 1]++;
+		}
+		for (int i = 0; i < nbGroups; i++) {
+			starts[i + 1] += starts[i];
+		}
+
+		// fill each group's slice, keeping the original order within a group
+		this.sourceRowIds = new long[sourceRowIds.length];
+		int[] next = new int[nbGroups];
+		System.arraycopy(starts, 0, next, 0, nbGroups);
+		for (int i = 0; i < sourceRowIds.length; i++) {
+			this.sourceRowIds[next[groupOfSourceRow[i]]++] = sourceRowIds[i];
+		}
+	}
+
+	/**
+	 * @param groupRowId
+	 * @return Index of the group or -1 if the row id isn't a group
+	 */
+	public int getGroupIndex(long groupRowId) {
+		return groupByRowId.get(groupRowId);
+	}
+
+	public int getSourceRowCount(int groupIndex) {
+		return starts[groupIndex + 1] - starts[groupIndex];
+	}
+
+	public long getSourceRowId(int groupIndex, int i) {
+		return sourceRowIds[starts[groupIndex] + i];
+	}
+}
@@ -0,0 +1,378 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.core.scripts.formulae;
+
+import java.util.Arrays;
+
+/**
+ * Static KD-tree over circles (a centre plus a radius) in 2 or more dimensions, used by the lookupnearest formulae.
+ * Elements are identified by the order they were added in. The tree is immutable once built and can be
+ * queried from several threads at once.
+ *
+ * @author Phil
+ *
+ */
+final class LookupNearestTree {
+	private static final int LEAF_SIZE = 8;
+
+	private final int dims;
+	private final int nbElements;
+	private final double[] centres;
+	private final double[] radii;
+
+	/**
+	 * Elements ordered so each node covers a contiguous range
+	 */
+	private final int[] order;
+
+	// node arrays
+	private int nbNodes;
+	private double[] nodeMin;
+	private double[] nodeMax;
+	private double[] nodeMaxRadius;
+	private int[] nodeStart;
+	private int[] nodeEnd;
+	private int[] nodeLeft;
+	private int[] nodeRight;
+
+	/**
+	 * Exact distance from the search object to an element
+	 */
+	interface ElementDistance {
+		double distance(int element);
+	}
+
+	/**
+	 * @param dims
+	 * @param centres
+	 *            Element centres, dims values per element
+	 * @param radii
+	 *            Element radii, or null if all elements are points
+	 */
+	LookupNearestTree(int dims, double[] centres, double[] radii) {
+		this.dims = dims;
+		this.nbElements = centres.length / dims;
+		this.centres = centres;
+		this.radii = radii != null ? radii : new double[nbElements];
+		this.order = new int[nbElements];
+		for (int i = 0; i < nbElements; i++) {
+			order[i] = i;
+		}
+
+		int capacity = Math.max(1, 2 * (nbElements / LEAF_SIZE + 1));
+		nodeMin = new double[capacity * dims];
+		nodeMax = new double[capacity * dims];
+		nodeMaxRadius = new double[capacity];
+		nodeStart = new int[capacity];
+		nodeEnd = new int[capacity];
+		nodeLeft = new int[capacity];
+		nodeRight = new int[capacity];
+		if (nbElements > 0) {
+			build(0, nbElements);
+		}
+	}
+
+	int size() {
+		return nbElements;
+	}
+
+	private int build(int start, int end) {
+		int node = nbNodes++;
+		if (node >= nodeStart.length) {
+			int newLength = nodeStart.length * 2;
+			nodeMin = Arrays.copyOf(nodeMin, newLength * dims);
+			nodeMax = Arrays.copyOf(nodeMax, newLength * dims);
+			nodeMaxRadius = Arrays.copyOf(nodeMaxRadius, newLength);
+			nodeStart = Arrays.copyOf(nodeStart, newLength);
+			nodeEnd = Arrays.copyOf(nodeEnd, newLength);
+			nodeLeft = Arrays.copyOf(nodeLeft, newLength);
+			nodeRight = Arrays.copyOf(nodeRight, newLength);
+		}
+		nodeStart[node] = start;
+		nodeEnd[node] = end;
+
+		// get bounds of the centres and the largest radius
+		Arrays.fill(nodeMin, node * dims, (node + 1) * dims, Double.POSITIVE_INFINITY);
+		Arrays.fill(nodeMax, node * dims, (node + 1) * dims, Double.NEGATIVE_INFINITY);
+		double maxRadius = 0;
+		for (int i = start; i < end; i++) {
+			int element = order[i];
+			for (int d = 0; d < dims; d++) {
+				double value = centres[element * dims + d];
+				nodeMin[node * dims + d] = Math.min(nodeMin[node * dims + d], value);
+				nodeMax[node * dims + d] = Math.max(nodeMax[node * dims + d], value);
+			}
+			maxRadius = Math.max(maxRadius, radii[element]);
+		}
+		nodeMaxRadius[node] = maxRadius;
+
+		if (end - start <= LEAF_SIZE) {
+			nodeLeft[node] = -1;
+			nodeRight[node] = -1;
+			return node;
+		}
+
+		// split on the median of the widest dimension
+		int splitDim = 0;
+		double widest = -1;
+		for (int d = 0; d < dims; d++) {
+			double width = nodeMax[node * dims + d] - nodeMin[node * dims + d];
+			if (width > widest) {
+				widest = width;
+				splitDim = d;
+			}
+		}
+		int mid = (start + end) >>> 1;
+		select(start, end - 1, mid, splitDim);
+
+		int left = build(start, mid);
+		int right = build(mid, end);
+		nodeLeft[node] = left;
+		nodeRight[node] = right;
+		return node;
+	}
+
+	/**
+	 * Quickselect so order[k] holds the element with the k-th smallest coordinate in the dimension
+	 */
+	private void select(int lo, int hi, int k, int dim) {
+		while (hi > lo) {
+			double pivot = centres[order[(lo + hi) >>> 1] * dims + dim];
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (centres[order[i] * dims + dim] < pivot) {
+					i++;
+				}
+				while (centres[order[j] * dims + dim] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					int tmp = order[i];
+					order[i] = order[j];
+					order[j] = tmp;
+					i++;
+					j--;
+				}
+			}
+			if (k <= j) {
+				hi = j;
+			} else if (k >= i) {
+				lo = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private double distanceToCentre(double[] point, int element) {
+		double sum = 0;
+		for (int d = 0; d < dims; d++) {
+			double delta = point[d] - centres[element * dims + d];
+			sum += delta * delta;
+		}
+		return Math.sqrt(sum);
+	}
+
+	/**
+	 * Distance to the node's bounding box of centres. This never exceeds the distance to a centre in the node, even after rounding.
+	 */
+	private double distanceToNodeBox(double[] point, int node) {
+		double sum = 0;
+		for (int d = 0; d < dims; d++) {
+			double delta = 0;
+			double min = nodeMin[node * dims + d];
+			double max = nodeMax[node * dims + d];
+			if (point[d] < min) {
+				delta = point[d] - min;
+			} else if (point[d] > max) {
+				delta = point[d] - max;
+			}
+			sum += delta * delta;
+		}
+		return Math.sqrt(sum);
+	}
+
+	/**
+	 * Find the nearest element by visiting elements in order of their minimum possible distance according to their bounding circles
+	 * (ties broken on the lowest element), stopping once the minimum possible distance exceeds the closest exact distance found. The
+	 * closest element is the first one visited with the lowest exact distance. This gives the same result as sorting all elements by
+	 * their minimum possible distance and searching them in turn.
+	 *
+	 * @param centre
+	 * @param radius
+	 *            Radius of the search object's bounding circle
+	 * @param exact
+	 * @return Closest element or -1 if none found
+	 */
+	int nearestByBoundingCircle(double[] centre, double radius, ElementDistance exact) {
+		if (nbElements == 0) {
+			return -1;
+		}
+
+		SearchHeap heap = new SearchHeap();
+		heap.add(distanceToNodeBox(centre, 0) - radius - nodeMaxRadius[0], 0, true);
+		int closest = -1;
+		double closestDistance = Double.MAX_VALUE;
+		while (heap.size > 0) {
+			if (heap.topKey() > closestDistance) {
+				// the minimum possible distance of everything left is greater than our closest
+				break;
+			}
+
+			boolean isNode = heap.topIsNode();
+			int id = heap.poll();
+			if (isNode) {
+				if (nodeLeft[id] != -1) {
+					heap.add(distanceToNodeBox(centre, nodeLeft[id]) - radius - nodeMaxRadius[nodeLeft[id]], nodeLeft[id], true);
+					heap.add(distanceToNodeBox(centre, nodeRight[id]) - radius - nodeMaxRadius[nodeRight[id]], nodeRight[id], true);
+				} else {
+					for (int i = nodeStart[id]; i < nodeEnd[id]; i++) {
+						int element = order[i];
+						heap.add(distanceToCentre(centre, element) - radius - radii[element], element, false);
+					}
+				}
+			} else {
+				double distance = exact.distance(id);
+				if (distance < closestDistance) {
+					closestDistance = distance;
+					closest = id;
+				}
+			}
+		}
+		return closest;
+	}
+
+	/**
+	 * Find the element with the lowest exact distance (ties broken on the lowest element) where the exact distance is known to be at
+	 * least lowerBoundScale x the euclidean distance between centres, less lowerBoundTolerance. Element radii are ignored.
+	 *
+	 * @param point
+	 * @param lowerBoundScale
+	 * @param lowerBoundTolerance
+	 * @param exact
+	 * @return Closest element or -1 if none found
+	 */
+	int nearestByPoint(double[] point, double lowerBoundScale, double lowerBoundTolerance, ElementDistance exact) {
+		if (nbElements == 0) {
+			return -1;
+		}
+
+		SearchHeap heap = new SearchHeap();
+		heap.add(distanceToNodeBox(point, 0) * lowerBoundScale - lowerBoundTolerance, 0, true);
+		int closest = -1;
+		double closestDistance = Double.MAX_VALUE;
+		while (heap.size > 0) {
+			if (heap.topKey() > closestDistance) {
+				break;
+			}
+
+			int node = heap.poll();
+			if (nodeLeft[node] != -1) {
+				heap.add(distanceToNodeBox(point, nodeLeft[node]) * lowerBoundScale - lowerBoundTolerance, nodeLeft[node], true);
+				heap.add(distanceToNodeBox(point, nodeRight[node]) * lowerBoundScale - lowerBoundTolerance, nodeRight[node], true);
+			} else {
+				for (int i = nodeStart[node]; i < nodeEnd[node]; i++) {
+					int element = order[i];
+					double distance = exact.distance(element);
+					if (distance < closestDistance || (distance == closestDistance && element < closest)) {
+						closestDistance = distance;
+						closest = element;
+					}
+				}
+			}
+		}
+		return closest;
+	}
+
+	/**
+	 * Binary min-heap of nodes and elements ordered by key, then nodes before elements, then lowest id
+	 */
+	private static class SearchHeap {
+		private double[] keys = new double[32];
+		private int[] ids = new int[32];
+		private boolean[] nodes = new boolean[32];
+		private int size;
+
+		private boolean less(int a, int b) {
+			int ret = Double.compare(keys[a], keys[b]);
+			if (ret == 0) {
+				if (nodes[a] != nodes[b]) {
+					return nodes[a];
+				}
+				return ids[a] < ids[b];
+			}
+			return ret < 0;
+		}
+
+		private void swap(int a, int b) {
+			double key = keys[a];
+			keys[a] = keys[b];
+			keys[b] = key;
+			int id = ids[a];
+			ids[a] = ids[b];
+			ids[b] = id;
+			boolean node = nodes[a];
+			nodes[a] = nodes[b];
+			nodes[b] = node;
+		}
+
+		void add(double key, int id, boolean isNode) {
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, size * 2);
+				ids = Arrays.copyOf(ids, size * 2);
+				nodes = Arrays.copyOf(nodes, size * 2);
+			}
+			int pos = size++;
+			keys[pos] = key;
+			ids[pos] = id;
+			nodes[pos] = isNode;
+			while (pos > 0) {
+				int parent = (pos - 1) >>> 1;
+				if (!less(pos, parent)) {
+					break;
+				}
+				swap(pos, parent);
+				pos = parent;
+			}
+		}
+
+		double topKey() {
+			return keys[0];
+		}
+
+		boolean topIsNode() {
+			return nodes[0];
+		}
+
+		int poll() {
+			int ret = ids[0];
+			size--;
+			if (size > 0) {
+				keys[0] = keys[size];
+				ids[0] = ids[size];
+				nodes[0] = nodes[size];
+				int pos = 0;
+				while (true) {
+					int child = 2 * pos + 1;
+					if (child >= size) {
+						break;
+					}
+					if (child + 1 < size && less(child + 1, child)) {
+						child++;
+					}
+					if (!less(child, pos)) {
+						break;
+					}
+					swap(pos, child);
+					pos = child;
+				}
+			}
+			return ret;
+		}
+	}
+}
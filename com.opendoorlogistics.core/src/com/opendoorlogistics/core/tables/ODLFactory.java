@@ -9,6 +9,7 @@ package com.opendoorlogistics.core.tables;
 import com.opendoorlogistics.api.tables.ODLDatastoreAlterable;
 import com.opendoorlogistics.api.tables.ODLTableAlterable;
 import com.opendoorlogistics.api.tables.ODLTableDefinitionAlterable;
+import com.opendoorlogistics.core.tables.memory.ODLColumnarTableImpl;
 import com.opendoorlogistics.core.tables.memory.ODLDatastoreImpl;
 import com.opendoorlogistics.core.tables.memory.ODLTableImpl;
 
@@ -31,6 +32,18 @@ public class ODLFactory {
 		return ret;
 	}
 	
+	/**
+	 * Create an empty datastore whose tables store their values by column
+	 * rather than by row. This uses far less memory for tables with millions of rows,
+	 * but inserting or deleting rows other than at the end of a table is slower.
+	 * @return
+	 */
+	public static ODLDatastoreAlterable<ODLTableAlterable> createColumnarAlterable(){
+		ODLDatastoreImpl<ODLTableAlterable> ret = new ODLDatastoreImpl<>(
+				ODLColumnarTableImpl.ODLTableAlterableFactory);
+		return ret;
+	}
+	
 	public static ODLTableAlterable createAlterableTable(String tablename){
 		return createAlterable().createTable(tablename, -1);
 	}
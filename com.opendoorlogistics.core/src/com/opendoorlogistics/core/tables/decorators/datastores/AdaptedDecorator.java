@@ -8,9 +8,15 @@ package com.opendoorlogistics.core.tables.decorators.datastores;
 
 import gnu.trove.map.hash.TIntObjectHashMap;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import com.opendoorlogistics.api.Func;
 import com.opendoorlogistics.api.Tables;
@@ -19,6 +25,7 @@ import com.opendoorlogistics.api.tables.ODLColumnType;
 import com.opendoorlogistics.api.tables.ODLDatastore;
 import com.opendoorlogistics.api.tables.ODLDatastoreAlterable;
 import com.opendoorlogistics.api.tables.ODLListener;
+import com.opendoorlogistics.api.tables.ODLListener.ODLListenerType;
 import com.opendoorlogistics.api.tables.ODLTable;
 import com.opendoorlogistics.api.tables.ODLTableAlterable;
 import com.opendoorlogistics.api.tables.ODLTableDefinition;
@@ -27,7 +34,10 @@ import com.opendoorlogistics.api.tables.ODLTableReadOnly;
 import com.opendoorlogistics.api.tables.TableFlags;
 import com.opendoorlogistics.api.tables.TableQuery;
 import com.opendoorlogistics.api.tables.TableQuery.SpatialTableQuery;
+import com.opendoorlogistics.core.AppProperties;
 import com.opendoorlogistics.core.api.impl.ODLApiImpl;
+import com.opendoorlogistics.core.cache.ApplicationCache;
+import com.opendoorlogistics.core.cache.CacheStatistics;
 import com.opendoorlogistics.core.formulae.Function;
 import com.opendoorlogistics.core.formulae.FunctionParameters;
 import com.opendoorlogistics.core.formulae.Functions;
@@ -37,6 +47,7 @@ import com.opendoorlogistics.core.geometry.SpatialTableQueryImpl;
 import com.opendoorlogistics.core.geometry.functions.FmLatitude;
 import com.opendoorlogistics.core.geometry.functions.FmLongitude;
 import com.opendoorlogistics.core.geometry.operations.OneByOneSpatialQuery;
+import com.opendoorlogistics.core.scripts.execution.ExecutionProfile;
 import com.opendoorlogistics.core.scripts.formulae.FmLocalElement;
 import com.opendoorlogistics.core.scripts.formulae.TableParameters;
 import com.opendoorlogistics.core.scripts.formulae.TableParameters.TableFetcher;
@@ -58,6 +69,7 @@ import com.sun.corba.se.impl.oa.toa.TOA;
 final public class AdaptedDecorator<T extends ODLTableDefinition> extends AbstractDecorator<T> {
 	private final AdapterMapping mapping;
 	private final List<ODLDatastore<? extends T>> sources;
+	private volatile FormulaCache formulaCache;
 
 	public static class AdapterMapping {
 		private final ODLDatastore<? extends ODLTableDefinition> outputDs;
@@ -240,6 +252,225 @@ final public class AdaptedDecorator<T extends ODLTableDefinition> extends Abstra
 		}
 	}
 
+	/**
+	 * Cache of evaluated formula values, keyed by destination table, column and row id.
+	 * Values are stored after conversion to the destination column type, together with the
+	 * source row's last modified time when they were evaluated. Gets and puts don't lock, so
+	 * concurrent reads of the adapter aren't serialised. Each value records the cache generation
+	 * it was evaluated in and values from before the last invalidation are ignored, so a put
+	 * racing an invalidation can't leave a stale value behind.<br>
+	 * The number of cells held over all formula caches is limited by the application property
+	 * {@link AppProperties#ADAPTERS_FORMULA_CACHE_MAX_CELLS}; once it is reached new values are evaluated
+	 * but not stored. The combined statistics are shown in the {@link ApplicationCache} usage report.
+	 */
+	private static class FormulaCache {
+		private static final long DEFAULT_MAX_CELLS = 1000000;
+		private static final long ESTIMATED_BYTES_PER_CELL = 100;
+		private static final AtomicLong totalCells = new AtomicLong();
+		private static final LongAdder totalHits = new LongAdder();
+		private static final LongAdder totalMisses = new LongAdder();
+		private static final LongAdder totalRefused = new LongAdder();
+		private static final ReferenceQueue<FormulaCache> collected = new ReferenceQueue<>();
+		private static final Set<CellCount> liveCaches = ConcurrentHashMap.newKeySet();
+		private static volatile long maxCells = DEFAULT_MAX_CELLS;
+
+		private final ConcurrentHashMap<Long, ConcurrentHashMap<Long, CachedValue>> columns = new ConcurrentHashMap<>();
+		private final List<Runnable> listenerRemovers = new ArrayList<>();
+		private final CellCount cellCount;
+		private volatile long generation;
+
+		static {
+			ApplicationCache.singleton().registerStatistics(ApplicationCache.ADAPTER_FORMULA_CACHE, new CacheStatistics() {
+
+				@Override
+				public long getEstimatedTotalBytes() {
+					return getEntryCount() * ESTIMATED_BYTES_PER_CELL;
+				}
+
+				@Override
+				public long getEntryCount() {
+					releaseCollected();
+					return totalCells.get();
+				}
+
+				@Override
+				public long getHitCount() {
+					return totalHits.sum();
+				}
+
+				@Override
+				public long getMissCount() {
+					return totalMisses.sum();
+				}
+
+				@Override
+				public long getEvictionCount() {
+					return totalRefused.sum();
+				}
+			});
+		}
+
+		/**
+		 * Number of cells held by a cache, which is still available to release from the total once the cache has been garbage collected
+		 */
+		private static class CellCount extends WeakReference<FormulaCache> {
+			final AtomicLong cells = new AtomicLong();
+
+			CellCount(FormulaCache cache) {
+				super(cache, collected);
+			}
+		}
+
+		FormulaCache() {
+			maxCells = AppProperties.getDouble(AppProperties.ADAPTERS_FORMULA_CACHE_MAX_CELLS, DEFAULT_MAX_CELLS).longValue();
+			cellCount = new CellCount(this);
+			liveCaches.add(cellCount);
+			releaseCollected();
+		}
+
+		private static void releaseCollected() {
+			Reference<? extends FormulaCache> ref;
+			while ((ref = collected.poll()) != null) {
+				CellCount count = (CellCount) ref;
+				if (liveCaches.remove(count)) {
+					totalCells.addAndGet(-count.cells.getAndSet(0));
+				}
+			}
+		}
+
+		private boolean reserveCell() {
+			if (totalCells.get() >= maxCells) {
+				releaseCollected();
+				if (totalCells.get() >= maxCells) {
+					totalRefused.increment();
+					return false;
+				}
+			}
+			totalCells.incrementAndGet();
+			cellCount.cells.incrementAndGet();
+			return true;
+		}
+
+		private void releaseCells() {
+			totalCells.addAndGet(-cellCount.cells.getAndSet(0));
+		}
+
+		private static class CachedValue {
+			final long generation;
+			final long rowLastModified;
+			final Object value;
+
+			CachedValue(long generation, long rowLastModified, Object value) {
+				this.generation = generation;
+				this.rowLastModified = rowLastModified;
+				this.value = value;
+			}
+		}
+
+		private static long columnKey(int tableId, int col) {
+			return ((long) tableId << 32) | (col & 0xFFFFFFFFL);
+		}
+
+		/**
+		 * Get the cached value or return the cache itself if not available
+		 */
+		Object get(int tableId, int col, long rowId, long rowLastModified) {
+			ConcurrentHashMap<Long, CachedValue> column = columns.get(columnKey(tableId, col));
+			CachedValue cached = column != null ? column.get(rowId) : null;
+			if (cached != null && cached.generation == generation && cached.rowLastModified == rowLastModified) {
+				totalHits.increment();
+				return cached.value;
+			}
+			totalMisses.increment();
+			return this;
+		}
+
+		/**
+		 * Store the value unless the cache was invalidated after the evaluation started,
+		 * or it's a new cell and the formula caches are full
+		 */
+		void put(long evaluationGeneration, int tableId, int col, long rowId, long rowLastModified, Object value) {
+			if (evaluationGeneration != generation) {
+				return;
+			}
+			ConcurrentHashMap<Long, CachedValue> column = columns.computeIfAbsent(columnKey(tableId, col), k -> new ConcurrentHashMap<>());
+			CachedValue cached = new CachedValue(evaluationGeneration, rowLastModified, value);
+			if (column.replace(rowId, cached) == null && reserveCell()) {
+				if (column.putIfAbsent(rowId, cached) != null) {
+					// another thread stored the cell first
+					column.put(rowId, cached);
+					cellCount.cells.decrementAndGet();
+					totalCells.decrementAndGet();
+				}
+			}
+		}
+
+		synchronized void invalidate() {
+			generation++;
+			columns.clear();
+			releaseCells();
+		}
+
+		/**
+		 * Listen to the datastore, and any datastores an adapter is built on (as adapters don't fire their own listeners).
+		 * The listeners only hold a weak reference to the cache and remove themselves once it has gone.
+		 */
+		void listenTo(ODLDatastore<?> ds) {
+			if (ds instanceof AdaptedDecorator) {
+				for (ODLDatastore<?> source : ((AdaptedDecorator<?>) ds).sources) {
+					listenTo(source);
+				}
+				return;
+			}
+
+			WeakReference<FormulaCache> ref = new WeakReference<>(this);
+			for (ODLListenerType type : ODLListenerType.values()) {
+				ODLListener listener = new ODLListener() {
+
+					@Override
+					public void tableChanged(int tableId, int firstRow, int lastRow) {
+						invalidateOrRemove();
+					}
+
+					@Override
+					public void datastoreStructureChanged() {
+						invalidateOrRemove();
+					}
+
+					private void invalidateOrRemove() {
+						FormulaCache cache = ref.get();
+						if (cache != null) {
+							cache.invalidate();
+						} else {
+							ds.removeListener(this);
+						}
+					}
+
+					@Override
+					public ODLListenerType getType() {
+						return type;
+					}
+				};
+				ds.addListener(listener, -1);
+				listenerRemovers.add(() -> ds.removeListener(listener));
+			}
+		}
+
+		/**
+		 * Stop listening and release the cache's cells from the total
+		 */
+		synchronized void dispose() {
+			for (Runnable remover : listenerRemovers) {
+				remover.run();
+			}
+			listenerRemovers.clear();
+			generation++;
+			columns.clear();
+			releaseCells();
+			liveCaches.remove(cellCount);
+		}
+	}
+
 	public AdaptedDecorator(AdapterMapping mapping, T table) {
 		this(mapping, wrapInDs(table));
 	}
@@ -261,6 +492,33 @@ final public class AdaptedDecorator<T extends ODLTableDefinition> extends Abstra
 		this.sources = sources;
 	}
 
+	/**
+	 * Evaluate each formula column once per row and cache the result, instead of evaluating the formula on every read.
+	 * Cached values are dropped when the source datastores fire their listeners, and a row's values are
+	 * re-evaluated when the source row's last modified time changes. Formulae which read other tables (e.g. lookups)
+	 * only see changes in those tables if their datastore supports listeners.
+	 * 
+	 * @param materialise
+	 */
+	public synchronized void setMaterialiseFormulae(boolean materialise) {
+		if (materialise && formulaCache == null) {
+			FormulaCache cache = new FormulaCache();
+			for (ODLDatastore<? extends T> source : sources) {
+				if (source != null) {
+					cache.listenTo(source);
+				}
+			}
+			formulaCache = cache;
+		} else if (!materialise && formulaCache != null) {
+			formulaCache.dispose();
+			formulaCache = null;
+		}
+	}
+
+	public boolean isMaterialiseFormulae() {
+		return formulaCache != null;
+	}
+
 	@Override
 	public int getTableCount() {
 		return mapping.getDestinationModel().getTableCount();
@@ -357,11 +615,21 @@ final public class AdaptedDecorator<T extends ODLTableDefinition> extends Abstra
 	 */
 	private Object getValue(final int destinationTableId,final long originalRowId,final int rowIndex,final int columnIndex) {
 		TableFetcher tableFetcher = TableParameters.createTableFetcher(sources);
-		return getValue(destinationTableId, originalRowId, rowIndex, columnIndex, tableFetcher);
+		return getValue(destinationTableId, originalRowId, rowIndex, columnIndex, tableFetcher, formulaCache);
 	}
 
+	/**
+	 * @param destinationTableId
+	 * @param originalRowId
+	 * @param rowIndex
+	 * @param columnIndex
+	 * @param srcTableFetcher
+	 * @param cache
+	 *            Cache for formula values, or null if not caching (e.g. when the fetcher returns a query result instead of the source)
+	 * @return
+	 */
 	private Object getValue(final int destinationTableId, final long originalRowId, final int rowIndex, final int columnIndex,
-			TableFetcher srcTableFetcher) {
+			TableFetcher srcTableFetcher, FormulaCache cache) {
 		
 		ODLTableReadOnly srcTable=null;
 		int ds = mapping.getSourceDatasourceIndx(destinationTableId);
@@ -384,6 +652,17 @@ final public class AdaptedDecorator<T extends ODLTableDefinition> extends Abstra
 			if (rowId == -1) {
 				rowId = ((ODLTableReadOnly) srcTable).getRowId(rowIndex);
 			}
+
+			long rowLastModified = 0;
+			long cacheGeneration = 0;
+			if (cache != null) {
+				rowLastModified = srcTable.getRowLastModifiedTimeMillsecs(rowId);
+				cacheGeneration = cache.generation;
+				Object cached = cache.get(destinationTableId, columnIndex, rowId, rowLastModified);
+				if (cached != cache) {
+					return cached;
+				}
+			}
 			
 			// create the 'this row' object so formula can reference other formula in the same table adapter
 			ODLRowReadOnly thisRow = new ODLRowReadOnly() {
@@ -413,6 +692,7 @@ final public class AdaptedDecorator<T extends ODLTableDefinition> extends Abstra
 
 			FunctionParameters parameters = new TableParameters(srcTableFetcher, mapping.getSourceDatasourceIndx(destinationTableId), mapping.getSourceTableId(destinationTableId), rowId, rowIndex, thisRow);
 			ret = formula.execute(parameters);
+			ExecutionProfile.countFormulaEvaluations(1);
 			if (ret == Functions.EXECUTION_ERROR) {
 				ret = null;
 			}
@@ -421,6 +701,10 @@ final public class AdaptedDecorator<T extends ODLTableDefinition> extends Abstra
 			if (ret != null) {
 				ret = getConvertedType(ret, null, destTable, columnIndex);
 			}
+
+			if (cache != null) {
+				cache.put(cacheGeneration, destinationTableId, columnIndex, rowId, rowLastModified, ret);
+			}
 		} else if (srcTable != null && srcCol != -1) {
 			if (rowId != -1) {
 				ret = ((ODLTableReadOnly) srcTable).getValueById(rowId, srcCol);
@@ -821,7 +1105,7 @@ final public class AdaptedDecorator<T extends ODLTableDefinition> extends Abstra
 		for(int queryResultRow = 0; queryResultRow < nQueryResultRow ; queryResultRow++){
 			int outRow = ret.createEmptyRow(srcQuery.getRowId(queryResultRow));
 			for(int destCol = 0 ; destCol < nDestCol ; destCol++){
-				Object value = getValue(tableId, -1, queryResultRow, destCol, fetcher);
+				Object value = getValue(tableId, -1, queryResultRow, destCol, fetcher, null);
 				ret.setValueAt(value, outRow, destCol);
 			}
 		}
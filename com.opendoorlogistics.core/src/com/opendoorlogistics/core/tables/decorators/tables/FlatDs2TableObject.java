@@ -24,6 +24,10 @@ public class FlatDs2TableObject implements ODLTableAlterable {
 		this.tableId = id;
 	}
 
+	public ODLFlatDatastore getFlatDatastore() {
+		return fds;
+	}
+
 	@Override
 	public void setValueAt(Object aValue, int rowIndex, int columnIndex) {
 		fds.setValueAt(tableId, aValue, rowIndex, columnIndex);
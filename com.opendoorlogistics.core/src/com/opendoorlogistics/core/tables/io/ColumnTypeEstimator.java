@@ -14,11 +14,15 @@ import com.opendoorlogistics.api.tables.ODLColumnType;
 import com.opendoorlogistics.core.tables.ColumnValueProcessor;
 import com.opendoorlogistics.core.utils.strings.Strings;
 
-class ColumnTypeEstimator {
+/**
+ * Estimates the type of a column of text values, choosing the first standard type every non-empty value converts to
+ * (or string if none). Dates and images are never chosen.
+ */
+public class ColumnTypeEstimator {
 	private int nbNonEmptyVals = 0;
 	private boolean[] okByType = new boolean[ODLColumnType.values().length];
 	
-	ColumnTypeEstimator() {
+	public ColumnTypeEstimator() {
 		Arrays.fill(okByType, true);
 		okByType[ODLColumnType.STRING.ordinal()] = false; // disable string as we select it by default
 		
@@ -37,7 +41,7 @@ class ColumnTypeEstimator {
 		}
 	}
 	
-	void processValue(String value){
+	public void processValue(String value){
 		if (Strings.isEmpty(value) == false) {
 			nbNonEmptyVals++;
 			for (ODLColumnType otherType : ODLColumnType.standardTypes()) {
@@ -48,7 +52,7 @@ class ColumnTypeEstimator {
 		}
 	}
 	
-	ODLColumnType getEstimatedType(){
+	public ODLColumnType getEstimatedType(){
 		ODLColumnType selectedType = ODLColumnType.STRING;		
 		if (nbNonEmptyVals > 0) {
 			// if we had non empty values pick the first non-string type that converted for all
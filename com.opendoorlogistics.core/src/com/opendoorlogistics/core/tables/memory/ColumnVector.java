@@ -0,0 +1,423 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.core.tables.memory;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import java.awt.Color;
+import java.util.ArrayList;
+
+import com.opendoorlogistics.api.tables.ODLColumnType;
+import com.opendoorlogistics.api.tables.ODLTime;
+
+/**
+ * Storage for the values of a single column in a {@link ODLColumnarTableImpl}.
+ * Values passed in are assumed to have already been converted to the column's type.
+ * @author Phil
+ *
+ */
+abstract class ColumnVector {
+
+	abstract int size();
+
+	abstract Object get(int row);
+
+	/**
+	 * Set the value, returning false if the value cannot be encoded
+	 * by this vector (in which case the vector should be widened
+	 * to an {@link ObjectVector}).
+	 * @param row
+	 * @param value
+	 * @return
+	 */
+	abstract boolean set(int row, Object value);
+
+	abstract void insertNull(int row);
+
+	abstract void remove(int row);
+
+	abstract ColumnVector deepCopy();
+
+	/**
+	 * Create the most compact vector for the column type, filled with nulls
+	 * @param type
+	 * @param nbRows
+	 * @return
+	 */
+	static ColumnVector create(ODLColumnType type, int nbRows) {
+		ColumnVector ret;
+		switch (type) {
+		case DOUBLE:
+			ret = new DoubleVector(nbRows);
+			break;
+
+		case LONG:
+			ret = new LongVector(nbRows);
+			break;
+
+		case TIME:
+			ret = new TimeVector(nbRows);
+			break;
+
+		case COLOUR:
+			ret = new ColourVector(nbRows);
+			break;
+
+		case STRING:
+			ret = new DictionaryStringVector(nbRows);
+			break;
+
+		default:
+			ret = new ObjectVector(nbRows);
+			break;
+		}
+
+		for (int i = 0; i < nbRows; i++) {
+			ret.insertNull(i);
+		}
+		return ret;
+	}
+
+	/**
+	 * Copy all values into a vector which can hold any object
+	 * @return
+	 */
+	ObjectVector toObjectVector() {
+		int n = size();
+		ObjectVector ret = new ObjectVector(n);
+		for (int i = 0; i < n; i++) {
+			ret.values.add(get(i));
+		}
+		return ret;
+	}
+
+	/**
+	 * Fallback storage holding boxed values
+	 */
+	static class ObjectVector extends ColumnVector {
+		private final ArrayList<Object> values;
+
+		ObjectVector(int capacity) {
+			values = new ArrayList<>(capacity);
+		}
+
+		@Override
+		int size() {
+			return values.size();
+		}
+
+		@Override
+		Object get(int row) {
+			return values.get(row);
+		}
+
+		@Override
+		boolean set(int row, Object value) {
+			values.set(row, value);
+			return true;
+		}
+
+		@Override
+		void insertNull(int row) {
+			values.add(row, null);
+		}
+
+		@Override
+		void remove(int row) {
+			values.remove(row);
+		}
+
+		@Override
+		ColumnVector deepCopy() {
+			// values should be treated as immutable, copying ref should be safe
+			ObjectVector ret = new ObjectVector(values.size());
+			ret.values.addAll(values);
+			return ret;
+		}
+
+		@Override
+		ObjectVector toObjectVector() {
+			return this;
+		}
+	}
+
+	/**
+	 * Base class for any type which can be encoded in a primitive long,
+	 * using a reserved long value to represent null
+	 */
+	static abstract class PrimitiveLongVector extends ColumnVector {
+		protected final TLongArrayList values;
+
+		PrimitiveLongVector(int capacity) {
+			values = new TLongArrayList(Math.max(capacity, 10));
+		}
+
+		PrimitiveLongVector(PrimitiveLongVector copyThis) {
+			values = new TLongArrayList(copyThis.values);
+		}
+
+		protected abstract long nullValue();
+
+		protected abstract long encode(Object value);
+
+		protected abstract Object decode(long value);
+
+		@Override
+		int size() {
+			return values.size();
+		}
+
+		@Override
+		Object get(int row) {
+			long l = values.get(row);
+			if (l == nullValue()) {
+				return null;
+			}
+			return decode(l);
+		}
+
+		@Override
+		boolean set(int row, Object value) {
+			long l = nullValue();
+			if (value != null) {
+				l = encode(value);
+				if (l == nullValue()) {
+					// value clashes with our null marker
+					return false;
+				}
+			}
+			values.set(row, l);
+			return true;
+		}
+
+		@Override
+		void insertNull(int row) {
+			if (row == values.size()) {
+				values.add(nullValue());
+			} else {
+				values.insert(row, nullValue());
+			}
+		}
+
+		@Override
+		void remove(int row) {
+			values.removeAt(row);
+		}
+	}
+
+	static class LongVector extends PrimitiveLongVector {
+		LongVector(int capacity) {
+			super(capacity);
+		}
+
+		LongVector(LongVector copyThis) {
+			super(copyThis);
+		}
+
+		@Override
+		protected long nullValue() {
+			return Long.MIN_VALUE;
+		}
+
+		@Override
+		protected long encode(Object value) {
+			return ((Long) value).longValue();
+		}
+
+		@Override
+		protected Object decode(long value) {
+			return value;
+		}
+
+		@Override
+		ColumnVector deepCopy() {
+			return new LongVector(this);
+		}
+	}
+
+	static class TimeVector extends PrimitiveLongVector {
+		TimeVector(int capacity) {
+			super(capacity);
+		}
+
+		TimeVector(TimeVector copyThis) {
+			super(copyThis);
+		}
+
+		@Override
+		protected long nullValue() {
+			return Long.MIN_VALUE;
+		}
+
+		@Override
+		protected long encode(Object value) {
+			return ((ODLTime) value).getTotalMilliseconds();
+		}
+
+		@Override
+		protected Object decode(long value) {
+			return new ODLTime(value);
+		}
+
+		@Override
+		ColumnVector deepCopy() {
+			return new TimeVector(this);
+		}
+	}
+
+	/**
+	 * Colours are stored as their ARGB int, so a long min value can never clash
+	 */
+	static class ColourVector extends PrimitiveLongVector {
+		ColourVector(int capacity) {
+			super(capacity);
+		}
+
+		ColourVector(ColourVector copyThis) {
+			super(copyThis);
+		}
+
+		@Override
+		protected long nullValue() {
+			return Long.MIN_VALUE;
+		}
+
+		@Override
+		protected long encode(Object value) {
+			return ((Color) value).getRGB();
+		}
+
+		@Override
+		protected Object decode(long value) {
+			return new Color((int) value, true);
+		}
+
+		@Override
+		ColumnVector deepCopy() {
+			return new ColourVector(this);
+		}
+	}
+
+	/**
+	 * Doubles are stored using {@link Double#doubleToLongBits(double)}, which collapses
+	 * all NaNs to the canonical NaN, so a non-canonical NaN bit pattern can safely be used as null.
+	 */
+	static class DoubleVector extends PrimitiveLongVector {
+		static final long NULL_BITS = 0x7ff0deadbeef0001L;
+
+		DoubleVector(int capacity) {
+			super(capacity);
+		}
+
+		DoubleVector(DoubleVector copyThis) {
+			super(copyThis);
+		}
+
+		@Override
+		protected long nullValue() {
+			return NULL_BITS;
+		}
+
+		@Override
+		protected long encode(Object value) {
+			return Double.doubleToLongBits(((Double) value).doubleValue());
+		}
+
+		@Override
+		protected Object decode(long value) {
+			return Double.longBitsToDouble(value);
+		}
+
+		@Override
+		ColumnVector deepCopy() {
+			return new DoubleVector(this);
+		}
+	}
+
+	/**
+	 * Dictionary-encoded strings. Only pays off if the column has repeated values, so once the
+	 * dictionary becomes large relative to the number of rows we refuse further values and the
+	 * column is widened to a plain {@link ObjectVector}. Dictionary entries are never removed
+	 * whilst the vector exists.
+	 */
+	static class DictionaryStringVector extends ColumnVector {
+		private static final int NULL_CODE = -1;
+		private static final int MIN_DICTIONARY_SIZE_BEFORE_CHECK = 1 << 16;
+
+		private final TIntArrayList codes;
+		private final ArrayList<String> dictionary;
+		private final TObjectIntHashMap<String> codeByString;
+
+		DictionaryStringVector(int capacity) {
+			codes = new TIntArrayList(Math.max(capacity, 10));
+			dictionary = new ArrayList<>();
+			codeByString = new TObjectIntHashMap<>(10, 0.5f, NULL_CODE);
+		}
+
+		DictionaryStringVector(DictionaryStringVector copyThis) {
+			codes = new TIntArrayList(copyThis.codes);
+			dictionary = new ArrayList<>(copyThis.dictionary);
+			codeByString = new TObjectIntHashMap<>(copyThis.codeByString);
+		}
+
+		@Override
+		int size() {
+			return codes.size();
+		}
+
+		@Override
+		Object get(int row) {
+			int code = codes.get(row);
+			if (code == NULL_CODE) {
+				return null;
+			}
+			return dictionary.get(code);
+		}
+
+		@Override
+		boolean set(int row, Object value) {
+			int code = NULL_CODE;
+			if (value != null) {
+				String s = (String) value;
+				code = codeByString.get(s);
+				if (code == NULL_CODE) {
+					int n = dictionary.size();
+					if (n >= MIN_DICTIONARY_SIZE_BEFORE_CHECK && n > codes.size() / 2) {
+						// values mainly unique; dictionary costs more than it saves
+						return false;
+					}
+					code = n;
+					dictionary.add(s);
+					codeByString.put(s, code);
+				}
+			}
+			codes.set(row, code);
+			return true;
+		}
+
+		@Override
+		void insertNull(int row) {
+			if (row == codes.size()) {
+				codes.add(NULL_CODE);
+			} else {
+				codes.insert(row, NULL_CODE);
+			}
+		}
+
+		@Override
+		void remove(int row) {
+			codes.removeAt(row);
+		}
+
+		@Override
+		ColumnVector deepCopy() {
+			return new DictionaryStringVector(this);
+		}
+	}
+}
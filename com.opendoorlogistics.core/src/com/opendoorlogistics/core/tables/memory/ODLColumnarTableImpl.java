@@ -0,0 +1,482 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.core.tables.memory;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TIntIntHashMap;
+
+import java.util.ArrayList;
+
+import com.opendoorlogistics.api.tables.ODLColumnType;
+import com.opendoorlogistics.api.tables.ODLDatastore;
+import com.opendoorlogistics.api.tables.ODLTableAlterable;
+import com.opendoorlogistics.api.tables.ODLTableDefinition;
+import com.opendoorlogistics.api.tables.ODLTableReadOnly;
+import com.opendoorlogistics.api.tables.TableQuery;
+import com.opendoorlogistics.api.tables.TableQuery.SpatialTableQuery;
+import com.opendoorlogistics.core.tables.ColumnValueProcessor;
+import com.opendoorlogistics.core.tables.ODLTableFactory;
+import com.opendoorlogistics.core.tables.memory.SpatialRowIndex.TableSpatialIndices;
+import com.opendoorlogistics.core.tables.utils.TableUtils;
+import com.opendoorlogistics.core.utils.IntIDGenerator;
+import com.opendoorlogistics.core.utils.IntIDGenerator.IsExistingId;
+
+/**
+ * A column-orientated in-memory table. Unlike {@link ODLTableImpl}, which holds a row object of boxed
+ * values per row, each column is held in a single vector. DOUBLE, LONG, COLOUR and TIME columns are stored
+ * as primitive longs and STRING columns are dictionary-encoded, which uses a fraction of the heap for large
+ * tables. Values are boxed again when read via {@link #getValueAt(int, int)}.<br>
+ * Appending rows is cheap; inserting or deleting rows anywhere except the end is O(n) as the vectors
+ * and the row id lookup must be shifted.<br>
+ * As with {@link ODLTableImpl}, access is guarded by a read-write lock so readers can run concurrently.
+ *
+ * @author Phil
+ *
+ */
+final public class ODLColumnarTableImpl extends ODLTableDefinitionImpl implements ODLTableAlterable {
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = -3460957301869271592L;
+	private final ArrayList<ColumnVector> vectors = new ArrayList<>();
+	private final TIntArrayList localIds;
+	private final TIntIntHashMap rowIndxByLocalId;
+	private final TLongArrayList rowFlags;
+	private final TLongArrayList rowLastModified;
+	private final TableSpatialIndices spatialIndices = new TableSpatialIndices();
+	private final TableLock lock = new TableLock();
+	private IntIDGenerator rowIdGenerator = new IntIDGenerator(new IsExistingId() {
+
+		@Override
+		public boolean isExistingId(int id) {
+			return rowIndxByLocalId.containsKey(id);
+		}
+	});
+
+	public ODLColumnarTableImpl(int id, String name) {
+		super(id, name);
+		localIds = new TIntArrayList();
+		rowIndxByLocalId = new TIntIntHashMap(10, 0.5f, -1, -1);
+		rowFlags = new TLongArrayList();
+		rowLastModified = new TLongArrayList();
+	}
+
+	/**
+	 * Deep copy the input table
+	 *
+	 * @param copyThis
+	 */
+	public ODLColumnarTableImpl(ODLColumnarTableImpl copyThis) {
+		super(copyThis);
+		copyThis.lock.lockRead();
+		try {
+			for (ColumnVector vector : copyThis.vectors) {
+				vectors.add(vector.deepCopy());
+			}
+			localIds = new TIntArrayList(copyThis.localIds);
+			rowIndxByLocalId = new TIntIntHashMap(copyThis.rowIndxByLocalId.size(), 0.5f, -1, -1);
+			rowIndxByLocalId.putAll(copyThis.rowIndxByLocalId);
+			rowFlags = new TLongArrayList(copyThis.rowFlags);
+			rowLastModified = new TLongArrayList(copyThis.rowLastModified);
+
+			// ensure the next ids match as well ... needed when we merge modified tables
+			rowIdGenerator.setNextId(copyThis.rowIdGenerator.getNextId());
+		} finally {
+			copyThis.lock.unlockRead();
+		}
+	}
+
+	@Override
+	public ODLTableDefinition deepCopyWithShallowValueCopy() {
+		lock.lockRead();
+		try {
+			return new ODLColumnarTableImpl(this);
+		} finally {
+			lock.unlockRead();
+		}
+	}
+
+	@Override
+	public int addColumn(int id, String name, ODLColumnType type, long flags) {
+		lock.lockWrite();
+		try {
+			int index = super.addColumn(id, name, type, flags);
+			if (index != -1) {
+				vectors.add(ColumnVector.create(type, localIds.size()));
+			}
+			return index;
+		} finally {
+			lock.unlockWrite();
+		}
+	}
+
+	@Override
+	public boolean insertColumn(int id, int col, String name, ODLColumnType type, long flags, boolean allowDuplicateNames) {
+		lock.lockWrite();
+		try {
+			if (col > getColumnCount()) {
+				col = getColumnCount();
+			}
+			if (super.insertColumn(id, col, name, type, flags, allowDuplicateNames)) {
+				vectors.add(col, ColumnVector.create(type, localIds.size()));
+				return true;
+			}
+			return false;
+		} finally {
+			lock.unlockWrite();
+		}
+	}
+
+	@Override
+	public void deleteColumn(int col) {
+		lock.lockWrite();
+		try {
+			if (col >= getColumnCount()) {
+				return;
+			}
+			super.deleteColumn(col);
+			vectors.remove(col);
+			spatialIndices.columnsChanged(this);
+		} finally {
+			lock.unlockWrite();
+		}
+	}
+
+	@Override
+	public int getRowCount() {
+		return lock.readInt(() -> getRowCountUnlocked());
+	}
+
+	private int getRowCountUnlocked() {
+		return localIds.size();
+	}
+
+	@Override
+	public Object getValueAt(int rowIndex, int columnIndex) {
+		return lock.read(() -> getValueAtUnlocked(rowIndex, columnIndex));
+	}
+
+	private Object getValueAtUnlocked(int rowIndex, int columnIndex) {
+		if (columnIndex >= columns.size() || rowIndex >= localIds.size()) {
+			return null;
+		}
+
+		return vectors.get(columnIndex).get(rowIndex);
+	}
+
+	@Override
+	public void setValueAt(Object aValue, int rowIndex, int columnIndex) {
+		lock.lockWrite();
+		try {
+			if (columnIndex >= columns.size() || rowIndex >= localIds.size()) {
+				return;
+			}
+
+			setValidated(toValidated(aValue, columnIndex), rowIndex, columnIndex);
+		} finally {
+			lock.unlockWrite();
+		}
+	}
+
+	private void setValidated(Object aValue, int rowIndex, int columnIndex) {
+		// update index, reading the old value from the vector as we already hold the write lock
+		ColumnVector vector = vectors.get(columnIndex);
+		long rowId = getRowIdUnlocked(rowIndex);
+		getIndex(columnIndex).set(rowId, vector.get(rowIndex), aValue, this, columnIndex);
+
+		// set the value, widening the vector if it can't hold it
+		if (!vector.set(rowIndex, aValue)) {
+			vector = vector.toObjectVector();
+			vectors.set(columnIndex, vector);
+			vector.set(rowIndex, aValue);
+		}
+
+		rowLastModified.set(rowIndex, System.currentTimeMillis());
+		spatialIndices.valueChanged(this, rowId, columnIndex);
+	}
+
+	/**
+	 * Input value may not be of the expected type .. we should do a conversion to ensure it is
+	 *
+	 * @param val
+	 * @param col
+	 * @return
+	 */
+	private Object toValidated(Object val, int col) {
+		val = ColumnValueProcessor.convertToMe(getColumnType(col), val);
+		return val;
+	}
+
+	@Override
+	public final int createEmptyRow(long rowId) {
+		lock.lockWrite();
+		try {
+			int row = localIds.size();
+			insertEmptyRow(row, rowId);
+			return row;
+		} finally {
+			lock.unlockWrite();
+		}
+	}
+
+	@Override
+	public final void insertEmptyRow(int insertAtRowNb, long rowId) {
+		lock.lockWrite();
+		try {
+			// get internal id
+			int localId = -1;
+			if (rowId == -1) {
+				localId = rowIdGenerator.generateId();
+			} else {
+				// we only use the local part of the rowid as may be copying from another table..
+				localId = TableUtils.getLocalRowId(rowId);
+			}
+
+			// generate new id if this one already used
+			if (rowIndxByLocalId.containsKey(localId)) {
+				localId = rowIdGenerator.generateId();
+			}
+
+			int n = localIds.size();
+			if (insertAtRowNb > n) {
+				insertAtRowNb = n;
+			}
+
+			// save row
+			if (insertAtRowNb == n) {
+				localIds.add(localId);
+				rowFlags.add(0);
+				rowLastModified.add(System.currentTimeMillis());
+			} else {
+				localIds.insert(insertAtRowNb, localId);
+				rowFlags.insert(insertAtRowNb, 0);
+				rowLastModified.insert(insertAtRowNb, System.currentTimeMillis());
+			}
+			for (ColumnVector vector : vectors) {
+				vector.insertNull(insertAtRowNb);
+			}
+			reindexRowsFrom(insertAtRowNb);
+
+			// update indices
+			long rowid = getRowIdUnlocked(insertAtRowNb);
+			int nc = getColumnCount();
+			for (int col = 0; col < nc; col++) {
+				getIndex(col).insert(rowid, null, this, col);
+			}
+
+			// set default values if we have them
+			for (int col = 0; col < nc; col++) {
+				Object val = getColumnDefaultValue(col);
+				if (val != null) {
+					setValidated(toValidated(val, col), insertAtRowNb, col);
+				}
+			}
+			spatialIndices.rowInserted(this, rowid);
+		} finally {
+			lock.unlockWrite();
+		}
+	}
+
+	private void reindexRowsFrom(int rowIndex) {
+		int n = localIds.size();
+		for (int i = rowIndex; i < n; i++) {
+			rowIndxByLocalId.put(localIds.get(i), i);
+		}
+	}
+
+	@Override
+	public void deleteRow(int rowNumber) {
+		lock.lockWrite();
+		try {
+			if (rowNumber < localIds.size()) {
+
+				// remove values from column indexes
+				int nc = getColumnCount();
+				long rowid = getRowIdUnlocked(rowNumber);
+				for (int col = 0; col < nc; col++) {
+					Object value = getValueAtUnlocked(rowNumber, col);
+					getIndex(col).remove(rowid, value, this, col);
+				}
+
+				// remove row
+				rowIndxByLocalId.remove(localIds.get(rowNumber));
+				localIds.removeAt(rowNumber);
+				rowFlags.removeAt(rowNumber);
+				rowLastModified.removeAt(rowNumber);
+				for (ColumnVector vector : vectors) {
+					vector.remove(rowNumber);
+				}
+				reindexRowsFrom(rowNumber);
+				spatialIndices.rowDeleted(rowid);
+			}
+		} finally {
+			lock.unlockWrite();
+		}
+	}
+
+	private static ODLColumnarTableImpl createTable(ODLDatastore<? extends ODLTableDefinition> ds, String name, int id) {
+		if (id == -1) {
+			throw new RuntimeException();
+		}
+
+		if (ds.getTableByImmutableId(id) != null) {
+			return null;
+		}
+
+		return new ODLColumnarTableImpl(id, name);
+	}
+
+	public final static ODLTableFactory<ODLTableAlterable> ODLTableAlterableFactory = new ODLTableFactory<ODLTableAlterable>() {
+
+		@Override
+		public ODLTableAlterable create(ODLDatastore<? extends ODLTableDefinition> ds, String name, int id) {
+			return createTable(ds, name, id);
+		}
+	};
+
+	@Override
+	public String toString() {
+		lock.lockRead();
+		try {
+			return TableUtils.convertToString(this);
+		} finally {
+			lock.unlockRead();
+		}
+	}
+
+	@Override
+	public long getRowId(int rowIndex) {
+		return lock.readLong(() -> getRowIdUnlocked(rowIndex));
+	}
+
+	private long getRowIdUnlocked(int rowIndex) {
+		if (rowIndex >= localIds.size()) {
+			return -1;
+		}
+		return TableUtils.getGlobalId(getImmutableId(), localIds.get(rowIndex));
+	}
+
+	/**
+	 * Get the row index for the row id or -1 if not found
+	 * @param rowId
+	 * @return
+	 */
+	private int getRowIndexById(long rowId) {
+		if (TableUtils.getTableId(rowId) != getImmutableId()) {
+			return -1;
+		}
+		return rowIndxByLocalId.get(TableUtils.getLocalRowId(rowId));
+	}
+
+	@Override
+	public Object getValueById(long rowId, int columnIndex) {
+		return lock.read(() -> getValueByIdUnlocked(rowId, columnIndex));
+	}
+
+	private Object getValueByIdUnlocked(long rowId, int columnIndex) {
+		int row = getRowIndexById(rowId);
+		if (row != -1) {
+			return getValueAtUnlocked(row, columnIndex);
+		}
+		return null;
+	}
+
+	@Override
+	public void setValueById(Object aValue, long rowid, int columnIndex) {
+		lock.lockWrite();
+		try {
+			int row = getRowIndexById(rowid);
+			if (row != -1) {
+				setValueAt(aValue, row, columnIndex);
+			}
+		} finally {
+			lock.unlockWrite();
+		}
+	}
+
+	private ColumnIndex getIndex(int columnIndex) {
+		return ((ODLIndexableColumn) columns.get(columnIndex)).index;
+	}
+
+	@Override
+	public boolean containsRowId(long rowId) {
+		lock.lockRead();
+		try {
+			return getRowIndexById(rowId) != -1;
+		} finally {
+			lock.unlockRead();
+		}
+	}
+
+	@Override
+	protected ODLColumnDefinition createColObj(int id, String name, ODLColumnType type, long flags) {
+		id = validateNewColumnId(id);
+		return new ODLIndexableColumn(id, name, type, flags);
+	}
+
+	@Override
+	public long[] find(int col, Object value) {
+		lock.lockWrite();
+		try {
+			return getIndex(col).find(this, col, value);
+		} finally {
+			lock.unlockWrite();
+		}
+	}
+
+	@Override
+	public long getRowFlags(long rowId) {
+		lock.lockRead();
+		try {
+			int row = getRowIndexById(rowId);
+			if (row != -1) {
+				return rowFlags.get(row);
+			}
+			return 0;
+		} finally {
+			lock.unlockRead();
+		}
+	}
+
+	@Override
+	public void setRowFlags(long flags, long rowId) {
+		lock.lockWrite();
+		try {
+			int row = getRowIndexById(rowId);
+			if (row != -1) {
+				rowFlags.set(row, flags);
+				rowLastModified.set(row, System.currentTimeMillis());
+			}
+		} finally {
+			lock.unlockWrite();
+		}
+	}
+
+	@Override
+	public long getRowLastModifiedTimeMillsecs(long rowId) {
+		lock.lockRead();
+		try {
+			int row = getRowIndexById(rowId);
+			if (row != -1) {
+				return rowLastModified.get(row);
+			}
+			return 0;
+		} finally {
+			lock.unlockRead();
+		}
+	}
+
+	@Override
+	public ODLTableReadOnly query(TableQuery query) {
+		if (query instanceof SpatialTableQuery) {
+			return spatialIndices.query(lock, this, (SpatialTableQuery) query);
+		}
+		throw new UnsupportedOperationException("Unsupported query type");
+	}
+
+}
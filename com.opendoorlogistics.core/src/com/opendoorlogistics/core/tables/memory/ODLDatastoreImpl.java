@@ -23,6 +23,10 @@ import com.opendoorlogistics.core.utils.DeepCopyable;
 import com.opendoorlogistics.core.utils.IntIDGenerator;
 import com.opendoorlogistics.core.utils.IntIDGenerator.IsExistingId;
 
+/**
+ * In-memory datastore. The table list is guarded by a read-write lock so tables can be looked up
+ * concurrently from many threads; each table guards its own rows.
+ */
 final public class ODLDatastoreImpl <T extends ODLTableDefinition> implements ODLDatastoreAlterable<T>, DeepCopyable<ODLDatastoreImpl<T>>{
 	/**
 	 * 
@@ -31,7 +35,8 @@ final public class ODLDatastoreImpl <T extends ODLTableDefinition> implements OD
 	private final ArrayList<T> tablesByIndx = new ArrayList<>();
 	private final TIntObjectHashMap<T> tablesById = new TIntObjectHashMap<>();
 	private final ODLTableFactory<T> factory;
-	private long flags;
+	private final TableLock lock = new TableLock();
+	private volatile long flags;
 	protected final IntIDGenerator tableIdGenerator = new IntIDGenerator(new IsExistingId() {
 		
 		@Override
@@ -49,13 +54,18 @@ final public class ODLDatastoreImpl <T extends ODLTableDefinition> implements OD
 	protected ODLDatastoreImpl(ODLDatastoreImpl<T> copyThis){
 		this.factory = copyThis.factory;
 		this.flags = copyThis.flags;
-		for(T table : copyThis.tablesByIndx){
-			if(ODLTableImpl.class.isInstance(table)==false){
-				throw new UnsupportedOperationException();
+		copyThis.lock.lockRead();
+		try {
+			for(T table : copyThis.tablesByIndx){
+				if(ODLTableImpl.class.isInstance(table)==false && ODLColumnarTableImpl.class.isInstance(table)==false){
+					throw new UnsupportedOperationException();
+				}
+				addTable((T)table.deepCopyWithShallowValueCopy());
 			}
-			addTable((T)table.deepCopyWithShallowValueCopy());
+			this.tableIdGenerator.setNextId(copyThis.tableIdGenerator.getNextId());
+		} finally {
+			copyThis.lock.unlockRead();
 		}
-		this.tableIdGenerator.setNextId(copyThis.tableIdGenerator.getNextId());
 	}
 	
 	@Override
@@ -70,11 +80,19 @@ final public class ODLDatastoreImpl <T extends ODLTableDefinition> implements OD
 
 	@Override
 	public int getTableCount() {
+		return lock.readInt(() -> getTableCountUnlocked());
+	}
+
+	private int getTableCountUnlocked() {
 		return tablesByIndx.size();
 	}
 
 	@Override
 	public T getTableAt(int i) {
+		return lock.read(() -> getTableAtUnlocked(i));
+	}
+
+	private T getTableAtUnlocked(int i) {
 		return tablesByIndx.get(i);
 	}
 
@@ -85,23 +103,28 @@ final public class ODLDatastoreImpl <T extends ODLTableDefinition> implements OD
 	 * @return
 	 */
 	public int addTable(T table){
-		if(TableUtils.findTableIndex(this, table.getName(), true)!=-1){
-			throw new RuntimeException("Table already exists: " + table.getName());
-		}
+		lock.lockWrite();
+		try {
+			if(TableUtils.findTableIndex(this, table.getName(), true)!=-1){
+				throw new RuntimeException("Table already exists: " + table.getName());
+			}
 		
-		if(table.getImmutableId()==-1){
-			throw new RuntimeException("Invalid table immutable id in table: " + table.getName());
-		}
+			if(table.getImmutableId()==-1){
+				throw new RuntimeException("Invalid table immutable id in table: " + table.getName());
+			}
 		
-		// we throw an exception if the id is already used because this will 
-		// be caused by a code error rather than a user error
-		if(tablesById.get(table.getImmutableId())!=null){
-			throw new RuntimeException("Duplicate table id");
-		}
+			// we throw an exception if the id is already used because this will 
+			// be caused by a code error rather than a user error
+			if(tablesById.get(table.getImmutableId())!=null){
+				throw new RuntimeException("Duplicate table id");
+			}
 		
-		tablesByIndx.add(table);
-		tablesById.put(table.getImmutableId(), table);
-		return tablesByIndx.size()-1;
+			tablesByIndx.add(table);
+			tablesById.put(table.getImmutableId(), table);
+			return tablesByIndx.size()-1;
+		} finally {
+			lock.unlockWrite();
+		}
 	}
 	
 	@SuppressWarnings("unchecked")
@@ -116,20 +139,25 @@ final public class ODLDatastoreImpl <T extends ODLTableDefinition> implements OD
 	
 	@Override
 	public T createTable(String tablename, int id) {
-		// assign id
-		if(id==-1){
-			id = tableIdGenerator.generateId();
-		}
+		lock.lockWrite();
+		try {
+			// assign id
+			if(id==-1){
+				id = tableIdGenerator.generateId();
+			}
 		
-		T table = factory.create(this,tablename, id);
+			T table = factory.create(this,tablename, id);
 		
-		// give table default permissions
-		grantDefaultTablePermissions(this,table);
+			// give table default permissions
+			grantDefaultTablePermissions(this,table);
 		
-		if( addTable(table)!=-1){
-			return table;
+			if( addTable(table)!=-1){
+				return table;
+			}
+			return null;
+		} finally {
+			lock.unlockWrite();
 		}
-		return null;
 	}
 
 
@@ -148,7 +176,12 @@ final public class ODLDatastoreImpl <T extends ODLTableDefinition> implements OD
 	
 	@Override
 	public String toString(){
-		return TableUtils.convertToString(this);
+		lock.lockRead();
+		try {
+			return TableUtils.convertToString(this);
+		} finally {
+			lock.unlockRead();
+		}
 	}
 
 	@Override
@@ -164,6 +197,10 @@ final public class ODLDatastoreImpl <T extends ODLTableDefinition> implements OD
 
 	@Override
 	public T getTableByImmutableId(int id) {
+		return lock.read(() -> getTableByImmutableIdUnlocked(id));
+	}
+
+	private T getTableByImmutableIdUnlocked(int id) {
 		return tablesById.get(id);
 	}
 
@@ -175,6 +212,18 @@ final public class ODLDatastoreImpl <T extends ODLTableDefinition> implements OD
 		}
 	};
 
+	/**
+	 * Factory for datastores whose tables use column-orientated storage
+	 * (see {@link ODLColumnarTableImpl}), suited to very large tables.
+	 */
+	public static final ODLDatastoreAlterableFactory<ODLTableAlterable> columnarAlterableFactory = new ODLDatastoreAlterableFactory<ODLTableAlterable>() {
+		
+		@Override
+		public ODLDatastoreAlterable<ODLTableAlterable> create() {
+			return new ODLDatastoreImpl<>(ODLColumnarTableImpl.ODLTableAlterableFactory);
+		}
+	};
+
 	@Override
 	public void disableListeners() {
 		//throwListenersUnsupportedException();		
@@ -187,10 +236,15 @@ final public class ODLDatastoreImpl <T extends ODLTableDefinition> implements OD
 
 	@Override
 	public void deleteTableById(int tableId) {
-		T table = tablesById.get(tableId);
-		if(table!=null){
-			tablesByIndx.remove(table);
-			tablesById.remove(tableId);
+		lock.lockWrite();
+		try {
+			T table = tablesById.get(tableId);
+			if(table!=null){
+				tablesByIndx.remove(table);
+				tablesById.remove(tableId);
+			}
+		} finally {
+			lock.unlockWrite();
 		}
 	}
 
@@ -214,15 +268,20 @@ final public class ODLDatastoreImpl <T extends ODLTableDefinition> implements OD
 
 	@Override
 	public boolean setTableName(int tableId, String newName) {
-		ODLTableDefinition dfn = TableUtils.findTable(this, newName, true);
-		if(dfn!=null && dfn.getImmutableId()!=tableId){
-			return false;
-		}
-		ODLTableDefinitionImpl table =(ODLTableDefinitionImpl) tablesById.get(tableId);
-		if(table!=null){
-			table.setName(newName);
+		lock.lockWrite();
+		try {
+			ODLTableDefinition dfn = TableUtils.findTable(this, newName, true);
+			if(dfn!=null && dfn.getImmutableId()!=tableId){
+				return false;
+			}
+			ODLTableDefinitionImpl table =(ODLTableDefinitionImpl) tablesById.get(tableId);
+			if(table!=null){
+				table.setName(newName);
+			}
+			return true;
+		} finally {
+			lock.unlockWrite();
 		}
-		return true;
 	}
 
 	@Override
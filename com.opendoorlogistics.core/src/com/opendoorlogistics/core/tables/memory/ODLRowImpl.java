@@ -11,6 +11,10 @@ import java.util.ArrayList;
 import com.opendoorlogistics.api.tables.ODLTableDefinition;
 import com.opendoorlogistics.core.tables.ODLRow;
 
+/**
+ * A row of an {@link ODLTableImpl}. Rows are not synchronised themselves
+ * as they are only accessed whilst holding the owning table's lock.
+ */
 final public class ODLRowImpl implements ODLRow {
 	private final ArrayList<Object> rowInternal;
 	private final int tableInternalId;
@@ -32,12 +36,12 @@ final public class ODLRowImpl implements ODLRow {
 	}
 
 	@Override
-	public synchronized int getColumnCount() {
+	public int getColumnCount() {
 		return rowInternal.size();
 	}
 
 	@Override
-	public synchronized int getRowIndex() {
+	public int getRowIndex() {
 		throw new UnsupportedOperationException();
 	}
 
@@ -47,7 +51,7 @@ final public class ODLRowImpl implements ODLRow {
 	}
 
 	@Override
-	public synchronized void set(int indx, Object obj) {
+	public void set(int indx, Object obj) {
 		if(indx < rowInternal.size()){
 			rowInternal.set(indx, obj);			
 			modified();			
@@ -55,7 +59,7 @@ final public class ODLRowImpl implements ODLRow {
 	}
 
 	@Override
-	public synchronized Object get(int col) {
+	public Object get(int col) {
 		if (col < rowInternal.size()) {
 			return rowInternal.get(col);
 		}
@@ -63,19 +67,19 @@ final public class ODLRowImpl implements ODLRow {
 	}
 
 	@Override
-	public synchronized void add(Object o) {
+	public void add(Object o) {
 		rowInternal.add(o);
 		modified();
 	}
 
 	@Override
-	public synchronized void add(int indx, Object o) {
+	public void add(int indx, Object o) {
 		rowInternal.add(indx, o);
 		modified();
 	}
 
 	@Override
-	public synchronized void remove(int indx) {
+	public void remove(int indx) {
 		rowInternal.remove(indx);
 		modified();
 	}
@@ -7,11 +7,8 @@
 package com.opendoorlogistics.core.tables.memory;
 
 import java.time.LocalDateTime;
-import java.util.Random;
 import java.util.UUID;
 
-import org.apache.log4j.chainsaw.Main;
-
 import com.opendoorlogistics.api.tables.ODLColumnType;
 import com.opendoorlogistics.api.tables.ODLDatastore;
 import com.opendoorlogistics.api.tables.ODLTableAlterable;
@@ -19,22 +16,29 @@ import com.opendoorlogistics.api.tables.ODLTableDefinition;
 import com.opendoorlogistics.api.tables.ODLTableDefinitionAlterable;
 import com.opendoorlogistics.api.tables.ODLTableReadOnly;
 import com.opendoorlogistics.api.tables.TableQuery;
+import com.opendoorlogistics.api.tables.TableQuery.SpatialTableQuery;
 import com.opendoorlogistics.core.tables.ColumnValueProcessor;
 import com.opendoorlogistics.core.tables.ODLTableFactory;
+import com.opendoorlogistics.core.tables.memory.SpatialRowIndex.TableSpatialIndices;
 import com.opendoorlogistics.core.tables.utils.TableUtils;
 import com.opendoorlogistics.core.utils.IntIDGenerator;
 import com.opendoorlogistics.core.utils.IntIDGenerator.IsExistingId;
-
-import sun.launcher.resources.launcher;
-
 import com.opendoorlogistics.core.utils.MapList;
 
+/**
+ * Row-orientated in-memory table. Access to the rows is guarded by a read-write lock,
+ * so any number of threads (e.g. map tile renderers, script execution and the grid UI)
+ * can read concurrently whilst writes remain exclusive. Rows are only ever accessed
+ * whilst holding the table's lock, so {@link ODLRowImpl} is not itself synchronised.
+ */
 final public class ODLTableImpl extends ODLTableDefinitionImpl implements ODLTableAlterable{
 	/**
 	 * 
 	 */
 	private static final long serialVersionUID = 3487573687352027587L;
 	private final MapList<ODLRowImpl> list = new MapList<>();
+	private final TableLock lock = new TableLock();
+	private final TableSpatialIndices spatialIndices = new TableSpatialIndices();
 	private IntIDGenerator rowIdGenerator = new IntIDGenerator(new IsExistingId() {
 
 		@Override
@@ -50,8 +54,16 @@ final public class ODLTableImpl extends ODLTableDefinitionImpl implements ODLTab
 	 */
 	public ODLTableImpl(ODLTableImpl copyThis) {
 		super(copyThis);
+		copyThis.lock.lockRead();
+		try {
+			copyRows(copyThis);
+		} finally {
+			copyThis.lock.unlockRead();
+		}
+	}
 
-		// copy all rows; column indexes will create themselves later if needed
+	private void copyRows(ODLTableImpl copyThis) {
+		// copy all rows; column and spatial indexes will create themselves later if needed
 		for (ODLRowImpl row : copyThis.list) {
 			int n = row.getColumnCount();
 			ODLRowImpl copy = new ODLRowImpl(row.getTableInternalId(), n);
@@ -69,8 +81,13 @@ final public class ODLTableImpl extends ODLTableDefinitionImpl implements ODLTab
 	}
 
 	@Override
-	public synchronized ODLTableDefinition deepCopyWithShallowValueCopy() {
-		return new ODLTableImpl(this);
+	public ODLTableDefinition deepCopyWithShallowValueCopy() {
+		lock.lockRead();
+		try {
+			return new ODLTableImpl(this);
+		} finally {
+			lock.unlockRead();
+		}
 	}
 
 	public ODLTableImpl(int id, String name) {
@@ -83,24 +100,37 @@ final public class ODLTableImpl extends ODLTableDefinitionImpl implements ODLTab
 	// }
 
 	@Override
-	public synchronized int addColumn(int id, String name, ODLColumnType type, long flags) {
-		int index = super.addColumn(id, name, type, flags);
-		if (index!=-1) {
-			for (ODLRowImpl node : list) {
-				node.add(null);
+	public int addColumn(int id, String name, ODLColumnType type, long flags) {
+		lock.lockWrite();
+		try {
+			int index = super.addColumn(id, name, type, flags);
+			if (index!=-1) {
+				for (ODLRowImpl node : list) {
+					node.add(null);
+				}
+				return index;
 			}
 			return index;
+		} finally {
+			lock.unlockWrite();
 		}
-		return index;
 	}
 
 	@Override
-	public synchronized int getRowCount() {
+	public int getRowCount() {
+		return lock.readInt(() -> getRowCountUnlocked());
+	}
+
+	private int getRowCountUnlocked() {
 		return list.size();
 	}
 
 	@Override
-	public synchronized Object getValueAt(int rowIndex, int columnIndex) {
+	public Object getValueAt(int rowIndex, int columnIndex) {
+		return lock.read(() -> getValueAtUnlocked(rowIndex, columnIndex));
+	}
+
+	private Object getValueAtUnlocked(int rowIndex, int columnIndex) {
 		if (columnIndex >= columns.size() || rowIndex >= list.size()) {
 			return null;
 		}
@@ -109,19 +139,26 @@ final public class ODLTableImpl extends ODLTableDefinitionImpl implements ODLTab
 	}
 
 	@Override
-	public synchronized void setValueAt(Object aValue, int rowIndex, int columnIndex) {
-		if (columnIndex >= columns.size() || rowIndex >= list.size()) {
-			return;
-		}
+	public void setValueAt(Object aValue, int rowIndex, int columnIndex) {
+		lock.lockWrite();
+		try {
+			if (columnIndex >= columns.size() || rowIndex >= list.size()) {
+				return;
+			}
 
-		// input value may not be of the expected type .. we should do a conversion to ensure it is
-		aValue = toValidated(aValue, columnIndex);
+			// input value may not be of the expected type .. we should do a conversion to ensure it is
+			aValue = toValidated(aValue, columnIndex);
 
-		// update index
-		getIndex(columnIndex).set(getRowId(rowIndex), getValueAt(rowIndex, columnIndex), aValue, this, columnIndex);
+			// update index
+			getIndex(columnIndex).set(getRowIdUnlocked(rowIndex), getValueAtUnlocked(rowIndex, columnIndex), aValue, this, columnIndex);
 
-		// set the value
-		list.getAt(rowIndex).set(columnIndex, aValue);
+			// set the value
+			list.getAt(rowIndex).set(columnIndex, aValue);
+
+			spatialIndices.valueChanged(this, getRowIdUnlocked(rowIndex), columnIndex);
+		} finally {
+			lock.unlockWrite();
+		}
 	}
 
 	/**
@@ -137,101 +174,128 @@ final public class ODLTableImpl extends ODLTableDefinitionImpl implements ODLTab
 	}
 
 	@Override
-	public final synchronized int createEmptyRow(long rowId) {
-		int row = list.size();
-		insertEmptyRow(row, rowId);
-		return row;
+	public final int createEmptyRow(long rowId) {
+		lock.lockWrite();
+		try {
+			int row = list.size();
+			insertEmptyRow(row, rowId);
+			return row;
+		} finally {
+			lock.unlockWrite();
+		}
 	}
 
 	@Override
-	public final synchronized void insertEmptyRow(int insertAtRowNb, long rowId) {
-
-		// get internal id
-		int localId = -1;
-		if (rowId == -1) {
-			localId = rowIdGenerator.generateId();
-		} else {
-			// we only use the local part of the rowid as may be copying from another table..
-			localId = TableUtils.getLocalRowId(rowId);
-		}
+	public final void insertEmptyRow(int insertAtRowNb, long rowId) {
+		lock.lockWrite();
+		try {
+			// get internal id
+			int localId = -1;
+			if (rowId == -1) {
+				localId = rowIdGenerator.generateId();
+			} else {
+				// we only use the local part of the rowid as may be copying from another table..
+				localId = TableUtils.getLocalRowId(rowId);
+			}
 
-		// generate new id if this one already used
-		if (list.containsID(localId)) {
-			localId = rowIdGenerator.generateId();
-		}
+			// generate new id if this one already used
+			if (list.containsID(localId)) {
+				localId = rowIdGenerator.generateId();
+			}
 
-		// allocate row object
-		int n = getColumnCount();
-		ODLRowImpl newRow = new ODLRowImpl(localId, getColumnCount());
-		for (int i = 0; i < n; i++) {
-			newRow.add(null);
-		}
+			// allocate row object
+			int n = getColumnCount();
+			ODLRowImpl newRow = new ODLRowImpl(localId, getColumnCount());
+			for (int i = 0; i < n; i++) {
+				newRow.add(null);
+			}
 
-		// set default values if we have them
-		int nc = getColumnCount();
-		for (int col = 0; col < nc; col++) {
-			Object val = getColumnDefaultValue(col);
-			if (val != null) {
-				val = toValidated(val, col);
-				newRow.set(col, val);
+			// set default values if we have them
+			int nc = getColumnCount();
+			for (int col = 0; col < nc; col++) {
+				Object val = getColumnDefaultValue(col);
+				if (val != null) {
+					val = toValidated(val, col);
+					newRow.set(col, val);
+				}
 			}
-		}
 
-		// save row
-		list.insertAt(insertAtRowNb, newRow.getTableInternalId(), newRow);
+			// save row
+			list.insertAt(insertAtRowNb, newRow.getTableInternalId(), newRow);
 
-		// update indices
-		long rowid = getRowId(insertAtRowNb);
-		for (int col = 0; col < nc; col++) {
-			getIndex(col).insert(rowid, newRow.get(col), this, col);
-		}
+			// update indices
+			long rowid = getRowIdUnlocked(insertAtRowNb);
+			for (int col = 0; col < nc; col++) {
+				getIndex(col).insert(rowid, newRow.get(col), this, col);
+			}
+			spatialIndices.rowInserted(this, rowid);
 
+		} finally {
+			lock.unlockWrite();
+		}
 	}
 
 	@Override
-	public synchronized void deleteRow(int rowNumber) {
-		if (rowNumber < list.size()) {
+	public void deleteRow(int rowNumber) {
+		lock.lockWrite();
+		try {
+			if (rowNumber < list.size()) {
+
+				// remove values from column indexes
+				int nc = getColumnCount();
+				long rowid = getRowIdUnlocked(rowNumber);
+				for (int col = 0; col < nc; col++) {
+					Object value = getValueAtUnlocked(rowNumber, col);
+					getIndex(col).remove(rowid, value, this, col);
+				}
 
-			// remove values from column indexes
-			int nc = getColumnCount();
-			long rowid = getRowId(rowNumber);
-			for (int col = 0; col < nc; col++) {
-				Object value = getValueAt(rowNumber, col);
-				getIndex(col).remove(rowid, value, this, col);
+				// remove row
+				list.removeAt(rowNumber);
+				spatialIndices.rowDeleted(rowid);
 			}
-
-			// remove row
-			list.removeAt(rowNumber);
+		} finally {
+			lock.unlockWrite();
 		}
 	}
 
 	@Override
-	public synchronized void deleteColumn(int col) {
-		if (col >= getColumnCount()) {
-			return;
-		}
-		super.deleteColumn(col);
-		for (ODLRowImpl row : list) {
-			row.remove(col);
+	public void deleteColumn(int col) {
+		lock.lockWrite();
+		try {
+			if (col >= getColumnCount()) {
+				return;
+			}
+			super.deleteColumn(col);
+			for (ODLRowImpl row : list) {
+				row.remove(col);
+			}
+			spatialIndices.columnsChanged(this);
+		} finally {
+			lock.unlockWrite();
 		}
 	}
 
 	@Override
-	public synchronized boolean insertColumn(int id, int col, String name, ODLColumnType type, long flags, boolean allowDuplicateNames) {
-		if (col > getColumnCount()) {
-			col = getColumnCount();
-		}
-		if (super.insertColumn(id, col, name, type, flags, allowDuplicateNames)) {
-			for (ODLRowImpl row : list) {
-				if (col < row.getColumnCount()) {
-					row.add(col, null);
-				} else {
-					row.add(null);
+	public boolean insertColumn(int id, int col, String name, ODLColumnType type, long flags, boolean allowDuplicateNames) {
+		lock.lockWrite();
+		try {
+			if (col > getColumnCount()) {
+				col = getColumnCount();
+			}
+			if (super.insertColumn(id, col, name, type, flags, allowDuplicateNames)) {
+				for (ODLRowImpl row : list) {
+					if (col < row.getColumnCount()) {
+						row.add(col, null);
+					} else {
+						row.add(null);
+					}
 				}
+				return true;
 			}
-			return true;
+			return false;
+		} finally {
+			lock.unlockWrite();
 		}
-		return false;
 	}
 
 	private static ODLTableImpl createTable(ODLDatastore<? extends ODLTableDefinition> ds, String name, int id) {
@@ -263,12 +327,21 @@ final public class ODLTableImpl extends ODLTableDefinitionImpl implements ODLTab
 	};
 
 	@Override
-	public synchronized String toString() {
-		return TableUtils.convertToString(this);
+	public String toString() {
+		lock.lockRead();
+		try {
+			return TableUtils.convertToString(this);
+		} finally {
+			lock.unlockRead();
+		}
 	}
 
 	@Override
-	public synchronized long getRowId(int rowIndex) {
+	public long getRowId(int rowIndex) {
+		return lock.readLong(() -> getRowIdUnlocked(rowIndex));
+	}
+
+	private long getRowIdUnlocked(int rowIndex) {
 		if (rowIndex >= list.size()) {
 			return -1;
 		}
@@ -281,7 +354,11 @@ final public class ODLTableImpl extends ODLTableDefinitionImpl implements ODLTab
 	}
 
 	@Override
-	public synchronized Object getValueById(long rowId, int columnIndex) {
+	public Object getValueById(long rowId, int columnIndex) {
+		return lock.read(() -> getValueByIdUnlocked(rowId, columnIndex));
+	}
+
+	private Object getValueByIdUnlocked(long rowId, int columnIndex) {
 		if (TableUtils.getTableId(rowId) != getImmutableId()) {
 			return null;
 		}
@@ -293,19 +370,26 @@ final public class ODLTableImpl extends ODLTableDefinitionImpl implements ODLTab
 	}
 
 	@Override
-	public synchronized void setValueById(Object aValue, long rowid, int columnIndex) {
-		if (TableUtils.getTableId(rowid) == getImmutableId()) {
-			// convert to correct type
-			aValue = toValidated(aValue, columnIndex);
-
-			ODLRowImpl row = list.getByID(TableUtils.getLocalRowId(rowid));
-			if (row != null) {
-				// update index
-				getIndex(columnIndex).set(rowid, row.get(columnIndex), aValue, this, columnIndex);
-
-				// set the value
-				row.set(columnIndex, aValue);
+	public void setValueById(Object aValue, long rowid, int columnIndex) {
+		lock.lockWrite();
+		try {
+			if (TableUtils.getTableId(rowid) == getImmutableId()) {
+				// convert to correct type
+				aValue = toValidated(aValue, columnIndex);
+
+				ODLRowImpl row = list.getByID(TableUtils.getLocalRowId(rowid));
+				if (row != null) {
+					// update index
+					getIndex(columnIndex).set(rowid, row.get(columnIndex), aValue, this, columnIndex);
+
+					// set the value
+					row.set(columnIndex, aValue);
+
+					spatialIndices.valueChanged(this, rowid, columnIndex);
+				}
 			}
+		} finally {
+			lock.unlockWrite();
 		}
 	}
 
@@ -314,8 +398,13 @@ final public class ODLTableImpl extends ODLTableDefinitionImpl implements ODLTab
 	}
 
 	@Override
-	public synchronized boolean containsRowId(long rowId) {
-		return TableUtils.getTableId(rowId) == getImmutableId() && list.containsID(TableUtils.getLocalRowId(rowId));
+	public boolean containsRowId(long rowId) {
+		lock.lockRead();
+		try {
+			return TableUtils.getTableId(rowId) == getImmutableId() && list.containsID(TableUtils.getLocalRowId(rowId));
+		} finally {
+			lock.unlockRead();
+		}
 	}
 
 	@Override
@@ -326,45 +415,67 @@ final public class ODLTableImpl extends ODLTableDefinitionImpl implements ODLTab
 
 	@Override
 	public long[] find(int col, Object value) {
-		return getIndex(col).find(this, col, value);
+		lock.lockWrite();
+		try {
+			return getIndex(col).find(this, col, value);
+		} finally {
+			lock.unlockWrite();
+		}
 	}
 
 	@Override
 	public long getRowFlags(long rowId) {
-		if (TableUtils.getTableId(rowId) != getImmutableId()) {
+		lock.lockRead();
+		try {
+			if (TableUtils.getTableId(rowId) != getImmutableId()) {
+				return 0;
+			}
+			ODLRowImpl row = list.getByID(TableUtils.getLocalRowId(rowId));
+			if (row != null) {
+				return row.getFlags();
+			}
 			return 0;
+		} finally {
+			lock.unlockRead();
 		}
-		ODLRowImpl row = list.getByID(TableUtils.getLocalRowId(rowId));
-		if (row != null) {
-			return row.getFlags();
-		}
-		return 0;
 	}
 
 	@Override
 	public void setRowFlags(long flags, long rowId) {
-		if (TableUtils.getTableId(rowId) != getImmutableId()) {
-			return ;
-		}
-		ODLRowImpl row = list.getByID(TableUtils.getLocalRowId(rowId));
-		if (row != null) {
-			row.setFlags(flags);
+		lock.lockWrite();
+		try {
+			if (TableUtils.getTableId(rowId) != getImmutableId()) {
+				return ;
+			}
+			ODLRowImpl row = list.getByID(TableUtils.getLocalRowId(rowId));
+			if (row != null) {
+				row.setFlags(flags);
+			}
+		} finally {
+			lock.unlockWrite();
 		}
 	}
 
 	@Override
 	public long getRowLastModifiedTimeMillsecs(long rowId) {
-		ODLRowImpl row = list.getByID(TableUtils.getLocalRowId(rowId));
-		if (row != null) {
-			return row.getLastModifiedMillisecs();
+		lock.lockRead();
+		try {
+			ODLRowImpl row = list.getByID(TableUtils.getLocalRowId(rowId));
+			if (row != null) {
+				return row.getLastModifiedMillisecs();
+			}
+			return 0;
+		} finally {
+			lock.unlockRead();
 		}
-		return 0;
 	}
 
 	@Override
 	public ODLTableReadOnly query(TableQuery query) {
-		// to do ... implement queries
-		throw new UnsupportedOperationException();
+		if (query instanceof SpatialTableQuery) {
+			return spatialIndices.query(lock, this, (SpatialTableQuery) query);
+		}
+		throw new UnsupportedOperationException("Unsupported query type");
 	}
 
 	public static void main(String []args){
@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.core.tables.memory;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.opendoorlogistics.api.tables.ODLColumnType;
+import com.opendoorlogistics.api.tables.ODLTableAlterable;
+
+/**
+ * Measure read throughput when several threads scan the same in-memory table at once
+ * (as the tile renderer threads, script execution and the grid UI do).
+ * @author Phil
+ *
+ */
+public class ProfileConcurrentTableReads {
+
+	public static void main(String[] args) throws Exception {
+		int nbRows = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int maxThreads = Runtime.getRuntime().availableProcessors();
+
+		for (ODLTableAlterable table : new ODLTableAlterable[] { new ODLTableImpl(1, "row"), new ODLColumnarTableImpl(1, "columnar") }) {
+			fill(table, nbRows);
+
+			double singleThreadRate = 0;
+			for (int nbThreads = 1; nbThreads <= maxThreads; nbThreads *= 2) {
+				// warm up then time
+				scan(table, nbThreads);
+				long startNano = System.nanoTime();
+				long nbReads = scan(table, nbThreads);
+				double seconds = (System.nanoTime() - startNano) / 1000000000.0;
+				double rate = nbReads / seconds;
+				if (nbThreads == 1) {
+					singleThreadRate = rate;
+				}
+				System.out.println(LocalDateTime.now() + " - " + table.getName() + " table, " + nbThreads + " threads: " + Math.round(rate / 1000000) + " million reads/sec, speedup "
+						+ String.format("%.2f", rate / singleThreadRate));
+			}
+		}
+	}
+
+	private static void fill(ODLTableAlterable table, int nbRows) {
+		table.addColumn(0, "name", ODLColumnType.STRING, 0);
+		table.addColumn(1, "latitude", ODLColumnType.DOUBLE, 0);
+		table.addColumn(2, "longitude", ODLColumnType.DOUBLE, 0);
+		Random random = new Random(123);
+		for (int i = 0; i < nbRows; i++) {
+			int row = table.createEmptyRow(-1);
+			table.setValueAt("Stop" + random.nextInt(1000), row, 0);
+			table.setValueAt(50 + random.nextDouble() * 8, row, 1);
+			table.setValueAt(-6 + random.nextDouble() * 8, row, 2);
+		}
+	}
+
+	/**
+	 * Each thread scans the whole table, by row index and by row id
+	 * @param table
+	 * @param nbThreads
+	 * @return Total number of reads performed
+	 * @throws Exception
+	 */
+	private static long scan(ODLTableAlterable table, int nbThreads) throws Exception {
+		ExecutorService service = Executors.newFixedThreadPool(nbThreads);
+		try {
+			ArrayList<Future<Long>> futures = new ArrayList<>();
+			for (int i = 0; i < nbThreads; i++) {
+				futures.add(service.submit(() -> {
+					long nbReads = 0;
+					double checksum = 0;
+					int nr = table.getRowCount();
+					int nc = table.getColumnCount();
+					for (int row = 0; row < nr; row++) {
+						for (int col = 1; col < nc; col++) {
+							checksum += (Double) table.getValueAt(row, col);
+						}
+						long id = table.getRowId(row);
+						if (table.getValueById(id, 0) != null) {
+							checksum++;
+						}
+						nbReads += nc + 1;
+					}
+					return checksum != 0 ? nbReads : 0;
+				}));
+			}
+
+			long total = 0;
+			for (Future<Long> future : futures) {
+				total += future.get();
+			}
+			return total;
+		} finally {
+			service.shutdown();
+		}
+	}
+}
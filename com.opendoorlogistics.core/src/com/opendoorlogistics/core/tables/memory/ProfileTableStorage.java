@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.core.tables.memory;
+
+import java.time.LocalDateTime;
+import java.util.Random;
+
+import com.opendoorlogistics.api.tables.ODLColumnType;
+import com.opendoorlogistics.api.tables.ODLTableAlterable;
+
+/**
+ * Compare heap use and scan speed of the row-based {@link ODLTableImpl}
+ * against the column-based {@link ODLColumnarTableImpl}.
+ * Run each store in a separate JVM (pass "row" or "columnar" as the first argument)
+ * so heap measurements are not polluted by the other store.
+ * @author Phil
+ *
+ */
+public class ProfileTableStorage {
+	private static final int NB_POSTCODE_DISTRICTS = 3000;
+	private static final int NB_TERRITORIES = 500;
+
+	public static void main(String[] args) {
+		String store = args.length > 0 ? args[0] : "columnar";
+		int nbRows = args.length > 1 ? Integer.parseInt(args[1]) : 5000000;
+
+		ODLTableAlterable table = "row".equals(store) ? new ODLTableImpl(1, "test") : new ODLColumnarTableImpl(1, "test");
+		table.addColumn(0, "postcode", ODLColumnType.STRING, 0);
+		table.addColumn(1, "territory", ODLColumnType.STRING, 0);
+		table.addColumn(2, "latitude", ODLColumnType.DOUBLE, 0);
+		table.addColumn(3, "longitude", ODLColumnType.DOUBLE, 0);
+		table.addColumn(4, "quantity", ODLColumnType.LONG, 0);
+
+		System.out.println(LocalDateTime.now() + " - filling " + store + " table with " + nbRows + " rows");
+		long heapBefore = usedHeap();
+		long startNano = System.nanoTime();
+		Random random = new Random(123);
+		for (int i = 0; i < nbRows; i++) {
+			int row = table.createEmptyRow(-1);
+			table.setValueAt("PC" + random.nextInt(NB_POSTCODE_DISTRICTS) + " " + random.nextInt(10), row, 0);
+			table.setValueAt("Territory" + random.nextInt(NB_TERRITORIES), row, 1);
+			table.setValueAt(50 + random.nextDouble() * 8, row, 2);
+			table.setValueAt(-6 + random.nextDouble() * 8, row, 3);
+			table.setValueAt((long) random.nextInt(100), row, 4);
+		}
+		long fillMillis = (System.nanoTime() - startNano) / 1000000;
+		long heapBytes = usedHeap() - heapBefore;
+		System.out.println(LocalDateTime.now() + " - filled in " + fillMillis + " millis, heap used " + (heapBytes / (1024 * 1024)) + " MB");
+
+		for (int pass = 0; pass < 5; pass++) {
+			startNano = System.nanoTime();
+			double sumLat = 0;
+			long sumQuantity = 0;
+			int nonNullStrings = 0;
+			int n = table.getRowCount();
+			for (int row = 0; row < n; row++) {
+				sumLat += (Double) table.getValueAt(row, 2);
+				sumQuantity += (Long) table.getValueAt(row, 4);
+				if (table.getValueAt(row, 1) != null) {
+					nonNullStrings++;
+				}
+			}
+			long scanMillis = (System.nanoTime() - startNano) / 1000000;
+			System.out.println(LocalDateTime.now() + " - scan pass " + pass + " took " + scanMillis + " millis (checksum " + (sumLat + sumQuantity + nonNullStrings) + ")");
+		}
+	}
+
+	private static long usedHeap() {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+	}
+}
@@ -0,0 +1,311 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.core.tables.memory;
+
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.opendoorlogistics.api.tables.ODLColumnType;
+import com.opendoorlogistics.api.tables.ODLTableReadOnly;
+import com.opendoorlogistics.api.tables.TableQuery.SpatialTableQuery;
+import com.opendoorlogistics.core.geometry.ODLGeomImpl;
+import com.opendoorlogistics.core.tables.ColumnValueProcessor;
+import com.opendoorlogistics.core.tables.utils.DatastoreCopier;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.index.quadtree.Quadtree;
+
+/**
+ * A quadtree over the lat-long or geometry columns of an in-memory table, which is
+ * maintained incrementally as rows are inserted, changed or deleted. As with
+ * {@link com.opendoorlogistics.core.geometry.operations.OneByOneSpatialQuery}, a row's geometry takes precedence over its
+ * lat-long and only the geometry's bounding box is tested.<br>
+ * The index is keyed on immutable column ids so it survives other columns being inserted or deleted.
+ * @author Phil
+ *
+ */
+final class SpatialRowIndex {
+	private final int latColumnId;
+	private final int lngColumnId;
+	private final int geomColumnId;
+	private final Quadtree quadtree = new Quadtree();
+	private final TLongObjectHashMap<Entry> entriesByRowId = new TLongObjectHashMap<>();
+
+	private static class Entry {
+		final long rowId;
+		final Envelope envelope;
+		final boolean isPoint;
+
+		Entry(long rowId, Envelope envelope, boolean isPoint) {
+			this.rowId = rowId;
+			this.envelope = envelope;
+			this.isPoint = isPoint;
+		}
+	}
+
+	private SpatialRowIndex(int latColumnId, int lngColumnId, int geomColumnId) {
+		this.latColumnId = latColumnId;
+		this.lngColumnId = lngColumnId;
+		this.geomColumnId = geomColumnId;
+	}
+
+	/**
+	 * Build the index for the query's columns by examining every row once
+	 * @param table
+	 * @param query
+	 * @return
+	 */
+	static SpatialRowIndex build(ODLTableReadOnly table, SpatialTableQuery query) {
+		SpatialRowIndex ret = new SpatialRowIndex(toColumnId(table, query.getLatitudeColumn()), toColumnId(table, query.getLongitudeColumn()), toColumnId(table, query.getGeomColumn()));
+		int nr = table.getRowCount();
+		for (int row = 0; row < nr; row++) {
+			ret.update(table, table.getRowId(row));
+		}
+		return ret;
+	}
+
+	private static int toColumnId(ODLTableReadOnly table, int col) {
+		return col != -1 ? table.getColumnImmutableId(col) : -1;
+	}
+
+	private static int toColumnIndex(ODLTableReadOnly table, int columnId) {
+		if (columnId == -1) {
+			return -1;
+		}
+		int nc = table.getColumnCount();
+		for (int col = 0; col < nc; col++) {
+			if (table.getColumnImmutableId(col) == columnId) {
+				return col;
+			}
+		}
+		return -1;
+	}
+
+	boolean isIndexFor(ODLTableReadOnly table, SpatialTableQuery query) {
+		return latColumnId == toColumnId(table, query.getLatitudeColumn()) && lngColumnId == toColumnId(table, query.getLongitudeColumn())
+				&& geomColumnId == toColumnId(table, query.getGeomColumn());
+	}
+
+	boolean usesColumn(int columnId) {
+		return columnId != -1 && (columnId == latColumnId || columnId == lngColumnId || columnId == geomColumnId);
+	}
+
+	/**
+	 * Check all the index's columns still exist in the table
+	 * @param table
+	 * @return
+	 */
+	boolean isValid(ODLTableReadOnly table) {
+		for (int id : new int[] { latColumnId, lngColumnId, geomColumnId }) {
+			if (id != -1 && toColumnIndex(table, id) == -1) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Re-index the row after it has been inserted or one of its values changed
+	 * @param table
+	 * @param rowId
+	 */
+	void update(ODLTableReadOnly table, long rowId) {
+		remove(rowId);
+
+		// has geom?
+		ODLGeomImpl geom = null;
+		int geomCol = toColumnIndex(table, geomColumnId);
+		if (geomCol != -1) {
+			geom = (ODLGeomImpl) ColumnValueProcessor.convertToMe(ODLColumnType.GEOM, table.getValueById(rowId, geomCol));
+			if (geom != null) {
+				Envelope envelope = geom.getWGSBounds();
+				if (envelope != null) {
+					add(new Entry(rowId, envelope, false));
+				}
+				return;
+			}
+		}
+
+		// use latitude and longitude if we didn't have a geometry
+		int latCol = toColumnIndex(table, latColumnId);
+		int lngCol = toColumnIndex(table, lngColumnId);
+		if (latCol != -1 && lngCol != -1) {
+			Double lat = (Double) ColumnValueProcessor.convertToMe(ODLColumnType.DOUBLE, table.getValueById(rowId, latCol));
+			Double lng = (Double) ColumnValueProcessor.convertToMe(ODLColumnType.DOUBLE, table.getValueById(rowId, lngCol));
+			if (lat != null && lng != null) {
+				add(new Entry(rowId, new Envelope(lng, lng, lat, lat), true));
+			}
+		}
+	}
+
+	private void add(Entry entry) {
+		entriesByRowId.put(entry.rowId, entry);
+		quadtree.insert(entry.envelope, entry);
+	}
+
+	void remove(long rowId) {
+		Entry entry = entriesByRowId.remove(rowId);
+		if (entry != null) {
+			quadtree.remove(entry.envelope, entry);
+		}
+	}
+
+	/**
+	 * Get the ids of all rows within the query bounds, sorted by row id
+	 * (which is table order unless rows have been inserted mid-table).
+	 * @param query
+	 * @return
+	 */
+	long[] query(SpatialTableQuery query) {
+		Envelope queryEnvelope = createQueryEnvelope(query);
+		TLongArrayList ret = new TLongArrayList();
+		for (Object o : quadtree.query(queryEnvelope)) {
+			Entry entry = (Entry) o;
+			boolean inBox;
+			if (entry.isPoint) {
+				double lng = entry.envelope.getMinX();
+				double lat = entry.envelope.getMinY();
+				inBox = (query.getMinimum() == null || (lng >= query.getMinimum().getLongitude() && lat >= query.getMinimum().getLatitude()))
+						&& (query.getMaximum() == null || (lng < query.getMaximum().getLongitude() && lat < query.getMaximum().getLatitude()));
+			} else {
+				inBox = queryEnvelope.intersects(entry.envelope);
+			}
+			if (inBox) {
+				ret.add(entry.rowId);
+			}
+		}
+		ret.sort();
+		return ret.toArray();
+	}
+
+	private static Envelope createQueryEnvelope(SpatialTableQuery query) {
+		double x1, x2, y1, y2;
+		if (query.getMinimum() != null) {
+			x1 = query.getMinimum().getLongitude();
+			y1 = query.getMinimum().getLatitude();
+		} else {
+			x1 = -Double.MAX_VALUE;
+			y1 = -Double.MAX_VALUE;
+		}
+
+		if (query.getMaximum() != null) {
+			x2 = query.getMaximum().getLongitude();
+			y2 = query.getMaximum().getLatitude();
+		} else {
+			x2 = +Double.MAX_VALUE;
+			y2 = +Double.MAX_VALUE;
+		}
+		return new Envelope(x1, x2, y1, y2);
+	}
+
+	/**
+	 * The spatial indices for a single table, created on demand the first time a
+	 * query is made against a combination of columns. Queries against an existing index
+	 * only read it, so they run concurrently under the table's read lock; building an index
+	 * and updating indices for changed rows happen under its write lock.
+	 */
+	static final class TableSpatialIndices {
+		private static final int MAX_INDICES = 4;
+		private final List<SpatialRowIndex> indices = new CopyOnWriteArrayList<>();
+
+		private SpatialRowIndex find(ODLTableReadOnly table, SpatialTableQuery query) {
+			for (SpatialRowIndex index : indices) {
+				if (index.isIndexFor(table, query)) {
+					return index;
+				}
+			}
+			return null;
+		}
+
+		private SpatialRowIndex getOrCreate(ODLTableReadOnly table, SpatialTableQuery query) {
+			SpatialRowIndex ret = find(table, query);
+			if (ret != null) {
+				return ret;
+			}
+
+			if (indices.size() >= MAX_INDICES) {
+				indices.remove(0);
+			}
+			ret = build(table, query);
+			indices.add(ret);
+			return ret;
+		}
+
+		void rowInserted(ODLTableReadOnly table, long rowId) {
+			for (SpatialRowIndex index : indices) {
+				index.update(table, rowId);
+			}
+		}
+
+		void valueChanged(ODLTableReadOnly table, long rowId, int col) {
+			if (indices.size() == 0) {
+				return;
+			}
+			int columnId = table.getColumnImmutableId(col);
+			for (SpatialRowIndex index : indices) {
+				if (index.usesColumn(columnId)) {
+					index.update(table, rowId);
+				}
+			}
+		}
+
+		void rowDeleted(long rowId) {
+			for (SpatialRowIndex index : indices) {
+				index.remove(rowId);
+			}
+		}
+
+		void columnsChanged(ODLTableReadOnly table) {
+			indices.removeIf(index -> !index.isValid(table));
+		}
+
+		/**
+		 * Run the query using the index, returning a copy of the matching rows
+		 * with the same row ids as the source table. An existing index is queried under
+		 * the read lock and the write lock is only taken to build a missing index.
+		 * @param lock
+		 *            The table's lock
+		 * @param table
+		 * @param query
+		 * @return
+		 */
+		ODLTableReadOnly query(TableLock lock, ODLTableReadOnly table, SpatialTableQuery query) {
+			lock.lockRead();
+			try {
+				SpatialRowIndex index = find(table, query);
+				if (index != null) {
+					return copyRows(table, index.query(query));
+				}
+			} finally {
+				lock.unlockRead();
+			}
+
+			lock.lockWrite();
+			try {
+				return copyRows(table, getOrCreate(table, query).query(query));
+			} finally {
+				lock.unlockWrite();
+			}
+		}
+
+		private static ODLTableReadOnly copyRows(ODLTableReadOnly table, long[] rowIds) {
+			ODLTableImpl ret = new ODLTableImpl(table.getImmutableId(), table.getName());
+			DatastoreCopier.copyTableDefinition(table, ret);
+			int nc = table.getColumnCount();
+			for (long rowId : rowIds) {
+				int row = ret.createEmptyRow(rowId);
+				for (int col = 0; col < nc; col++) {
+					ret.setValueAt(table.getValueById(rowId, col), row, col);
+				}
+				ret.setRowFlags(table.getRowFlags(rowId), rowId);
+			}
+			return ret;
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.core.tables.memory;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Read-write lock used by the in-memory tables and datastore.<br>
+ * Writes take a reentrant write lock, so a writer can call back into the table
+ * (as the column and spatial indices do). Frequent small reads (e.g. getValueAt) should go through
+ * {@link #read(Supplier)} (or its int and long versions), which first tries an optimistic read.
+ * This performs no writes to shared memory and so scales across cores, falling back to the read
+ * lock if a write happened. An optimistic read may see data being changed by a writer, so the
+ * reader must only read and must tolerate exceptions.
+ * @author Phil
+ *
+ */
+final class TableLock {
+	private final ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
+	private final StampedLock stampedLock = new StampedLock();
+	private long writeStamp;
+
+	/**
+	 * Run the reader optimistically, or under the read lock if a write is in progress or happened during it
+	 * @param reader
+	 * @return
+	 */
+	<T> T read(Supplier<T> reader) {
+		long stamp = stampedLock.tryOptimisticRead();
+		if (stamp != 0) {
+			try {
+				T ret = reader.get();
+				if (stampedLock.validate(stamp)) {
+					return ret;
+				}
+			} catch (RuntimeException e) {
+				// inconsistent state seen during a write; retry under the lock
+			}
+		}
+
+		lockRead();
+		try {
+			return reader.get();
+		} finally {
+			unlockRead();
+		}
+	}
+
+	/**
+	 * As {@link #read(Supplier)} without boxing
+	 * @param reader
+	 * @return
+	 */
+	int readInt(IntSupplier reader) {
+		long stamp = stampedLock.tryOptimisticRead();
+		if (stamp != 0) {
+			try {
+				int ret = reader.getAsInt();
+				if (stampedLock.validate(stamp)) {
+					return ret;
+				}
+			} catch (RuntimeException e) {
+				// inconsistent state seen during a write; retry under the lock
+			}
+		}
+
+		lockRead();
+		try {
+			return reader.getAsInt();
+		} finally {
+			unlockRead();
+		}
+	}
+
+	/**
+	 * As {@link #read(Supplier)} without boxing
+	 * @param reader
+	 * @return
+	 */
+	long readLong(LongSupplier reader) {
+		long stamp = stampedLock.tryOptimisticRead();
+		if (stamp != 0) {
+			try {
+				long ret = reader.getAsLong();
+				if (stampedLock.validate(stamp)) {
+					return ret;
+				}
+			} catch (RuntimeException e) {
+				// inconsistent state seen during a write; retry under the lock
+			}
+		}
+
+		lockRead();
+		try {
+			return reader.getAsLong();
+		} finally {
+			unlockRead();
+		}
+	}
+
+	void lockRead() {
+		rwLock.readLock().lock();
+	}
+
+	void unlockRead() {
+		rwLock.readLock().unlock();
+	}
+
+	void lockWrite() {
+		rwLock.writeLock().lock();
+		if (rwLock.getWriteHoldCount() == 1) {
+			// outermost write; invalidate optimistic readers until we finish
+			writeStamp = stampedLock.writeLock();
+		}
+	}
+
+	void unlockWrite() {
+		if (rwLock.getWriteHoldCount() == 1) {
+			stampedLock.unlockWrite(writeStamp);
+		}
+		rwLock.writeLock().unlock();
+	}
+}
@@ -6,32 +6,61 @@
  ******************************************************************************/
 package com.opendoorlogistics.core.utils.io;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.io.FilenameUtils;
 
 import com.opendoorlogistics.api.tables.ODLColumnType;
 import com.opendoorlogistics.api.tables.ODLDatastoreAlterable;
 import com.opendoorlogistics.api.tables.ODLTableAlterable;
+import com.opendoorlogistics.core.tables.ColumnValueProcessor;
+import com.opendoorlogistics.core.tables.io.ColumnTypeEstimator;
 import com.opendoorlogistics.core.tables.memory.ODLDatastoreImpl;
 import com.opendoorlogistics.core.tables.utils.TableUtils;
 import com.opendoorlogistics.core.utils.strings.Strings;
 
+import au.com.bytecode.opencsv.CSVParser;
 import au.com.bytecode.opencsv.CSVReader;
 
+/**
+ * Imports comma or tab separated files. The file is streamed rather than read into memory first. Column types
+ * are estimated from a sample of the first records and values are converted to their column's type as they
+ * are read, so numbers aren't held as strings. If a later value doesn't match its column's estimated type, that
+ * column is changed to text in place and the import carries on; once all rows are added, the text of the changed
+ * columns is read again from the file so they hold exactly what the file contains (e.g. "007" rather than 7).<br>
+ * Large files are imported into a column-orientated table ({@link ODLDatastoreImpl#columnarAlterableFactory}), which
+ * holds numbers as primitives and repeated strings once.<br>
+ * Large files are also split into chunks at line ends and the chunks are parsed on several threads. This is only
+ * valid if no quoted field spans several lines; if a chunk shows this, the import restarts on a single thread.
+ */
 final public class TextIO {
 	private final static String DEFAULT_COLUMN_NAME = "Column";
+	private final static int TYPE_SAMPLE_RECORDS = 10000;
+	private final static long MIN_PARALLEL_FILE_BYTES = 32 * 1024 * 1024;
+	private final static int CHUNK_BYTES = 8 * 1024 * 1024;
+	private final static long MIN_COLUMNAR_FILE_BYTES = 32 * 1024 * 1024;
 
 	public static ODLDatastoreAlterable<ODLTableAlterable> importCSV(File file) {
-		try {
-			CSVReader reader = new CSVReader(new FileReader(file));
-			return importFile(reader, getTableName(file));
-		} catch (Throwable e) {
-			throw new RuntimeException(e);
-		}
-
+		return importFile(file, CSVParser.DEFAULT_SEPARATOR);
 	}
 
 	private static String getTableName(File file) {
@@ -43,49 +72,368 @@ final public class TextIO {
 	}
 
 	public static ODLDatastoreAlterable<ODLTableAlterable> importTabbed(File file) {
+		return importFile(file, '\t');
+	}
+
+	private static ODLDatastoreAlterable<ODLTableAlterable> importFile(File file, char separator) {
 		try {
-			CSVReader reader = new CSVReader(new FileReader(file), '\t');
-			return importFile(reader, getTableName(file));
+			Charset charset = Charset.defaultCharset();
+			boolean allowParallel = isParallelCharset(charset);
+			while (true) {
+				ODLDatastoreAlterable<ODLTableAlterable> ret = file.length() >= MIN_COLUMNAR_FILE_BYTES ? ODLDatastoreImpl.columnarAlterableFactory.create()
+						: ODLDatastoreImpl.alterableFactory.create();
+				if (!importFile(file, separator, charset, allowParallel, ret.createTable(getTableName(file), -1))) {
+					if (allowParallel) {
+						// a quoted field spans lines so the file can't be split
+						allowParallel = false;
+						continue;
+					}
+					return null;
+				}
+				return ret;
+			}
 		} catch (Throwable e) {
 			throw new RuntimeException(e);
 		}
+	}
 
+	/**
+	 * Splitting the file at newline bytes only works if a newline byte can't be part of another character
+	 *
+	 * @param charset
+	 * @return
+	 */
+	private static boolean isParallelCharset(Charset charset) {
+		return charset.equals(StandardCharsets.UTF_8) || (charset.canEncode() && charset.newEncoder().maxBytesPerChar() == 1);
 	}
 
-	private static ODLDatastoreAlterable<ODLTableAlterable> importFile(CSVReader reader, String tableName) {
-		try {
-			List<String[]> list = reader.readAll();
-			int n = list.size();
-			if (n > 0) {
-				ODLDatastoreAlterable<ODLTableAlterable> ret = ODLDatastoreImpl.alterableFactory.create();
-				ODLTableAlterable table = ret.createTable(tableName, -1);
-
-				// create all columns
-				for (String col : list.get(0)) {
-					// give default name if invalid
-					if (col == null || Strings.isEmptyWhenStandardised(col) || TableUtils.findColumnIndx(table, col, true) != -1) {
-						col = TableUtils.getUniqueNumberedColumnName(DEFAULT_COLUMN_NAME, table);
-					}
+	private static CSVReader createReader(File file, Charset charset, char separator) throws IOException {
+		CharsetDecoder decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		return new CSVReader(Channels.newReader(FileChannel.open(file.toPath(), StandardOpenOption.READ), decoder, 1 << 16), separator);
+	}
+
+	/**
+	 * Import the file into the table
+	 *
+	 * @return False if the file was empty or, when parsing in parallel, the file couldn't be split
+	 * @throws IOException
+	 */
+	private static boolean importFile(File file, char separator, Charset charset, boolean allowParallel, ODLTableAlterable table) throws IOException {
+		ODLColumnType[] types;
+		boolean[] changedToText;
+		boolean parallel;
+		try (CSVReader reader = createReader(file, charset, separator)) {
+			String[] header = reader.readNext();
+			if (header == null) {
+				return false;
+			}
+
+			// read a sample of records to estimate the types
+			ArrayList<String[]> sample = new ArrayList<>();
+			ColumnTypeEstimator[] estimators = new ColumnTypeEstimator[header.length];
+			for (int col = 0; col < header.length; col++) {
+				estimators[col] = new ColumnTypeEstimator();
+			}
+			String[] row;
+			while (sample.size() < TYPE_SAMPLE_RECORDS && (row = reader.readNext()) != null) {
+				checkColumnCount(row, header.length, sample.size() + 1);
+				for (int col = 0; col < row.length; col++) {
+					estimators[col].processValue(row[col]);
+				}
+				sample.add(row);
+			}
 
-					table.addColumn(-1,col, ODLColumnType.STRING, 0);
+			// create all columns
+			types = new ODLColumnType[header.length];
+			changedToText = new boolean[header.length];
+			for (int i = 0; i < header.length; i++) {
+				// give default name if invalid
+				String col = header[i];
+				if (col == null || Strings.isEmptyWhenStandardised(col) || TableUtils.findColumnIndx(table, col, true) != -1) {
+					col = TableUtils.getUniqueNumberedColumnName(DEFAULT_COLUMN_NAME, table);
 				}
 
-				for (int line = 1; line < n; line++) {
-					String[] row = list.get(line);
-					if (row.length != table.getColumnCount()) {
-						throw new RuntimeException("Line found with different number of columns to header line: " + line);
-					}
+				types[i] = estimators[i].getEstimatedType();
+				table.addColumn(-1, col, types[i], 0);
+			}
+
+			// small files are read on this thread
+			parallel = allowParallel && sample.size() >= TYPE_SAMPLE_RECORDS && file.length() >= MIN_PARALLEL_FILE_BYTES && Runtime.getRuntime().availableProcessors() >= 2;
+			if (!parallel) {
+				int line = 1;
+				for (String[] sampleRow : sample) {
+					addRow(table, convert(sampleRow, types), types, changedToText, line++);
+				}
+				while ((row = reader.readNext()) != null) {
+					checkColumnCount(row, header.length, line);
+					addRow(table, convert(row, types), types, changedToText, line++);
+				}
+			}
+		}
+
+		if (parallel && !importChunks(file, separator, charset, types, changedToText, table)) {
+			return false;
+		}
+
+		readTextColumns(file, separator, charset, changedToText, table);
+		return true;
+	}
+
+	private static void checkColumnCount(String[] row, int nbColumns, int line) {
+		if (row.length != nbColumns) {
+			throw new RuntimeException("Line found with different number of columns to header line: " + line);
+		}
+	}
+
+	/**
+	 * @param row
+	 * @param types
+	 * @return The values converted to the column types, or null if the row has the wrong number of columns.
+	 *         A value which doesn't convert is left as a string.
+	 */
+	private static Object[] convert(String[] row, ODLColumnType[] types) {
+		if (row.length != types.length) {
+			return null;
+		}
+
+		Object[] ret = new Object[row.length];
+		for (int col = 0; col < row.length; col++) {
+			if (types[col] == ODLColumnType.STRING) {
+				ret[col] = row[col];
+			} else if (!Strings.isEmpty(row[col])) {
+				ret[col] = ColumnValueProcessor.convertToMe(types[col], row[col], ODLColumnType.STRING, true);
+				if (ret[col] == null) {
+					ret[col] = row[col];
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Add the converted values to the table, changing a column to text if a value didn't convert to its type.
+	 * Columns changed to text are left empty, to be filled by {@link #readTextColumns}.
+	 *
+	 * @param table
+	 * @param values
+	 * @param types
+	 *            The current column types, updated when a column is changed to text
+	 * @param changedToText
+	 *            Columns changed to text, updated when a column is changed
+	 * @param line
+	 */
+	private static void addRow(ODLTableAlterable table, Object[] values, ODLColumnType[] types, boolean[] changedToText, int line) {
+		if (values == null || values.length != table.getColumnCount()) {
+			throw new RuntimeException("Line found with different number of columns to header line: " + line);
+		}
+
+		for (int col = 0; col < values.length; col++) {
+			if (!changedToText[col] && types[col] != ODLColumnType.STRING && values[col] instanceof String) {
+				changeColumnToText(table, col);
+				types[col] = ODLColumnType.STRING;
+				changedToText[col] = true;
+			}
+			if (changedToText[col]) {
+				values[col] = null;
+			}
+		}
+
+		int rowIndx = table.createEmptyRow(line);
+		for (int col = 0; col < values.length; col++) {
+			table.setValueAt(values[col], rowIndx, col);
+		}
+	}
+
+	/**
+	 * Change the column's type to text, keeping its position and id but not its values
+	 *
+	 * @param table
+	 * @param col
+	 */
+	private static void changeColumnToText(ODLTableAlterable table, int col) {
+		int id = table.getColumnImmutableId(col);
+		String name = table.getColumnName(col);
+		long flags = table.getColumnFlags(col);
+		table.deleteColumn(col);
+		table.insertColumn(id, col, name, ODLColumnType.STRING, flags, true);
+	}
+
+	/**
+	 * Read the file again and set the columns which were changed to text to the file's text, one row per record
+	 *
+	 * @throws IOException
+	 */
+	private static void readTextColumns(File file, char separator, Charset charset, boolean[] changedToText, ODLTableAlterable table) throws IOException {
+		boolean any = false;
+		for (boolean changed : changedToText) {
+			any |= changed;
+		}
+		if (!any) {
+			return;
+		}
 
-					int rowIndx = table.createEmptyRow(line);
-					for (int col = 0; col < row.length; col++) {
+		try (CSVReader reader = createReader(file, charset, separator)) {
+			reader.readNext();
+			String[] row;
+			int rowIndx = 0;
+			while ((row = reader.readNext()) != null) {
+				for (int col = 0; col < changedToText.length; col++) {
+					if (changedToText[col]) {
 						table.setValueAt(row[col], rowIndx, col);
 					}
 				}
-				return ret;
+				rowIndx++;
+			}
+		}
+	}
+
+	/**
+	 * Parse the file in chunks on a pool of threads, adding the chunks' rows to the table in file order.
+	 * Only a few chunks per thread are held in memory at once. Each chunk is parsed with the column types
+	 * at the time it was started.
+	 *
+	 * @return False if a quoted field spans several lines, so the file can't be split into chunks
+	 * @throws IOException
+	 */
+	private static boolean importChunks(File file, char separator, Charset charset, ODLColumnType[] types, boolean[] changedToText, ODLTableAlterable table)
+			throws IOException {
+		int nbThreads = Runtime.getRuntime().availableProcessors();
+		ExecutorService service = Executors.newFixedThreadPool(nbThreads);
+		ArrayDeque<Future<List<Object[]>>> running = new ArrayDeque<>();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			long start = 0;
+			int line = 1;
+			while (start < size || running.size() > 0) {
+				// start chunks while there's room
+				while (start < size && running.size() < 2 * nbThreads) {
+					long chunkStart = start;
+					long chunkEnd = findChunkEnd(channel, start + CHUNK_BYTES);
+					ODLColumnType[] chunkTypes = types.clone();
+					running.add(service.submit(() -> parseChunk(file, chunkStart, chunkEnd, separator, charset, chunkTypes, chunkStart == 0)));
+					start = chunkEnd;
+				}
+
+				// add the oldest chunk's rows
+				List<Object[]> rows;
+				try {
+					rows = running.poll().get();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof RuntimeException) {
+						throw (RuntimeException) e.getCause();
+					}
+					throw new RuntimeException(e.getCause());
+				}
+
+				if (rows == null) {
+					return false;
+				}
+				for (Object[] row : rows) {
+					addRow(table, row, types, changedToText, line++);
+				}
 			}
+		} finally {
+			service.shutdownNow();
+		}
+		return true;
+	}
+
+	/**
+	 * Find the position after the first newline at or after the position, or the end of the file
+	 */
+	private static long findChunkEnd(FileChannel channel, long position) throws IOException {
+		long size = channel.size();
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		while (position < size) {
+			((Buffer) buffer).clear();
+			int nb = channel.read(buffer, position);
+			if (nb <= 0) {
+				break;
+			}
+			for (int i = 0; i < nb; i++) {
+				if (buffer.get(i) == '\n') {
+					return position + i + 1;
+				}
+			}
+			position += nb;
+		}
+		return size;
+	}
+
+	/**
+	 * Parse the records in part of the file
+	 *
+	 * @return The records, or null if a quoted field spans lines
+	 * @throws IOException
+	 */
+	private static List<Object[]> parseChunk(File file, long start, long end, char separator, Charset charset, ODLColumnType[] types, boolean skipHeader) throws IOException {
+		byte[] bytes = new byte[(int) (end - start)];
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			while (buffer.hasRemaining() && channel.read(buffer, start + buffer.position()) >= 0) {
+			}
+		}
+
+		if (!quotesCloseOnEachLine(bytes, separator)) {
 			return null;
-		} catch (Throwable e) {
-			throw new RuntimeException(e);
 		}
+
+		CharsetDecoder decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		ArrayList<Object[]> ret = new ArrayList<>();
+		try (CSVReader reader = new CSVReader(new InputStreamReader(new ByteArrayInputStream(bytes), decoder), separator)) {
+			if (skipHeader) {
+				reader.readNext();
+			}
+			String[] row;
+			while ((row = reader.readNext()) != null) {
+				ret.add(convert(row, types));
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Check every quoted field ends on the line it starts, following {@link CSVParser}'s rules for
+	 * escaped and doubled quotes
+	 *
+	 * @param bytes
+	 * @param separator
+	 * @return
+	 */
+	private static boolean quotesCloseOnEachLine(byte[] bytes, char separator) {
+		final byte quote = CSVParser.DEFAULT_QUOTE_CHARACTER;
+		final byte escape = CSVParser.DEFAULT_ESCAPE_CHARACTER;
+		boolean inQuotes = false;
+		boolean inField = false;
+		for (int i = 0; i < bytes.length; i++) {
+			byte b = bytes[i];
+			boolean hasNext = i + 1 < bytes.length;
+			if (b == '\n') {
+				if (inQuotes) {
+					return false;
+				}
+				inField = false;
+			} else if (b == escape) {
+				// an escaped quote or escape is skipped; the parser drops any other escape
+				if ((inQuotes || inField) && hasNext && (bytes[i + 1] == quote || bytes[i + 1] == escape)) {
+					i++;
+				}
+			} else if (b == quote) {
+				if ((inQuotes || inField) && hasNext && bytes[i + 1] == quote) {
+					// doubled quote
+					i++;
+				} else {
+					inQuotes = !inQuotes;
+				}
+				inField = !inField;
+			} else if (b == separator && !inQuotes) {
+				inField = false;
+			} else {
+				inField = true;
+			}
+		}
+		return true;
 	}
 }
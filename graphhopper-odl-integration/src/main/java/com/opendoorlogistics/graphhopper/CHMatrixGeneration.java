@@ -8,9 +8,15 @@ package com.opendoorlogistics.graphhopper;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.graphhopper.GHRequest;
 import com.graphhopper.GHResponse;
@@ -42,8 +48,11 @@ import com.graphhopper.util.EdgeIterator;
 import com.graphhopper.util.PMap;
 import com.graphhopper.util.shapes.GHPoint;
 
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
 import gnu.trove.procedure.TIntObjectProcedure;
+import gnu.trove.procedure.TIntProcedure;
 
 public class CHMatrixGeneration {
 	/**
@@ -70,6 +79,7 @@ public class CHMatrixGeneration {
 	private final FlagEncoder flagEncoder;
 	private final EdgeFilter edgeFilter;
 	private final Weighting prepareWeighting;
+	private volatile int nbThreads = Runtime.getRuntime().availableProcessors();
 
 	public static interface CHProcessingApi {
 		boolean isCancelled();
@@ -387,17 +397,31 @@ public class CHMatrixGeneration {
 	}
 
 	public ShortestPathTree search(int startNode, EdgeExplorer edgeExplorer, EdgeFilter edgeFilter, boolean isBackwards) {
+		return search(startNode, edgeExplorer, edgeFilter, isBackwards, new IndexedMinHeap());
+	}
+
+	/**
+	 * Search from the start node using the input heap for the open set, so the heap can be reused
+	 * across searches made on the same thread.
+	 * @param startNode
+	 * @param edgeExplorer
+	 * @param edgeFilter
+	 * @param isBackwards
+	 * @param openSet
+	 * @return
+	 */
+	private ShortestPathTree search(int startNode, EdgeExplorer edgeExplorer, EdgeFilter edgeFilter, boolean isBackwards, IndexedMinHeap openSet) {
 
-		PriorityQueue<EdgeEntry> openSet = new PriorityQueue<>();
+		openSet.clear();
 		ShortestPathTree shortestWeightMap = new ShortestPathTree(startNode, isBackwards);
 
-		EdgeEntry firstEdge = new EdgeEntry(EdgeIterator.NO_EDGE, startNode, 0);
+		IndexedMinHeap.Entry firstEdge = new IndexedMinHeap.Entry(EdgeIterator.NO_EDGE, startNode, 0);
 		shortestWeightMap.put(startNode, firstEdge);
-		openSet.add(firstEdge);
+		openSet.update(firstEdge);
 
 		// int nodeCount = 0;
 
-		while (openSet.size() > 0) {
+		while (!openSet.isEmpty()) {
 
 			// The node at the adjacent edge is now settled.
 			EdgeEntry currEdge = openSet.poll();
@@ -423,19 +447,18 @@ public class CHMatrixGeneration {
 
 				EdgeEntry de = shortestWeightMap.get(adjNode);
 				if (de == null) {
-					de = new EdgeEntry(iter.getEdge(), adjNode, tmpWeight);
-					de.parent = currEdge;
-					shortestWeightMap.put(adjNode, de);
-					openSet.add(de);
+					IndexedMinHeap.Entry newEdge = new IndexedMinHeap.Entry(iter.getEdge(), adjNode, tmpWeight);
+					newEdge.parent = currEdge;
+					shortestWeightMap.put(adjNode, newEdge);
+					openSet.update(newEdge);
 				} else if (de.weight > tmpWeight) {
 					// Update the weight (i.e. travel cost) on the node.
 					// This should never be called for a settled node as the
 					// existing weight will be lower than the tmpWeight
-					openSet.remove(de);
 					de.edge = iter.getEdge();
 					de.weight = tmpWeight;
 					de.parent = currEdge;
-					openSet.add(de);
+					openSet.update((IndexedMinHeap.Entry) de);
 				}
 			}
 
@@ -452,14 +475,52 @@ public class CHMatrixGeneration {
 		return flagEncoder;
 	}
 
+	/**
+	 * Set the number of threads used by {@link #calculateMatrix(GHPoint[], CHProcessingApi)}
+	 * @param nbThreads
+	 */
+	public void setNbThreads(int nbThreads) {
+		if (nbThreads < 1) {
+			throw new IllegalArgumentException("Number of threads must be at least 1");
+		}
+		this.nbThreads = nbThreads;
+	}
+
+	public int getNbThreads() {
+		return nbThreads;
+	}
+
+	/**
+	 * Calculate the matrix using many-to-many bucket searches on the contraction hierarchy.
+	 * A backward search is run from each point and each node it reaches gets an entry in
+	 * its bucket. A forward search is then run from each point, scanning the buckets of the nodes it
+	 * reaches to find the lowest cost meeting node for each destination. Both sets of searches are spread
+	 * over a fork-join pool, with each task using its own edge explorer and heap.
+	 * @param points
+	 * @param processingApi
+	 * @return
+	 */
 	public MatrixResult calculateMatrix(GHPoint[] points, CHProcessingApi processingApi) {
+		return calculateMatrix(points, points, processingApi);
+	}
+
+	/**
+	 * Calculate the rectangular matrix from each of the from points to each of the to points.
+	 * This lets callers calculate just the rows and columns for points added to an existing matrix.
+	 * @param fromPoints
+	 * @param toPoints
+	 * @param processingApi
+	 * @return
+	 */
+	public MatrixResult calculateMatrix(GHPoint[] fromPoints, GHPoint[] toPoints, CHProcessingApi processingApi) {
 		if (outputText) {
 			System.out.println("Starting calculate matrix");
 		}
 
 		// query positions
-		List<QueryResult> validResults = new ArrayList<QueryResult>(points.length);
-		QueryResult[] snapToResults = queryPositions(points, validResults);
+		List<QueryResult> validResults = new ArrayList<QueryResult>(fromPoints.length + toPoints.length);
+		QueryResult[] fromResults = queryPositions(fromPoints, validResults);
+		QueryResult[] toResults = toPoints == fromPoints ? fromResults : queryPositions(toPoints, validResults);
 		if (processingApi != null && processingApi.isCancelled()) {
 			return null;
 		}
@@ -479,91 +540,246 @@ public class CHMatrixGeneration {
 			return null;
 		}
 
-		// run the search forward individually from each point
-		final ShortestPathTree[] forwardTrees = new ShortestPathTree[points.length];
-		final TIntObjectHashMap<List<FromIndexEdge>> visitedByNodeId = new TIntObjectHashMap<>();
-		if (processingApi != null) {
-			processingApi.postStatusMessage("Performing forward search");
+		ForkJoinPool pool = new ForkJoinPool(nbThreads);
+		try {
+			// run the search backward individually from each point
+			final ShortestPathTree[] backwardTrees = new ShortestPathTree[toPoints.length];
+			if (processingApi != null) {
+				processingApi.postStatusMessage("Performing backward search");
+			}
+			searchAllBackward(pool, toResults, queryGraph, backwardTrees, processingApi);
+			if (processingApi != null && processingApi.isCancelled()) {
+				return null;
+			}
+
+			// run the search forward for all, scanning the buckets
+			MatrixResult ret = searchAllForward(pool, fromResults, queryGraph, backwardTrees, new Buckets(backwardTrees), processingApi);
+			if (processingApi != null && processingApi.isCancelled()) {
+				return null;
+			}
+
+			if (outputText) {
+				System.out.println("Finished calculate matrix");
+			}
+
+			return ret;
+		} finally {
+			pool.shutdown();
 		}
-		searchAllForward(snapToResults, queryGraph, forwardTrees, visitedByNodeId, processingApi);
-		if (processingApi != null && processingApi.isCancelled()) {
-			return null;
+	}
+
+	/**
+	 * Processes a single point index on a fork-join worker thread
+	 */
+	private static interface PointProcessor {
+		void process(int index, EdgeExplorer explorer, IndexedMinHeap heap);
+	}
+
+	/**
+	 * Process all point indices on the pool. The indices are split into contiguous ranges
+	 * and each range creates its own edge explorer and heap, as these aren't thread safe.
+	 * Status messages are only posted from the calling thread.
+	 * @param pool
+	 * @param snapToResults
+	 * @param queryGraph
+	 * @param isBackwards
+	 * @param processingApi
+	 * @param processor
+	 */
+	private void processAllPoints(ForkJoinPool pool, final QueryResult[] snapToResults, final QueryGraph queryGraph, final boolean isBackwards,
+			final CHProcessingApi processingApi, final PointProcessor processor) {
+		final int n = snapToResults.length;
+		final int leafSize = Math.max(1, n / (8 * nbThreads));
+		final AtomicInteger nbProcessed = new AtomicInteger();
+
+		class RangeTask extends RecursiveAction {
+			private static final long serialVersionUID = 1L;
+			final int from;
+			final int to;
+
+			RangeTask(int from, int to) {
+				this.from = from;
+				this.to = to;
+			}
+
+			@Override
+			protected void compute() {
+				if (to - from > leafSize) {
+					int mid = (from + to) >>> 1;
+					invokeAll(new RangeTask(from, mid), new RangeTask(mid, to));
+					return;
+				}
+
+				EdgeExplorer explorer;
+				synchronized (queryGraph) {
+					explorer = isBackwards ? createBackwardsEdgeExplorer(queryGraph) : createForwardsEdgeExplorer(queryGraph);
+				}
+				IndexedMinHeap heap = new IndexedMinHeap();
+				for (int i = from; i < to; i++) {
+					// check for user quitting
+					if (processingApi != null && processingApi.isCancelled()) {
+						return;
+					}
+
+					if (snapToResults[i].isValid()) {
+						processor.process(i, explorer, heap);
+					}
+					nbProcessed.incrementAndGet();
+				}
+			}
 		}
 
-		// run the search backward for all
-		MatrixResult ret = searchAllBackward(snapToResults, queryGraph, forwardTrees, visitedByNodeId, processingApi);
-		if (processingApi != null && processingApi.isCancelled()) {
-			return null;
+		ForkJoinTask<Void> task = pool.submit(new RangeTask(0, n));
+		while (true) {
+			try {
+				task.get(100, TimeUnit.MILLISECONDS);
+				return;
+			} catch (TimeoutException e) {
+				if (processingApi != null) {
+					processingApi.postStatusMessage("Performed " + (isBackwards ? "backward" : "forward") + " search for " + nbProcessed.get() + "/" + n + " points");
+				}
+			} catch (InterruptedException e) {
+				task.cancel(true);
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw new RuntimeException(e.getCause());
+			}
 		}
+	}
+
+	private void searchAllBackward(ForkJoinPool pool, QueryResult[] snapToResults, final QueryGraph queryGraph, final ShortestPathTree[] backwardTrees,
+			CHProcessingApi processingApi) {
 
 		if (outputText) {
-			System.out.println("Finished calculate matrix");
+			System.out.println("Running backward searches");
 		}
 
-		return ret;
+		processAllPoints(pool, snapToResults, queryGraph, true, processingApi, new PointProcessor() {
+
+			@Override
+			public void process(int toIndex, EdgeExplorer explorer, IndexedMinHeap heap) {
+				backwardTrees[toIndex] = search(snapToResults[toIndex].getClosestNode(), explorer, levelEdgeFilter, true, heap);
+			}
+		});
 	}
 
-	private MatrixResult searchAllBackward(QueryResult[] snapToResults, final QueryGraph snapToGraph, final ShortestPathTree[] forwardTrees,
-			final TIntObjectHashMap<List<FromIndexEdge>> visitedByNodeId, CHProcessingApi processingApi) {
+	/**
+	 * The buckets of all nodes reached by one or more backward searches. Each bucket holds the
+	 * index of the search's point and the weight from the node to it. The buckets are stored contiguously
+	 * in primitive arrays as the forward searches spend most of their time scanning them.
+	 */
+	private static class Buckets {
+		private final TIntIntHashMap bucketByNode = new TIntIntHashMap(10, 0.5f, -1, -1);
+		private int[] bucketStart;
+		private int[] toIndices;
+		private double[] weights;
+
+		Buckets(ShortestPathTree[] backwardTrees) {
+			// count the size of each bucket
+			final TIntArrayList sizes = new TIntArrayList();
+			for (ShortestPathTree tree : backwardTrees) {
+				if (tree != null) {
+					tree.forEachKey(new TIntProcedure() {
+
+						@Override
+						public boolean execute(int nodeId) {
+							int bucket = bucketByNode.get(nodeId);
+							if (bucket == -1) {
+								bucketByNode.put(nodeId, sizes.size());
+								sizes.add(1);
+							} else {
+								sizes.setQuick(bucket, sizes.getQuick(bucket) + 1);
+							}
+							return true;
+						}
+					});
+				}
+			}
+
+			// get the start position of each bucket in the arrays
+			int nbBuckets = sizes.size();
+			bucketStart = new int[nbBuckets + 1];
+			for (int i = 0; i < nbBuckets; i++) {
+				bucketStart[i + 1] = bucketStart[i] + sizes.getQuick(i);
+			}
+			toIndices = new int[bucketStart[nbBuckets]];
+			weights = new double[bucketStart[nbBuckets]];
+
+			// fill the buckets, each in order of point index
+			final int[] nextPosition = Arrays.copyOf(bucketStart, nbBuckets);
+			for (int toIndex = 0; toIndex < backwardTrees.length; toIndex++) {
+				if (backwardTrees[toIndex] == null) {
+					continue;
+				}
+
+				final int finalToIndx = toIndex;
+				backwardTrees[toIndex].forEachEntry(new TIntObjectProcedure<EdgeEntry>() {
+
+					@Override
+					public boolean execute(int nodeId, EdgeEntry edge) {
+						int pos = nextPosition[bucketByNode.get(nodeId)]++;
+						toIndices[pos] = finalToIndx;
+						weights[pos] = edge.weight;
+						return true;
+					}
+				});
+			}
+		}
+	}
+
+	private MatrixResult searchAllForward(ForkJoinPool pool, final QueryResult[] snapToResults, final QueryGraph snapToGraph, final ShortestPathTree[] backwardTrees,
+			final Buckets buckets, CHProcessingApi processingApi) {
 
 		if (outputText) {
-			System.out.println("Running backward searches and extracting matrix results");
+			System.out.println("Running forward searches and extracting matrix results");
 		}
 
-		// instantiate return object
-		final int n = snapToResults.length;
-		MatrixResult ret = new MatrixResult(n);
+		// instantiate return object; each task only writes its own row
+		final int nTo = backwardTrees.length;
+		final MatrixResult ret = new MatrixResult(snapToResults.length, nTo);
 
-		// create a cache of expanded edge results
-		final HashMap<EdgeExpansionCacheKey, DistanceTime> expansionCache;
+		// create a cache of expanded edge results, shared by all threads
+		final ConcurrentHashMap<EdgeExpansionCacheKey, DistanceTime> expansionCache;
 		if (useExpansionCache) {
-			expansionCache = new HashMap<>();
+			expansionCache = new ConcurrentHashMap<>();
 		} else {
 			expansionCache = null;
 		}
 
-		// now query all in a reverse direction, building up the final matrix
-		// for each one
-		EdgeExplorer inEdgeExplorer = createBackwardsEdgeExplorer(snapToGraph);
-		// UpdateTimer timer = new UpdateTimer(100);
-		long lastUpdateTime = System.currentTimeMillis();
-		for (int toIndex = 0; toIndex < n; toIndex++) {
+		processAllPoints(pool, snapToResults, snapToGraph, false, processingApi, new PointProcessor() {
 
-			// check for user quitting
-			if (processingApi != null && processingApi.isCancelled()) {
-				return null;
-			}
-
-			if (snapToResults[toIndex].isValid()) {
-				// run query
-				ShortestPathTree reverseTree = search(snapToResults[toIndex].getClosestNode(), inEdgeExplorer, true);
+			@Override
+			public void process(int fromIndex, EdgeExplorer explorer, IndexedMinHeap heap) {
+				ShortestPathTree forwardTree = search(snapToResults[fromIndex].getClosestNode(), explorer, levelEdgeFilter, false, heap);
 
-				// This reverse tree is used to find all results going TO the current point.
+				// This forward tree is used to find all results going FROM the current point.
 
-				// Parse all nodes of the reverse tree finding the minimum cost meeting node for each from
-				final double[] minCost = new double[n];
+				// Parse all nodes of the forward tree finding the minimum cost meeting node for each to
+				final double[] minCost = new double[nTo];
 				Arrays.fill(minCost, Double.POSITIVE_INFINITY);
-				final int[] minCostNode = new int[n];
+				final int[] minCostNode = new int[nTo];
 				Arrays.fill(minCostNode, -1);
-				reverseTree.forEachEntry(new TIntObjectProcedure<EdgeEntry>() {
+				forwardTree.forEachEntry(new TIntObjectProcedure<EdgeEntry>() {
 
 					@Override
-					public boolean execute(int meetingPointNode, EdgeEntry reverseEdge) {
-						// Use list of all FROM trees which encountered this node
-						List<FromIndexEdge> list = visitedByNodeId.get(meetingPointNode);
-						if (list == null) {
+					public boolean execute(int meetingPointNode, EdgeEntry forwardEdge) {
+						// Use the bucket of all TO trees which encountered this node
+						int bucket = buckets.bucketByNode.get(meetingPointNode);
+						if (bucket == -1) {
 							return true;
 						}
-						int size = list.size();
-						for (int i = 0; i < size; i++) {
-							FromIndexEdge fie = list.get(i);
-							int fromIndex = fie.fromIndex;
-							EdgeEntry forwardEdge = fie.edge;
+						int end = buckets.bucketStart[bucket + 1];
+						for (int i = buckets.bucketStart[bucket]; i < end; i++) {
+							int toIndex = buckets.toIndices[i];
 							// see if this meeting point has a lower cost than the other
-							double cost = forwardEdge.weight + reverseEdge.weight;
-							if (cost < minCost[fromIndex]) {
-								minCost[fromIndex] = cost;
-								minCostNode[fromIndex] = meetingPointNode;
+							double cost = forwardEdge.weight + buckets.weights[i];
+							if (cost < minCost[toIndex]) {
+								minCost[toIndex] = cost;
+								minCostNode[toIndex] = meetingPointNode;
 							}
 						}
 						return true;
@@ -571,18 +787,18 @@ public class CHMatrixGeneration {
 				});
 
 				// extract the path for each one so we can get the distance and time
-				for (int fromIndex = 0; fromIndex < n; fromIndex++) {
-					int meetingPointNode = minCostNode[fromIndex];
+				for (int toIndex = 0; toIndex < nTo; toIndex++) {
+					int meetingPointNode = minCostNode[toIndex];
 					if (meetingPointNode != -1) {
 
 						// use a cache of expanded CH edges for performance reasons
 						PathBidirRef pathCh = new CacheablePath4CH(snapToGraph, getFlagEncoder(), expansionCache);
 						// PathBidirRef pathCh = new Path4CH(snapToGraph, snapToGraph.getBaseGraph(),getFlagEncoder());
 						pathCh.setSwitchToFrom(false);
-						EdgeEntry edgeEntry = forwardTrees[fromIndex].get(meetingPointNode);
+						EdgeEntry edgeEntry = forwardTree.get(meetingPointNode);
 						pathCh.setEdgeEntry(edgeEntry);
 
-						EdgeEntry edgeEntryTo = reverseTree.get(meetingPointNode);
+						EdgeEntry edgeEntryTo = backwardTrees[toIndex].get(meetingPointNode);
 						pathCh.setEdgeEntryTo(edgeEntryTo);
 
 						Path path = pathCh.extract();
@@ -591,62 +807,11 @@ public class CHMatrixGeneration {
 					}
 				}
 			}
+		});
 
-			if (System.currentTimeMillis() - lastUpdateTime > 100 && processingApi != null) {
-				lastUpdateTime = System.currentTimeMillis();
-				processingApi.postStatusMessage("Performed backwards search for " + (toIndex + 1) + "/" + n + " points");
-			}
-		}
 		return ret;
 	}
 
-	private void searchAllForward(QueryResult[] snapToResults, final QueryGraph queryGraph, final ShortestPathTree[] forwardTrees,
-			final TIntObjectHashMap<List<FromIndexEdge>> visitedByNodeId, CHProcessingApi continueCB) {
-
-		if (outputText) {
-			System.out.println("Running forward searches");
-		}
-
-		EdgeExplorer outEdgeExplorer = createForwardsEdgeExplorer(queryGraph);
-		for (int fromIndex = 0; fromIndex < snapToResults.length; fromIndex++) {
-
-			// check for user quitting
-			if (continueCB != null && continueCB.isCancelled()) {
-				return;
-			}
-
-			final int finalFromIndx = fromIndex;
-			if (snapToResults[fromIndex].isValid()) {
-				forwardTrees[fromIndex] = search(snapToResults[fromIndex].getClosestNode(), outEdgeExplorer, false);
-				forwardTrees[fromIndex].forEachEntry(new TIntObjectProcedure<EdgeEntry>() {
-
-					@Override
-					public boolean execute(int nodeId, EdgeEntry edge) {
-						List<FromIndexEdge> visited = visitedByNodeId.get(nodeId);
-						if (visited == null) {
-							visited = new ArrayList<>(1);
-							visitedByNodeId.put(nodeId, visited);
-						}
-						visited.add(new FromIndexEdge(finalFromIndx, edge));
-						return true;
-					}
-				});
-			}
-		}
-	}
-
-	private static class FromIndexEdge {
-		private final int fromIndex;
-		private final EdgeEntry edge;
-
-		FromIndexEdge(int fromIndex, EdgeEntry edge) {
-			super();
-			this.fromIndex = fromIndex;
-			this.edge = edge;
-		}
-
-	}
-
 	public Weighting getWeighting(){
 		return prepareWeighting;
 	}
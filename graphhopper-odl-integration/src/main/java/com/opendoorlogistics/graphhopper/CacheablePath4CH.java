@@ -1,6 +1,6 @@
 package com.opendoorlogistics.graphhopper;
 
-import java.util.HashMap;
+import java.util.Map;
 
 import com.graphhopper.routing.Path;
 import com.graphhopper.routing.PathBidirRef;
@@ -16,10 +16,10 @@ import com.graphhopper.storage.Graph;
  */
 public class CacheablePath4CH extends PathBidirRef {
 	private final Graph routingGraph;
-	private final HashMap<EdgeExpansionCacheKey, DistanceTime> expansionCache;
+	private final Map<EdgeExpansionCacheKey, DistanceTime> expansionCache;
 //	private final EdgeExpansionCacheKey cacheKey = new EdgeExpansionCacheKey(-1, -1);
 	private final FlagEncoder encoder;
-	public CacheablePath4CH(Graph chGraph, FlagEncoder encoder, HashMap<EdgeExpansionCacheKey, DistanceTime> expansionCache) {
+	public CacheablePath4CH(Graph chGraph, FlagEncoder encoder, Map<EdgeExpansionCacheKey, DistanceTime> expansionCache) {
 		super(chGraph.getBaseGraph(), encoder);
 		this.routingGraph = chGraph;
 		this.expansionCache = expansionCache;
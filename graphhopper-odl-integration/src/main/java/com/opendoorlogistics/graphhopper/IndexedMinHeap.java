@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.graphhopper;
+
+import java.util.Arrays;
+
+import com.graphhopper.storage.EdgeEntry;
+
+/**
+ * Binary min-heap of edge entries with the weights held in a primitive array. Each entry
+ * records its own position in the heap so its weight can be decreased in O(log n), unlike
+ * {@link java.util.PriorityQueue#remove(Object)} which is O(n).<br>
+ * An instance can be cleared and reused between searches.
+ *
+ * @author Phil
+ *
+ */
+public class IndexedMinHeap {
+	private Entry[] entries = new Entry[64];
+	private double[] weights = new double[64];
+	private int size;
+
+	/**
+	 * Edge entry which knows its position in the heap (-1 if not in the heap)
+	 */
+	public static class Entry extends EdgeEntry {
+		private int heapIndex = -1;
+
+		public Entry(int edgeId, int adjNode, double weight) {
+			super(edgeId, adjNode, weight);
+		}
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		for (int i = 0; i < size; i++) {
+			entries[i].heapIndex = -1;
+			entries[i] = null;
+		}
+		size = 0;
+	}
+
+	/**
+	 * Add the entry using its current weight, or reposition it if already in the heap and its weight has changed.
+	 *
+	 * @param entry
+	 */
+	public void update(Entry entry) {
+		int pos = entry.heapIndex;
+		if (pos == -1) {
+			if (size == entries.length) {
+				int newLength = entries.length * 2;
+				entries = Arrays.copyOf(entries, newLength);
+				weights = Arrays.copyOf(weights, newLength);
+			}
+			pos = size++;
+			entries[pos] = entry;
+			weights[pos] = entry.weight;
+			siftUp(pos);
+		} else {
+			double old = weights[pos];
+			weights[pos] = entry.weight;
+			if (entry.weight < old) {
+				siftUp(pos);
+			} else if (entry.weight > old) {
+				siftDown(pos);
+			}
+		}
+	}
+
+	/**
+	 * Remove and return the entry with the lowest weight
+	 *
+	 * @return
+	 */
+	public Entry poll() {
+		if (size == 0) {
+			throw new IllegalStateException("Heap is empty");
+		}
+		Entry ret = entries[0];
+		ret.heapIndex = -1;
+		size--;
+		if (size > 0) {
+			entries[0] = entries[size];
+			weights[0] = weights[size];
+			entries[size] = null;
+			siftDown(0);
+		} else {
+			entries[0] = null;
+		}
+		return ret;
+	}
+
+	private void siftUp(int pos) {
+		Entry entry = entries[pos];
+		double weight = weights[pos];
+		while (pos > 0) {
+			int parent = (pos - 1) >>> 1;
+			if (weights[parent] <= weight) {
+				break;
+			}
+			entries[pos] = entries[parent];
+			weights[pos] = weights[parent];
+			entries[pos].heapIndex = pos;
+			pos = parent;
+		}
+		entries[pos] = entry;
+		weights[pos] = weight;
+		entry.heapIndex = pos;
+	}
+
+	private void siftDown(int pos) {
+		Entry entry = entries[pos];
+		double weight = weights[pos];
+		int half = size >>> 1;
+		while (pos < half) {
+			int child = 2 * pos + 1;
+			int right = child + 1;
+			if (right < size && weights[right] < weights[child]) {
+				child = right;
+			}
+			if (weight <= weights[child]) {
+				break;
+			}
+			entries[pos] = entries[child];
+			weights[pos] = weights[child];
+			entries[pos].heapIndex = pos;
+			pos = child;
+		}
+		entries[pos] = entry;
+		weights[pos] = weight;
+		entry.heapIndex = pos;
+	}
+}
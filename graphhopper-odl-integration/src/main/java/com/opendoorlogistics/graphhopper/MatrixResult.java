@@ -14,11 +14,15 @@ public class MatrixResult {
 	private final double[][] times;
 
 	MatrixResult(int n) {
-		distances = new double[n][];
-		times = new double[n][];
-		for (int i = 0; i < n; i++) {
-			distances[i] = new double[n];
-			times[i] = new double[n];
+		this(n, n);
+	}
+
+	MatrixResult(int nFroms, int nTos) {
+		distances = new double[nFroms][];
+		times = new double[nFroms][];
+		for (int i = 0; i < nFroms; i++) {
+			distances[i] = new double[nTos];
+			times[i] = new double[nTos];
 			Arrays.fill(distances[i], Double.POSITIVE_INFINITY);
 			Arrays.fill(times[i], Double.POSITIVE_INFINITY);
 		}
@@ -48,6 +52,14 @@ public class MatrixResult {
 		return distances.length;
 	}
 
+	public int getNbFroms() {
+		return distances.length;
+	}
+
+	public int getNbTos() {
+		return distances.length > 0 ? distances[0].length : 0;
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder ret = new StringBuilder();
@@ -94,10 +106,11 @@ public class MatrixResult {
 	}
 
 	public double[][] getAverageSpeedKMPerHour() {
-		int n = distances.length;
-		double[][] speeds = new double[n][n];
-		for (int i = 0; i < n; i++) {
-			for (int j = 0; j < n; j++) {
+		int nFroms = getNbFroms();
+		int nTos = getNbTos();
+		double[][] speeds = new double[nFroms][nTos];
+		for (int i = 0; i < nFroms; i++) {
+			for (int j = 0; j < nTos; j++) {
 				speeds[i][j] = getAverageSpeedKMPerHour(i, j);
 			}
 
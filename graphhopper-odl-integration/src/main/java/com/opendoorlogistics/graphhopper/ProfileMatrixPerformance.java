@@ -9,9 +9,10 @@ import com.opendoorlogistics.graphhopper.geocodes4profiling.UKGeocodes;
 
 public class ProfileMatrixPerformance {
 	public static void main(String []args){
-		String graphFolder = "C:\\Data\\Graphhopper0.5\\great-britain-latest.osm-gh";
+		String graphFolder = args.length > 0 ? args[0] : "C:\\Data\\Graphhopper0.5\\great-britain-latest.osm-gh";
 	//	String graphFolder = "C:\\temp\\TestGH0.5\\north-america-latest.osm-gh";
-		int n = 250;
+		int n = args.length > 1 ? Integer.parseInt(args[1]) : 250;
+		boolean compareOneByOne = n <= 250;
 
 		GHPoint [] pnts = UKGeocodes.createUKGeocodes();
 	//	GHPoint [] pnts = USAGeocodes.createUSAGeocodes();
@@ -25,11 +26,30 @@ public class ProfileMatrixPerformance {
 		System.out.println(LocalDateTime.now() + " - loading matrix from:" + graphFolder);
 		CHMatrixGeneration ch = new CHMatrixGeneration(graphFolder, false);
 		System.out.println(LocalDateTime.now() + " - starting matrix profiling for " + pnts.length + " points");
-		MatrixResult result1 = ch.calculateMatrix(pnts,null);
-		System.out.println(result1);
-		
-		MatrixResult result2 = ch.calculateMatrixOneByOne(pnts);
-		System.out.println(result2);
+
+		// report throughput for each number of threads, doubling up to the number of processors
+		int maxThreads = Runtime.getRuntime().availableProcessors();
+		MatrixResult result1 = null;
+		for (int nbThreads = 1; ; nbThreads = Math.min(nbThreads * 2, maxThreads)) {
+			ch.setNbThreads(nbThreads);
+
+			// first run warms up
+			ch.calculateMatrix(pnts, null);
+			long startNano = System.nanoTime();
+			result1 = ch.calculateMatrix(pnts, null);
+			double millis = (System.nanoTime() - startNano) / 1000000.0;
+			long nbCells = (long) pnts.length * pnts.length;
+			System.out.println(LocalDateTime.now() + " - " + nbThreads + " threads: " + Math.round(millis) + " millis, " + Math.round(nbCells * 1000 / millis) + " matrix elements per second");
+			if (nbThreads == maxThreads) {
+				break;
+			}
+		}
+
+		if (compareOneByOne) {
+			System.out.println(result1);
+			MatrixResult result2 = ch.calculateMatrixOneByOne(pnts);
+			System.out.println(result2);
+		}
 
 		
 		System.out.println(LocalDateTime.now() + " - finished" );
@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Open Door Logistics (www.opendoorlogistics.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at http://www.gnu.org/licenses/lgpl.txt
+ ******************************************************************************/
+package com.opendoorlogistics.components.jsprit;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.graphhopper.jsprit.core.problem.Location;
+import com.graphhopper.jsprit.core.problem.VehicleRoutingProblem;
+import com.graphhopper.jsprit.core.problem.job.Service;
+import com.graphhopper.jsprit.core.problem.vehicle.Vehicle;
+import com.graphhopper.jsprit.core.problem.vehicle.VehicleImpl;
+import com.graphhopper.jsprit.core.problem.vehicle.VehicleType;
+import com.graphhopper.jsprit.core.problem.vehicle.VehicleTypeImpl;
+import com.opendoorlogistics.api.distances.ODLCostMatrix;
+import com.opendoorlogistics.api.geometry.LatLong;
+import com.opendoorlogistics.components.jsprit.VRPBuilder.ExtVehicleAttributes;
+import com.opendoorlogistics.components.jsprit.VRPBuilder.LocationsList;
+import com.opendoorlogistics.components.jsprit.VRPBuilder.VehicleRoutingTransportCostsImpl;
+import com.opendoorlogistics.components.jsprit.demo.DemoAddresses;
+
+/**
+ * Time the transport cost lookups jsprit makes during its search, using the demo addresses
+ * with straight-line travel distances. Usage: ProfileTransportCosts [country] [nbLookups]
+ * @author Phil
+ *
+ */
+public class ProfileTransportCosts {
+
+	public static void main(String[] args) {
+		String country = args.length > 0 ? args[0] : "United Kingdom";
+		int nbLookups = args.length > 1 ? Integer.parseInt(args[1]) : 50000000;
+		DemoAddresses addresses = DemoAddresses.DEMO_ADDRESSES.get(country);
+		if (addresses == null) {
+			System.out.println("Unknown country, choose one of " + DemoAddresses.DEMO_ADDRESSES.keySet());
+			return;
+		}
+
+		// build locations, jobs and a few vehicle types with different costs and speeds
+		LocationsList locs = new LocationsList();
+		List<Location> locations = new ArrayList<>();
+		List<Service> services = new ArrayList<>();
+		for (int i = 0; i < addresses.size(); i++) {
+			Location location = locs.createLocation(addresses.position(i));
+			locations.add(location);
+			services.add(Service.Builder.newInstance("s" + i).setLocation(location).build());
+		}
+
+		HashMap<String, ExtVehicleAttributes> extAttributes = new HashMap<>();
+		List<Vehicle> vehicles = new ArrayList<>();
+		for (int type = 0; type < 4; type++) {
+			VehicleType vehicleType = VehicleTypeImpl.Builder.newInstance("type" + type).setCostPerDistance(0.001 * (type + 1)).setCostPerTransportTime(0.00001).build();
+			for (int i = 0; i < 5; i++) {
+				String id = "v" + type + "-" + i;
+				ExtVehicleAttributes eva = new ExtVehicleAttributes();
+				eva.invSpeedMultiplier = 1.0 / (1 + 0.1 * type);
+				eva.parkingCost = type;
+				extAttributes.put(id, eva);
+				vehicles.add(VehicleImpl.Builder.newInstance(id).setType(vehicleType).setStartLocation(locations.get(i)).build());
+			}
+		}
+
+		long start = System.nanoTime();
+		VehicleRoutingTransportCostsImpl costs = new VehicleRoutingTransportCostsImpl(createStraightLineMatrix(locs), locs, extAttributes, 0.00001, 0.001);
+		VehicleRoutingProblem problem = VehicleRoutingProblem.Builder.newInstance().addAllVehicles(vehicles).addAllJobs(services).setRoutingCost(costs).build();
+		costs.indexVehicles(problem.getVehicles());
+		System.out.println("Built costs for " + locs.size() + " locations in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+		// random lookups, as jsprit's insertion heuristics make
+		Vehicle[] vehicleArray = problem.getVehicles().toArray(new Vehicle[0]);
+		Location[] locationArray = locations.toArray(new Location[0]);
+		for (int run = 0; run < 3; run++) {
+			Random random = new Random(123);
+			double sum = 0;
+			start = System.nanoTime();
+			for (int i = 0; i < nbLookups; i++) {
+				Location from = locationArray[random.nextInt(locationArray.length)];
+				Location to = locationArray[random.nextInt(locationArray.length)];
+				Vehicle vehicle = vehicleArray[random.nextInt(vehicleArray.length)];
+				sum += costs.getTransportCost(from, to, 0, null, vehicle);
+				sum += costs.getTransportTime(from, to, 0, null, vehicle);
+			}
+			double seconds = (System.nanoTime() - start) * 1e-9;
+			System.out.println("Run " + run + ": " + Math.round(2 * nbLookups / seconds) + " lookups/sec (checksum " + sum + ")");
+		}
+	}
+
+	/**
+	 * Create a cost matrix with straight line distances in metres and times in milliseconds, at 50 km/h
+	 * @param locs
+	 * @return
+	 */
+	private static ODLCostMatrix createStraightLineMatrix(LocationsList locs) {
+		final int n = locs.size();
+		final Map<String, Integer> indices = new HashMap<>();
+		final LatLong[] positions = new LatLong[n];
+		for (int i = 0; i < n; i++) {
+			indices.put(locs.getId(i), i);
+			String[] split = locs.getId(i).split(",");
+			final double lat = Double.parseDouble(split[0]);
+			final double lng = Double.parseDouble(split[1]);
+			positions[i] = new LatLong() {
+
+				@Override
+				public double getLatitude() {
+					return lat;
+				}
+
+				@Override
+				public double getLongitude() {
+					return lng;
+				}
+			};
+		}
+
+		return (ODLCostMatrix) Proxy.newProxyInstance(ODLCostMatrix.class.getClassLoader(), new Class<?>[] { ODLCostMatrix.class }, new InvocationHandler() {
+
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				switch (method.getName()) {
+				case "getIndex":
+					Integer index = indices.get(args[0]);
+					return index != null ? index : -1;
+
+				case "get":
+					double metres = metres(positions[(Integer) args[0]], positions[(Integer) args[1]]);
+					return (Integer) args[2] == ODLCostMatrix.COST_MATRIX_INDEX_TIME ? metres / (50 / 3.6) * 1000 : metres;
+
+				default:
+					throw new UnsupportedOperationException(method.getName());
+				}
+			}
+		});
+	}
+
+	private static double metres(LatLong a, LatLong b) {
+		double lat1 = Math.toRadians(a.getLatitude());
+		double lat2 = Math.toRadians(b.getLatitude());
+		double dLng = Math.toRadians(b.getLongitude() - a.getLongitude());
+		double cos = Math.sin(lat1) * Math.sin(lat2) + Math.cos(lat1) * Math.cos(lat2) * Math.cos(dLng);
+		return 6371000 * Math.acos(Math.min(1, Math.max(-1, cos)));
+	}
+}
@@ -68,7 +68,7 @@ public class VRPBuilder {
 	private final ComponentExecutionApi api;
 	private HashMap<String,ExtVehicleAttributes> extVehicleAttributeById = new HashMap<>();
 
-	private static class ExtVehicleAttributes{
+	static class ExtVehicleAttributes{
 	    double invSpeedMultiplier=1;
 	    double parkingCost=0;
 	}
@@ -136,17 +136,51 @@ public class VRPBuilder {
 	static class LocationsList {
 		private final HashMap<String, LatLong> locs = new HashMap<>();
 		private final HashMap<LatLong, String> ids = new HashMap<>();
+		private final ArrayList<String> idsByIndex = new ArrayList<>();
+		private final TObjectIntHashMap<String> indexById = new TObjectIntHashMap<>(10, 0.5f, -1);
 
 		String addLatLong(LatLong ll) {
 			String ret = ids.get(ll);
 			if (ret == null) {
 				ret = toId(ll);
-				locs.put(ret, ll);
 				ids.put(ll, ret);
+				
+				// different lat-long objects can still give the same id
+				if (!locs.containsKey(ret)) {
+					locs.put(ret, ll);
+					indexById.put(ret, idsByIndex.size());
+					idsByIndex.add(ret);
+				}
 			}
 			return ret;
 		}
 
+		/**
+		 * Create a jsprit location whose index is the position of the lat-long in this list
+		 * @param ll
+		 * @return
+		 */
+		Location createLocation(LatLong ll) {
+			String id = addLatLong(ll);
+			return Location.Builder.newInstance().setId(id).setIndex(indexById.get(id)).build();
+		}
+
+		/**
+		 * @param id
+		 * @return The index or -1 if unknown (e.g. for nowhere)
+		 */
+		int getIndex(String id) {
+			return indexById.get(id);
+		}
+
+		String getId(int index) {
+			return idsByIndex.get(index);
+		}
+
+		int size() {
+			return idsByIndex.size();
+		}
+
 //		LatLong getLatLong(String id) {
 //			return locs.get(id);
 //		}
@@ -161,49 +195,82 @@ public class VRPBuilder {
 
 	}
 
-	private class VehicleRoutingTransportCostsImpl implements VehicleRoutingTransportCosts {
-		private final ODLCostMatrix distances;
-		private final TObjectIntHashMap<String> idToIndex;
-		private final double meanCostPerMillisecond;
-		private final double meanCostPerMetre;
+	/**
+	 * Travel costs held in dense float arrays indexed by the jsprit location index, so the lookups
+	 * made during the search do no string hashing, boxing or allocation. Costs are precomputed for each distinct
+	 * combination of vehicle cost rates, speed multiplier and parking cost, whilst within a memory budget.
+	 * 
+	 * @author Phil
+	 *
+	 */
+	static class VehicleRoutingTransportCostsImpl implements VehicleRoutingTransportCosts {
+		private static final long PRECOMPUTED_COSTS_BUDGET_FLOATS = 32 * 1024 * 1024;
+		private final int n;
+		private final float[] distances;
+		private final float[] times;
+		private final LocationsList locs;
+		private final Map<String, ExtVehicleAttributes> extVehicleAttributeById;
+		private final CostProfile meanProfile;
 		private final double maxVehicleIndependentConnectedLocationsTravelCost;
+		private volatile CostProfile[] profileByVehicleIndex = new CostProfile[0];
 
-		VehicleRoutingTransportCostsImpl(DistancesConfiguration distancesConfig, ComponentExecutionApi api,double meanCostPerMillisecond,double meanCostPerMetre) {
-			this.meanCostPerMillisecond = meanCostPerMillisecond;
-			this.meanCostPerMetre = meanCostPerMetre;
-			
-			// take copy of the distances and ensure in correct output units
-			distancesConfig = distancesConfig.deepCopy();
-			distancesConfig.getOutputConfig().setOutputDistanceUnit(OutputDistanceUnit.METRES);
-			distancesConfig.getOutputConfig().setOutputTimeUnit(OutputTimeUnit.MILLISECONDS);
-			
-			// build a table
-			ODLTableAlterable table = api.getApi().tables().createAlterableTable("Locations");
-			table.addColumn(-1, PredefinedTags.LATITUDE, ODLColumnType.DOUBLE, 0);
-			table.addColumn(-1, PredefinedTags.LONGITUDE, ODLColumnType.DOUBLE, 0);
-			table.addColumn(-1, PredefinedTags.LOCATION_KEY, ODLColumnType.STRING, 0);
-			for (Map.Entry<String, LatLong> entry : locs.locs.entrySet()) {
-				api.getApi().tables().addRow(table, entry.getValue().getLatitude(), entry.getValue().getLongitude(), entry.getKey());
+		/**
+		 * The cost rates for a vehicle, or for no vehicle (using the mean cost rates)
+		 */
+		private static class CostProfile {
+			final Vehicle vehicle;
+			final double costPerMillisecond;
+			final double costPerMetre;
+			final double invSpeedMultiplier;
+			final double parkingCost;
+			float[] costs;
+
+			CostProfile(Vehicle vehicle, double costPerMillisecond, double costPerMetre, double invSpeedMultiplier, double parkingCost) {
+				this.vehicle = vehicle;
+				this.costPerMillisecond = costPerMillisecond;
+				this.costPerMetre = costPerMetre;
+				this.invSpeedMultiplier = invSpeedMultiplier;
+				this.parkingCost = parkingCost;
+			}
+
+			boolean hasSameRates(CostProfile other) {
+				return costPerMillisecond == other.costPerMillisecond && costPerMetre == other.costPerMetre && invSpeedMultiplier == other.invSpeedMultiplier
+						&& parkingCost == other.parkingCost;
 			}
+		}
 
-			// call the api
-			distances = api.calculateDistances(distancesConfig, table);
+		VehicleRoutingTransportCostsImpl(ODLCostMatrix matrix, LocationsList locs, Map<String, ExtVehicleAttributes> extVehicleAttributeById, double meanCostPerMillisecond,
+				double meanCostPerMetre) {
+			this.locs = locs;
+			this.extVehicleAttributeById = extVehicleAttributeById;
+			this.meanProfile = new CostProfile(null, meanCostPerMillisecond, meanCostPerMetre, 1, 0);
 
-			// read indices out
-			idToIndex = new TObjectIntHashMap<>();
-			for (String id : locs.ids.values()) {
-				int indx = distances.getIndex(id);
-				idToIndex.put(id, indx);
+			// copy the matrix into arrays indexed by location index
+			n = locs.size();
+			if ((long) n * n > Integer.MAX_VALUE - 8) {
+				throw new RuntimeException("Too many locations for the travel matrix: " + n);
 			}
-			
+			int[] matrixIndices = new int[n];
+			for (int i = 0; i < n; i++) {
+				matrixIndices[i] = matrix.getIndex(locs.getId(i));
+			}
+			distances = new float[n * n];
+			times = new float[n * n];
+			for (int i = 0; i < n; i++) {
+				for (int j = 0; j < n; j++) {
+					distances[i * n + j] = (float) matrix.get(matrixIndices[i], matrixIndices[j], TravelCostType.DISTANCE_KM.matrixIndex);
+					times[i * n + j] = (float) matrix.get(matrixIndices[i], matrixIndices[j], TravelCostType.TIME.matrixIndex);
+				}
+			}
+
 			// get the max connected transport cost...
-			double max=0;
-			for (String from : locs.ids.values()) {
-				for (String to : locs.ids.values()) {
-					float cost = getCost(from, to, null);
-					
+			double max = 0;
+			for (int i = 0; i < n; i++) {
+				for (int j = 0; j < n; j++) {
+					float cost = getCost(i, j, meanProfile);
+
 					// Unconnected locations would be infinite here... filter them
-					if(!Float.isInfinite(cost)){
+					if (!Float.isInfinite(cost)) {
 						max = Math.max(max, cost);
 					}
 				}
@@ -211,76 +278,122 @@ public class VRPBuilder {
 			maxVehicleIndependentConnectedLocationsTravelCost = max;
 		}
 
-		private float getTime(String fromId, String toId, Vehicle vehicle) {
-			if(fromId == VRPConstants.NOWHERE || toId == VRPConstants.NOWHERE){
-				return 0;
+		/**
+		 * Create the cost profile for each vehicle, sharing precomputed costs between vehicles with the same rates.
+		 * This must be called once the vehicles have their jsprit indices (i.e. after the problem is built).
+		 * @param vehicles
+		 */
+		void indexVehicles(Collection<Vehicle> vehicles) {
+			int maxIndex = -1;
+			for (Vehicle vehicle : vehicles) {
+				maxIndex = Math.max(maxIndex, vehicle.getIndex());
 			}
-			if (vehicle == null){
-				return (float) ((float)distances.get(idToIndex.get(fromId), idToIndex.get(toId), TravelCostType.TIME.matrixIndex));
+
+			CostProfile[] profiles = new CostProfile[maxIndex + 1];
+			ArrayList<CostProfile> precomputed = new ArrayList<>();
+			long budget = PRECOMPUTED_COSTS_BUDGET_FLOATS;
+			for (Vehicle vehicle : vehicles) {
+				CostProfile profile = createProfile(vehicle);
+				for (CostProfile other : precomputed) {
+					if (other.hasSameRates(profile)) {
+						profile.costs = other.costs;
+						break;
+					}
+				}
+
+				if (profile.costs == null && budget >= distances.length) {
+					float[] costs = new float[distances.length];
+					for (int i = 0; i < n; i++) {
+						for (int j = 0; j < n; j++) {
+							costs[i * n + j] = getCost(i, j, profile);
+						}
+					}
+					profile.costs = costs;
+					precomputed.add(profile);
+					budget -= costs.length;
+				}
+
+				if (vehicle.getIndex() >= 0) {
+					profiles[vehicle.getIndex()] = profile;
+				}
 			}
-			
-			double invMult=1;
+			profileByVehicleIndex = profiles;
+		}
+
+		private CostProfile createProfile(Vehicle vehicle) {
+			double costPerMillisecond = meanProfile.costPerMillisecond;
+			double costPerMetre = meanProfile.costPerMetre;
+			if (vehicle.getType() != null && vehicle.getType().getVehicleCostParams() != null) {
+				VehicleCostParams vcp = vehicle.getType().getVehicleCostParams();
+				costPerMillisecond = vcp.perTransportTimeUnit;
+				costPerMetre = vcp.perDistanceUnit;
+			}
+
+			double invMult = 1;
+			double parkingCost = 0;
 			ExtVehicleAttributes eva = extVehicleAttributeById.get(vehicle.getId());
-			if(eva!=null){
-			    invMult = eva.invSpeedMultiplier;
+			if (eva != null) {
+				invMult = eva.invSpeedMultiplier;
+				parkingCost = eva.parkingCost;
 			}
-			return (float)(distances.get(idToIndex.get(fromId), idToIndex.get(toId), TravelCostType.TIME.matrixIndex)*invMult);
+			return new CostProfile(vehicle, costPerMillisecond, costPerMetre, invMult, parkingCost);
 		}
-		
-		private float getCost(String fromId, String toId, Vehicle vehicle) {
-			double costPerMillisecond =meanCostPerMillisecond;
-			double costPerMetre =meanCostPerMetre;
-			
-			if(vehicle!=null && vehicle.getType()!=null && vehicle.getType().getVehicleCostParams()!=null){
-				VehicleCostParams vcp = vehicle.getType().getVehicleCostParams();
-				costPerMillisecond =vcp.perTransportTimeUnit;
-				costPerMetre = vcp.perDistanceUnit;				
+
+		private CostProfile getProfile(Vehicle vehicle) {
+			if (vehicle == null) {
+				return meanProfile;
 			}
-			
-            float cost= getCost(fromId, toId, costPerMillisecond, costPerMetre, vehicle);
-			
-            // apply parking costs to non-identical locations
-            if(vehicle!=null && !fromId.equals(toId)){
-                ExtVehicleAttributes eva = extVehicleAttributeById.get(vehicle.getId());
-                if(eva!=null){
-                    cost += eva.parkingCost;
-                }
-            }
-	            
-			return cost;
-//			if(vehicle != null){
-//				if(vehicle.getType() != null){
-//					costs = distance * vehicle.getType().getVehicleCostParams().perDistanceUnit;
-//				}
-//			}
-			
-//			if(vehicle == null) return getDistance(fromId, toId);
-//			VehicleCostParams costParams = vehicle.getType().getVehicleCostParams();
-//			return costParams.perDistanceUnit*getDistance(fromId, toId) + costParams.perTimeUnit*getTime(fromId, toId);
-			
+
+			// vehicles not known when indexing (e.g. jsprit's no vehicle) get a profile on-the-fly
+			CostProfile[] profiles = profileByVehicleIndex;
+			int index = vehicle.getIndex();
+			if (index >= 0 && index < profiles.length && profiles[index] != null && profiles[index].vehicle == vehicle) {
+				return profiles[index];
+			}
+			return createProfile(vehicle);
 		}
 
 		/**
-		 * @param fromId
-		 * @param toId
-		 * @param costPerMillisecond
-		 * @param costPerMetre
+		 * Get the location index, which is -1 for nowhere
+		 * @param location
 		 * @return
 		 */
-		float getCost(String fromId, String toId, double costPerMillisecond, double costPerMetre, Vehicle vehicle) {
-			if(fromId == VRPConstants.NOWHERE || toId == VRPConstants.NOWHERE){
+		private int getIndex(Location location) {
+			int ret = location.getIndex();
+			return ret >= 0 ? ret : locs.getIndex(location.getId());
+		}
+
+		private float getTime(int from, int to, CostProfile profile) {
+			if (from == -1 || to == -1) {
 				return 0;
 			}
-			double distance= getDistance(fromId, toId);
-			double time = getTime(fromId, toId, vehicle);
-			
-			// Explicitly check for infinity (e.g. unconnected) and return infinity if found.
-			// If costPerX=0 and its multiplied by infinity, we get NaN which we don't process properly later-on
-			if(distance == Double.POSITIVE_INFINITY || time == Double.POSITIVE_INFINITY){
-				return Float.POSITIVE_INFINITY;
+			return (float) (times[from * n + to] * profile.invSpeedMultiplier);
+		}
+
+		private float getCost(int from, int to, CostProfile profile) {
+			float cost;
+			if (from == -1 || to == -1) {
+				cost = 0;
+			} else if (profile.costs != null) {
+				return profile.costs[from * n + to];
+			} else {
+				float distance = distances[from * n + to];
+				float time = getTime(from, to, profile);
+
+				// Explicitly check for infinity (e.g. unconnected) and return infinity if found.
+				// If costPerX=0 and its multiplied by infinity, we get NaN which we don't process properly later-on
+				if (distance == Float.POSITIVE_INFINITY || time == Float.POSITIVE_INFINITY) {
+					cost = Float.POSITIVE_INFINITY;
+				} else {
+					cost = (float) (distance * profile.costPerMetre + time * profile.costPerMillisecond);
+				}
 			}
-			double cost = distance * costPerMetre + time * costPerMillisecond;
-			return (float)cost;
+
+			// apply parking costs to non-identical locations
+			if (from != to) {
+				cost += profile.parkingCost;
+			}
+			return cost;
 		}
 
 		/**
@@ -289,60 +402,67 @@ public class VRPBuilder {
 		 * @return
 		 */
 		float getDistance(String fromId, String toId) {
-			if(fromId == VRPConstants.NOWHERE || toId == VRPConstants.NOWHERE){
+			int from = locs.getIndex(fromId);
+			int to = locs.getIndex(toId);
+			if (from == -1 || to == -1) {
 				return 0;
-			}			
-			return (float)distances.get(idToIndex.get(fromId), idToIndex.get(toId), TravelCostType.DISTANCE_KM.matrixIndex);
-		}
-		
-		private float get(String fromId, String toId,  TravelCostType type, Vehicle vehicle) {
-			switch(type){
-			case TIME:
-				return getTime(fromId, toId, vehicle);
-				
-			case DISTANCE_KM:
-				return getDistance(fromId, toId);
-				
-			case COST:
-				return 0f;
-				
-			default:
-				return 0f;
 			}
+			return distances[from * n + to];
 		}
 
 		@Override
 		public double getBackwardTransportCost(Location fromId, Location toId, double arrivalTime, Driver driver, Vehicle vehicle) {
-			return getCost(fromId.getId(), toId.getId(), vehicle);
+			return getCost(getIndex(fromId), getIndex(toId), getProfile(vehicle));
 		}
 
 		@Override
 		public double getTransportCost(Location fromId, Location toId, double departureTime, Driver driver, Vehicle vehicle) {
-			return getCost(fromId.getId(), toId.getId(),vehicle);
-//			if(Double.isInfinite(cost)){
-//				return cost;
-//			}
-//			return cost;
+			return getCost(getIndex(fromId), getIndex(toId), getProfile(vehicle));
 		}
 
 		@Override
 		public double getBackwardTransportTime(Location fromId, Location toId, double arrivalTime, Driver driver, Vehicle vehicle) {
-			return getTime(fromId.getId(), toId.getId(), vehicle);
+			return getTime(getIndex(fromId), getIndex(toId), getProfile(vehicle));
 		}
 
 		@Override
 		public double getTransportTime(Location fromId, Location toId, double departureTime, Driver driver, Vehicle vehicle) {
-			return getTime(fromId.getId(), toId.getId(), vehicle);
+			return getTime(getIndex(fromId), getIndex(toId), getProfile(vehicle));
 		}
 	}
 
+	/**
+	 * Calculate the distances between all locations, with distances in metres and times in milliseconds
+	 * @param distancesConfig
+	 * @param locs
+	 * @param api
+	 * @return
+	 */
+	private static ODLCostMatrix calculateDistances(DistancesConfiguration distancesConfig, LocationsList locs, ComponentExecutionApi api) {
+		// take copy of the distances and ensure in correct output units
+		distancesConfig = distancesConfig.deepCopy();
+		distancesConfig.getOutputConfig().setOutputDistanceUnit(OutputDistanceUnit.METRES);
+		distancesConfig.getOutputConfig().setOutputTimeUnit(OutputTimeUnit.MILLISECONDS);
+		
+		// build a table
+		ODLTableAlterable table = api.getApi().tables().createAlterableTable("Locations");
+		table.addColumn(-1, PredefinedTags.LATITUDE, ODLColumnType.DOUBLE, 0);
+		table.addColumn(-1, PredefinedTags.LONGITUDE, ODLColumnType.DOUBLE, 0);
+		table.addColumn(-1, PredefinedTags.LOCATION_KEY, ODLColumnType.STRING, 0);
+		for (Map.Entry<String, LatLong> entry : locs.locs.entrySet()) {
+			api.getApi().tables().addRow(table, entry.getValue().getLatitude(), entry.getValue().getLongitude(), entry.getKey());
+		}
+
+		// call the api
+		return api.calculateDistances(distancesConfig, table);
+	}
 
 
 	private Service buildStop(ODLTableReadOnly table, int row, StopsTableDefn dfn, Service.Builder builder) {
 		LatLong ll = dfn.latLong.getLatLong(table, row,false);
 
 		
-		Location location = Location.newInstance(locs.addLatLong(ll));
+		Location location = locs.createLocation(ll);
 		builder.setLocation(location);
 		
 		// validate and add quantities
@@ -463,8 +583,8 @@ public class VRPBuilder {
 
 			// set start and end (hopefully not used internal to jsprit)
 			// vehicleBuilder.setStartLocationCoordinate(Coordinate.newInstance(start.getLongitude(), start.getLatitude()));
-			vehicleBuilder.setStartLocation(ends[0] != null? Location.newInstance(locs.addLatLong(ends[0])): Location.newInstance(VRPConstants.NOWHERE));
-			vehicleBuilder.setEndLocation(ends[1] != null? Location.newInstance(locs.addLatLong(ends[1])): Location.newInstance(VRPConstants.NOWHERE));
+			vehicleBuilder.setStartLocation(ends[0] != null? locs.createLocation(ends[0]): Location.newInstance(VRPConstants.NOWHERE));
+			vehicleBuilder.setEndLocation(ends[1] != null? locs.createLocation(ends[1]): Location.newInstance(VRPConstants.NOWHERE));
 
 			// always set this as we always have depot stops - they just might be dummy
 			vehicleBuilder.setReturnToDepot(true);
@@ -604,16 +724,16 @@ public class VRPBuilder {
 
 				ODLTime serviceTime = stopsTableDfn.getDuration(stopsTable, row);
 				LatLong ll = stopsTableDfn.latLong.getLatLong(stopsTable, row,false);
-				String locId = locs.addLatLong(ll);
+				Location location = locs.createLocation(ll);
 
 				// service time and location	
 				if (i == 0) {
 					builder.setPickupServiceTime(serviceTime.getTotalMilliseconds());
-					builder.setPickupLocation(Location.newInstance(locId));
+					builder.setPickupLocation(location);
 					
 				} else {
 					builder.setDeliveryServiceTime(serviceTime.getTotalMilliseconds());
-					builder.setDeliveryLocation(Location.newInstance(locId));
+					builder.setDeliveryLocation(location);
 					
 				}
 
@@ -729,11 +849,14 @@ public class VRPBuilder {
 		// build travel matrix 
 		double meanCostPerMilli = bb.costsPerMillisecond.count>0?bb.costsPerMillisecond.getMean():1;
 		double meanCostPerMetre = bb.costsPerMetre.count>0? bb.costsPerMetre.getMean():1;
-		matrix = new VehicleRoutingTransportCostsImpl(config.getDistances(), api,meanCostPerMilli,meanCostPerMetre);			
+		matrix = new VehicleRoutingTransportCostsImpl(calculateDistances(config.getDistances(), locs, api), locs, extVehicleAttributeById, meanCostPerMilli, meanCostPerMetre);			
 		
 		vrpBuilder.setRoutingCost(matrix);
 
 		vrpProblem = vrpBuilder.build();
+		
+		// vehicles have their indices now
+		matrix.indexVehicles(vrpProblem.getVehicles());
 	}
 
 	public static VRPBuilder build(ODLDatastore<? extends ODLTable> ioDb, VRPConfig config,Map<Integer,List<RowVehicleIndex>> overrideVehiclesToBuild, ComponentExecutionApi api) {
@@ -780,7 +903,7 @@ public class VRPBuilder {
 //	}
 
 	public double getTravelDistanceKM(String from ,String to){
-		return matrix.get(from, to, TravelCostType.DISTANCE_KM, null);
+		return matrix.getDistance(from, to);
 	}
 	
 	public double getMaxVehicleIndependentConnectedLocationsTravelCost(){
@@ -13,11 +13,11 @@ import java.util.TreeMap;
 import com.opendoorlogistics.api.geometry.LatLong;
 
 public class DemoAddresses {
-	int size() {
+	public int size() {
 		return data.length;
 	}
 
-	LatLong position(final int i) {
+	public LatLong position(final int i) {
 		return new LatLong() {
 
 			@Override